@@ -0,0 +1,400 @@
+package is.erle.captain;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Reads the lines appended to the operator command file since the last call.
+ * <p>
+ * The byte offset following the last dispatched line is kept in a side file
+ * along with the identity of the command file and a checksum of its first
+ * bytes, so a command is executed once even across restarts of the activity.
+ * Lines are returned as they are read but only {@link #commit(CommandLine)}
+ * moves the stored offset, so lines still waiting to be dispatched are read
+ * again after a restart. The side file is replaced atomically. A line is
+ * only returned once its terminating newline has been written, a half written
+ * line is picked up by the next call. If the command file has been replaced,
+ * whatever its new length, or has become shorter than the stored offset, it
+ * is read again from the beginning. The operator never has to delete it. The
+ * checksum catches a file created again on a reused inode, as long as its
+ * first lines differ from the read ones.
+ * <p>
+ * The command watcher thread reads the lines and the command dispatcher
+ * thread commits them, the tailer synchronizes both.
+ *
+ * @version %I%, %G%
+ * @since 1.0.0
+ */
+public class CommandFileTailer
+{
+	/**
+	 * Size of the read buffer.
+	 */
+	private static final int BUFFER_SIZE = 4096;
+
+	/**
+	 * Number of bytes at the start of the command file covered by the
+	 * {@link #headChecksum}.
+	 */
+	private static final int HEAD_LENGTH = 512;
+
+	/**
+	 * The command file.
+	 */
+	private final File commandFile;
+
+	/**
+	 * The file storing the offset of the first unread byte.
+	 */
+	private final File offsetFile;
+
+	/**
+	 * Reused read buffer.
+	 */
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+
+	/**
+	 * Offset of the first unread byte of the command file.
+	 */
+	private long offset;
+
+	/**
+	 * Offset following the last dispatched line, the one persisted.
+	 */
+	private long committed;
+
+	/**
+	 * CRC32 of the command file head up to {@link #committed}.
+	 */
+	private long committedChecksum;
+
+	/**
+	 * Generation of the command file, counting the times it has been read
+	 * again from the beginning.
+	 */
+	private int generation;
+
+	/**
+	 * Identity of the command file the {@link #offset} belongs to,
+	 * <code>null</code> if unknown.
+	 */
+	private String identity;
+
+	/**
+	 * CRC32 of the read bytes of the command file, up to
+	 * {@link #HEAD_LENGTH}.
+	 */
+	private long headChecksum;
+
+	/**
+	 * Constructor to initialize the tailer with the persisted offset.
+	 *
+	 * @param commandFile
+	 *            The command file to read.
+	 * @param offsetFile
+	 *            The file storing the read offset.
+	 */
+	public CommandFileTailer(File commandFile, File offsetFile)
+	{
+		this.commandFile = commandFile;
+		this.offsetFile = offsetFile;
+		loadOffset();
+	}
+
+	/**
+	 * Gets the command file.
+	 *
+	 * @return The command file being read.
+	 */
+	public File getCommandFile()
+	{
+		return commandFile;
+	}
+
+	/**
+	 * Reads the complete lines appended since the last call. The stored
+	 * offset only moves when the lines are committed.
+	 *
+	 * @return The new non empty lines. Empty if nothing new has been written
+	 *         or the file does not exist.
+	 * @throws IOException
+	 *             If the command file or the offset file can not be accessed.
+	 */
+	public synchronized List<CommandLine> readNewLines() throws IOException
+	{
+		List<CommandLine> lines = new ArrayList<CommandLine>();
+		if (!commandFile.exists())
+		{
+			return lines;
+		}
+		String current = identityOf(commandFile);
+		RandomAccessFile raf = new RandomAccessFile(commandFile, "r");
+		try
+		{
+			long length = raf.length();
+			if (identity == null)
+			{
+				identity = current;
+				headChecksum = checksumOfHead(raf, Math.min(offset, length));
+				committedChecksum = headChecksum;
+				storeOffset();
+			}
+			if (!identity.equals(current) || length < offset
+					|| checksumOfHead(raf, offset) != headChecksum)
+			{
+				offset = 0;
+				committed = 0;
+				generation++;
+				identity = current;
+				headChecksum = checksumOfHead(raf, 0);
+				committedChecksum = headChecksum;
+				storeOffset();
+			}
+			if (length == offset)
+			{
+				return lines;
+			}
+			raf.seek(offset);
+			long lineStart = offset;
+			long position = offset;
+			byte[] pending = new byte[0];
+			List<String> texts = new ArrayList<String>();
+			List<Long> ends = new ArrayList<Long>();
+			int read;
+			while ((read = raf.read(buffer)) > 0)
+			{
+				int start = 0;
+				for (int i = 0; i < read; i++)
+				{
+					if (buffer[i] == '\n')
+					{
+						pending = append(pending, buffer, start, i - start);
+						if (addLine(texts, pending))
+						{
+							ends.add(position + i + 1);
+						}
+						pending = new byte[0];
+						start = i + 1;
+						lineStart = position + i + 1;
+					}
+				}
+				pending = append(pending, buffer, start, read - start);
+				position += read;
+			}
+			for (int i = 0; i < texts.size(); i++)
+			{
+				long end = ends.get(i);
+				lines.add(new CommandLine(texts.get(i), end, checksumOfHead(
+						raf, end), generation));
+			}
+			if (lineStart != offset)
+			{
+				offset = lineStart;
+				headChecksum = checksumOfHead(raf, offset);
+			}
+		}
+		finally
+		{
+			raf.close();
+		}
+		return lines;
+	}
+
+	/**
+	 * Marks a line as dispatched and persists the offset following it. A
+	 * line of a command file which has since been replaced, or older than the
+	 * last committed one, is ignored.
+	 *
+	 * @param line
+	 *            A line returned by {@link #readNewLines()}.
+	 * @throws IOException
+	 *             If the offset file can not be written.
+	 */
+	public synchronized void commit(CommandLine line) throws IOException
+	{
+		if (line.getGeneration() != generation || line.getEnd() <= committed)
+		{
+			return;
+		}
+		committed = line.getEnd();
+		committedChecksum = line.getHeadChecksum();
+		storeOffset();
+	}
+
+	/**
+	 * Decodes a line and adds it to the result if it is not blank.
+	 *
+	 * @param lines
+	 *            Result list.
+	 * @param bytes
+	 *            Bytes of the line without the newline.
+	 * @return <code>true</code> if the line has been added.
+	 */
+	private static boolean addLine(List<String> lines, byte[] bytes)
+	{
+		String line = new String(bytes, StandardCharsets.UTF_8).trim();
+		if (line.isEmpty())
+		{
+			return false;
+		}
+		lines.add(line);
+		return true;
+	}
+
+	/**
+	 * Appends a part of the read buffer to the bytes of the current line.
+	 *
+	 * @param pending
+	 *            Bytes of the current line read so far.
+	 * @param source
+	 *            Read buffer.
+	 * @param start
+	 *            First byte to append.
+	 * @param length
+	 *            Number of bytes to append.
+	 * @return The bytes of the current line.
+	 */
+	private static byte[] append(byte[] pending, byte[] source, int start,
+			int length)
+	{
+		if (length == 0)
+		{
+			return pending;
+		}
+		byte[] result = new byte[pending.length + length];
+		System.arraycopy(pending, 0, result, 0, pending.length);
+		System.arraycopy(source, start, result, pending.length, length);
+		return result;
+	}
+
+	/**
+	 * Gets the identity of a file, which changes when the file is deleted and
+	 * created again. The file key is used where the file system has one, the
+	 * creation time otherwise.
+	 *
+	 * @param file
+	 *            An existing file.
+	 * @return The identity of the file.
+	 * @throws IOException
+	 *             If the attributes of the file can not be read.
+	 */
+	private static String identityOf(File file) throws IOException
+	{
+		BasicFileAttributes attributes = Files.readAttributes(file.toPath(),
+				BasicFileAttributes.class);
+		Object key = attributes.fileKey();
+		if (key != null)
+		{
+			return key.toString();
+		}
+		return "created " + attributes.creationTime().toMillis();
+	}
+
+	/**
+	 * Computes the CRC32 of the first bytes of the command file. Moves the
+	 * file pointer.
+	 *
+	 * @param raf
+	 *            The open command file.
+	 * @param length
+	 *            Number of read bytes, only the first {@link #HEAD_LENGTH} of
+	 *            them are covered.
+	 * @return The checksum.
+	 * @throws IOException
+	 *             If the command file can not be read.
+	 */
+	private long checksumOfHead(RandomAccessFile raf, long length)
+			throws IOException
+	{
+		CRC32 crc = new CRC32();
+		int remaining = (int) Math.min(length, HEAD_LENGTH);
+		raf.seek(0);
+		while (remaining > 0)
+		{
+			int read = raf.read(buffer, 0, Math.min(remaining, buffer.length));
+			if (read < 0)
+			{
+				break;
+			}
+			crc.update(buffer, 0, read);
+			remaining -= read;
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Loads the persisted offset, file identity and head checksum. An offset
+	 * file written without the identity leaves it unknown, the identity and
+	 * checksum of the current command file are then taken on the next read.
+	 */
+	private void loadOffset()
+	{
+		offset = 0;
+		identity = null;
+		if (!offsetFile.exists())
+		{
+			return;
+		}
+		try
+		{
+			RandomAccessFile raf = new RandomAccessFile(offsetFile, "r");
+			try
+			{
+				if (raf.length() >= 8)
+				{
+					offset = raf.readLong();
+				}
+				if (raf.length() > 8)
+				{
+					identity = raf.readUTF();
+					headChecksum = raf.readLong();
+				}
+			}
+			finally
+			{
+				raf.close();
+			}
+		}
+		catch (IOException e)
+		{
+			offset = 0;
+			identity = null;
+		}
+		committed = offset;
+		committedChecksum = headChecksum;
+	}
+
+	/**
+	 * Persists the committed offset, file identity and head checksum. The
+	 * record is written next to the offset file and moved over it, so a crash
+	 * never leaves half a record.
+	 *
+	 * @throws IOException
+	 *             If the offset file can not be written.
+	 */
+	private void storeOffset() throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream record = new DataOutputStream(bytes);
+		record.writeLong(committed);
+		record.writeUTF(identity == null ? "" : identity);
+		record.writeLong(committedChecksum);
+		record.close();
+		File temporary = new File(offsetFile.getAbsoluteFile().getParentFile(),
+				"." + offsetFile.getName() + ".tmp");
+		Files.write(temporary.toPath(), bytes.toByteArray());
+		Files.move(temporary.toPath(), offsetFile.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+}
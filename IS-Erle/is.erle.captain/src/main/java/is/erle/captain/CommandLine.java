@@ -0,0 +1,90 @@
+package is.erle.captain;
+
+/**
+ * A line read from the operator command file by the
+ * {@link CommandFileTailer}, with the position to commit once it has been
+ * dispatched.
+ *
+ * @version %I%, %G%
+ * @since 1.0.0
+ */
+public final class CommandLine
+{
+	/**
+	 * The command, trimmed.
+	 */
+	private final String text;
+
+	/**
+	 * Offset of the byte following the newline of the line.
+	 */
+	private final long end;
+
+	/**
+	 * CRC32 of the command file head up to {@link #end}.
+	 */
+	private final long headChecksum;
+
+	/**
+	 * Generation of the command file the line was read from.
+	 */
+	private final int generation;
+
+	/**
+	 * Constructor to initialize the line.
+	 *
+	 * @param text
+	 *            The command, trimmed.
+	 * @param end
+	 *            Offset of the byte following the newline of the line.
+	 * @param headChecksum
+	 *            CRC32 of the command file head up to the end of the line.
+	 * @param generation
+	 *            Generation of the command file the line was read from.
+	 */
+	public CommandLine(String text, long end, long headChecksum, int generation)
+	{
+		this.text = text;
+		this.end = end;
+		this.headChecksum = headChecksum;
+		this.generation = generation;
+	}
+
+	/**
+	 * @return The command, trimmed.
+	 */
+	public String getText()
+	{
+		return text;
+	}
+
+	/**
+	 * @return Offset of the byte following the newline of the line.
+	 */
+	public long getEnd()
+	{
+		return end;
+	}
+
+	/**
+	 * @return CRC32 of the command file head up to the end of the line.
+	 */
+	public long getHeadChecksum()
+	{
+		return headChecksum;
+	}
+
+	/**
+	 * @return Generation of the command file the line was read from.
+	 */
+	public int getGeneration()
+	{
+		return generation;
+	}
+
+	@Override
+	public String toString()
+	{
+		return text;
+	}
+}
@@ -0,0 +1,407 @@
+package is.erle.captain;
+
+import is.erle.captain.IsErleCaptainActivity.CommandOptions;
+
+/**
+ * Event driven launch sequencer of the captain activity. It replaces the
+ * nested blocking sendCommand chain that used to run inside the ROS callback
+ * thread.
+ * <p>
+ * The launch sequence is SET_MODE Stabilize, ARM, WRITE_MISSION, ARM,
+ * SET_MODE Auto. Every step publishes one command through the
+ * {@link FlightSequencerListener} and then waits for the mavlink activity
+ * response handed in through {@link #onCommandResult(int)}. Arming and the
+ * switch to auto mode are additionally confirmed by the next heartbeat of the
+ * drone, see {@link #onHeartbeat(int, int)}. Each state has its own timeout
+ * which is checked by {@link #tick()}, so no method of this class ever waits.
+ * <p>
+ * All methods are synchronized, they are called from the callback thread, the
+ * tick thread and the activity life cycle.
+ *
+ * @version %I%, %G%
+ * @since 1.0.0
+ */
+public class FlightSequencer
+{
+	/**
+	 * States of the launch sequence.
+	 */
+	public enum State
+	{
+		/**
+		 * No launch in progress.
+		 */
+		IDLE,
+
+		/**
+		 * Waiting for the stabilize mode to be acknowledged.
+		 */
+		SET_STABILIZE,
+
+		/**
+		 * Waiting for the first arm command. Its failure is not fatal, the
+		 * drone is armed again after the mission write.
+		 */
+		PRE_ARM,
+
+		/**
+		 * Waiting for the mission write to be acknowledged.
+		 */
+		WRITE_MISSION,
+
+		/**
+		 * Waiting for the arm command to be acknowledged.
+		 */
+		ARM,
+
+		/**
+		 * Waiting for a heartbeat with the armed flag set.
+		 */
+		CONFIRM_ARMED,
+
+		/**
+		 * Waiting for the auto mode to be acknowledged.
+		 */
+		SET_AUTO,
+
+		/**
+		 * Waiting for a heartbeat reporting the auto mode.
+		 */
+		CONFIRM_AUTO,
+
+		/**
+		 * The drone is armed and flying the mission.
+		 */
+		LAUNCHED,
+
+		/**
+		 * The sequence has been aborted.
+		 */
+		FAILED
+	}
+
+	/**
+	 * MAV_MODE_FLAG_SAFETY_ARMED bit of the heartbeat base mode.
+	 */
+	private static final int BASE_MODE_ARMED = 128;
+
+	/**
+	 * Custom mode number of the ArduCopter Auto flight mode.
+	 */
+	private static final int CUSTOM_MODE_AUTO = 3;
+
+	/**
+	 * Timeout of a single command in milliseconds.
+	 */
+	private static final long COMMAND_TIMEOUT = 3000;
+
+	/**
+	 * Timeout of the mission write in milliseconds. The mission protocol needs
+	 * one round trip per mission item.
+	 */
+	private static final long MISSION_TIMEOUT = 15000;
+
+	/**
+	 * Timeout for a heartbeat confirming a state change in milliseconds.
+	 */
+	private static final long HEARTBEAT_TIMEOUT = 3000;
+
+	/**
+	 * Receives the commands and progress events.
+	 */
+	private final FlightSequencerListener listener;
+
+	/**
+	 * Current state of the sequence.
+	 */
+	private State state = State.IDLE;
+
+	/**
+	 * Deadline of the current state in {@link System#nanoTime()} units.
+	 */
+	private long deadline;
+
+	/**
+	 * True while a command response is expected.
+	 */
+	private boolean awaitingAck;
+
+	/**
+	 * Whether the last heartbeat reported the drone armed.
+	 */
+	private boolean armed;
+
+	/**
+	 * Start time of the sequence in {@link System#nanoTime()} units.
+	 */
+	private long startTime;
+
+	/**
+	 * Constructor to initialize the sequencer.
+	 *
+	 * @param listener
+	 *            Receives the commands and progress events.
+	 */
+	public FlightSequencer(FlightSequencerListener listener)
+	{
+		this.listener = listener;
+	}
+
+	/**
+	 * Starts the launch sequence.
+	 *
+	 * @return <code>true</code> if the sequence has been started;
+	 *         <code>false</code> if a launch is already in progress or the
+	 *         drone is armed, flying a previous launch.
+	 */
+	public synchronized boolean start()
+	{
+		if (isActive() || armed)
+		{
+			return false;
+		}
+		startTime = System.nanoTime();
+		enter(State.SET_STABILIZE, "Launch sequence started");
+		return true;
+	}
+
+	/**
+	 * Aborts the launch sequence if it is in progress.
+	 *
+	 * @param reason
+	 *            Reason of the abort.
+	 */
+	public synchronized void abort(String reason)
+	{
+		if (isActive())
+		{
+			enter(State.FAILED, reason);
+		}
+	}
+
+	/**
+	 * Gets the current state.
+	 *
+	 * @return Current state of the sequence.
+	 */
+	public synchronized State getState()
+	{
+		return state;
+	}
+
+	/**
+	 * Checks whether a launch is in progress.
+	 *
+	 * @return <code>true</code> if a launch is in progress, otherwise
+	 *         <code>false</code>.
+	 */
+	public synchronized boolean isActive()
+	{
+		return state != State.IDLE && state != State.LAUNCHED
+				&& state != State.FAILED;
+	}
+
+	/**
+	 * Checks whether the sequencer waits for a command response. Responses
+	 * should only be handed to {@link #onCommandResult(int)} in that case.
+	 *
+	 * @return <code>true</code> if a command response is expected, otherwise
+	 *         <code>false</code>.
+	 */
+	public synchronized boolean isAwaitingAck()
+	{
+		return awaitingAck;
+	}
+
+	/**
+	 * Checks whether the last heartbeat reported the drone armed.
+	 *
+	 * @return <code>true</code> if the drone is armed.
+	 */
+	public synchronized boolean isArmed()
+	{
+		return armed;
+	}
+
+	/**
+	 * Handles the response of the mavlink activity to the last command.
+	 *
+	 * @param result
+	 *            Response code in the captain cmdReturn format, 0 for SUCCESS.
+	 */
+	public synchronized void onCommandResult(int result)
+	{
+		if (!awaitingAck)
+		{
+			return;
+		}
+		awaitingAck = false;
+		switch (state)
+		{
+		case SET_STABILIZE:
+			if (result == 0)
+			{
+				enter(State.PRE_ARM, "Mode successfully set to stabilize");
+			}
+			else
+			{
+				enter(State.FAILED, "Set Stabilize mode failed (" + result + ")");
+			}
+			break;
+
+		case PRE_ARM:
+			enter(State.WRITE_MISSION, "Writing mission");
+			break;
+
+		case WRITE_MISSION:
+			if (result == 0)
+			{
+				enter(State.ARM, "Mission write successful");
+			}
+			else
+			{
+				enter(State.FAILED, "Mission Write Failed (" + result + ")");
+			}
+			break;
+
+		case ARM:
+			if (result == 0)
+			{
+				enter(State.CONFIRM_ARMED, "Arm command acknowledged");
+			}
+			else
+			{
+				enter(State.FAILED, "Arming the drone failed (" + result + ")");
+			}
+			break;
+
+		case SET_AUTO:
+			if (result == 0)
+			{
+				enter(State.CONFIRM_AUTO, "Auto mode acknowledged");
+			}
+			else
+			{
+				enter(State.FAILED, "Set Mode Failed (" + result + ")");
+			}
+			break;
+
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Handles a heartbeat of the drone.
+	 *
+	 * @param baseMode
+	 *            Base mode field of the heartbeat.
+	 * @param customMode
+	 *            Custom mode field of the heartbeat.
+	 */
+	public synchronized void onHeartbeat(int baseMode, int customMode)
+	{
+		armed = (baseMode & BASE_MODE_ARMED) != 0;
+		if (state == State.CONFIRM_ARMED && (baseMode & BASE_MODE_ARMED) != 0)
+		{
+			enter(State.SET_AUTO, "Arming of the drone successful");
+		}
+		else if (state == State.CONFIRM_AUTO && customMode == CUSTOM_MODE_AUTO)
+		{
+			enter(State.LAUNCHED, "Drone in auto mode after "
+					+ (System.nanoTime() - startTime) / 1000000 + "ms");
+		}
+	}
+
+	/**
+	 * Checks the timeout of the current state. Call it periodically.
+	 */
+	public synchronized void tick()
+	{
+		if (!isActive() || System.nanoTime() - deadline < 0)
+		{
+			return;
+		}
+		if (state == State.PRE_ARM)
+		{
+			awaitingAck = false;
+			enter(State.WRITE_MISSION, "First arm timed out, writing mission");
+		}
+		else
+		{
+			enter(State.FAILED, "Timeout in state " + state);
+		}
+	}
+
+	/**
+	 * Enters a new state, emits the progress event and sends the command of
+	 * that state.
+	 *
+	 * @param next
+	 *            State to enter.
+	 * @param detail
+	 *            Reason of the state change.
+	 */
+	private void enter(State next, String detail)
+	{
+		state = next;
+		awaitingAck = false;
+		listener.onSequencerProgress(next, detail);
+		switch (next)
+		{
+		case SET_STABILIZE:
+			send(CommandOptions.SET_MODE.ordinal() + "=Stabilize",
+					COMMAND_TIMEOUT);
+			break;
+
+		case PRE_ARM:
+		case ARM:
+			send(Integer.toString(CommandOptions.ARM.ordinal()),
+					COMMAND_TIMEOUT);
+			break;
+
+		case WRITE_MISSION:
+			send(Integer.toString(CommandOptions.WRITE_MISSION.ordinal()),
+					MISSION_TIMEOUT);
+			break;
+
+		case SET_AUTO:
+			send(CommandOptions.SET_MODE.ordinal() + "=Auto", COMMAND_TIMEOUT);
+			break;
+
+		case CONFIRM_ARMED:
+		case CONFIRM_AUTO:
+			setTimeout(HEARTBEAT_TIMEOUT);
+			break;
+
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Sends a command and arms the timeout of the current state.
+	 *
+	 * @param command
+	 *            Command to send.
+	 * @param timeout
+	 *            Timeout of the current state in milliseconds.
+	 */
+	private void send(String command, long timeout)
+	{
+		setTimeout(timeout);
+		awaitingAck = true;
+		listener.onSequencerCommand(command);
+	}
+
+	/**
+	 * Sets the deadline of the current state.
+	 *
+	 * @param timeout
+	 *            Timeout in milliseconds from now.
+	 */
+	private void setTimeout(long timeout)
+	{
+		deadline = System.nanoTime() + timeout * 1000000L;
+	}
+}
@@ -0,0 +1,34 @@
+package is.erle.captain;
+
+/**
+ * Receives the commands and progress events produced by a
+ * {@link FlightSequencer}. The sequencer never blocks, so implementations
+ * should only publish the command and return.
+ *
+ * @version %I%, %G%
+ * @since 1.0.0
+ * @see FlightSequencer
+ */
+public interface FlightSequencerListener
+{
+	/**
+	 * Called when the sequencer wants a command sent to the mavlink activity.
+	 * The command follows the captain command format, the CommandOptions
+	 * ordinal value followed by its arguments separated by '='. The response
+	 * must be handed back with {@link FlightSequencer#onCommandResult(int)}.
+	 *
+	 * @param command
+	 *            Command string to publish.
+	 */
+	void onSequencerCommand(String command);
+
+	/**
+	 * Called every time the sequencer enters a new state.
+	 *
+	 * @param state
+	 *            State just entered.
+	 * @param detail
+	 *            Human readable reason or progress detail.
+	 */
+	void onSequencerProgress(FlightSequencer.State state, String detail);
+}
@@ -0,0 +1,52 @@
+package is.erle.captain;
+
+/**
+ * Receives the link events raised by a {@link HeartbeatLivenessTracker}.
+ * Events are raised from the thread calling
+ * {@link HeartbeatLivenessTracker#tick()} or
+ * {@link HeartbeatLivenessTracker#heartbeat(int)}.
+ *
+ * @version %I%, %G%
+ * @since 1.0.0
+ * @see HeartbeatLivenessTracker
+ */
+public interface HeartbeatLivenessListener
+{
+	/**
+	 * Called when a drone sends its first heartbeat or comes back after being
+	 * lost.
+	 *
+	 * @param systemId
+	 *            System id of the drone.
+	 */
+	void onLinkUp(int systemId);
+
+	/**
+	 * Called when a drone has not sent a heartbeat for the degraded period.
+	 *
+	 * @param systemId
+	 *            System id of the drone.
+	 * @param silence
+	 *            Time since the last heartbeat in milliseconds.
+	 */
+	void onLinkDegraded(int systemId, long silence);
+
+	/**
+	 * Called when a degraded drone sends a heartbeat again.
+	 *
+	 * @param systemId
+	 *            System id of the drone.
+	 */
+	void onLinkRestored(int systemId);
+
+	/**
+	 * Called when a drone has not sent a heartbeat for the lost period. The
+	 * drone is not tracked any more until its next heartbeat.
+	 *
+	 * @param systemId
+	 *            System id of the drone.
+	 * @param silence
+	 *            Time since the last heartbeat in milliseconds.
+	 */
+	void onLinkLost(int systemId, long silence);
+}
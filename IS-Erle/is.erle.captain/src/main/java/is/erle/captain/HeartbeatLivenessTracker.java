@@ -0,0 +1,312 @@
+package is.erle.captain;
+
+/**
+ * Tracks the heartbeat liveness of every MAVLink system id with a hashed timer
+ * wheel.
+ * <p>
+ * A heartbeat only stores a primitive {@link System#nanoTime()} timestamp.
+ * Every tracked system has exactly one timer in the wheel. When it expires the
+ * tracker compares the silence since the last heartbeat with the degraded and
+ * lost periods and either raises an event or re-arms the timer at the next
+ * interesting deadline. A tick therefore only touches the timers of its own
+ * bucket, no matter how many systems are tracked, and the detection latency is
+ * bounded by the tick period.
+ *
+ * @version %I%, %G%
+ * @since 1.0.0
+ */
+public class HeartbeatLivenessTracker
+{
+	/**
+	 * Number of possible MAVLink system ids.
+	 */
+	private static final int MAX_SYSTEMS = 256;
+
+	/**
+	 * Number of buckets of the wheel. Must be a power of two.
+	 */
+	private static final int WHEEL_SIZE = 128;
+
+	/**
+	 * End of a bucket list.
+	 */
+	private static final int NONE = -1;
+
+	/**
+	 * System is not tracked.
+	 */
+	private static final byte UNTRACKED = 0;
+
+	/**
+	 * System sends heartbeats regularly.
+	 */
+	private static final byte ALIVE = 1;
+
+	/**
+	 * System missed heartbeats for the degraded period.
+	 */
+	private static final byte DEGRADED = 2;
+
+	/**
+	 * Receives the link events.
+	 */
+	private final HeartbeatLivenessListener listener;
+
+	/**
+	 * Tick period in nanoseconds.
+	 */
+	private final long tickNanos;
+
+	/**
+	 * Silence after which a link is degraded in nanoseconds.
+	 */
+	private final long degradedNanos;
+
+	/**
+	 * Silence after which a link is lost in nanoseconds.
+	 */
+	private final long lostNanos;
+
+	/**
+	 * Time of the last heartbeat per system id.
+	 */
+	private final long[] lastSeen = new long[MAX_SYSTEMS];
+
+	/**
+	 * Link state per system id.
+	 */
+	private final byte[] state = new byte[MAX_SYSTEMS];
+
+	/**
+	 * Timer deadline per system id.
+	 */
+	private final long[] deadline = new long[MAX_SYSTEMS];
+
+	/**
+	 * Next system id in the same bucket.
+	 */
+	private final int[] next = new int[MAX_SYSTEMS];
+
+	/**
+	 * Previous system id in the same bucket.
+	 */
+	private final int[] previous = new int[MAX_SYSTEMS];
+
+	/**
+	 * Bucket holding the timer of every system id.
+	 */
+	private final int[] bucketOf = new int[MAX_SYSTEMS];
+
+	/**
+	 * First system id of every bucket.
+	 */
+	private final int[] bucketHead = new int[WHEEL_SIZE];
+
+	/**
+	 * Start time of the wheel.
+	 */
+	private final long origin;
+
+	/**
+	 * Last tick processed.
+	 */
+	private long currentTick;
+
+	/**
+	 * Constructor to initialize the tracker.
+	 *
+	 * @param listener
+	 *            Receives the link events.
+	 * @param tickMillis
+	 *            Tick period in milliseconds. {@link #tick()} should be called
+	 *            at this rate.
+	 * @param degradedMillis
+	 *            Silence after which a link is degraded in milliseconds.
+	 * @param lostMillis
+	 *            Silence after which a link is lost in milliseconds.
+	 */
+	public HeartbeatLivenessTracker(HeartbeatLivenessListener listener,
+			long tickMillis, long degradedMillis, long lostMillis)
+	{
+		this.listener = listener;
+		this.tickNanos = tickMillis * 1000000L;
+		this.degradedNanos = degradedMillis * 1000000L;
+		this.lostNanos = lostMillis * 1000000L;
+		for (int i = 0; i < WHEEL_SIZE; i++)
+		{
+			bucketHead[i] = NONE;
+		}
+		origin = System.nanoTime();
+		currentTick = 0;
+	}
+
+	/**
+	 * Records a heartbeat of a system. A new or restored system gets a timer
+	 * at the degraded period, a degraded one drops its timer at the lost
+	 * period.
+	 *
+	 * @param systemId
+	 *            System id of the drone, 0 to 255.
+	 */
+	public void heartbeat(int systemId)
+	{
+		int id = systemId & 0xFF;
+		byte previousState;
+		synchronized (this)
+		{
+			long now = System.nanoTime();
+			lastSeen[id] = now;
+			previousState = state[id];
+			if (previousState == ALIVE)
+			{
+				return;
+			}
+			state[id] = ALIVE;
+			if (previousState != UNTRACKED)
+			{
+				unlink(id);
+			}
+			schedule(id, now + degradedNanos);
+		}
+		if (previousState == UNTRACKED)
+		{
+			listener.onLinkUp(id);
+		}
+		else
+		{
+			listener.onLinkRestored(id);
+		}
+	}
+
+	/**
+	 * Checks whether a system is currently tracked.
+	 *
+	 * @param systemId
+	 *            System id of the drone.
+	 * @return <code>true</code> if the system sent a heartbeat within the lost
+	 *         period, otherwise <code>false</code>.
+	 */
+	public synchronized boolean isTracked(int systemId)
+	{
+		return state[systemId & 0xFF] != UNTRACKED;
+	}
+
+	/**
+	 * Advances the wheel to the current time and expires the due timers.
+	 */
+	public void tick()
+	{
+		long now = System.nanoTime();
+		long nowTick = (now - origin) / tickNanos;
+		while (true)
+		{
+			int expired;
+			byte expiredState;
+			long silence;
+			synchronized (this)
+			{
+				expired = NONE;
+				while (currentTick <= nowTick)
+				{
+					int bucket = (int) (currentTick & (WHEEL_SIZE - 1));
+					int id = bucketHead[bucket];
+					while (id != NONE && deadline[id] > now)
+					{
+						id = next[id];
+					}
+					if (id != NONE)
+					{
+						expired = id;
+						break;
+					}
+					currentTick++;
+				}
+				if (expired == NONE)
+				{
+					currentTick = nowTick;
+					return;
+				}
+				unlink(expired);
+				silence = now - lastSeen[expired];
+				if (silence < degradedNanos)
+				{
+					schedule(expired, lastSeen[expired] + degradedNanos);
+					continue;
+				}
+				else if (silence < lostNanos)
+				{
+					schedule(expired, lastSeen[expired] + lostNanos);
+					if (state[expired] != ALIVE)
+					{
+						continue;
+					}
+					state[expired] = DEGRADED;
+				}
+				else
+				{
+					state[expired] = UNTRACKED;
+				}
+				expiredState = state[expired];
+			}
+			if (expiredState == DEGRADED)
+			{
+				listener.onLinkDegraded(expired, silence / 1000000L);
+			}
+			else
+			{
+				listener.onLinkLost(expired, silence / 1000000L);
+			}
+		}
+	}
+
+	/**
+	 * Puts the timer of a system in the bucket of its deadline.
+	 *
+	 * @param id
+	 *            System id.
+	 * @param when
+	 *            Deadline in {@link System#nanoTime()} units.
+	 */
+	private void schedule(int id, long when)
+	{
+		deadline[id] = when;
+		long tick = (when - origin + tickNanos - 1) / tickNanos;
+		if (tick < currentTick)
+		{
+			tick = currentTick;
+		}
+		int bucket = (int) (tick & (WHEEL_SIZE - 1));
+		bucketOf[id] = bucket;
+		previous[id] = NONE;
+		next[id] = bucketHead[bucket];
+		if (bucketHead[bucket] != NONE)
+		{
+			previous[bucketHead[bucket]] = id;
+		}
+		bucketHead[bucket] = id;
+	}
+
+	/**
+	 * Removes the timer of a system from its bucket.
+	 *
+	 * @param id
+	 *            System id.
+	 */
+	private void unlink(int id)
+	{
+		if (previous[id] != NONE)
+		{
+			next[previous[id]] = next[id];
+		}
+		else
+		{
+			bucketHead[bucketOf[id]] = next[id];
+		}
+		if (next[id] != NONE)
+		{
+			previous[next[id]] = previous[id];
+		}
+		next[id] = NONE;
+		previous[id] = NONE;
+	}
+}
@@ -5,13 +5,20 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Date;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.google.common.collect.Maps;
 import interactivespaces.activity.impl.ros.BaseRoutableRosActivity;
@@ -42,26 +49,144 @@ import interactivespaces.util.events.EventFrequency;
 public class IsErleCaptainActivity extends BaseRoutableRosActivity {
 
 	/**
-	 * A thread to process the heartbeat messages. It processes heartbeat
-	 * messages and removes any disconnected drones. Basically it manages a Map
-	 * of connected drones.
+	 * A thread advancing the {@link #heartbeatTracker} timer wheel. It raises
+	 * the link events of the connected drones.
 	 */
 	private ManagedCommand heartbeatThread;
 	
+	/**
+	 * Tick period of the heartbeat timer wheel in milliseconds.
+	 */
+	private static final long HEARTBEAT_TICK = 20;
+	
+	/**
+	 * Heartbeat silence after which a link is degraded in milliseconds.
+	 */
+	private static final long HEARTBEAT_DEGRADED = 2000;
+	
+	/**
+	 * Heartbeat silence after which a drone is disconnected in milliseconds.
+	 */
+	private static final long HEARTBEAT_LOST = 20000;
+	
 	/**
 	 * A rc output thread.
 	 */
 	private ManagedCommand rcOutput;
 	
 	/**
-	 * Sends commands read from a command.txt file as soon as the file is
-	 * available.Does nothing with the file, so you will have to manually delete
-	 * it after sending commands. The file pattern is first the command from
-	 * CommandOptions enum, followed by its arguments separated by a single
-	 * space.
+	 * A thread renewing the telemetry demand of the captain, see
+	 * {@link #declareStreamDemand()}.
+	 */
+	private ManagedCommand streamDemandThread;
+	
+	/**
+	 * Period of the telemetry demand renewal in seconds, well within the
+	 * expiry of a declaration in the mavlink activity.
+	 */
+	private static final long STREAM_DEMAND_PERIOD = 5;
+	
+	/**
+	 * The name of the config property for obtaining the rc output rate in Hz.
+	 */
+	private static final String CONFIGURATION_RC_RATE = "space.erle.captain.rc.rate";
+	
+	/**
+	 * Default rc output rate in Hz. ArduCopter expects an override at least
+	 * every few hundred milliseconds, 50 Hz gives a smooth manual control.
+	 */
+	private static final int DEFAULT_RC_RATE = 50;
+	
+	/**
+	 * Message published on every rc output tick. It is created once and only
+	 * its values are updated.
+	 */
+	private Map<String, Object> rcOutputMap;
+	
+	/**
+	 * Copy of {@link #rc_out} published on every tick, so that the published
+	 * message holds numbers instead of a formatted string.
+	 */
+	private final int[] rcOutputValues = new int[8];
+	
+	/**
+	 * Sequence number of the last rc output message.
+	 */
+	private long rcOutputSequence;
+	
+	/**
+	 * Expected period of the rc output thread in nanoseconds.
+	 */
+	private long rcOutputPeriod;
+	
+	/**
+	 * Time of the last rc output tick in {@link System#nanoTime()} units.
+	 */
+	private long rcOutputLastTick;
+	
+	/**
+	 * Start of the current jitter statistics window.
+	 */
+	private long rcJitterWindowStart;
+	
+	/**
+	 * Number of ticks in the current jitter statistics window.
+	 */
+	private int rcJitterTicks;
+	
+	/**
+	 * Sum of the absolute jitter in the current window in nanoseconds.
+	 */
+	private long rcJitterSum;
+	
+	/**
+	 * Largest absolute jitter in the current window in nanoseconds.
+	 */
+	private long rcJitterMax;
+	
+	/**
+	 * Watches the command.txt file and queues every line appended to it. Each
+	 * line is executed once, even across restarts, and a replaced file is
+	 * read again from its start, so the file never has to be deleted. The
+	 * file pattern is first the command from CommandOptions enum, followed by
+	 * its arguments separated by a single space.
 	 */
 	private ManagedCommand commandSender;
 	
+	/**
+	 * Drives the launch sequence of the drone without blocking the callback
+	 * thread.
+	 */
+	private FlightSequencer flightSequencer;
+	
+	/**
+	 * Grants the command channel to the mavlink activity to one party at a
+	 * time. The responses of the mavlink activity do not tell which command
+	 * they answer, so a {@link #sendCommand(String, int)} call holds it until
+	 * its response or timeout, and the {@link #flightSequencer} holds it from
+	 * its start until it has launched or failed.
+	 */
+	private final Semaphore commandChannel = new Semaphore(1);
+	
+	/**
+	 * Longest wait of a launch for the {@link #commandChannel} in
+	 * milliseconds, enough for a single command to complete.
+	 */
+	private static final long LAUNCH_CHANNEL_WAIT = 5000;
+	
+	/**
+	 * Claimed by a FLY request on the callback thread, so that only one
+	 * launch runs at a time, readiness checks included. It is given back on a
+	 * no go, when the sequence fails or could not start, and once the drone
+	 * has launched and been disarmed again.
+	 */
+	private final AtomicBoolean launchPending = new AtomicBoolean();
+	
+	/**
+	 * A thread checking the timeouts of the {@link #flightSequencer} states.
+	 */
+	private ManagedCommand sequencerTicker;
+	
 	/**
 	 * The name of the config property for obtaining the publisher List.
 	 */
@@ -89,8 +214,20 @@ public class IsErleCaptainActivity extends BaseRoutableRosActivity {
 	 * <p>
 	 * Usage : Send RC output to the mavlink activity.
 	 * <p>
+	 * publishers[2] -> status
+	 * <p>
+	 * Topic Name : captain/status
+	 * <p>
+	 * Usage : Publish launch progress and other captain events.
+	 * <p>
+	 * publishers[3] -> stream_demand
+	 * <p>
+	 * Topic Name : mavlink/stream/demand
+	 * <p>
+	 * Usage : Declare the telemetry rates the captain reads.
+	 * <p>
 	 */
-	private static String publishers[];
+	private String publishers[];
 
 	/**
 	 * The topic names for subscribing data.
@@ -118,18 +255,80 @@ public class IsErleCaptainActivity extends BaseRoutableRosActivity {
 	 * <p>
 	 * Usage : Receive start data from waypoiny processor activity about starting a mission.
 	 * <p>
+	 * <p>
+	 * subscribers[3] -> gps
+	 * <p> 
+	 * Topic Name : mavlink/sensors/gps
+	 * <p>
+	 * Usage : Receive the GPS fix quality for the pre-flight checks.
+	 * <p>
+	 * <p>
+	 * subscribers[4] -> status
+	 * <p> 
+	 * Topic Name : mavlink/system/status
+	 * <p>
+	 * Usage : Receive the battery and sensor health for the pre-flight checks.
+	 * <p>
+	 * <p>
+	 * subscribers[5] -> nav
+	 * <p> 
+	 * Topic Name : mavlink/controller/nav
+	 * <p>
+	 * Usage : Receive the navigation controller output for the pre-flight
+	 * checks.
+	 * <p>
+	 */
+	private String subscribers[];
+	
+	/**
+	 * Latest telemetry of the drone used by the pre-flight checks. It is
+	 * replaced as a whole on every update, see {@link #telemetryLock}.
+	 */
+	private volatile TelemetrySnapshot telemetry = TelemetrySnapshot.EMPTY;
+	
+	/**
+	 * Serializes the updates of {@link #telemetry} coming from the different
+	 * subscriber threads. Readers do not lock.
+	 */
+	private final Object telemetryLock = new Object();
+	
+	/**
+	 * Evaluates the pre-flight checks before every launch.
+	 */
+	private ReadinessEngine readinessEngine;
+	
+	/**
+	 * Time limit of a pre-flight check pass in milliseconds.
+	 */
+	private static final long PREFLIGHT_TIMEOUT = 500;
+	
+	/**
+	 * Maximum age of the telemetry used by the pre-flight checks in
+	 * milliseconds.
+	 */
+	private static final long PREFLIGHT_TELEMETRY_AGE = 3000;
+	
+	/**
+	 * Minimum battery voltage for a launch in millivolts, 3.5 V per cell of a
+	 * 3S battery.
+	 */
+	private static final int PREFLIGHT_MIN_VOLTAGE = 10500;
+	
+	/**
+	 * Minimum remaining battery for a launch in percent.
 	 */
-	private static String subscribers[];
+	private static final int PREFLIGHT_MIN_BATTERY = 30;
 	
 	/**
-	 * A HashMap containing the last heartbeat message of a particular drone id.
-	 * It gets removed if that drone doesn't send data for more than 20s.
+	 * Tracks the heartbeat of every drone id. A drone gets removed if it
+	 * doesn't send data for more than {@link #HEARTBEAT_LOST} ms.
 	 */
-	private static Map<Byte,Date> heartbeatLastUpdate;
+	private HeartbeatLivenessTracker heartbeatTracker;
 	
 	/**
-	 * A Global variale to store the response received after a command from the
-	 * mavlink activity.
+	 * Hands the response of a command from the callback thread over to the
+	 * thread waiting in {@link #cmdReturnCheck(int)}. It holds at most one
+	 * response and is cleared before every command.
 	 * <p>
 	 * VALUE TABLE
 	 * <p>
@@ -144,7 +343,7 @@ public class IsErleCaptainActivity extends BaseRoutableRosActivity {
 	 * cmdReturn= +ve value -> FAIL CODE
 	 * <p>
 	 */
-	private static int cmdReturn=-1;
+	private final BlockingQueue<Integer> cmdReturn = new LinkedBlockingQueue<Integer>(1);
 	
 	/*
 	 * Do not change the order of the command options. Everything depends on the
@@ -521,7 +720,7 @@ public class IsErleCaptainActivity extends BaseRoutableRosActivity {
 	/**
 	 * RC Transmitter output values to be sent regularly.
 	 */
-	private static short []rc_out = new short[8];
+	private short []rc_out = new short[8];
 	
 	/**
 	 * Command file location. By default controller/tmp/command.txt
@@ -541,9 +740,27 @@ public class IsErleCaptainActivity extends BaseRoutableRosActivity {
 	private String commandFileLocation;
 	
 	/**
-	 * Last Modified date of command file.
+	 * Reads the lines appended to the command file since the last read.
+	 */
+	private CommandFileTailer commandTailer;
+	
+	/**
+	 * Commands read from the command file waiting to be sent.
+	 */
+	private BlockingQueue<CommandLine> commandQueue;
+	
+	/**
+	 * Sends the queued commands one after the other. It is the only thread
+	 * waiting for the mavlink activity responses of operator commands.
+	 */
+	private ManagedCommand commandDispatcher;
+	
+	/**
+	 * Longest time in seconds between two reads of the command file. Reads
+	 * are normally triggered by file change events; this bounds the delay on
+	 * file systems which do not report changes.
 	 */
-	private Date commandFileLastModified;
+	private static final long COMMAND_FILE_POLL = 1;
 	
 	/**
 	 * Executes on activity setup.
@@ -561,43 +778,104 @@ public class IsErleCaptainActivity extends BaseRoutableRosActivity {
          * Subscriber[0] -> input (As in general input of Captain activity)
          * Subscriber[1] -> heartbeat (Published by mavlink activity)
          */
-		heartbeatLastUpdate = new ConcurrentHashMap<Byte, Date>(); // To provide
-																	// for
-																	// thread
-																	// safety
-		heartbeatThread = getManagedCommands().scheduleWithFixedDelay(
+		heartbeatTracker = new HeartbeatLivenessTracker(
+				new HeartbeatLivenessListener()
+				{
+
+					public void onLinkUp(int systemId)
+					{
+						getLog().info(
+								"Drone with System ID " + systemId
+										+ " connected");
+						getLog().warn("Keep the throttle stick down always. Whenever starting a mission just raise it a bit to start the mission.");
+						publishLinkEvent("UP", systemId, 0);
+					}
+
+					public void onLinkDegraded(int systemId, long silence)
+					{
+						getLog().warn(
+								"Drone with System ID " + systemId
+										+ " did not send a heartbeat packet in last "
+										+ silence + "ms");
+						publishLinkEvent("DEGRADED", systemId, silence);
+					}
+
+					public void onLinkRestored(int systemId)
+					{
+						getLog().info(
+								"Drone with System ID " + systemId
+										+ " is sending heartbeats again");
+						publishLinkEvent("RESTORED", systemId, 0);
+					}
+
+					public void onLinkLost(int systemId, long silence)
+					{
+						getLog().warn(
+								"Drone with System ID " + systemId
+										+ " did not send a heartbeat packet in last "
+										+ silence + "ms");
+						getLog().warn(
+								"Disconnecting Drone with System ID " + systemId);
+						publishLinkEvent("LOST", systemId, silence);
+						flightSequencer.abort("Heartbeat lost during launch");
+					}
+				}, HEARTBEAT_TICK, HEARTBEAT_DEGRADED, HEARTBEAT_LOST);
+		heartbeatThread = getManagedCommands().scheduleAtFixedRate(
 				new Runnable()
 				{
 
 					public void run()
 					{
-						for (Map.Entry<Byte, Date> entry : heartbeatLastUpdate.entrySet())
-						{
-							getLog().warn("Keep the throttle stick down always. Whenever starting a mission just raise it a bit to start the mission.");
-							if ((System.currentTimeMillis() - entry.getValue()
-									.getTime()) > 2000)
-							{
-								getLog().warn(
-										"Drone with System ID "
-												+ entry.getKey()
-												+ " did not send a heartbeat packet in last 2s");
-							}
-
-							if ((System.currentTimeMillis() - entry.getValue()
-									.getTime()) > 20000)
-							{
-								getLog().warn(
-										"Drone with System ID "
-												+ entry.getKey()
-												+ " did not send a heartbeat packet in last 20s");
-								getLog().warn(
-										"Disconnecting Drone with System ID "
-												+ entry.getKey());
-								heartbeatLastUpdate.remove(entry.getKey());
-							}
-						}
+						heartbeatTracker.tick();
+					}
+				}, HEARTBEAT_TICK, HEARTBEAT_TICK, TimeUnit.MILLISECONDS);
+		
+		flightSequencer = new FlightSequencer(new FlightSequencerListener()
+		{
+			
+			public void onSequencerCommand(String command)
+			{
+				Map<String, Object> commandMap = Maps.newHashMap();
+				commandMap.put("command", command);
+				sendOutputJson(publishers[0], commandMap);
+			}
+			
+			public void onSequencerProgress(FlightSequencer.State state,
+					String detail)
+			{
+				handleSequencerProgress(state, detail);
+			}
+		});
+		sequencerTicker = getManagedCommands().scheduleAtFixedRate(
+				new Runnable()
+				{
+					
+					public void run()
+					{
+						flightSequencer.tick();
+					}
+				}, EventFrequency.eventsPerSecond(20.0));
+		
+		streamDemandThread = getManagedCommands().scheduleAtFixedRate(
+				new Runnable()
+				{
+					
+					public void run()
+					{
+						declareStreamDemand();
 					}
-				}, 30, 1, TimeUnit.SECONDS);
+				}, 0, STREAM_DEMAND_PERIOD, TimeUnit.SECONDS);
+		
+		List<PreflightCheck> checks = new ArrayList<PreflightCheck>();
+		checks.add(PreflightChecks.gpsFix(3, 6, 200, PREFLIGHT_TELEMETRY_AGE));
+		checks.add(PreflightChecks.battery(PREFLIGHT_MIN_VOLTAGE,
+				PREFLIGHT_MIN_BATTERY, PREFLIGHT_TELEMETRY_AGE));
+		checks.add(PreflightChecks.navigation(PREFLIGHT_TELEMETRY_AGE));
+		checks.add(PreflightChecks.parameters());
+		checks.add(PreflightChecks.mission(new File(getSpaceEnvironment()
+				.getFilesystem().getTempDirectory(), "mission.txt")));
+		readinessEngine = new ReadinessEngine(getSpaceEnvironment()
+				.getExecutorService(), checks, PREFLIGHT_TIMEOUT);
     }
     
 	/**
@@ -693,6 +971,8 @@ public class IsErleCaptainActivity extends BaseRoutableRosActivity {
     @Override
     public void onActivityPreShutdown() {
 		getLog().info("Activity is.erle.captain pre shutdown");
+		flightSequencer.abort("Captain activity shutting down");
+		sequencerTicker.cancel();
 		int shut = sendCommand(CommandOptions.SET_MODE, "RTL");
 		if (shut == 0)
 		{
@@ -705,8 +985,10 @@ public class IsErleCaptainActivity extends BaseRoutableRosActivity {
 					"Could not send a Return to Launch command to the drone, be careful!! ");
 		}
 		heartbeatThread.cancel();
+		streamDemandThread.cancel();
 		rcOutput.cancel();
 		commandSender.cancel();
+		commandDispatcher.cancel();
     }
 
 	/**
@@ -762,11 +1044,7 @@ public class IsErleCaptainActivity extends BaseRoutableRosActivity {
 	{
 		String command = opt.ordinal() + "=" + Byte.toString(targetSystem)
 				+ "=" + Byte.toString(targetComponent);
-		Map<String, Object> commandMap = Maps.newHashMap();
-		commandMap.put("command", command);
-		sendOutputJson(publishers[0], commandMap);
-		
-		return cmdReturnCheck(timeout);
+		return sendCommand(command, timeout);
 	}
 	
 	/**
@@ -856,11 +1134,7 @@ public class IsErleCaptainActivity extends BaseRoutableRosActivity {
 	private int sendCommand(CommandOptions opt , int timeout)
 	{
 		String command = Integer.toString(opt.ordinal());
-		Map<String, Object> commandMap = Maps.newHashMap();
-		commandMap.put("command", command);
-		sendOutputJson(publishers[0], commandMap);
-		
-		return cmdReturnCheck(timeout);
+		return sendCommand(command, timeout);
 	}
 
 	/**
@@ -895,11 +1169,7 @@ public class IsErleCaptainActivity extends BaseRoutableRosActivity {
 		{
 			command += "=" + param[i];
 		}
-		Map<String, Object> commandMap = Maps.newHashMap();
-		commandMap.put("command", command);
-		sendOutputJson(publishers[0], commandMap);
-		
-		return cmdReturnCheck(timeout);
+		return sendCommand(command, timeout);
 	}
 	
 	/**
@@ -959,11 +1229,7 @@ public class IsErleCaptainActivity extends BaseRoutableRosActivity {
 	private int sendCommand(CommandOptions opt, String param, int timeout)
 	{
 		String command = Integer.toString(opt.ordinal())+"=" +param;
-		Map<String, Object> commandMap = Maps.newHashMap();
-		commandMap.put("command", command);
-		sendOutputJson(publishers[0], commandMap);
-		
-		return cmdReturnCheck(timeout);
+		return sendCommand(command, timeout);
 	}
 	
 	/**
@@ -1024,11 +1290,28 @@ public class IsErleCaptainActivity extends BaseRoutableRosActivity {
 	 */
 	private int sendCommand(String cmd, int timeout)
 	{
-		Map<String, Object> commandMap = Maps.newHashMap();
-		commandMap.put("command", cmd);
-		sendOutputJson(publishers[0], commandMap);
-		
-		return cmdReturnCheck(timeout);
+		try
+		{
+			commandChannel.acquire();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return -1;
+		}
+		try
+		{
+			cmdReturn.clear();
+			Map<String, Object> commandMap = Maps.newHashMap();
+			commandMap.put("command", cmd);
+			sendOutputJson(publishers[0], commandMap);
+			
+			return cmdReturnCheck(timeout);
+		}
+		finally
+		{
+			commandChannel.release();
+		}
 	}
     
 	/**
@@ -1065,8 +1348,7 @@ public class IsErleCaptainActivity extends BaseRoutableRosActivity {
 	/**
 	 * Waits for the response of a command until a timeout period. After the
 	 * timeout or response from the mavlink activity, it returns the command
-	 * status. This function makes a synchronized update to the global cmdReturn
-	 * variable to make it to have the default value.
+	 * status. The thread sleeps on {@link #cmdReturn} meanwhile.
 	 * 
 	 * @param timeout		Time to wait for the response from mavlink activity.
 	 * @return				Response from the mavlink activity.
@@ -1085,15 +1367,16 @@ public class IsErleCaptainActivity extends BaseRoutableRosActivity {
 	 */
 	private int cmdReturnCheck(int timeout)
 	{
-		Date start=new Date();
-		while ( (cmdReturn==-1) && (System.currentTimeMillis()-start.getTime())<timeout);
-		
-		int temp=cmdReturn;
-		synchronized (this)
+		try
 		{
-			cmdReturn =-1;
+			Integer result = cmdReturn.poll(timeout, TimeUnit.MILLISECONDS);
+			return result == null ? -1 : result;
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return -1;
 		}
-		return temp;
 	}
 	
 	/**
@@ -1140,6 +1423,10 @@ public class IsErleCaptainActivity extends BaseRoutableRosActivity {
 							.get("param_list");
 					// getLog().info(message.get("param_list").toString());
 					paramList = map;
+					synchronized (telemetryLock)
+					{
+						telemetry = telemetry.withParams(map);
+					}
 				}
 			}
 			if (message.containsKey("param"))
@@ -1175,28 +1462,19 @@ public class IsErleCaptainActivity extends BaseRoutableRosActivity {
 					{
 						getLog().info(
 								"Mavlink activity returned SUCCESS for the given command");
-						synchronized (this)
-						{
-							cmdReturn = 0;
-						}
+						handleCommandResult(0);
 					}
 					else if (splitMessage[0].equals("BADCMD"))
 					{
 						getLog().warn(
 								"Mavlink activity does not recognize the given command");
-						synchronized (this)
-						{
-							cmdReturn = -2;
-						}
+						handleCommandResult(-2);
 					}
 					else if (splitMessage[0].equals("NULL"))
 					{
 						getLog().warn(
 								"Mavlink activity returned NULL for the get command");
-						synchronized (this)
-						{
-							cmdReturn = -3;
-						}
+						handleCommandResult(-3);
 					}
 					else if (splitMessage[0].equals("FAIL"))
 					{
@@ -1206,11 +1484,8 @@ public class IsErleCaptainActivity extends BaseRoutableRosActivity {
 						{
 							try
 							{
-								synchronized (this)
-								{
-									cmdReturn = Integer
-											.parseInt(splitMessage[1].trim());
-								}
+								handleCommandResult(Integer
+										.parseInt(splitMessage[1].trim()));
 							}
 							catch (NumberFormatException e)
 							{
@@ -1220,10 +1495,7 @@ public class IsErleCaptainActivity extends BaseRoutableRosActivity {
 						}
 						else if (splitMessage.length == 1)
 						{
-							synchronized (this)
-							{
-								cmdReturn = 1;
-							}
+							handleCommandResult(1);
 						}
 					}
 					else
@@ -1235,9 +1507,19 @@ public class IsErleCaptainActivity extends BaseRoutableRosActivity {
 		}
 		else if (channelName.equals(subscribers[1]))
 		{
+			if (message.get("heartbeat") == null)
+			{
+				return;
+			}
 			String [] heartbeatmsg = message.get("heartbeat").toString().split(",");
-			Byte systemId = Byte.parseByte(heartbeatmsg[0]);
-			heartbeatLastUpdate.put(systemId, new Date());
+			heartbeatTracker.heartbeat(Integer.parseInt(heartbeatmsg[0]));
+			flightSequencer.onHeartbeat(Integer.parseInt(heartbeatmsg[5]),
+					Integer.parseInt(heartbeatmsg[6]));
+			if (flightSequencer.getState() == FlightSequencer.State.LAUNCHED
+					&& !flightSequencer.isArmed())
+			{
+				launchPending.set(false);
+			}
 		}
 		else if (channelName.equals(subscribers[2]))
 		{
@@ -1246,70 +1528,253 @@ public class IsErleCaptainActivity extends BaseRoutableRosActivity {
 				startFlying();
 			}
 		}
+		else if (channelName.equals(subscribers[3]))
+		{
+			if (message.containsKey("fix_type"))
+			{
+				synchronized (telemetryLock)
+				{
+					telemetry = telemetry.withGps(System.nanoTime(),
+							intValue(message.get("fix_type")),
+							intValue(message.get("satellites_visible")),
+							intValue(message.get("eph")));
+				}
+			}
+		}
+		else if (channelName.equals(subscribers[4]))
+		{
+			if (message.containsKey("voltage_battery"))
+			{
+				synchronized (telemetryLock)
+				{
+					telemetry = telemetry.withStatus(System.nanoTime(),
+							intValue(message.get("voltage_battery")),
+							intValue(message.get("battery_remaining")),
+							intValue(message.get("sensors_present")),
+							intValue(message.get("sensors_enabled")),
+							intValue(message.get("sensors_health")));
+				}
+			}
+		}
+		else if (channelName.equals(subscribers[5]))
+		{
+			synchronized (telemetryLock)
+			{
+				telemetry = telemetry.withNav(System.nanoTime());
+			}
+		}
     }
+    
+	/**
+	 * Converts a numeric JSON value.
+	 * 
+	 * @param value
+	 *            Value of the message.
+	 * @return The integer value, 0 if the value is not a number.
+	 */
+	private static int intValue(Object value)
+	{
+		return value instanceof Number ? ((Number) value).intValue() : 0;
+	}
 
 	/**
-	 * Send sequence of commands to mavlink activity to make the drone fly
-	 * autonomously according to the mission file.
+	 * Hands a command response over to the holder of the
+	 * {@link #commandChannel}. The {@link #flightSequencer} gets it if it waits
+	 * for an acknowledgement, otherwise it is handed through
+	 * {@link #cmdReturn} to {@link #cmdReturnCheck(int)}. A late response to
+	 * a timed out command is cleared when the next command is sent.
+	 * 
+	 * @param result
+	 *            Response code in the {@link #cmdReturn} format.
+	 */
+	private void handleCommandResult(int result)
+	{
+		if (flightSequencer.isAwaitingAck())
+		{
+			flightSequencer.onCommandResult(result);
+			return;
+		}
+		if (!cmdReturn.offer(result))
+		{
+			getLog().warn("Dropping command response " + result
+					+ ", a response is already waiting");
+		}
+	}
+	
+	/**
+	 * Starts the launch sequence which makes the drone fly autonomously
+	 * according to the mission file. The pre-flight checks are evaluated first
+	 * on a managed thread and the sequence only starts on a go. The sequence
+	 * runs in the {@link #flightSequencer}, this method returns immediately.
+	 * A FLY request is rejected while another launch is pending or the drone
+	 * is armed.
 	 */
 	private void startFlying()
 	{
-		int ack = sendCommand(CommandOptions.SET_MODE, "Stabilize");
-		if (ack == 0)
+		if (!launchPending.compareAndSet(false, true))
+		{
+			getLog().warn("Launch already pending, ignoring FLY");
+			return;
+		}
+		if (flightSequencer.isArmed())
 		{
-			ack = sendCommand(CommandOptions.ARM);
-			getLog().info("Mode successfully set to stabilize");
-			ack = sendCommand(CommandOptions.WRITE_MISSION);
-			if (ack == 0)
+			launchPending.set(false);
+			getLog().warn("Drone is armed, ignoring FLY");
+			return;
+		}
+		getManagedCommands().submit(new Runnable()
+		{
+
+			public void run()
 			{
-				getLog().info("Mission write successful");
-				ack = sendCommand(CommandOptions.ARM);
-				if (ack == 0)
+				ReadinessReport report;
+				try
 				{
-					getLog().info("Arming of the drone successful");
-					if (paramList.isEmpty())
-					{
-						rc_out[2] = 1130;
-					}
-					else
-					{
-						rc_out[2] = (short) (paramList.get("RC3_MIN")
-								.shortValue() + 130);
-					}
-					ack = sendCommand(CommandOptions.SET_MODE, "Auto");
-					if (ack == 0)
-					{
-						getLog().warn("Going to fly any second dnow");
-						getLog().info("Drone set to auto mode");
-						getLog().info(
-								"All sequence successfully sent to the drone");
-						getLog().warn(
-								"STAY AWAY FROM THE DRONE, IT SHOULD START FLYING ANYTIME NOW");
-					}
-					else
+					report = readinessEngine.evaluate(telemetry);
+				}
+				catch (InterruptedException e)
+				{
+					launchPending.set(false);
+					Thread.currentThread().interrupt();
+					return;
+				}
+				Map<String, Object> preflightMap = Maps.newHashMap();
+				preflightMap.put("preflight", report.isGo() ? "GO" : "NO_GO");
+				preflightMap.put("reasons", report.getReasons());
+				preflightMap.put("elapsed", report.getElapsed());
+				sendOutputJson(publishers[2], preflightMap);
+				if (!report.isGo())
+				{
+					launchPending.set(false);
+					getLog().error("Pre-flight checks failed, not launching : "
+							+ report);
+					return;
+				}
+				getLog().info("Pre-flight checks passed : " + report);
+				try
+				{
+					if (!commandChannel.tryAcquire(LAUNCH_CHANNEL_WAIT,
+							TimeUnit.MILLISECONDS))
 					{
-						getLog().error("Set Mode Failed");
+						launchPending.set(false);
+						getLog().warn("Command channel busy, not launching");
+						return;
 					}
 				}
-				else
+				catch (InterruptedException e)
 				{
-					getLog().error("Arming the drone failed");
+					launchPending.set(false);
+					Thread.currentThread().interrupt();
+					return;
 				}
+				if (!flightSequencer.start())
+				{
+					commandChannel.release();
+					launchPending.set(false);
+					getLog().warn("Launch sequence running or drone armed, ignoring FLY");
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Handles the progress events of the {@link #flightSequencer}. Logs the
+	 * event, publishes it on the status topic and raises the throttle just
+	 * before the drone is switched to auto mode. The {@link #commandChannel}
+	 * is given back once the sequence has launched or failed, the
+	 * {@link #launchPending} claim once it has failed.
+	 * 
+	 * @param state
+	 *            State entered by the sequencer.
+	 * @param detail
+	 *            Reason of the state change.
+	 */
+	private void handleSequencerProgress(FlightSequencer.State state,
+			String detail)
+	{
+		switch (state)
+		{
+		case FAILED:
+			getLog().error(detail);
+			commandChannel.release();
+			launchPending.set(false);
+			break;
+
+		case SET_AUTO:
+			getLog().info(detail);
+			if (paramList == null || paramList.isEmpty())
+			{
+				rc_out[2] = 1130;
 			}
 			else
 			{
-				getLog().error("Mision Write Failed");
+				rc_out[2] = (short) (paramList.get("RC3_MIN").shortValue() + 130);
 			}
+			getLog().warn("Going to fly any second now");
+			break;
+
+		case LAUNCHED:
+			getLog().info(detail);
+			getLog().info("All sequence successfully sent to the drone");
+			getLog().warn(
+					"STAY AWAY FROM THE DRONE, IT SHOULD START FLYING ANYTIME NOW");
+			commandChannel.release();
+			break;
+
+		default:
+			getLog().info(detail);
+			break;
 		}
-		else
-		{
-			getLog().error("Set Stabilize mode failed");
-		}
+		Map<String, Object> statusMap = Maps.newHashMap();
+		statusMap.put("flight", state.name());
+		statusMap.put("detail", detail);
+		sendOutputJson(publishers[2], statusMap);
+	}
+	
+	/**
+	 * Declares to the mavlink activity the rates at which the captain reads
+	 * its telemetry inputs, so that only those streams are requested from the
+	 * drone. The preflight checks and the launch sequencer do not need more
+	 * than 2 Hz.
+	 */
+	private void declareStreamDemand()
+	{
+		Map<String, Object> demands = Maps.newHashMap();
+		demands.put("mavlink/sensors/gps", 2);
+		demands.put("mavlink/system/status", 2);
+		demands.put("mavlink/controller/nav", 2);
+		Map<String, Object> demandMap = Maps.newHashMap();
+		demandMap.put("consumer", "captain");
+		demandMap.put("demands", demands);
+		sendOutputJson(publishers[3], demandMap);
+	}
+	
+	/**
+	 * Publishes a link event of the {@link #heartbeatTracker} on the status
+	 * topic.
+	 * 
+	 * @param event
+	 *            UP, DEGRADED, RESTORED or LOST.
+	 * @param systemId
+	 *            System id of the drone.
+	 * @param silence
+	 *            Time since the last heartbeat in milliseconds.
+	 */
+	private void publishLinkEvent(String event, int systemId, long silence)
+	{
+		Map<String, Object> linkMap = Maps.newHashMap();
+		linkMap.put("link", event);
+		linkMap.put("system", systemId);
+		linkMap.put("silence", silence);
+		sendOutputJson(publishers[2], linkMap);
 	}
 	
 	/**
 	 * Launches the rc output thread. It sends rc output on rc_output channel at
-	 * a frequency of 2 Hz.
+	 * the configured rate, 50 Hz by default. Every message carries the channel
+	 * values as a number array, a sequence number and the send time in
+	 * milliseconds, so the mavlink activity can measure the latency. The tick
+	 * jitter is published on the status channel once per second.
 	 */
 	private void launchRcOutputThread()
 	{
@@ -1336,122 +1801,264 @@ public class IsErleCaptainActivity extends BaseRoutableRosActivity {
 		rc_out[6] = (short) 0xFFFF;
 		rc_out[7] = (short) 0xFFFF;
 
+		int rate = getConfiguration().getPropertyInteger(CONFIGURATION_RC_RATE,
+				DEFAULT_RC_RATE);
+		if (rate <= 0)
+		{
+			getLog().warn("Invalid rc output rate " + rate + ", using "
+					+ DEFAULT_RC_RATE + " Hz");
+			rate = DEFAULT_RC_RATE;
+		}
+		rcOutputPeriod = TimeUnit.SECONDS.toNanos(1) / rate;
+		rcOutputMap = Maps.newHashMap();
+		rcOutputMap.put("rc", rcOutputValues);
+		rcOutputSequence = 0;
+		rcOutputLastTick = 0;
+		resetRcJitter(System.nanoTime());
+
 		rcOutput = getManagedCommands().scheduleAtFixedRate(new Runnable()
 		{
 
 			public void run()
 			{
-				Map<String, Object> mapRCOut = Maps.newHashMap();
-				mapRCOut.put("rc", Arrays.toString(rc_out));
-				sendOutputJson(publishers[1], mapRCOut);
+				sendRcOutput();
 			}
-		}, EventFrequency.eventsPerSecond(2.0));
+		}, 0, rcOutputPeriod, TimeUnit.NANOSECONDS);
+		getLog().info("RC output running at " + rate + " Hz");
 
 	}
 	
 	/**
-	 * It launches a command sender thread which scans for a command.txt file
-	 * every second. If it finds a command file, it sends it to the mavlink
-	 * activity to be sent to the drone. The command file follows the convention
-	 * of first command being the CommandOptions ordinal value followed by its
-	 * arguments.Every argument is separated by " " separator and each line
-	 * contains only one command.
+	 * Publishes the current {@link #rc_out} values and updates the jitter
+	 * statistics. Runs on the rc output thread only.
+	 */
+	private void sendRcOutput()
+	{
+		long now = System.nanoTime();
+		if (rcOutputLastTick != 0)
+		{
+			long jitter = Math.abs(now - rcOutputLastTick - rcOutputPeriod);
+			rcJitterSum += jitter;
+			if (jitter > rcJitterMax)
+			{
+				rcJitterMax = jitter;
+			}
+			rcJitterTicks++;
+		}
+		rcOutputLastTick = now;
+
+		for (int i = 0; i < rcOutputValues.length; i++)
+		{
+			rcOutputValues[i] = rc_out[i];
+		}
+		rcOutputMap.put("seq", ++rcOutputSequence);
+		rcOutputMap.put("time", System.currentTimeMillis());
+		sendOutputJson(publishers[1], rcOutputMap);
+
+		if (now - rcJitterWindowStart >= TimeUnit.SECONDS.toNanos(1))
+		{
+			Map<String, Object> jitterMap = Maps.newHashMap();
+			jitterMap.put("rc_ticks", rcJitterTicks);
+			jitterMap.put("rc_jitter_avg_us", rcJitterTicks == 0 ? 0
+					: rcJitterSum / rcJitterTicks / 1000);
+			jitterMap.put("rc_jitter_max_us", rcJitterMax / 1000);
+			sendOutputJson(publishers[2], jitterMap);
+			resetRcJitter(now);
+		}
+	}
+	
+	/**
+	 * Starts a new jitter statistics window.
+	 * 
+	 * @param now
+	 *            Start of the window in {@link System#nanoTime()} units.
+	 */
+	private void resetRcJitter(long now)
+	{
+		rcJitterWindowStart = now;
+		rcJitterTicks = 0;
+		rcJitterSum = 0;
+		rcJitterMax = 0;
+
+	}
+	
+	/**
+	 * It launches a command sender thread which watches the command.txt file.
+	 * Every line appended to the file is queued once and sent to the mavlink
+	 * activity by the command dispatcher thread, so a slow command never
+	 * delays reading the file. The offset following the last dispatched line
+	 * is stored next to the activity data, so lines are not executed again
+	 * after a restart and queued lines are not lost. The command file
+	 * follows the convention of first command being the CommandOptions ordinal
+	 * value followed by its arguments.Every argument is separated by " "
+	 * separator and each line contains only one command.
 	 */
 	private void launchCommandSenderThread()
 	{
-		commandFileLocation = getSpaceEnvironment().getFilesystem()
-				.getTempDirectory().getAbsolutePath()
-				+ "/command.txt";
-		commandSender = getManagedCommands().scheduleAtFixedRate(new Runnable()
+		File tempDirectory = getSpaceEnvironment().getFilesystem()
+				.getTempDirectory();
+		commandFileLocation = tempDirectory.getAbsolutePath() + "/command.txt";
+		commandTailer = new CommandFileTailer(new File(commandFileLocation),
+				new File(getActivityFilesystem().getPermanentDataDirectory(),
+						"command.offset"));
+		commandQueue = new LinkedBlockingQueue<CommandLine>();
+
+		commandDispatcher = getManagedCommands().submit(new Runnable()
 		{
 
 			public void run()
 			{
-				File commandFile = new File(commandFileLocation);
-				if (commandFile.exists())
+				try
 				{
-					if (commandFileLastModified == null)
+					while (!Thread.currentThread().isInterrupted())
 					{
-						commandFileLastModified = new Date(
-								commandFile.lastModified());
-						BufferedReader br = null;
-						String currentLine;
-						try
-						{
-							br = new BufferedReader(new FileReader(
-									commandFileLocation));
-							while ((currentLine = br.readLine()) != null)
-							{
-								currentLine = currentLine.trim().replaceAll(
-										" ", "=");
-								int cmdRslt = sendCommand(currentLine);
-								if (cmdRslt == 0)
-								{
-									getLog().info(
-											"Send Command :  " + currentLine);
-								}
-								else
-								{
-									getLog().warn(
-											"Send Command :  " + currentLine
-													+ " not fulfilled");
-								}
-							}
-						}
-						catch (FileNotFoundException e1)
-						{
-							getLog().error("Param file deleted");
-						}
-						catch (IOException e)
-						{
-							getLog().error("Input Output Exception");
-						}
+						dispatchCommand(commandQueue.take());
 					}
-					else
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+
+		commandSender = getManagedCommands().submit(new Runnable()
+		{
+
+			public void run()
+			{
+				watchCommandFile();
+			}
+		});
+	}
+	
+	/**
+	 * Watches the directory of the command file and queues the new lines on
+	 * every change. Runs until the command sender thread is cancelled.
+	 */
+	private void watchCommandFile()
+	{
+		Path directory = commandTailer.getCommandFile().getParentFile()
+				.toPath();
+		String fileName = commandTailer.getCommandFile().getName();
+		WatchService watcher = null;
+		try
+		{
+			watcher = FileSystems.getDefault().newWatchService();
+			directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY);
+		}
+		catch (IOException e)
+		{
+			getLog().warn(
+					"Could not watch " + directory + ", polling the command file",
+					e);
+		}
+		try
+		{
+			queueNewCommands();
+			while (!Thread.currentThread().isInterrupted())
+			{
+				if (watcher == null)
+				{
+					Thread.sleep(TimeUnit.SECONDS.toMillis(COMMAND_FILE_POLL));
+					queueNewCommands();
+					continue;
+				}
+				WatchKey key = watcher.poll(COMMAND_FILE_POLL, TimeUnit.SECONDS);
+				boolean changed = key == null;
+				if (key != null)
+				{
+					for (WatchEvent<?> event : key.pollEvents())
 					{
-						Date current = new Date(commandFile.lastModified());
-						if (!current.equals(commandFileLastModified))
+						if (event.kind() == StandardWatchEventKinds.OVERFLOW
+								|| fileName.equals(event.context().toString()))
 						{
-							BufferedReader br = null;
-							String currentLine;
-							try
-							{
-								br = new BufferedReader(new FileReader(
-										commandFileLocation));
-								while ((currentLine = br.readLine()) != null)
-								{
-									currentLine = currentLine.trim()
-											.replaceAll(" ", "=");
-									int cmdRslt = sendCommand(currentLine);
-									if (cmdRslt == 0)
-									{
-										getLog().info(
-												"Send Command :  "
-														+ currentLine + " processed");
-									}
-									else
-									{
-										getLog().warn(
-												"Send Command :  "
-														+ currentLine
-														+ " not fulfilled");
-									}
-								}
-							}
-							catch (FileNotFoundException e1)
-							{
-								getLog().error("Param file deleted");
-							}
-							catch (IOException e)
-							{
-								getLog().error("Input Output Exception");
-							}
+							changed = true;
 						}
 					}
+					key.reset();
 				}
-
+				if (changed)
+				{
+					queueNewCommands();
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			if (watcher != null)
+			{
+				try
+				{
+					watcher.close();
+				}
+				catch (IOException e)
+				{
+					getLog().warn("Could not close the command file watcher");
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Reads the lines appended to the command file and queues them for the
+	 * command dispatcher.
+	 */
+	private void queueNewCommands()
+	{
+		try
+		{
+			for (CommandLine line : commandTailer.readNewLines())
+			{
+				commandQueue.add(line);
 			}
-		}, EventFrequency.eventsPerSecond(1));
+		}
+		catch (IOException e)
+		{
+			getLog().error("Could not read the command file", e);
+		}
+	}
+	
+	/**
+	 * Sends a command line of the command file to the mavlink activity and
+	 * waits for its response. Waits for the {@link #commandChannel} while a
+	 * launch sequence runs, so that its responses are not mixed up. The line
+	 * is committed to the {@link #commandTailer} once it has been sent. A
+	 * line interrupted by the shutdown of the activity may not have been sent
+	 * and is left uncommitted, to be read again on the next start.
+	 * 
+	 * @param line
+	 *            Command line, arguments separated by spaces.
+	 */
+	private void dispatchCommand(CommandLine line)
+	{
+		String command = line.getText().replaceAll(" +", "=");
+		int cmdRslt = sendCommand(command);
+		if (cmdRslt == 0)
+		{
+			getLog().info("Send Command :  " + command + " processed");
+		}
+		else
+		{
+			getLog().warn("Send Command :  " + command + " not fulfilled");
+		}
+		if (Thread.currentThread().isInterrupted())
+		{
+			return;
+		}
+		try
+		{
+			commandTailer.commit(line);
+		}
+		catch (IOException e)
+		{
+			getLog().error("Could not store the command file offset", e);
+		}
 	}
 	
 	/**
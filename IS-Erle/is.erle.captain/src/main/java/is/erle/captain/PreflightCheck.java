@@ -0,0 +1,32 @@
+package is.erle.captain;
+
+/**
+ * A single pre-flight readiness check evaluated by the
+ * {@link ReadinessEngine}. Checks run concurrently, so an implementation must
+ * only read the snapshot it is given.
+ *
+ * @version %I%, %G%
+ * @since 1.0.0
+ * @see PreflightChecks
+ */
+public interface PreflightCheck
+{
+	/**
+	 * Gets the name of the check used in the readiness report.
+	 *
+	 * @return Short name of the check.
+	 */
+	String getName();
+
+	/**
+	 * Evaluates the check.
+	 *
+	 * @param snapshot
+	 *            Latest telemetry of the drone.
+	 * @param now
+	 *            Evaluation time in {@link System#nanoTime()} units.
+	 * @return <code>null</code> if the check passed, otherwise the reason of
+	 *         the failure.
+	 */
+	String evaluate(TelemetrySnapshot snapshot, long now);
+}
@@ -0,0 +1,274 @@
+package is.erle.captain;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Factory of the standard pre-flight checks of the captain activity.
+ *
+ * @version %I%, %G%
+ * @since 1.0.0
+ * @see ReadinessEngine
+ */
+public final class PreflightChecks
+{
+	/**
+	 * MAV_SYS_STATUS_AHRS bit of the SYS_STATUS sensor bitmasks. ArduCopter
+	 * clears its health bit while the EKF is not usable.
+	 */
+	private static final int SENSOR_AHRS = 0x200000;
+
+	/**
+	 * No instances.
+	 */
+	private PreflightChecks()
+	{
+	}
+
+	/**
+	 * Checks that the GPS has a recent fix of the required quality.
+	 *
+	 * @param minFixType
+	 *            Minimum fix type, 3 for a 3D fix.
+	 * @param minSatellites
+	 *            Minimum number of visible satellites.
+	 * @param maxEph
+	 *            Maximum horizontal dilution of precision in cm.
+	 * @param maxAge
+	 *            Maximum age of the GPS message in milliseconds.
+	 * @return The check.
+	 */
+	public static PreflightCheck gpsFix(final int minFixType,
+			final int minSatellites, final int maxEph, final long maxAge)
+	{
+		return new PreflightCheck()
+		{
+
+			public String getName()
+			{
+				return "GPS";
+			}
+
+			public String evaluate(TelemetrySnapshot snapshot, long now)
+			{
+				String stale = checkAge(snapshot.getGpsTime(), now, maxAge);
+				if (stale != null)
+				{
+					return stale;
+				}
+				if (snapshot.getFixType() < minFixType)
+				{
+					return "fix type " + snapshot.getFixType() + ", need "
+							+ minFixType;
+				}
+				if (snapshot.getSatellites() < minSatellites)
+				{
+					return snapshot.getSatellites() + " satellites, need "
+							+ minSatellites;
+				}
+				if (snapshot.getEph() > maxEph)
+				{
+					return "HDOP " + snapshot.getEph() / 100.0 + ", need "
+							+ maxEph / 100.0;
+				}
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * Checks the battery voltage and, if estimated by the autopilot, the
+	 * remaining capacity.
+	 *
+	 * @param minVoltage
+	 *            Minimum battery voltage in millivolts.
+	 * @param minRemaining
+	 *            Minimum remaining capacity in percent.
+	 * @param maxAge
+	 *            Maximum age of the status message in milliseconds.
+	 * @return The check.
+	 */
+	public static PreflightCheck battery(final int minVoltage,
+			final int minRemaining, final long maxAge)
+	{
+		return new PreflightCheck()
+		{
+
+			public String getName()
+			{
+				return "BATTERY";
+			}
+
+			public String evaluate(TelemetrySnapshot snapshot, long now)
+			{
+				String stale = checkAge(snapshot.getStatusTime(), now, maxAge);
+				if (stale != null)
+				{
+					return stale;
+				}
+				if (snapshot.getVoltage() < minVoltage)
+				{
+					return snapshot.getVoltage() + "mV, need " + minVoltage
+							+ "mV";
+				}
+				if (snapshot.getBatteryRemaining() >= 0
+						&& snapshot.getBatteryRemaining() < minRemaining)
+				{
+					return snapshot.getBatteryRemaining() + "% left, need "
+							+ minRemaining + "%";
+				}
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * Checks that every present and enabled sensor reports healthy, the EKF
+	 * being part of the AHRS health, and that the navigation controller
+	 * output is arriving.
+	 *
+	 * @param maxAge
+	 *            Maximum age of the status and navigation messages in
+	 *            milliseconds.
+	 * @return The check.
+	 */
+	public static PreflightCheck navigation(final long maxAge)
+	{
+		return new PreflightCheck()
+		{
+
+			public String getName()
+			{
+				return "NAV";
+			}
+
+			public String evaluate(TelemetrySnapshot snapshot, long now)
+			{
+				String stale = checkAge(snapshot.getStatusTime(), now, maxAge);
+				if (stale != null)
+				{
+					return "status " + stale;
+				}
+				int unhealthy = snapshot.getSensorsPresent()
+						& snapshot.getSensorsEnabled()
+						& ~snapshot.getSensorsHealth();
+				if ((unhealthy & SENSOR_AHRS) != 0)
+				{
+					return "AHRS/EKF unhealthy";
+				}
+				if (unhealthy != 0)
+				{
+					return "unhealthy sensors 0x"
+							+ Integer.toHexString(unhealthy);
+				}
+				stale = checkAge(snapshot.getNavTime(), now, maxAge);
+				if (stale != null)
+				{
+					return "controller " + stale;
+				}
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * Checks that the parameters have been read and the RC calibration of the
+	 * four flight channels is sane.
+	 *
+	 * @return The check.
+	 */
+	public static PreflightCheck parameters()
+	{
+		return new PreflightCheck()
+		{
+
+			public String getName()
+			{
+				return "PARAMS";
+			}
+
+			public String evaluate(TelemetrySnapshot snapshot, long now)
+			{
+				Map<String, Double> params = snapshot.getParams();
+				if (params.isEmpty())
+				{
+					return "parameter list not read";
+				}
+				for (int i = 1; i <= 4; i++)
+				{
+					Double min = params.get("RC" + i + "_MIN");
+					Double max = params.get("RC" + i + "_MAX");
+					if (min == null || max == null)
+					{
+						return "RC" + i + " range missing";
+					}
+					if (min >= max || min < 800 || max > 2200)
+					{
+						return "RC" + i + " range " + min + "-" + max
+								+ " invalid";
+					}
+				}
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * Checks that a non empty mission file is present.
+	 *
+	 * @param missionFile
+	 *            The mission file written to the drone on launch.
+	 * @return The check.
+	 */
+	public static PreflightCheck mission(final File missionFile)
+	{
+		return new PreflightCheck()
+		{
+
+			public String getName()
+			{
+				return "MISSION";
+			}
+
+			public String evaluate(TelemetrySnapshot snapshot, long now)
+			{
+				if (!missionFile.isFile())
+				{
+					return missionFile.getName() + " not found";
+				}
+				if (missionFile.length() == 0)
+				{
+					return missionFile.getName() + " is empty";
+				}
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * Checks the age of a telemetry message.
+	 *
+	 * @param time
+	 *            Receive time of the message, 0 if never received.
+	 * @param now
+	 *            Evaluation time.
+	 * @param maxAge
+	 *            Maximum age in milliseconds.
+	 * @return <code>null</code> if the message is recent enough, otherwise the
+	 *         reason.
+	 */
+	private static String checkAge(long time, long now, long maxAge)
+	{
+		if (time == 0)
+		{
+			return "no telemetry received";
+		}
+		long age = TimeUnit.NANOSECONDS.toMillis(now - time);
+		if (age > maxAge)
+		{
+			return "telemetry " + age + "ms old";
+		}
+		return null;
+	}
+}
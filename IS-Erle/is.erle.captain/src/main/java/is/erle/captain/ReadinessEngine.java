@@ -0,0 +1,113 @@
+package is.erle.captain;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Evaluates the pre-flight checks concurrently against one telemetry
+ * snapshot.
+ * <p>
+ * All checks of a pass are submitted together and the pass is bounded by a
+ * single timeout, so the time to a go/no-go decision is the time of the
+ * slowest check instead of the sum of all of them. A check which throws or
+ * does not finish in time counts as failed.
+ *
+ * @version %I%, %G%
+ * @since 1.0.0
+ */
+public class ReadinessEngine
+{
+	/**
+	 * Runs the checks.
+	 */
+	private final ExecutorService executor;
+
+	/**
+	 * Checks evaluated on every pass.
+	 */
+	private final List<PreflightCheck> checks;
+
+	/**
+	 * Timeout of a pass in milliseconds.
+	 */
+	private final long timeout;
+
+	/**
+	 * Constructor to initialize the engine.
+	 *
+	 * @param executor
+	 *            Runs the checks.
+	 * @param checks
+	 *            Checks evaluated on every pass.
+	 * @param timeout
+	 *            Timeout of a pass in milliseconds.
+	 */
+	public ReadinessEngine(ExecutorService executor,
+			List<PreflightCheck> checks, long timeout)
+	{
+		this.executor = executor;
+		this.checks = new ArrayList<PreflightCheck>(checks);
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Evaluates all checks against a snapshot. Blocks the caller for at most
+	 * the timeout.
+	 *
+	 * @param snapshot
+	 *            Latest telemetry of the drone.
+	 * @return The go/no-go report.
+	 * @throws InterruptedException
+	 *             If the calling thread is interrupted while waiting.
+	 */
+	public ReadinessReport evaluate(final TelemetrySnapshot snapshot)
+			throws InterruptedException
+	{
+		final long start = System.nanoTime();
+		List<Callable<String>> tasks = new ArrayList<Callable<String>>(
+				checks.size());
+		for (final PreflightCheck check : checks)
+		{
+			tasks.add(new Callable<String>()
+			{
+
+				public String call()
+				{
+					return check.evaluate(snapshot, start);
+				}
+			});
+		}
+		List<Future<String>> results = executor.invokeAll(tasks, timeout,
+				TimeUnit.MILLISECONDS);
+
+		List<String> reasons = new ArrayList<String>();
+		for (int i = 0; i < results.size(); i++)
+		{
+			String name = checks.get(i).getName();
+			try
+			{
+				String reason = results.get(i).get();
+				if (reason != null)
+				{
+					reasons.add(name + ": " + reason);
+				}
+			}
+			catch (CancellationException e)
+			{
+				reasons.add(name + ": no result within " + timeout + "ms");
+			}
+			catch (ExecutionException e)
+			{
+				reasons.add(name + ": " + e.getCause());
+			}
+		}
+		return new ReadinessReport(reasons, checks.size(),
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+	}
+}
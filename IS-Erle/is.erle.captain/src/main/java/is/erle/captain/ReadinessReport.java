@@ -0,0 +1,85 @@
+package is.erle.captain;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Go/no-go result of one {@link ReadinessEngine} pass.
+ *
+ * @version %I%, %G%
+ * @since 1.0.0
+ */
+public final class ReadinessReport
+{
+	/**
+	 * Reasons of the failed checks, each prefixed with the check name.
+	 */
+	private final List<String> reasons;
+
+	/**
+	 * Number of evaluated checks.
+	 */
+	private final int checkCount;
+
+	/**
+	 * Duration of the evaluation in milliseconds.
+	 */
+	private final long elapsed;
+
+	/**
+	 * Constructor to initialize the report.
+	 *
+	 * @param reasons
+	 *            Reasons of the failed checks.
+	 * @param checkCount
+	 *            Number of evaluated checks.
+	 * @param elapsed
+	 *            Duration of the evaluation in milliseconds.
+	 */
+	public ReadinessReport(List<String> reasons, int checkCount, long elapsed)
+	{
+		this.reasons = Collections.unmodifiableList(reasons);
+		this.checkCount = checkCount;
+		this.elapsed = elapsed;
+	}
+
+	/**
+	 * @return <code>true</code> if every check passed, otherwise
+	 *         <code>false</code>.
+	 */
+	public boolean isGo()
+	{
+		return reasons.isEmpty();
+	}
+
+	/**
+	 * @return Reasons of the failed checks, empty on a go.
+	 */
+	public List<String> getReasons()
+	{
+		return reasons;
+	}
+
+	/**
+	 * @return Number of evaluated checks.
+	 */
+	public int getCheckCount()
+	{
+		return checkCount;
+	}
+
+	/**
+	 * @return Duration of the evaluation in milliseconds.
+	 */
+	public long getElapsed()
+	{
+		return elapsed;
+	}
+
+	@Override
+	public String toString()
+	{
+		return (isGo() ? "GO" : "NO GO " + reasons) + " (" + checkCount
+				+ " checks in " + elapsed + "ms)";
+	}
+}
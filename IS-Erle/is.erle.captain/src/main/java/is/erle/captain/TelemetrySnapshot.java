@@ -0,0 +1,280 @@
+package is.erle.captain;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Immutable view of the latest drone telemetry used by the pre-flight checks.
+ * <p>
+ * Every update returns a new snapshot, so the readiness checks running in
+ * parallel all see the same consistent state without locking. Receive times
+ * are in {@link System#nanoTime()} units, 0 means the message has never been
+ * received.
+ *
+ * @version %I%, %G%
+ * @since 1.0.0
+ * @see ReadinessEngine
+ */
+public final class TelemetrySnapshot
+{
+	/**
+	 * Snapshot without any telemetry.
+	 */
+	public static final TelemetrySnapshot EMPTY = new TelemetrySnapshot(0, 0,
+			0, 0, 0, 0, -1, 0, 0, 0, 0, Collections.<String, Double> emptyMap());
+
+	/**
+	 * Receive time of the last GPS_RAW_INT message.
+	 */
+	private final long gpsTime;
+
+	/**
+	 * GPS fix type, 3 for a 3D fix.
+	 */
+	private final int fixType;
+
+	/**
+	 * Number of visible satellites.
+	 */
+	private final int satellites;
+
+	/**
+	 * GPS horizontal dilution of precision in cm.
+	 */
+	private final int eph;
+
+	/**
+	 * Receive time of the last SYS_STATUS message.
+	 */
+	private final long statusTime;
+
+	/**
+	 * Battery voltage in millivolts.
+	 */
+	private final int voltage;
+
+	/**
+	 * Remaining battery in percent, -1 if not estimated by the autopilot.
+	 */
+	private final int batteryRemaining;
+
+	/**
+	 * Bitmask of the present sensors.
+	 */
+	private final int sensorsPresent;
+
+	/**
+	 * Bitmask of the enabled sensors.
+	 */
+	private final int sensorsEnabled;
+
+	/**
+	 * Bitmask of the healthy sensors.
+	 */
+	private final int sensorsHealth;
+
+	/**
+	 * Receive time of the last NAV_CONTROLLER_OUTPUT message.
+	 */
+	private final long navTime;
+
+	/**
+	 * Parameters read from the drone.
+	 */
+	private final Map<String, Double> params;
+
+	/**
+	 * Constructor to initialize all the values.
+	 */
+	private TelemetrySnapshot(long gpsTime, int fixType, int satellites,
+			int eph, long statusTime, int voltage, int batteryRemaining,
+			int sensorsPresent, int sensorsEnabled, int sensorsHealth,
+			long navTime, Map<String, Double> params)
+	{
+		this.gpsTime = gpsTime;
+		this.fixType = fixType;
+		this.satellites = satellites;
+		this.eph = eph;
+		this.statusTime = statusTime;
+		this.voltage = voltage;
+		this.batteryRemaining = batteryRemaining;
+		this.sensorsPresent = sensorsPresent;
+		this.sensorsEnabled = sensorsEnabled;
+		this.sensorsHealth = sensorsHealth;
+		this.navTime = navTime;
+		this.params = params;
+	}
+
+	/**
+	 * Creates a snapshot with a new GPS_RAW_INT message.
+	 *
+	 * @param time
+	 *            Receive time in {@link System#nanoTime()} units.
+	 * @param fixType
+	 *            GPS fix type.
+	 * @param satellites
+	 *            Number of visible satellites.
+	 * @param eph
+	 *            Horizontal dilution of precision in cm.
+	 * @return The updated snapshot.
+	 */
+	public TelemetrySnapshot withGps(long time, int fixType, int satellites,
+			int eph)
+	{
+		return new TelemetrySnapshot(time, fixType, satellites, eph,
+				statusTime, voltage, batteryRemaining, sensorsPresent,
+				sensorsEnabled, sensorsHealth, navTime, params);
+	}
+
+	/**
+	 * Creates a snapshot with a new SYS_STATUS message.
+	 *
+	 * @param time
+	 *            Receive time in {@link System#nanoTime()} units.
+	 * @param voltage
+	 *            Battery voltage in millivolts.
+	 * @param batteryRemaining
+	 *            Remaining battery in percent, -1 if unknown.
+	 * @param sensorsPresent
+	 *            Bitmask of the present sensors.
+	 * @param sensorsEnabled
+	 *            Bitmask of the enabled sensors.
+	 * @param sensorsHealth
+	 *            Bitmask of the healthy sensors.
+	 * @return The updated snapshot.
+	 */
+	public TelemetrySnapshot withStatus(long time, int voltage,
+			int batteryRemaining, int sensorsPresent, int sensorsEnabled,
+			int sensorsHealth)
+	{
+		return new TelemetrySnapshot(gpsTime, fixType, satellites, eph, time,
+				voltage, batteryRemaining, sensorsPresent, sensorsEnabled,
+				sensorsHealth, navTime, params);
+	}
+
+	/**
+	 * Creates a snapshot with a new NAV_CONTROLLER_OUTPUT message.
+	 *
+	 * @param time
+	 *            Receive time in {@link System#nanoTime()} units.
+	 * @return The updated snapshot.
+	 */
+	public TelemetrySnapshot withNav(long time)
+	{
+		return new TelemetrySnapshot(gpsTime, fixType, satellites, eph,
+				statusTime, voltage, batteryRemaining, sensorsPresent,
+				sensorsEnabled, sensorsHealth, time, params);
+	}
+
+	/**
+	 * Creates a snapshot with a new parameter list.
+	 *
+	 * @param params
+	 *            Parameters read from the drone.
+	 * @return The updated snapshot.
+	 */
+	public TelemetrySnapshot withParams(Map<String, Double> params)
+	{
+		return new TelemetrySnapshot(gpsTime, fixType, satellites, eph,
+				statusTime, voltage, batteryRemaining, sensorsPresent,
+				sensorsEnabled, sensorsHealth, navTime,
+				Collections.unmodifiableMap(params));
+	}
+
+	/**
+	 * @return Receive time of the last GPS_RAW_INT message, 0 if none.
+	 */
+	public long getGpsTime()
+	{
+		return gpsTime;
+	}
+
+	/**
+	 * @return GPS fix type, 3 for a 3D fix.
+	 */
+	public int getFixType()
+	{
+		return fixType;
+	}
+
+	/**
+	 * @return Number of visible satellites.
+	 */
+	public int getSatellites()
+	{
+		return satellites;
+	}
+
+	/**
+	 * @return GPS horizontal dilution of precision in cm.
+	 */
+	public int getEph()
+	{
+		return eph;
+	}
+
+	/**
+	 * @return Receive time of the last SYS_STATUS message, 0 if none.
+	 */
+	public long getStatusTime()
+	{
+		return statusTime;
+	}
+
+	/**
+	 * @return Battery voltage in millivolts.
+	 */
+	public int getVoltage()
+	{
+		return voltage;
+	}
+
+	/**
+	 * @return Remaining battery in percent, -1 if not estimated.
+	 */
+	public int getBatteryRemaining()
+	{
+		return batteryRemaining;
+	}
+
+	/**
+	 * @return Bitmask of the present sensors.
+	 */
+	public int getSensorsPresent()
+	{
+		return sensorsPresent;
+	}
+
+	/**
+	 * @return Bitmask of the enabled sensors.
+	 */
+	public int getSensorsEnabled()
+	{
+		return sensorsEnabled;
+	}
+
+	/**
+	 * @return Bitmask of the healthy sensors.
+	 */
+	public int getSensorsHealth()
+	{
+		return sensorsHealth;
+	}
+
+	/**
+	 * @return Receive time of the last NAV_CONTROLLER_OUTPUT message, 0 if
+	 *         none.
+	 */
+	public long getNavTime()
+	{
+		return navTime;
+	}
+
+	/**
+	 * @return Unmodifiable parameters read from the drone.
+	 */
+	public Map<String, Double> getParams()
+	{
+		return params;
+	}
+}
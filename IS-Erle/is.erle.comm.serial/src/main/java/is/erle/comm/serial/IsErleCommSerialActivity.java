@@ -36,6 +36,26 @@ public class IsErleCommSerialActivity extends BaseRoutableRosActivity {
 	 */
 	private static final String CONFIGURATION_SUBSCRIBER_NAME = "space.activity.routes.inputs";
 	
+	/**
+	 * The name of the config property for obtaining the serial baud rate.
+	 */
+	private static final String CONFIGURATION_BAUD = "space.hardware.serial.baud";
+	
+	/**
+	 * Baud rate used when none is configured.
+	 */
+	private static final int DEFAULT_BAUD = 115200;
+	
+	/**
+	 * Size of the serial read buffer and of a published batch in bytes.
+	 */
+	private static final int BATCH_SIZE = 4096;
+	
+	/**
+	 * Size of the frame ring in bytes, about 180 ms of data at 921600 baud.
+	 */
+	private static final int RING_SIZE = 16384;
+	
 	/**
 	 * The topic names for publishing data.
 	 * <p>
@@ -43,12 +63,12 @@ public class IsErleCommSerialActivity extends BaseRoutableRosActivity {
 	 * <p>
 	 * publishers[0] -> output 
 	 * <p>
-	 * Topic Name : comms/output
+	 * Topic Name : comms/serial/output
 	 * <p>
 	 * Usage : Send output to the mavlink activity after receiving it from the drone.
 	 * <p>
 	 */
-	private static String publishers[];
+	private String publishers[];
 
 	/**
 	 * The topic names for subscribing data.
@@ -57,32 +77,52 @@ public class IsErleCommSerialActivity extends BaseRoutableRosActivity {
 	 * <p>
 	 * subscribers[0] -> input 
 	 * <p>
-	 * Topic Name : comms/input
+	 * Topic Name : comms/serial/input
 	 * <p>
 	 * Usage : Receive data from mavlink activity and send it to the drone.
 	 * <p>
 	 */
-	private static String subscribers[];
+	private String subscribers[];
 	
 	/**
 	 * A counter to count the the number of calls sendOutputJson calls.
 	 */
-	private static long jsonOutputCounter = 0;
+	private long jsonOutputCounter = 0;
 	
 	/**
 	 * A counter to count the the number of calls onNewInputJson calls.
 	 */
-	private static long jsonInputCounter = 0 ;
+	private long jsonInputCounter = 0 ;
 
 	/**
 	 * A serial object to handle all the serial communication with the drone.
 	 */
-	private static SerialCommunicationEndpoint serial;
+	private SerialCommunicationEndpoint serial;
+	
+	/**
+	 * Buffer the serial port is read into. Reused for every read.
+	 */
+	private byte[] serialData;
+	
+	/**
+	 * Cuts the received bytes into whole MAVLink frames.
+	 */
+	private MavlinkFrameRing frameRing;
+	
+	/**
+	 * Whole frames of the current batch. Reused for every batch.
+	 */
+	private byte[] frameBatch;
+	
+	/**
+	 * Formats a batch for publishing. Reused for every batch.
+	 */
+	private StringBuilder batchText;
 	
 	/**
-	 * A global object to store the received serial data
+	 * Message published for every batch. Reused for every batch.
 	 */
-	private static byte[] serialData;
+	private Map<String, Object> batchMessage;
 
 	/**
 	 * Executes on activity setup.
@@ -103,10 +143,17 @@ public class IsErleCommSerialActivity extends BaseRoutableRosActivity {
 		String portName = getConfiguration().getRequiredPropertyString(
 				"space.hardware.serial.port");
 		serial = serialService.newSerialEndpoint(portName);
-		serial.setBaud(115200);
+		int baud = getConfiguration().getPropertyInteger(CONFIGURATION_BAUD,
+				DEFAULT_BAUD);
+		serial.setBaud(baud);
 		serial.setInputBufferSize(10000);
 		serial.setOutputBufferSize(1000);
-		serialData = new byte[600];
+		serialData = new byte[BATCH_SIZE];
+		frameRing = new MavlinkFrameRing(RING_SIZE);
+		frameBatch = new byte[BATCH_SIZE];
+		batchText = new StringBuilder(BATCH_SIZE * 5);
+		batchMessage = Maps.newHashMap();
+		getLog().info("Serial port " + portName + " at " + baud + " baud");
 		//serial.startup();
 
 		/*ManagedCommand threadSender = getManagedCommands().submit(new Runnable() {
@@ -273,15 +320,48 @@ public class IsErleCommSerialActivity extends BaseRoutableRosActivity {
 	}
 	
 	/**
-	 * Callback for serial listener.
+	 * Callback for serial listener. Appends the read bytes to the
+	 * {@link #frameRing} and publishes all the complete frames. Half received
+	 * frames wait in the ring for the next read.
 	 */
 	private void handleSerialInput()
 	{
 		int tempInt = serial.read(serialData);
-		serialData = ArrayUtils.subarray(serialData, 0, tempInt);
-		Map<String, Object> temp = Maps.newHashMap();
-		temp.put("comm", Arrays.toString(serialData));
-		sendOutputJson(publishers[0], temp);
+		if (tempInt <= 0)
+		{
+			return;
+		}
+		frameRing.write(serialData, tempInt);
+		int batchLength;
+		while ((batchLength = frameRing.drainFrames(frameBatch)) > 0)
+		{
+			publishBatch(batchLength);
+		}
+	}
+	
+	/**
+	 * Publishes a batch of whole frames on the output topic in the
+	 * {@link Arrays#toString(byte[])} format expected by the mavlink activity.
+	 * 
+	 * @param length
+	 *            Number of bytes of {@link #frameBatch} to publish.
+	 */
+	private void publishBatch(int length)
+	{
+		batchText.setLength(0);
+		batchText.append('[');
+		for (int i = 0; i < length; i++)
+		{
+			if (i > 0)
+			{
+				batchText.append(", ");
+			}
+			batchText.append(frameBatch[i]);
+		}
+		batchText.append(']');
+		batchMessage.put("comm", batchText.toString());
+		sendOutputJson(publishers[0], batchMessage);
+		jsonOutputCounter++;
 	}
 	
 }
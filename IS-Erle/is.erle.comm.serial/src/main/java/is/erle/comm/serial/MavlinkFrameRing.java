@@ -0,0 +1,162 @@
+package is.erle.comm.serial;
+
+/**
+ * Fixed size ring buffer cutting the serial byte stream into whole MAVLink v1
+ * frames.
+ * <p>
+ * Bytes are appended as they are read from the port and complete frames,
+ * found by the 0xFE start byte and the payload length, are copied out into a
+ * caller provided batch buffer. Bytes in front of a start byte are line noise
+ * and skipped. The checksum is not verified here, the MAVLink parser of the
+ * mavlink activity does that. No memory is allocated after construction.
+ * <p>
+ * Only used by the serial reader thread, so it is not thread safe.
+ *
+ * @version %I%, %G%
+ * @since 1.0.0
+ */
+public class MavlinkFrameRing
+{
+	/**
+	 * MAVLink v1 start of frame.
+	 */
+	private static final int STX = 0xFE;
+
+	/**
+	 * Header and checksum bytes around the payload.
+	 */
+	private static final int FRAME_OVERHEAD = 8;
+
+	/**
+	 * Largest MAVLink v1 frame.
+	 */
+	public static final int MAX_FRAME = 255 + FRAME_OVERHEAD;
+
+	/**
+	 * The ring. Its length is a power of two.
+	 */
+	private final byte[] ring;
+
+	/**
+	 * Index mask of the ring.
+	 */
+	private final int mask;
+
+	/**
+	 * Total number of bytes read out of the ring.
+	 */
+	private long head;
+
+	/**
+	 * Total number of bytes written into the ring.
+	 */
+	private long tail;
+
+	/**
+	 * Number of bytes skipped while looking for a start byte.
+	 */
+	private long skipped;
+
+	/**
+	 * Number of bytes lost because the ring was full.
+	 */
+	private long overflowed;
+
+	/**
+	 * Constructor to initialize the ring.
+	 *
+	 * @param capacity
+	 *            Capacity in bytes, rounded up to a power of two of at least
+	 *            two frames.
+	 */
+	public MavlinkFrameRing(int capacity)
+	{
+		int size = Integer.highestOneBit(Math.max(capacity, 2 * MAX_FRAME) - 1) << 1;
+		ring = new byte[size];
+		mask = size - 1;
+	}
+
+	/**
+	 * Appends bytes read from the port. If they do not fit, the oldest bytes
+	 * are discarded.
+	 *
+	 * @param data
+	 *            Read buffer.
+	 * @param length
+	 *            Number of bytes read.
+	 */
+	public void write(byte[] data, int length)
+	{
+		int offset = 0;
+		if (length > ring.length)
+		{
+			offset = length - ring.length;
+			overflowed += offset;
+		}
+		long free = ring.length - (tail - head);
+		if (length - offset > free)
+		{
+			long lost = length - offset - free;
+			head += lost;
+			overflowed += lost;
+		}
+		for (int i = offset; i < length; i++)
+		{
+			ring[(int) (tail++ & mask)] = data[i];
+		}
+	}
+
+	/**
+	 * Moves every complete frame into a batch buffer.
+	 *
+	 * @param batch
+	 *            Destination of the frames, at least {@link #MAX_FRAME} long.
+	 * @return Number of bytes written to the batch. Frames which do not fit
+	 *         any more stay in the ring for the next call.
+	 */
+	public int drainFrames(byte[] batch)
+	{
+		int written = 0;
+		while (tail - head > 0)
+		{
+			if ((ring[(int) (head & mask)] & 0xFF) != STX)
+			{
+				head++;
+				skipped++;
+				continue;
+			}
+			if (tail - head < 2)
+			{
+				break;
+			}
+			int frameLength = (ring[(int) ((head + 1) & mask)] & 0xFF)
+					+ FRAME_OVERHEAD;
+			if (tail - head < frameLength
+					|| written + frameLength > batch.length)
+			{
+				break;
+			}
+			for (int i = 0; i < frameLength; i++)
+			{
+				batch[written++] = ring[(int) (head++ & mask)];
+			}
+		}
+		return written;
+	}
+
+	/**
+	 * @return Number of bytes skipped while looking for a start byte.
+	 */
+	public long getSkipped()
+	{
+		return skipped;
+	}
+
+	/**
+	 * @return Number of bytes lost because the ring was full.
+	 */
+	public long getOverflowed()
+	{
+		return overflowed;
+	}
+}
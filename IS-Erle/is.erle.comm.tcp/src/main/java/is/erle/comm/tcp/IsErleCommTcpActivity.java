@@ -0,0 +1,715 @@
+package is.erle.comm.tcp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.google.common.collect.Maps;
+
+import interactivespaces.activity.impl.ros.BaseRoutableRosActivity;
+import interactivespaces.util.concurrency.ManagedCommand;
+
+/**
+ * This activity takes care of the communication with drones, simulators and
+ * companion computers over TCP. It dials the configured addresses and
+ * redials them whenever they drop, and optionally accepts connections on a
+ * listening port. A single selector thread serves every connection with non
+ * blocking channels and direct buffers. Like the other comms activities it
+ * receives frames to send from the mavlink activity and publishes the frames
+ * received from the drones.
+ *
+ * @version %I%, %G%
+ * @since 1.0.0
+ */
+public class IsErleCommTcpActivity extends BaseRoutableRosActivity {
+
+	/**
+	 * The name of the config property for obtaining the publisher List.
+	 */
+	private static final String CONFIGURATION_PUBLISHER_NAME = "space.activity.routes.outputs";
+
+	/**
+	 * The name of the config property for obtaining the subscriber List.
+	 */
+	private static final String CONFIGURATION_SUBSCRIBER_NAME = "space.activity.routes.inputs";
+
+	/**
+	 * The name of the config property listing the addresses to dial, as comma
+	 * separated host:port pairs.
+	 */
+	private static final String CONFIGURATION_CONNECT = "space.comm.tcp.connect";
+
+	/**
+	 * The name of the config property for the port accepting connections, 0
+	 * to accept none.
+	 */
+	private static final String CONFIGURATION_LISTEN_PORT = "space.comm.tcp.listen.port";
+
+	/**
+	 * Longest wait of the selector, bounds the redial delay, in milliseconds.
+	 */
+	private static final long SELECT_TIMEOUT = 250;
+
+	/**
+	 * Size of a published batch in bytes.
+	 */
+	private static final int BATCH_SIZE = 4096;
+
+	/**
+	 * Period of the connection statistics published on the output topic in
+	 * seconds.
+	 */
+	private static final long STATS_PERIOD = 5;
+
+	/**
+	 * The topic names for publishing data.
+	 * <p>
+	 * PUBLISHER MAPPING
+	 * <p>
+	 * publishers[0] -> output
+	 * <p>
+	 * Topic Name : comms/tcp/output
+	 * <p>
+	 * Usage : Send output to the mavlink activity after receiving it from the drone.
+	 * <p>
+	 */
+	private String publishers[];
+
+	/**
+	 * The topic names for subscribing data.
+	 * <p>
+	 * SUBSCRIBER MAPPING
+	 * <p>
+	 * subscribers[0] -> input
+	 * <p>
+	 * Topic Name : comms/tcp/input
+	 * <p>
+	 * Usage : Receive data from mavlink activity and send it to the drone.
+	 * <p>
+	 */
+	private String subscribers[];
+
+	/**
+	 * Selector serving every channel.
+	 */
+	private Selector selector;
+
+	/**
+	 * Channel accepting connections, <code>null</code> if none are accepted.
+	 */
+	private ServerSocketChannel server;
+
+	/**
+	 * Connections dialled by this side, fixed at setup.
+	 */
+	private List<TcpConnection> dialled;
+
+	/**
+	 * Every dialled and accepted connection.
+	 */
+	private Set<TcpConnection> connections;
+
+	/**
+	 * Connection of every MAVLink system id, the one it was last seen on.
+	 */
+	private AtomicReferenceArray<TcpConnection> systemRoutes;
+
+	/**
+	 * Connections with newly queued frames, waiting for the selector thread to
+	 * watch them for writing.
+	 */
+	private ConcurrentLinkedQueue<TcpConnection> writeRequests;
+
+	/**
+	 * Whole frames of the current batch. Only used by the selector thread.
+	 */
+	private byte[] frameBatch;
+
+	/**
+	 * Formats a batch for publishing. Only used by the selector thread.
+	 */
+	private StringBuilder batchText;
+
+	/**
+	 * The selector thread.
+	 */
+	private ManagedCommand selectorThread;
+
+	/**
+	 * The thread publishing the connection counters.
+	 */
+	private ManagedCommand connectionStats;
+
+	/**
+	 * Executes on activity setup.
+	 *
+	 * @see interactivespaces.activity.impl.BaseActivity#onActivitySetup()
+	 * @since 1.0.0
+	 */
+	@Override
+	public void onActivitySetup()
+	{
+		getLog().info("Activity is.erle.comm.tcp setup");
+		publishers = getConfiguration().getRequiredPropertyString(CONFIGURATION_PUBLISHER_NAME).split(":");
+		subscribers = getConfiguration().getRequiredPropertyString(CONFIGURATION_SUBSCRIBER_NAME).split(":");
+		connections = Collections
+				.newSetFromMap(new ConcurrentHashMap<TcpConnection, Boolean>());
+		systemRoutes = new AtomicReferenceArray<TcpConnection>(256);
+		writeRequests = new ConcurrentLinkedQueue<TcpConnection>();
+		frameBatch = new byte[BATCH_SIZE];
+		batchText = new StringBuilder(BATCH_SIZE * 5);
+		dialled = new ArrayList<TcpConnection>();
+		String connect = getConfiguration().getPropertyString(
+				CONFIGURATION_CONNECT, "");
+		for (String peer : connect.split(","))
+		{
+			peer = peer.trim();
+			int colon = peer.lastIndexOf(':');
+			if (colon <= 0)
+			{
+				if (!peer.isEmpty())
+				{
+					getLog().error("Invalid TCP address " + peer + ", expected host:port");
+				}
+				continue;
+			}
+			TcpConnection connection = new TcpConnection(
+					InetSocketAddress.createUnresolved(peer.substring(0, colon),
+							Integer.parseInt(peer.substring(colon + 1))));
+			dialled.add(connection);
+			connections.add(connection);
+			getLog().info("TCP link to " + connection);
+		}
+		try
+		{
+			selector = Selector.open();
+			int port = getConfiguration().getPropertyInteger(
+					CONFIGURATION_LISTEN_PORT, 0);
+			if (port > 0)
+			{
+				server = ServerSocketChannel.open();
+				server.configureBlocking(false);
+				server.bind(new InetSocketAddress(port));
+				server.register(selector, SelectionKey.OP_ACCEPT);
+				getLog().info("Accepting TCP links on port " + port);
+			}
+		}
+		catch (IOException e)
+		{
+			getLog().error("Could not open the TCP selector", e);
+			return;
+		}
+		selectorThread = getManagedCommands().submit(new Runnable()
+		{
+
+			public void run()
+			{
+				runSelector();
+			}
+		});
+		connectionStats = getManagedCommands().scheduleAtFixedRate(new Runnable()
+		{
+
+			public void run()
+			{
+				publishConnectionStats();
+			}
+		}, STATS_PERIOD, STATS_PERIOD, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Serves every channel until the thread is cancelled: dials the links due
+	 * for it, watches the connections with queued frames for writing, then
+	 * handles the ready channels.
+	 */
+	private void runSelector()
+	{
+		try
+		{
+			while (!Thread.currentThread().isInterrupted())
+			{
+				long now = System.currentTimeMillis();
+				for (TcpConnection connection : dialled)
+				{
+					if (connection.isDialDue(now))
+					{
+						dial(connection);
+					}
+				}
+				TcpConnection pending;
+				while ((pending = writeRequests.poll()) != null)
+				{
+					SelectionKey key = pending.getKey();
+					if (key != null && key.isValid() && pending.isConnected())
+					{
+						key.interestOps(SelectionKey.OP_READ
+								| SelectionKey.OP_WRITE);
+					}
+				}
+				selector.select(SELECT_TIMEOUT);
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext())
+				{
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (key.isValid())
+					{
+						handleKey(key);
+					}
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			getLog().error("TCP selector failed", e);
+		}
+	}
+
+	/**
+	 * Starts dialling a link without waiting for the connection.
+	 *
+	 * @param connection
+	 *            The link to dial.
+	 */
+	private void dial(TcpConnection connection)
+	{
+		InetSocketAddress unresolved = connection.getAddress();
+		try
+		{
+			SocketChannel channel = SocketChannel.open();
+			connection.setChannel(channel);
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			if (channel.connect(new InetSocketAddress(unresolved
+					.getHostString(), unresolved.getPort())))
+			{
+				connection.setKey(channel.register(selector,
+						SelectionKey.OP_READ, connection));
+				connected(connection);
+			}
+			else
+			{
+				connection.setKey(channel.register(selector,
+						SelectionKey.OP_CONNECT, connection));
+			}
+		}
+		catch (IOException e)
+		{
+			getLog().debug("Could not dial " + connection + " : " + e);
+			connection.close(System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * Handles a ready channel. Any failure of a connection closes it.
+	 *
+	 * @param key
+	 *            Selection key of the channel.
+	 */
+	private void handleKey(SelectionKey key)
+	{
+		if (key.isAcceptable())
+		{
+			accept();
+			return;
+		}
+		TcpConnection connection = (TcpConnection) key.attachment();
+		try
+		{
+			if (key.isConnectable())
+			{
+				connection.getChannel().finishConnect();
+				key.interestOps(SelectionKey.OP_READ);
+				connected(connection);
+			}
+			if (key.isValid() && key.isReadable())
+			{
+				read(connection);
+			}
+			if (key.isValid() && key.isWritable() && connection.flush())
+			{
+				key.interestOps(SelectionKey.OP_READ);
+				if (connection.hasQueued())
+				{
+					writeRequests.add(connection);
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			drop(connection, e);
+		}
+	}
+
+	/**
+	 * Accepts a connection on the listening port.
+	 */
+	private void accept()
+	{
+		try
+		{
+			SocketChannel channel = server.accept();
+			if (channel == null)
+			{
+				return;
+			}
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			TcpConnection connection = new TcpConnection(channel);
+			connection.setKey(channel.register(selector, SelectionKey.OP_READ,
+					connection));
+			connections.add(connection);
+			getLog().info("Accepted TCP link from " + connection);
+		}
+		catch (IOException e)
+		{
+			getLog().error("Could not accept a TCP link", e);
+		}
+	}
+
+	/**
+	 * Records a completed dial.
+	 *
+	 * @param connection
+	 *            The connected link.
+	 */
+	private void connected(TcpConnection connection)
+	{
+		connection.connected();
+		getLog().info("TCP link to " + connection + " connected");
+	}
+
+	/**
+	 * Closes a failed connection. A dialled link is redialled after its
+	 * backoff, an accepted one is forgotten.
+	 *
+	 * @param connection
+	 *            The failed link.
+	 * @param e
+	 *            The failure.
+	 */
+	private void drop(TcpConnection connection, IOException e)
+	{
+		if (connection.isConnected())
+		{
+			getLog().info("TCP link " + connection + " lost : " + e);
+		}
+		else
+		{
+			getLog().debug("Could not connect TCP link " + connection + " : " + e);
+		}
+		connection.close(System.currentTimeMillis());
+		for (int i = 0; i < systemRoutes.length(); i++)
+		{
+			systemRoutes.compareAndSet(i, connection, null);
+		}
+		if (!connection.isOutgoing())
+		{
+			connections.remove(connection);
+		}
+	}
+
+	/**
+	 * Reads what the socket has, publishes every whole frame and keeps the
+	 * rest for the next read. TCP is a byte stream, a frame can be split
+	 * across reads.
+	 *
+	 * @param connection
+	 *            The readable link.
+	 * @throws IOException
+	 *             If the read fails or the peer has closed the link.
+	 */
+	private void read(TcpConnection connection) throws IOException
+	{
+		ByteBuffer buffer = connection.getReadBuffer();
+		int read = connection.getChannel().read(buffer);
+		if (read < 0)
+		{
+			throw new EOFException("closed by peer");
+		}
+		connection.received(read);
+		buffer.flip();
+		int batchLength = 0;
+		while (buffer.hasRemaining())
+		{
+			int start = buffer.position();
+			if ((buffer.get(start) & 0xFF) != MavlinkFrames.STX)
+			{
+				buffer.get();
+				continue;
+			}
+			if (buffer.remaining() < 2)
+			{
+				break;
+			}
+			int frameLength = (buffer.get(start + 1) & 0xFF)
+					+ MavlinkFrames.FRAME_OVERHEAD;
+			if (buffer.remaining() < frameLength)
+			{
+				break;
+			}
+			if (batchLength + frameLength > frameBatch.length)
+			{
+				publishBatch(connection, batchLength);
+				batchLength = 0;
+			}
+			buffer.get(frameBatch, batchLength, frameLength);
+			learn(connection, MavlinkFrames.systemId(frameBatch, batchLength));
+			batchLength += frameLength;
+		}
+		buffer.compact();
+		if (batchLength > 0)
+		{
+			publishBatch(connection, batchLength);
+		}
+	}
+
+	/**
+	 * Routes a system id to the connection it has been heard on.
+	 *
+	 * @param connection
+	 *            The link.
+	 * @param systemId
+	 *            Sender system id of a received frame.
+	 */
+	private void learn(TcpConnection connection, int systemId)
+	{
+		if (connection.learn(systemId))
+		{
+			systemRoutes.set(systemId, connection);
+			getLog().info("System ID " + systemId + " on TCP link "
+					+ connection);
+		}
+	}
+
+	/**
+	 * Publishes a batch of whole frames on the output topic in the
+	 * {@link java.util.Arrays#toString(byte[])} format expected by the
+	 * mavlink activity.
+	 *
+	 * @param connection
+	 *            The link the frames have been received on.
+	 * @param length
+	 *            Number of bytes of {@link #frameBatch} to publish.
+	 */
+	private void publishBatch(TcpConnection connection, int length)
+	{
+		batchText.setLength(0);
+		batchText.append('[');
+		for (int i = 0; i < length; i++)
+		{
+			if (i > 0)
+			{
+				batchText.append(", ");
+			}
+			batchText.append(frameBatch[i]);
+		}
+		batchText.append(']');
+		Map<String, Object> temp = Maps.newHashMap();
+		temp.put("comm", batchText.toString());
+		temp.put("session", connection.toString());
+		sendOutputJson(publishers[0], temp);
+	}
+
+	/**
+	 * Queues a frame on the connection of its target system. Frames for
+	 * system 0, for an unknown system or without a target go to every
+	 * connected link.
+	 *
+	 * @param frame
+	 *            MAVLink frame to send.
+	 */
+	private void route(byte[] frame)
+	{
+		int target = MavlinkFrames.targetSystem(frame, 0);
+		TcpConnection connection = target > 0 ? systemRoutes.get(target)
+				: null;
+		if (connection != null && connection.isConnected())
+		{
+			enqueue(connection, frame);
+			return;
+		}
+		for (TcpConnection each : connections)
+		{
+			if (each.isConnected())
+			{
+				enqueue(each, frame);
+			}
+		}
+	}
+
+	/**
+	 * Queues a frame on a connection and wakes the selector thread to write
+	 * it.
+	 *
+	 * @param connection
+	 *            Destination link.
+	 * @param frame
+	 *            MAVLink frame to send.
+	 */
+	private void enqueue(TcpConnection connection, byte[] frame)
+	{
+		if (!connection.offer(frame))
+		{
+			getLog().debug("Queue of TCP link " + connection + " full, dropping frame");
+			return;
+		}
+		writeRequests.add(connection);
+		selector.wakeup();
+	}
+
+	/**
+	 * Publishes the counters of every connection on the output topic.
+	 */
+	private void publishConnectionStats()
+	{
+		Map<String, Object> linkStats = Maps.newHashMap();
+		for (TcpConnection connection : connections)
+		{
+			linkStats.put(connection.toString(), connection.getStats());
+		}
+		Map<String, Object> statsMap = Maps.newHashMap();
+		statsMap.put("tcp_stats", linkStats);
+		sendOutputJson(publishers[0], statsMap);
+	}
+
+	/**
+	 * Executes on activity startup.
+	 *
+	 * @see interactivespaces.activity.impl.BaseActivity#onActivityStartup()
+	 * @since 1.0.0
+	 */
+	@Override
+	public void onActivityStartup() {
+		getLog().info("Activity is.erle.comm.tcp startup");
+	}
+
+	/**
+	 * Executes on activity post startup.
+	 *
+	 * @see interactivespaces.activity.impl.BaseActivity#onActivityPostStartup()
+	 * @since 1.0.0
+	 */
+	@Override
+	public void onActivityPostStartup() {
+		getLog().info("Activity is.erle.comm.tcp post startup");
+	}
+
+	/**
+	 * Executes on activity activate.
+	 *
+	 * @see interactivespaces.activity.impl.BaseActivity#onActivityActivate()
+	 * @since 1.0.0
+	 */
+	@Override
+	public void onActivityActivate() {
+		getLog().info("Activity is.erle.comm.tcp activate");
+	}
+
+	/**
+	 * Executes on activity deactivate.
+	 *
+	 * @see interactivespaces.activity.impl.BaseActivity#onActivityDeactivate()
+	 * @since 1.0.0
+	 */
+	@Override
+	public void onActivityDeactivate() {
+		getLog().info("Activity is.erle.comm.tcp deactivate");
+	}
+
+	/**
+	 * Executes on activity pre shutdown.
+	 *
+	 * @see interactivespaces.activity.impl.BaseActivity#onActivityPreShutdown()
+	 * @since 1.0.0
+	 */
+	@Override
+	public void onActivityPreShutdown() {
+		getLog().info("Activity is.erle.comm.tcp pre shutdown");
+		if (selectorThread != null)
+		{
+			selectorThread.cancel();
+		}
+		if (connectionStats != null)
+		{
+			connectionStats.cancel();
+		}
+	}
+
+	/**
+	 * Executes on activity shutdown.
+	 *
+	 * @see interactivespaces.activity.impl.BaseActivity#onActivityShutdown()
+	 * @since 1.0.0
+	 */
+	@Override
+	public void onActivityShutdown() {
+		getLog().info("Activity is.erle.comm.tcp shutdown");
+	}
+
+	/**
+	 * Executes on activity cleanup. Closes every channel and the selector.
+	 *
+	 * @see interactivespaces.activity.impl.BaseActivity#onActivityCleanup()
+	 * @since 1.0.0
+	 */
+	@Override
+	public void onActivityCleanup() {
+		getLog().info("Activity is.erle.comm.tcp cleanup");
+		long now = System.currentTimeMillis();
+		for (TcpConnection connection : connections)
+		{
+			connection.close(now);
+		}
+		try
+		{
+			if (server != null)
+			{
+				server.close();
+			}
+			if (selector != null)
+			{
+				selector.close();
+			}
+		}
+		catch (IOException e)
+		{
+			getLog().error("Could not close the TCP selector", e);
+		}
+	}
+
+	/**
+	 * Callback for new message on the subscribed topics.
+	 * Processes incoming messages.
+	 *
+	 * @param channelName 	Channel name of incoming message
+	 * @param message 		Message stored in a key-value pair in a map
+	 * @see 				interactivespaces.activity.impl.ros.BaseRoutableRosActivity
+	 * @see					java.util.Map
+	 * @since				1.0.0
+	 */
+	@Override
+	public void onNewInputJson(String channelName, Map<String, Object> message)
+	{
+		if (subscribers[0].equals(channelName) && message.containsKey("comm"))
+		{
+			route(MavlinkFrames.parseComm(message.get("comm").toString()));
+		}
+	}
+}
@@ -0,0 +1,430 @@
+package is.erle.comm.tcp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.Maps;
+
+/**
+ * One TCP link to a vehicle, either dialled out to a configured address and
+ * redialled whenever it drops, or accepted from a remote peer and forgotten
+ * once it closes.
+ * <p>
+ * The channel, its selection key and the two direct buffers belong to the
+ * selector thread. Other threads only queue outbound frames through
+ * {@link #offer(byte[])} and read the counters.
+ *
+ * @version %I%, %G%
+ * @since 1.0.0
+ */
+public class TcpConnection
+{
+	/**
+	 * Size of the direct read buffer, enough for several full frames.
+	 */
+	private static final int READ_BUFFER_SIZE = 16384;
+
+	/**
+	 * Size of the direct write buffer.
+	 */
+	private static final int WRITE_BUFFER_SIZE = 8192;
+
+	/**
+	 * Largest number of frames waiting to be written. Newer frames are
+	 * dropped beyond it, a stalled peer must not exhaust the memory.
+	 */
+	private static final int MAX_QUEUED = 512;
+
+	/**
+	 * First wait before redialling, in milliseconds.
+	 */
+	private static final long MIN_BACKOFF = 500;
+
+	/**
+	 * Longest wait before redialling, in milliseconds.
+	 */
+	private static final long MAX_BACKOFF = 10000;
+
+	/**
+	 * Address of the peer.
+	 */
+	private final InetSocketAddress address;
+
+	/**
+	 * True if this side dials the peer and redials it after a drop.
+	 */
+	private final boolean outgoing;
+
+	/**
+	 * Bytes read from the socket and not yet cut into frames.
+	 */
+	private final ByteBuffer readBuffer = ByteBuffer
+			.allocateDirect(READ_BUFFER_SIZE);
+
+	/**
+	 * Bytes waiting for the socket to accept them, in read mode.
+	 */
+	private final ByteBuffer writeBuffer = ByteBuffer
+			.allocateDirect(WRITE_BUFFER_SIZE);
+
+	/**
+	 * Frames queued by other threads.
+	 */
+	private final ConcurrentLinkedQueue<byte[]> outbound = new ConcurrentLinkedQueue<byte[]>();
+
+	/**
+	 * Number of frames in {@link #outbound}.
+	 */
+	private final AtomicInteger queued = new AtomicInteger();
+
+	/**
+	 * System ids seen on this link.
+	 */
+	private final BitSet systemIds = new BitSet(256);
+
+	/**
+	 * Open channel, <code>null</code> while disconnected.
+	 */
+	private SocketChannel channel;
+
+	/**
+	 * Selection key of the open channel.
+	 */
+	private SelectionKey key;
+
+	/**
+	 * Earliest time of the next dial in {@link System#currentTimeMillis()}
+	 * units.
+	 */
+	private long redialAt;
+
+	/**
+	 * Current wait before redialling, in milliseconds.
+	 */
+	private long backoff = MIN_BACKOFF;
+
+	/**
+	 * True while the channel is connected.
+	 */
+	private volatile boolean connected;
+
+	/**
+	 * Bytes received.
+	 */
+	private final AtomicLong rxBytes = new AtomicLong();
+
+	/**
+	 * Bytes sent.
+	 */
+	private final AtomicLong txBytes = new AtomicLong();
+
+	/**
+	 * Frames dropped because the queue was full.
+	 */
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * Number of successful connections.
+	 */
+	private final AtomicLong connects = new AtomicLong();
+
+	/**
+	 * Constructor to initialize a link dialled by this side.
+	 *
+	 * @param address
+	 *            Address to dial.
+	 */
+	public TcpConnection(InetSocketAddress address)
+	{
+		this.address = address;
+		this.outgoing = true;
+	}
+
+	/**
+	 * Constructor to initialize a link accepted from a peer.
+	 *
+	 * @param channel
+	 *            The accepted, connected channel.
+	 * @throws IOException
+	 *             If the remote address can not be read.
+	 */
+	public TcpConnection(SocketChannel channel) throws IOException
+	{
+		this.address = (InetSocketAddress) channel.getRemoteAddress();
+		this.outgoing = false;
+		this.channel = channel;
+		connected();
+	}
+
+	/**
+	 * @return Address of the peer.
+	 */
+	public InetSocketAddress getAddress()
+	{
+		return address;
+	}
+
+	/**
+	 * @return True if this side dials the peer.
+	 */
+	public boolean isOutgoing()
+	{
+		return outgoing;
+	}
+
+	/**
+	 * @return True while the channel is connected.
+	 */
+	public boolean isConnected()
+	{
+		return connected;
+	}
+
+	/**
+	 * @return The channel, <code>null</code> while disconnected.
+	 */
+	public SocketChannel getChannel()
+	{
+		return channel;
+	}
+
+	/**
+	 * @param channel
+	 *            The channel being dialled.
+	 */
+	public void setChannel(SocketChannel channel)
+	{
+		this.channel = channel;
+	}
+
+	/**
+	 * @return Selection key of the channel.
+	 */
+	public SelectionKey getKey()
+	{
+		return key;
+	}
+
+	/**
+	 * @param key
+	 *            Selection key of the channel.
+	 */
+	public void setKey(SelectionKey key)
+	{
+		this.key = key;
+	}
+
+	/**
+	 * @return Buffer the socket is read into.
+	 */
+	public ByteBuffer getReadBuffer()
+	{
+		return readBuffer;
+	}
+
+	/**
+	 * Checks whether an outgoing link is disconnected and its backoff is
+	 * over.
+	 *
+	 * @param now
+	 *            Current time in {@link System#currentTimeMillis()} units.
+	 * @return <code>true</code> if the link must be dialled now.
+	 */
+	public boolean isDialDue(long now)
+	{
+		return outgoing && channel == null && now >= redialAt;
+	}
+
+	/**
+	 * Records a completed connection and resets the backoff.
+	 */
+	public void connected()
+	{
+		connected = true;
+		backoff = MIN_BACKOFF;
+		connects.incrementAndGet();
+		readBuffer.clear();
+		writeBuffer.clear();
+		writeBuffer.flip();
+	}
+
+	/**
+	 * Closes the channel and, for an outgoing link, schedules the next dial
+	 * with a doubled backoff. Queued frames are discarded, they would be
+	 * stale by the time the link is back.
+	 *
+	 * @param now
+	 *            Current time in {@link System#currentTimeMillis()} units.
+	 */
+	public void close(long now)
+	{
+		connected = false;
+		if (key != null)
+		{
+			key.cancel();
+			key = null;
+		}
+		if (channel != null)
+		{
+			try
+			{
+				channel.close();
+			}
+			catch (IOException e)
+			{
+				// Already broken, nothing more to release.
+			}
+			channel = null;
+		}
+		while (outbound.poll() != null)
+		{
+			queued.decrementAndGet();
+		}
+		redialAt = now + backoff;
+		backoff = Math.min(MAX_BACKOFF, backoff * 2);
+		synchronized (systemIds)
+		{
+			systemIds.clear();
+		}
+	}
+
+	/**
+	 * Queues a frame to be written. Never blocks.
+	 *
+	 * @param frame
+	 *            MAVLink frame.
+	 * @return <code>false</code> if the queue is full or the frame is longer
+	 *         than the write buffer and it has been dropped.
+	 */
+	public boolean offer(byte[] frame)
+	{
+		if (frame.length > WRITE_BUFFER_SIZE)
+		{
+			dropped.incrementAndGet();
+			return false;
+		}
+		if (queued.incrementAndGet() > MAX_QUEUED)
+		{
+			queued.decrementAndGet();
+			dropped.incrementAndGet();
+			return false;
+		}
+		outbound.add(frame);
+		return true;
+	}
+
+	/**
+	 * Writes as many queued bytes as the socket accepts.
+	 *
+	 * @return <code>true</code> if everything has been written,
+	 *         <code>false</code> if bytes are still waiting for the socket.
+	 * @throws IOException
+	 *             If the write fails.
+	 */
+	public boolean flush() throws IOException
+	{
+		while (true)
+		{
+			if (!writeBuffer.hasRemaining())
+			{
+				writeBuffer.clear();
+				byte[] frame;
+				while ((frame = outbound.peek()) != null
+						&& frame.length <= writeBuffer.remaining())
+				{
+					outbound.poll();
+					queued.decrementAndGet();
+					writeBuffer.put(frame);
+				}
+				writeBuffer.flip();
+				if (!writeBuffer.hasRemaining())
+				{
+					return true;
+				}
+			}
+			int written = channel.write(writeBuffer);
+			txBytes.addAndGet(written);
+			if (writeBuffer.hasRemaining())
+			{
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if frames are queued.
+	 */
+	public boolean hasQueued()
+	{
+		return queued.get() > 0;
+	}
+
+	/**
+	 * Records received bytes.
+	 *
+	 * @param bytes
+	 *            Number of bytes received.
+	 */
+	public void received(int bytes)
+	{
+		rxBytes.addAndGet(bytes);
+	}
+
+	/**
+	 * Learns the system id of a received frame.
+	 *
+	 * @param systemId
+	 *            Sender system id.
+	 * @return <code>true</code> if it is seen for the first time on this
+	 *         connection.
+	 */
+	public boolean learn(int systemId)
+	{
+		synchronized (systemIds)
+		{
+			if (systemIds.get(systemId))
+			{
+				return false;
+			}
+			systemIds.set(systemId);
+			return true;
+		}
+	}
+
+	/**
+	 * Gets the counters of the link.
+	 *
+	 * @return Map holding the connection state, the system ids and the
+	 *         traffic counters.
+	 */
+	public Map<String, Object> getStats()
+	{
+		Map<String, Object> stats = Maps.newHashMap();
+		stats.put("connected", connected);
+		stats.put("outgoing", outgoing);
+		synchronized (systemIds)
+		{
+			stats.put("systems", systemIds.toString());
+		}
+		stats.put("rx_bytes", rxBytes.get());
+		stats.put("tx_bytes", txBytes.get());
+		stats.put("queued", queued.get());
+		stats.put("dropped", dropped.get());
+		stats.put("connects", connects.get());
+		return stats;
+	}
+
+	@Override
+	public String toString()
+	{
+		return address.getHostString() + ":" + address.getPort();
+	}
+}
@@ -3,9 +3,14 @@ package is.erle.comms;
 import java.net.InetSocketAddress;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
-import java.util.Queue;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import com.google.common.collect.Maps;
 
@@ -17,6 +22,7 @@ import interactivespaces.service.comm.network.server.UdpServerNetworkCommunicati
 import interactivespaces.service.comm.network.server.UdpServerNetworkCommunicationEndpointListener;
 import interactivespaces.service.comm.network.server.UdpServerNetworkCommunicationEndpointService;
 import interactivespaces.service.comm.network.server.UdpServerRequest;
+import interactivespaces.util.concurrency.ManagedCommand;
 
 /**
  * This is the communication layer of the project. It will receive data to send
@@ -39,6 +45,71 @@ public class IsErleCommsActivity extends BaseRoutableRosActivity {
 	 */
 	private static final String CONFIGURATION_SERVER_PORT = "space.comm.udp.server.port";
 	
+	/**
+	 * The name of the config property selecting the uplink mode, either
+	 * {@link #UPLINK_IMMEDIATE} or {@link #UPLINK_PIGGYBACK}.
+	 */
+	private static final String CONFIGURATION_UPLINK_MODE = "space.comm.udp.uplink.mode";
+	
+	/**
+	 * Uplink mode sending every frame as soon as it arrives from the mavlink
+	 * activity to the last known drone address.
+	 */
+	private static final String UPLINK_IMMEDIATE = "immediate";
+	
+	/**
+	 * Uplink mode sending the queued frames as response to the next datagram
+	 * of the drone.
+	 */
+	private static final String UPLINK_PIGGYBACK = "piggyback";
+	
+	/**
+	 * Period of the uplink statistics published on the output topic in
+	 * seconds.
+	 */
+	private static final long UPLINK_STATS_PERIOD = 5;
+	
+	/**
+	 * Period of the traffic rates published on the stats topic in seconds.
+	 */
+	private static final long TRAFFIC_STATS_PERIOD = 1;
+	
+	/**
+	 * Silence after which a session is closed in seconds.
+	 */
+	private static final long SESSION_TIMEOUT = 60;
+	
+	/**
+	 * The name of the config property for the largest uplink datagram in
+	 * bytes.
+	 */
+	private static final String CONFIGURATION_UPLINK_MTU = "space.comm.udp.uplink.mtu";
+	
+	/**
+	 * The name of the config property for the longest time in milliseconds a
+	 * frame may wait for others to share its datagram. 0 disables
+	 * coalescing.
+	 */
+	private static final String CONFIGURATION_UPLINK_COALESCE_DELAY = "space.comm.udp.uplink.coalesce.delay";
+	
+	/**
+	 * Default largest datagram built by the uplink writer. Frames waiting
+	 * together are concatenated up to this size.
+	 */
+	private static final int UPLINK_MAX_DATAGRAM = 1400;
+	
+	/**
+	 * Largest MAVLink v1 frame, the smallest acceptable MTU.
+	 */
+	private static final int MAX_FRAME = 255 + MavlinkFrames.FRAME_OVERHEAD;
+	
+	/**
+	 * Time within which an identical frame queued again for the same session
+	 * is dropped while coalescing, in milliseconds. The mavlink activity
+	 * sends several requests twice in a row, genuine retries come much later.
+	 */
+	private static final long DUPLICATE_WINDOW = 100;
+	
 	/**
 	 * The name of the config property for obtaining the publisher List.
 	 */
@@ -60,8 +131,14 @@ public class IsErleCommsActivity extends BaseRoutableRosActivity {
 	 * <p>
 	 * Usage : Send output to the mavlink activity after receiving it from the drone.
 	 * <p>
+	 * publishers[1] -> stats
+	 * <p> 
+	 * Topic Name : comms/stats
+	 * <p>
+	 * Usage : Send the traffic rates and queue depths of every session once per second.
+	 * <p>
 	 */
-	private static String publishers[];
+	private String publishers[];
 
 	/**
 	 * The topic names for subscribing data.
@@ -75,46 +152,41 @@ public class IsErleCommsActivity extends BaseRoutableRosActivity {
 	 * Usage : Receive data from mavlink activity and send it to the drone.
 	 * <p>
 	 */
-	private static String subscribers[];
+	private String subscribers[];
 	
 	/**
-	 * A counter to count the the number of calls sendOutputJson calls.
+	 * A counter to count the the number of datagrams published for the
+	 * mavlink activity.
 	 */
-	@SuppressWarnings("unused")
-	private static long jsonOutputCounter = 0;
+	private final AtomicLong jsonOutputCounter = new AtomicLong();
 	
 	/**
 	 * A counter to count the the number of calls onNewInputJson calls.
 	 */
-	@SuppressWarnings("unused")
-	private static long jsonInputCounter = 0 ;
-	
-	/**
-	 * Stores the address of the drone to send data to.
-	 */
-	@SuppressWarnings("unused")
-	private InetSocketAddress udpDroneAddress;
+	private final AtomicLong jsonInputCounter = new AtomicLong();
 	
 	/**
-	 * A flag to check whether any drone has sent data or not.
+	 * An instance of UdpServer to receive and send messages to the drone.
 	 */
-	private static boolean droneAddressFlag;
+	private UdpServerNetworkCommunicationEndpoint udpDroneServer ;
 	
 	/**
-	 * A flag to check when to send data to the drone.
+	 * Sessions of the remote endpoints by source address. Each session queues
+	 * the data received from the mavlink activity for its endpoint until it
+	 * is sent, either by the {@link #uplinkWriter} or as response after the
+	 * udp request.
 	 */
-	private static boolean sendFlag;
+	private ConcurrentHashMap<InetSocketAddress, UdpSession> sessions;
 	
 	/**
-	 * An instance of UdpServer to receive and send messages to the drone.
+	 * Session of every MAVLink system id, the endpoint it was last seen on.
 	 */
-	private UdpServerNetworkCommunicationEndpoint udpDroneServer ;
+	private AtomicReferenceArray<UdpSession> systemRoutes;
 	
 	/**
-	 * Stores the data received from the mavlink activity as a FIFO queue and
-	 * sent to the drone as response after the udp request.
+	 * Sessions with queued frames waiting for the {@link #uplinkWriter}.
 	 */
-	private Queue<byte []> responseGlobal;
+	private BlockingQueue<UdpSession> readySessions;
 	
 	/**
 	 * An Udp Clinet instance.
@@ -126,6 +198,38 @@ public class IsErleCommsActivity extends BaseRoutableRosActivity {
 	 */
 	@SuppressWarnings("unused")
 	private Date start;
+	
+	/**
+	 * True if frames are sent immediately by the {@link #uplinkWriter},
+	 * false to piggyback them on the drone requests.
+	 */
+	private boolean immediateUplink;
+	
+	/**
+	 * Largest uplink datagram in bytes.
+	 */
+	private int uplinkMtu;
+	
+	/**
+	 * Longest wait of a frame for others to share its datagram in
+	 * nanoseconds, 0 if coalescing is disabled.
+	 */
+	private long coalesceDelay;
+	
+	/**
+	 * The thread writing the immediate uplink datagrams.
+	 */
+	private ManagedCommand uplinkWriter;
+	
+	/**
+	 * The thread publishing the uplink lane counters.
+	 */
+	private ManagedCommand uplinkStats;
+	
+	/**
+	 * The thread publishing the traffic rates.
+	 */
+	private ManagedCommand trafficStats;
 	 
 	/**
 	 * Executes on activity setup.
@@ -139,9 +243,21 @@ public class IsErleCommsActivity extends BaseRoutableRosActivity {
 		getLog().info("Activity is.erle.comms setup");
         publishers = getConfiguration().getRequiredPropertyString(CONFIGURATION_PUBLISHER_NAME).split(":");
         subscribers = getConfiguration().getRequiredPropertyString(CONFIGURATION_SUBSCRIBER_NAME).split(":");
-		droneAddressFlag = false;
-		sendFlag = false;
-		responseGlobal = new ArrayBlockingQueue<byte[]>(20);
+		sessions = new ConcurrentHashMap<InetSocketAddress, UdpSession>();
+		systemRoutes = new AtomicReferenceArray<UdpSession>(256);
+		readySessions = new LinkedBlockingQueue<UdpSession>();
+		String uplinkMode = getConfiguration().getPropertyString(
+				CONFIGURATION_UPLINK_MODE, UPLINK_IMMEDIATE);
+		immediateUplink = !UPLINK_PIGGYBACK.equals(uplinkMode);
+		getLog().info("UDP uplink mode : "
+				+ (immediateUplink ? UPLINK_IMMEDIATE : UPLINK_PIGGYBACK));
+		uplinkMtu = Math.max(MAX_FRAME, getConfiguration().getPropertyInteger(
+				CONFIGURATION_UPLINK_MTU, UPLINK_MAX_DATAGRAM));
+		coalesceDelay = TimeUnit.MILLISECONDS.toNanos(Math.max(0,
+				getConfiguration().getPropertyInteger(
+						CONFIGURATION_UPLINK_COALESCE_DELAY, 0)));
+		getLog().info("UDP uplink MTU : " + uplinkMtu + ", coalesce delay : "
+				+ TimeUnit.NANOSECONDS.toMillis(coalesceDelay) + " ms");
 		start = new Date();
 		UdpServerNetworkCommunicationEndpointService udpServerService = getSpaceEnvironment()
 				.getServiceRegistry()
@@ -158,33 +274,16 @@ public class IsErleCommsActivity extends BaseRoutableRosActivity {
 							UdpServerNetworkCommunicationEndpoint server,
 							UdpServerRequest req)
 					{
-						handleUdpDroneServerResponse(req.getRequest(), server);
-						// getLog().info(req.getRemoteAddress()
-						// +Arrays.toString(req.getRequest()));
-						// req.writeResponse("Server recieved your message and is replying".getBytes());
-						// getLog().info(udpDroneAddress+"  " +
-						// droneAddressFlag);
-						if (!droneAddressFlag)
-						{
-							// udpDroneAddress = req.getRemoteAddress();
-							udpDroneAddress = new InetSocketAddress(req
-									.getRemoteAddress().getHostString(), port);
-							//req.writeResponse("sh /etc/init.d/rc.usb"
-							//		.getBytes());
-							droneAddressFlag = true;
-						}
-						if (sendFlag)
+						UdpSession session = receive(req.getRequest(),
+								req.getRemoteAddress());
+						if (!immediateUplink)
 						{
-							//req.writeResponse(responseGlobal);
-							synchronized (this)
+							byte[] temp = session.getOutbound().poll();
+							while (temp != null)
 							{
-								byte [] temp = responseGlobal.poll();
-								while (temp!=null)
-								{
-									req.writeResponse(temp);
-									temp=responseGlobal.poll();
-								}
-								sendFlag = false;
+								req.writeResponse(temp);
+								session.sent(temp.length, 1);
+								temp = session.getOutbound().poll();
 							}
 						}
 					}
@@ -198,10 +297,265 @@ public class IsErleCommsActivity extends BaseRoutableRosActivity {
 			public void onUdpResponse(UdpClientNetworkCommunicationEndpoint client,
 					byte[] data, InetSocketAddress address) {
 				handleUdpDroneClientResponse(data, address);
-				getLog().info("In client");
 			}
 		});
         addManagedResource(udpClient);
+        
+		if (immediateUplink)
+		{
+			uplinkWriter = getManagedCommands().submit(new Runnable()
+			{
+
+				public void run()
+				{
+					writeUplink();
+				}
+			});
+		}
+		uplinkStats = getManagedCommands().scheduleAtFixedRate(new Runnable()
+		{
+
+			public void run()
+			{
+				publishSessionStats();
+			}
+		}, UPLINK_STATS_PERIOD, UPLINK_STATS_PERIOD, TimeUnit.SECONDS);
+		trafficStats = getManagedCommands().scheduleAtFixedRate(new Runnable()
+		{
+
+			public void run()
+			{
+				publishTrafficStats();
+			}
+		}, TRAFFIC_STATS_PERIOD, TRAFFIC_STATS_PERIOD, TimeUnit.SECONDS);
+	}
+	
+	/**
+	 * Finds or creates the session of a remote endpoint, records the datagram
+	 * and publishes it for the mavlink activity.
+	 * 
+	 * @param data
+	 *            The datagram.
+	 * @param address
+	 *            Source address of the datagram.
+	 * @return The session of the endpoint.
+	 */
+	private UdpSession receive(byte[] data, InetSocketAddress address)
+	{
+		UdpSession session = sessions.get(address);
+		if (session == null)
+		{
+			UdpSession created = new UdpSession(address);
+			session = sessions.putIfAbsent(address, created);
+			if (session == null)
+			{
+				session = created;
+				getLog().info("New UDP session " + session);
+			}
+		}
+		List<Integer> learned = session.received(data);
+		if (learned != null)
+		{
+			for (int systemId : learned)
+			{
+				UdpSession previous = systemRoutes.getAndSet(systemId, session);
+				if (previous != null && previous != session)
+				{
+					previous.forget(systemId);
+				}
+				getLog().info("System ID " + systemId + " on UDP session "
+						+ session);
+			}
+		}
+		Map<String, Object> temp = Maps.newHashMap();
+		temp.put("comm", Arrays.toString(data));
+		temp.put("session", session.toString());
+		sendOutputJson(publishers[0], temp);
+		jsonOutputCounter.incrementAndGet();
+		return session;
+	}
+	
+	/**
+	 * Queues a frame from the mavlink activity in the session of its target
+	 * system. Frames for system 0, for an unknown system or without a target
+	 * go to every session.
+	 * 
+	 * @param frame
+	 *            MAVLink frame to send.
+	 */
+	private void route(byte[] frame)
+	{
+		if (frame.length > uplinkMtu)
+		{
+			getLog().warn("Frame of " + frame.length + " bytes too long, dropping");
+			return;
+		}
+		int target = MavlinkFrames.targetSystem(frame, 0);
+		UdpSession session = target > 0 ? systemRoutes.get(target) : null;
+		if (session != null)
+		{
+			enqueue(session, frame);
+			return;
+		}
+		for (UdpSession each : sessions.values())
+		{
+			enqueue(each, frame);
+		}
+	}
+	
+	/**
+	 * Queues a frame in a session and hands the session to the
+	 * {@link #uplinkWriter}.
+	 * 
+	 * @param session
+	 *            Destination session.
+	 * @param frame
+	 *            MAVLink frame to send.
+	 */
+	private void enqueue(UdpSession session, byte[] frame)
+	{
+		if (coalesceDelay > 0
+				&& session.isRepeat(frame,
+						TimeUnit.MILLISECONDS.toNanos(DUPLICATE_WINDOW)))
+		{
+			return;
+		}
+		if (!session.getOutbound().offer(frame))
+		{
+			getLog().debug("Bulk lane of " + session + " full, dropping frame");
+		}
+		if (immediateUplink && session.schedule())
+		{
+			readySessions.add(session);
+		}
+	}
+	
+	/**
+	 * Sends the queued uplink frames until the thread is cancelled. Every
+	 * frame of a session already waiting when the writer picks it up goes
+	 * into the same datagram in lane priority order, MAVLink receivers parse
+	 * several frames per datagram. With a coalesce delay the writer also
+	 * waits up to that delay for more frames, unless the datagram is full or
+	 * holds a critical frame. Sessions are served in the order their first
+	 * frame arrived, a busy session is queued again behind the others.
+	 */
+	private void writeUplink()
+	{
+		byte[] datagram = new byte[uplinkMtu];
+		try
+		{
+			while (!Thread.currentThread().isInterrupted())
+			{
+				UdpSession session = readySessions.take();
+				session.unschedule();
+				OutboundScheduler outbound = session.getOutbound();
+				long deadline = System.nanoTime() + coalesceDelay;
+				boolean critical = false;
+				int length = 0;
+				int frames = 0;
+				byte[] frame;
+				while (true)
+				{
+					frame = outbound.pollIfFits(datagram.length - length);
+					if (frame == null && coalesceDelay > 0 && !critical
+							&& datagram.length - length >= MavlinkFrames.FRAME_OVERHEAD)
+					{
+						frame = outbound.pollIfFits(datagram.length - length,
+								deadline - System.nanoTime(),
+								TimeUnit.NANOSECONDS);
+					}
+					if (frame == null)
+					{
+						break;
+					}
+					System.arraycopy(frame, 0, datagram, length, frame.length);
+					length += frame.length;
+					frames++;
+					critical |= OutboundScheduler.laneOf(frame).isCritical();
+				}
+				if (length > 0)
+				{
+					send(session, Arrays.copyOf(datagram, length), frames);
+				}
+				if (!outbound.isEmpty() && session.schedule())
+				{
+					readySessions.add(session);
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Writes one datagram to a session through the {@link #udpClient}.
+	 * 
+	 * @param session
+	 *            Destination session.
+	 * @param data
+	 *            Datagram to send.
+	 * @param frames
+	 *            Number of frames in the datagram.
+	 */
+	private void send(UdpSession session, byte[] data, int frames)
+	{
+		try
+		{
+			udpClient.write(session.getAddress(), data);
+			session.sent(data.length, frames);
+		}
+		catch (Exception e)
+		{
+			getLog().error("Could not send data to " + session, e);
+		}
+	}
+	
+	/**
+	 * Closes the sessions silent for {@link #SESSION_TIMEOUT} and publishes the
+	 * counters of the remaining ones on the output topic.
+	 */
+	private void publishSessionStats()
+	{
+		long now = System.nanoTime();
+		Map<String, Object> sessionStats = Maps.newHashMap();
+		for (UdpSession session : sessions.values())
+		{
+			if (now - session.getLastSeen() > TimeUnit.SECONDS
+					.toNanos(SESSION_TIMEOUT))
+			{
+				sessions.remove(session.getAddress(), session);
+				for (int i = 0; i < systemRoutes.length(); i++)
+				{
+					systemRoutes.compareAndSet(i, session, null);
+				}
+				getLog().info("UDP session " + session + " timed out");
+				continue;
+			}
+			sessionStats.put(session.toString(), session.getStats());
+		}
+		Map<String, Object> statsMap = Maps.newHashMap();
+		statsMap.put("uplink_stats", sessionStats);
+		sendOutputJson(publishers[0], statsMap);
+	}
+
+	/**
+	 * Publishes the traffic rates and queue depth of every session and the
+	 * message counters of the activity on the stats topic.
+	 */
+	private void publishTrafficStats()
+	{
+		Map<String, Object> sessionRates = Maps.newHashMap();
+		for (UdpSession session : sessions.values())
+		{
+			sessionRates.put(session.toString(), session.sampleRates());
+		}
+		Map<String, Object> statsMap = Maps.newHashMap();
+		statsMap.put("sessions", sessionRates);
+		statsMap.put("json_in", jsonInputCounter.get());
+		statsMap.put("json_out", jsonOutputCounter.get());
+		sendOutputJson(publishers[1], statsMap);
 	}
 
 	/**
@@ -235,8 +589,7 @@ public class IsErleCommsActivity extends BaseRoutableRosActivity {
     @Override
     public void onActivityActivate() {
         getLog().info("Activity is.erle.comms activate");
-        jsonOutputCounter = 0;
-        udpDroneAddress = new InetSocketAddress("192.168.7.2", 6000);
+        jsonOutputCounter.set(0);
 //        Map<String,Object> temp=Maps.newHashMap();
 //        temp.put(Long.toString(jsonOutputCounter++), "ACTIVATE");
 //        sendOutputJson("output", temp);
@@ -266,6 +619,12 @@ public class IsErleCommsActivity extends BaseRoutableRosActivity {
     @Override
     public void onActivityPreShutdown() {
         getLog().info("Activity is.erle.comms pre shutdown");
+		if (uplinkWriter != null)
+		{
+			uplinkWriter.cancel();
+		}
+		uplinkStats.cancel();
+		trafficStats.cancel();
     }
 
 	/**
@@ -307,44 +666,15 @@ public class IsErleCommsActivity extends BaseRoutableRosActivity {
 		{
 			getLog().debug("Sending to drone");
 			getLog().debug(message.get("comm").toString());
-			byte[] response;
-			String items[] = message.get("comm").toString()
-					.replaceAll("\\[", "").replaceAll("\\]", "")
-					.replaceAll(" ", "").split(",");
-			int lenItems = items.length;
-			response = new byte[lenItems];
-			for (int i = 0; i < lenItems; i++)
+			if (!sessions.isEmpty())
 			{
-				try
-				{
-					response[i] = Byte.parseByte(items[i]);
-				}
-				catch (NumberFormatException e)
-				{
-					getLog().error(e);
-				}
-
-			}
-			if (droneAddressFlag)
-			{
-				/*
-				 * if ((System.currentTimeMillis()-start.getTime()) <1000) {
-				 * udpClient.write(udpDroneAddress, response); } else {
-				 */
-				synchronized (this)
-				{
-					responseGlobal.add(response);
-					sendFlag = true;
-
-				}
-				// }
-
+				route(MavlinkFrames.parseComm(message.get("comm").toString()));
 			}
 			else
 			{
 				getLog().info("No Drones connected now");
 			}
-			jsonInputCounter++; // Take care of this variable
+			jsonInputCounter.incrementAndGet();
 		}
 	}
 
@@ -358,25 +688,6 @@ public class IsErleCommsActivity extends BaseRoutableRosActivity {
 	 */
     protected void handleUdpDroneClientResponse(byte[] response,
 			InetSocketAddress address) {
-        Map<String,Object> temp=Maps.newHashMap();
-        temp.put("comm", Arrays.toString(response));
-        sendOutputJson(publishers[0], temp);
-		
-	}
-    
-    /**
-     * Handle the UDP request that has come in.
-     * 
-     * @param response 	Response from the drone.
-     * @param address	Address of the server.
-     * @see				interactivespaces.service.comm.network.server.UdpServerNetworkCommunicationEndpoint
-	 * @since			1.0.0
-     */
-    protected void handleUdpDroneServerResponse(byte[] response,
-    		UdpServerNetworkCommunicationEndpoint address) {
-        Map<String,Object> temp=Maps.newHashMap();
-        temp.put("comm", Arrays.toString(response));
-        sendOutputJson(publishers[0], temp);
-		
+        receive(response, address);
 	}
 }
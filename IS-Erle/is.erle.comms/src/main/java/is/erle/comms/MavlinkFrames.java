@@ -0,0 +1,165 @@
+package is.erle.comms;
+
+import java.util.Arrays;
+
+/**
+ * Helpers reading the header and the target fields of raw MAVLink v1 frames
+ * without decoding them, and the bytes of the text form used on the comms
+ * topics.
+ * <p>
+ * The UDP and TCP transports each carry an identical copy of this class, as
+ * activities are deployed as separate bundles and only share the jars of the
+ * controller bootstrap folder. Keep both copies in step.
+ *
+ * @version %I%, %G%
+ * @since 1.0.0
+ */
+public final class MavlinkFrames
+{
+	/**
+	 * MAVLink v1 start of frame.
+	 */
+	public static final int STX = 0xFE;
+
+	/**
+	 * Header and checksum bytes around the payload.
+	 */
+	public static final int FRAME_OVERHEAD = 8;
+
+	/**
+	 * Length of the header in front of the payload.
+	 */
+	private static final int HEADER_LENGTH = 6;
+
+	/**
+	 * Offset of the target_system field in the payload of every message id, -1
+	 * for messages without a target.
+	 */
+	private static final int[] TARGET_SYSTEM_OFFSET = new int[256];
+
+	static
+	{
+		for (int i = 0; i < TARGET_SYSTEM_OFFSET.length; i++)
+		{
+			TARGET_SYSTEM_OFFSET[i] = -1;
+		}
+		// message id, offset of target_system in the wire payload
+		int[][] offsets = { { 11, 4 }, { 20, 2 }, { 21, 0 }, { 23, 4 },
+				{ 39, 32 }, { 40, 2 }, { 41, 2 }, { 43, 0 }, { 44, 2 },
+				{ 45, 0 }, { 47, 0 }, { 48, 12 }, { 54, 24 }, { 66, 2 },
+				{ 69, 10 }, { 70, 16 }, { 73, 32 }, { 75, 30 }, { 76, 30 }, { 117, 4 },
+				{ 119, 10 }, { 121, 0 }, { 122, 0 }, { 123, 0 } };
+		for (int[] offset : offsets)
+		{
+			TARGET_SYSTEM_OFFSET[offset[0]] = offset[1];
+		}
+	}
+
+	/**
+	 * No instances.
+	 */
+	private MavlinkFrames()
+	{
+	}
+
+	/**
+	 * Reads the bytes of a comms message in one pass over its text.
+	 *
+	 * @param comm
+	 *            Bytes formatted as by {@link java.util.Arrays#toString(byte[])}.
+	 * @return The bytes, in order.
+	 */
+	public static byte[] parseComm(String comm)
+	{
+		int size = comm.length();
+		byte[] bytes = new byte[size / 2 + 1];
+		int length = 0;
+		int value = 0;
+		boolean negative = false;
+		boolean inNumber = false;
+		for (int i = 0; i <= size; i++)
+		{
+			char c = i < size ? comm.charAt(i) : ',';
+			if (c >= '0' && c <= '9')
+			{
+				value = value * 10 + (c - '0');
+				inNumber = true;
+			}
+			else if (c == '-')
+			{
+				negative = true;
+			}
+			else if (c == ',' || c == ']')
+			{
+				if (inNumber)
+				{
+					bytes[length++] = (byte) (negative ? -value : value);
+				}
+				value = 0;
+				negative = false;
+				inNumber = false;
+			}
+		}
+		return length == bytes.length ? bytes : Arrays.copyOf(bytes, length);
+	}
+
+	/**
+	 * Gets the length of the frame starting at an offset.
+	 *
+	 * @param data
+	 *            Bytes holding the frame.
+	 * @param offset
+	 *            Offset of the start byte.
+	 * @return Length of the whole frame, -1 if there is no start byte at the
+	 *         offset or the frame is truncated.
+	 */
+	public static int frameLength(byte[] data, int offset)
+	{
+		if (offset + 1 >= data.length || (data[offset] & 0xFF) != STX)
+		{
+			return -1;
+		}
+		int length = (data[offset + 1] & 0xFF) + FRAME_OVERHEAD;
+		return offset + length <= data.length ? length : -1;
+	}
+
+	/**
+	 * Gets the sender system id of a frame.
+	 *
+	 * @param data
+	 *            Bytes holding the frame.
+	 * @param offset
+	 *            Offset of the start byte.
+	 * @return System id of the sender.
+	 */
+	public static int systemId(byte[] data, int offset)
+	{
+		return data[offset + 3] & 0xFF;
+	}
+
+	/**
+	 * Gets the target system of a frame.
+	 *
+	 * @param data
+	 *            Bytes holding a complete frame.
+	 * @param offset
+	 *            Offset of the start byte.
+	 * @return Target system id, 0 for a broadcast, -1 if the message has no
+	 *         target or the frame is incomplete.
+	 */
+	public static int targetSystem(byte[] data, int offset)
+	{
+		int length = frameLength(data, offset);
+		if (length < 0)
+		{
+			return -1;
+		}
+		int fieldOffset = TARGET_SYSTEM_OFFSET[data[offset + 5] & 0xFF];
+		if (fieldOffset < 0
+				|| fieldOffset >= length - FRAME_OVERHEAD)
+		{
+			return -1;
+		}
+		return data[offset + HEADER_LENGTH + fieldOffset] & 0xFF;
+	}
+}
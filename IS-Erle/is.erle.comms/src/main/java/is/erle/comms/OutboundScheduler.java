@@ -0,0 +1,586 @@
+package is.erle.comms;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Bounded outbound frame queue with strict priority lanes.
+ * <p>
+ * Every MAVLink frame is put in a lane by its message id. Frames are always
+ * taken from the highest priority lane holding one, so an arm command or a
+ * stick input never waits behind a mission upload. Each lane has its own
+ * policy: mode changes and commands are never dropped, the control lane only
+ * keeps the latest RC override and manual control frame of every target, as
+ * a stale stick input is worth less than the new one, the interactive lane
+ * drops its oldest frame and the bulk lane rejects new frames and lets the
+ * mission, parameter and log protocols retry them. A burst of stick inputs
+ * therefore never evicts a command. The scheduler never throws on a full
+ * lane.
+ *
+ * @version %I%, %G%
+ * @since 1.0.0
+ */
+public class OutboundScheduler
+{
+	/**
+	 * Priority lanes, highest priority first.
+	 */
+	public enum Lane
+	{
+		/**
+		 * Mode changes and commands such as arm and disarm, never dropped.
+		 */
+		COMMAND(16, Policy.KEEP_ALL),
+
+		/**
+		 * RC override and manual control, the latest frame of every target.
+		 */
+		CONTROL(8, Policy.LATEST_PER_TARGET),
+
+		/**
+		 * Single requests of the operator and the other activities.
+		 */
+		INTERACTIVE(64, Policy.DROP_OLDEST),
+
+		/**
+		 * Mission, parameter and log transfers.
+		 */
+		BULK(128, Policy.REJECT_NEW);
+
+		/**
+		 * Capacity of the lane in frames. Only the initial size of the
+		 * command and control lanes, which never drop on size.
+		 */
+		private final int capacity;
+
+		/**
+		 * What the lane does with a frame it can not simply queue.
+		 */
+		private final Policy policy;
+
+		/**
+		 * Constructor to initialize the lane.
+		 *
+		 * @param capacity
+		 *            Capacity in frames.
+		 * @param policy
+		 *            Drop policy of the lane.
+		 */
+		private Lane(int capacity, Policy policy)
+		{
+			this.capacity = capacity;
+			this.policy = policy;
+		}
+
+		/**
+		 * Checks whether the frames of the lane must leave at once rather than
+		 * wait to be coalesced with others.
+		 *
+		 * @return <code>true</code> for the command and control lanes.
+		 */
+		public boolean isCritical()
+		{
+			return policy == Policy.KEEP_ALL
+					|| policy == Policy.LATEST_PER_TARGET;
+		}
+	}
+
+	/**
+	 * Drop policies of the lanes.
+	 */
+	private enum Policy
+	{
+		/**
+		 * Queue every frame whatever the number waiting.
+		 */
+		KEEP_ALL,
+
+		/**
+		 * Replace the waiting frame with the same message id and target.
+		 */
+		LATEST_PER_TARGET,
+
+		/**
+		 * Drop the oldest frame when full.
+		 */
+		DROP_OLDEST,
+
+		/**
+		 * Reject the new frame when full.
+		 */
+		REJECT_NEW
+	}
+
+	/**
+	 * Offset of the message id in a MAVLink v1 frame.
+	 */
+	private static final int MESSAGE_ID_OFFSET = 5;
+
+	/**
+	 * Lane of every MAVLink message id.
+	 */
+	private static final Lane[] LANE_OF_MESSAGE = new Lane[256];
+
+	static
+	{
+		for (int i = 0; i < LANE_OF_MESSAGE.length; i++)
+		{
+			LANE_OF_MESSAGE[i] = Lane.INTERACTIVE;
+		}
+		// SET_MODE, COMMAND_INT, COMMAND_LONG
+		int[] command = { 11, 75, 76 };
+		// RC_CHANNELS_OVERRIDE, MANUAL_CONTROL
+		int[] control = { 70, 69 };
+		// PARAM_*, MISSION_*, LOG_*, GPS_INJECT_DATA, FILE_TRANSFER_PROTOCOL
+		int[] bulk = { 20, 21, 23, 39, 40, 41, 43, 44, 45, 47, 51, 73, 117,
+				119, 121, 122, 123, 110 };
+		for (int id : command)
+		{
+			LANE_OF_MESSAGE[id] = Lane.COMMAND;
+		}
+		for (int id : control)
+		{
+			LANE_OF_MESSAGE[id] = Lane.CONTROL;
+		}
+		for (int id : bulk)
+		{
+			LANE_OF_MESSAGE[id] = Lane.BULK;
+		}
+	}
+
+	/**
+	 * Returned by {@link #nextIfFits(int)} when the next frame is too long.
+	 */
+	private static final byte[] TOO_LONG = new byte[0];
+
+	/**
+	 * Guards all the lanes.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Signalled when a frame is queued.
+	 */
+	private final Condition notEmpty = lock.newCondition();
+
+	/**
+	 * Frames of every lane, indexed by the lane ordinal.
+	 */
+	private final List<ArrayDeque<byte[]>> queues = new ArrayList<ArrayDeque<byte[]>>();
+
+	/**
+	 * Number of frames queued per lane.
+	 */
+	private final long[] queued = new long[Lane.values().length];
+
+	/**
+	 * Number of frames taken per lane.
+	 */
+	private final long[] sent = new long[Lane.values().length];
+
+	/**
+	 * Number of frames dropped per lane.
+	 */
+	private final long[] dropped = new long[Lane.values().length];
+
+	/**
+	 * Largest number of waiting frames per lane.
+	 */
+	private final int[] highWater = new int[Lane.values().length];
+
+	/**
+	 * Constructor to initialize the lanes with their default capacity.
+	 */
+	public OutboundScheduler()
+	{
+		for (Lane lane : Lane.values())
+		{
+			queues.add(new ArrayDeque<byte[]>(lane.capacity));
+		}
+	}
+
+	/**
+	 * Gets the lane of a frame.
+	 *
+	 * @param frame
+	 *            MAVLink v1 frame.
+	 * @return The lane of the frame message id, {@link Lane#INTERACTIVE} for
+	 *         anything which is not a complete frame header.
+	 */
+	public static Lane laneOf(byte[] frame)
+	{
+		if (frame.length <= MESSAGE_ID_OFFSET || (frame[0] & 0xFF) != 0xFE)
+		{
+			return Lane.INTERACTIVE;
+		}
+		return LANE_OF_MESSAGE[frame[MESSAGE_ID_OFFSET] & 0xFF];
+	}
+
+	/**
+	 * Queues a frame in its lane. Never blocks.
+	 *
+	 * @param frame
+	 *            MAVLink v1 frame.
+	 * @return <code>true</code> if the frame has been queued,
+	 *         <code>false</code> if it has been rejected by a full bulk lane.
+	 *         Any other frame is always queued, possibly replacing the waiting
+	 *         control frame of its target or dropping the oldest interactive
+	 *         frame.
+	 */
+	public boolean offer(byte[] frame)
+	{
+		Lane lane = laneOf(frame);
+		int index = lane.ordinal();
+		lock.lock();
+		try
+		{
+			ArrayDeque<byte[]> queue = queues.get(index);
+			switch (lane.policy)
+			{
+			case LATEST_PER_TARGET:
+				if (removeSameTarget(queue, frame))
+				{
+					dropped[index]++;
+				}
+				break;
+
+			case DROP_OLDEST:
+				if (queue.size() >= lane.capacity)
+				{
+					dropped[index]++;
+					queue.pollFirst();
+				}
+				break;
+
+			case REJECT_NEW:
+				if (queue.size() >= lane.capacity)
+				{
+					dropped[index]++;
+					return false;
+				}
+				break;
+
+			default:
+				break;
+			}
+			queue.addLast(frame);
+			queued[index]++;
+			if (queue.size() > highWater[index])
+			{
+				highWater[index] = queue.size();
+			}
+			notEmpty.signal();
+			return true;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Takes the next frame of the highest priority lane, waiting until one is
+	 * queued.
+	 *
+	 * @return The next frame.
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting.
+	 */
+	public byte[] take() throws InterruptedException
+	{
+		lock.lockInterruptibly();
+		try
+		{
+			byte[] frame;
+			while ((frame = next()) == null)
+			{
+				notEmpty.await();
+			}
+			return frame;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Takes the next frame of the highest priority lane, waiting at most the
+	 * given time.
+	 *
+	 * @param timeout
+	 *            Longest wait.
+	 * @param unit
+	 *            Unit of the timeout.
+	 * @return The next frame, <code>null</code> if none has been queued in
+	 *         time.
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting.
+	 */
+	public byte[] poll(long timeout, TimeUnit unit) throws InterruptedException
+	{
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try
+		{
+			byte[] frame;
+			while ((frame = next()) == null)
+			{
+				if (nanos <= 0)
+				{
+					return null;
+				}
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return frame;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Takes the next frame of the highest priority lane without waiting.
+	 *
+	 * @return The next frame, <code>null</code> if all lanes are empty.
+	 */
+	public byte[] poll()
+	{
+		lock.lock();
+		try
+		{
+			return next();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Takes the next frame of the highest priority lane if it is not longer
+	 * than the given length. Used to fill a datagram without overflowing it.
+	 *
+	 * @param maxLength
+	 *            Longest acceptable frame.
+	 * @return The next frame, <code>null</code> if all lanes are empty or the
+	 *         next frame is too long.
+	 */
+	public byte[] pollIfFits(int maxLength)
+	{
+		lock.lock();
+		try
+		{
+			byte[] frame = nextIfFits(maxLength);
+			return frame == TOO_LONG ? null : frame;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Takes the next frame of the highest priority lane if it is not longer
+	 * than the given length, waiting at most the given time for one to be
+	 * queued. A queued frame which is too long ends the wait at once.
+	 *
+	 * @param maxLength
+	 *            Longest acceptable frame.
+	 * @param timeout
+	 *            Longest wait.
+	 * @param unit
+	 *            Unit of the timeout.
+	 * @return The next frame, <code>null</code> if none has been queued in
+	 *         time or the next frame is too long.
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting.
+	 */
+	public byte[] pollIfFits(int maxLength, long timeout, TimeUnit unit)
+			throws InterruptedException
+	{
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try
+		{
+			byte[] frame;
+			while ((frame = nextIfFits(maxLength)) == null)
+			{
+				if (nanos <= 0)
+				{
+					return null;
+				}
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return frame == TOO_LONG ? null : frame;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Checks whether any frame is waiting.
+	 *
+	 * @return <code>true</code> if all lanes are empty.
+	 */
+	public boolean isEmpty()
+	{
+		lock.lock();
+		try
+		{
+			for (ArrayDeque<byte[]> queue : queues)
+			{
+				if (!queue.isEmpty())
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return Number of frames waiting in all lanes.
+	 */
+	public int size()
+	{
+		lock.lock();
+		try
+		{
+			int size = 0;
+			for (ArrayDeque<byte[]> queue : queues)
+			{
+				size += queue.size();
+			}
+			return size;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the counters of every lane and resets the high water marks.
+	 *
+	 * @return Map from the lane name to a map holding the queued, sent,
+	 *         dropped, waiting and high_water counters.
+	 */
+	public Map<String, Object> getStats()
+	{
+		Map<String, Object> stats = Maps.newHashMap();
+		lock.lock();
+		try
+		{
+			for (Lane lane : Lane.values())
+			{
+				int index = lane.ordinal();
+				Map<String, Object> laneStats = Maps.newHashMap();
+				laneStats.put("queued", queued[index]);
+				laneStats.put("sent", sent[index]);
+				laneStats.put("dropped", dropped[index]);
+				laneStats.put("waiting", queues.get(index).size());
+				laneStats.put("high_water", highWater[index]);
+				highWater[index] = queues.get(index).size();
+				stats.put(lane.name(), laneStats);
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		return stats;
+	}
+
+	/**
+	 * Removes the next frame of the highest priority non empty lane. Must be
+	 * called with the lock held.
+	 *
+	 * @return The frame, <code>null</code> if all lanes are empty.
+	 */
+	private byte[] next()
+	{
+		for (int i = 0; i < queues.size(); i++)
+		{
+			byte[] frame = queues.get(i).pollFirst();
+			if (frame != null)
+			{
+				sent[i]++;
+				return frame;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Removes the next frame of the highest priority non empty lane if it is
+	 * not longer than the given length. Must be called with the lock held.
+	 *
+	 * @param maxLength
+	 *            Longest acceptable frame.
+	 * @return The frame, <code>null</code> if all lanes are empty,
+	 *         {@link #TOO_LONG} if the next frame is too long.
+	 */
+	private byte[] nextIfFits(int maxLength)
+	{
+		for (int i = 0; i < queues.size(); i++)
+		{
+			byte[] frame = queues.get(i).peekFirst();
+			if (frame != null)
+			{
+				if (frame.length > maxLength)
+				{
+					return TOO_LONG;
+				}
+				queues.get(i).pollFirst();
+				sent[i]++;
+				return frame;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Removes the waiting frame with the same message id and target system as
+	 * a new frame. The control lane holds one frame per target, so the scan
+	 * is short. Must be called with the lock held.
+	 *
+	 * @param queue
+	 *            Frames of the lane.
+	 * @param frame
+	 *            New frame.
+	 * @return <code>true</code> if a frame has been removed.
+	 */
+	private static boolean removeSameTarget(ArrayDeque<byte[]> queue,
+			byte[] frame)
+	{
+		int target = MavlinkFrames.targetSystem(frame, 0);
+		Iterator<byte[]> waiting = queue.iterator();
+		while (waiting.hasNext())
+		{
+			byte[] other = waiting.next();
+			if (other[MESSAGE_ID_OFFSET] == frame[MESSAGE_ID_OFFSET]
+					&& MavlinkFrames.targetSystem(other, 0) == target)
+			{
+				waiting.remove();
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,305 @@
+package is.erle.comms;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.Maps;
+
+/**
+ * State of one remote UDP endpoint talking to the comms activity. A session
+ * is created on the first datagram of a new source address and remembers the
+ * MAVLink system ids seen from it, so that outbound frames can be routed by
+ * their target system. Each session has its own {@link OutboundScheduler} and
+ * traffic counters.
+ *
+ * @version %I%, %G%
+ * @since 1.0.0
+ */
+public class UdpSession
+{
+	/**
+	 * Source address of the remote endpoint.
+	 */
+	private final InetSocketAddress address;
+
+	/**
+	 * Frames waiting to be sent to this endpoint.
+	 */
+	private final OutboundScheduler outbound = new OutboundScheduler();
+
+	/**
+	 * System ids seen from this endpoint.
+	 */
+	private final BitSet systemIds = new BitSet(256);
+
+	/**
+	 * True while the session is waiting for the uplink writer.
+	 */
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+
+	/**
+	 * Time of the last datagram from the endpoint in
+	 * {@link System#nanoTime()} units.
+	 */
+	private volatile long lastSeen;
+
+	/**
+	 * Last frame queued for this endpoint, to recognize repeats.
+	 */
+	private byte[] lastFrame;
+
+	/**
+	 * Time the {@link #lastFrame} was queued in {@link System#nanoTime()}
+	 * units.
+	 */
+	private long lastFrameTime;
+
+	/**
+	 * Repeated frames dropped.
+	 */
+	private final AtomicLong duplicates = new AtomicLong();
+
+	/**
+	 * Datagrams received.
+	 */
+	private final AtomicLong rxDatagrams = new AtomicLong();
+
+	/**
+	 * Bytes received.
+	 */
+	private final AtomicLong rxBytes = new AtomicLong();
+
+	/**
+	 * Datagrams sent.
+	 */
+	private final AtomicLong txDatagrams = new AtomicLong();
+
+	/**
+	 * Bytes sent.
+	 */
+	private final AtomicLong txBytes = new AtomicLong();
+
+	/**
+	 * Frames sent.
+	 */
+	private final AtomicLong txFrames = new AtomicLong();
+
+	/**
+	 * Counters at the previous {@link #sampleRates()}, in the order datagrams
+	 * received, bytes received, datagrams sent, bytes sent.
+	 */
+	private final long[] sampled = new long[4];
+
+	/**
+	 * Time of the previous {@link #sampleRates()} in
+	 * {@link System#nanoTime()} units.
+	 */
+	private long sampleTime = System.nanoTime();
+
+	/**
+	 * Constructor to initialize the session.
+	 *
+	 * @param address
+	 *            Source address of the remote endpoint.
+	 */
+	public UdpSession(InetSocketAddress address)
+	{
+		this.address = address;
+		this.lastSeen = System.nanoTime();
+	}
+
+	/**
+	 * @return Source address of the remote endpoint.
+	 */
+	public InetSocketAddress getAddress()
+	{
+		return address;
+	}
+
+	/**
+	 * @return Frames waiting to be sent to this endpoint.
+	 */
+	public OutboundScheduler getOutbound()
+	{
+		return outbound;
+	}
+
+	/**
+	 * @return Time of the last datagram in {@link System#nanoTime()} units.
+	 */
+	public long getLastSeen()
+	{
+		return lastSeen;
+	}
+
+	/**
+	 * Records a received datagram and learns the system ids of its frames.
+	 *
+	 * @param data
+	 *            The datagram.
+	 * @return System ids seen for the first time on this session.
+	 */
+	public List<Integer> received(byte[] data)
+	{
+		lastSeen = System.nanoTime();
+		rxDatagrams.incrementAndGet();
+		rxBytes.addAndGet(data.length);
+		List<Integer> learned = null;
+		int offset = 0;
+		while (offset < data.length)
+		{
+			int length = MavlinkFrames.frameLength(data, offset);
+			if (length < 0)
+			{
+				break;
+			}
+			int systemId = MavlinkFrames.systemId(data, offset);
+			synchronized (systemIds)
+			{
+				if (!systemIds.get(systemId))
+				{
+					systemIds.set(systemId);
+					if (learned == null)
+					{
+						learned = new ArrayList<Integer>(1);
+					}
+					learned.add(systemId);
+				}
+			}
+			offset += length;
+		}
+		return learned;
+	}
+
+	/**
+	 * Forgets a system id which is now seen on another session.
+	 *
+	 * @param systemId
+	 *            The system id.
+	 */
+	public void forget(int systemId)
+	{
+		synchronized (systemIds)
+		{
+			systemIds.clear(systemId);
+		}
+	}
+
+	/**
+	 * Checks whether a frame repeats the previous frame queued for this
+	 * endpoint within a time window, and remembers it otherwise. Counts the
+	 * repeats.
+	 *
+	 * @param frame
+	 *            Frame about to be queued.
+	 * @param window
+	 *            Time window in nanoseconds.
+	 * @return <code>true</code> if the frame is a repeat and must be dropped.
+	 */
+	public synchronized boolean isRepeat(byte[] frame, long window)
+	{
+		long now = System.nanoTime();
+		if (lastFrame != null && now - lastFrameTime < window
+				&& Arrays.equals(lastFrame, frame))
+		{
+			duplicates.incrementAndGet();
+			return true;
+		}
+		lastFrame = frame;
+		lastFrameTime = now;
+		return false;
+	}
+
+	/**
+	 * Records a sent datagram.
+	 *
+	 * @param length
+	 *            Length of the datagram.
+	 * @param frames
+	 *            Number of frames in the datagram.
+	 */
+	public void sent(int length, int frames)
+	{
+		txDatagrams.incrementAndGet();
+		txBytes.addAndGet(length);
+		txFrames.addAndGet(frames);
+	}
+
+	/**
+	 * Marks the session as waiting for the uplink writer.
+	 *
+	 * @return <code>true</code> if it was not waiting yet and must be handed
+	 *         to the writer.
+	 */
+	public boolean schedule()
+	{
+		return scheduled.compareAndSet(false, true);
+	}
+
+	/**
+	 * Clears the waiting mark once the writer starts draining the session.
+	 */
+	public void unschedule()
+	{
+		scheduled.set(false);
+	}
+
+	/**
+	 * Gets the counters of the session.
+	 *
+	 * @return Map holding the system ids, the traffic counters and the lane
+	 *         counters.
+	 */
+	public Map<String, Object> getStats()
+	{
+		Map<String, Object> stats = outbound.getStats();
+		synchronized (systemIds)
+		{
+			stats.put("systems", systemIds.toString());
+		}
+		stats.put("rx_datagrams", rxDatagrams.get());
+		stats.put("rx_bytes", rxBytes.get());
+		stats.put("tx_datagrams", txDatagrams.get());
+		stats.put("tx_bytes", txBytes.get());
+		stats.put("tx_frames", txFrames.get());
+		stats.put("duplicates", duplicates.get());
+		return stats;
+	}
+
+	/**
+	 * Gets the traffic rates since the previous call and the queue depth.
+	 *
+	 * @return Map holding the datagrams and bytes per second in both
+	 *         directions, the frames waiting and the repeated frames dropped.
+	 */
+	public synchronized Map<String, Object> sampleRates()
+	{
+		long now = System.nanoTime();
+		double seconds = Math.max(1e-3, (now - sampleTime) / 1e9);
+		sampleTime = now;
+		long[] counters = { rxDatagrams.get(), rxBytes.get(),
+				txDatagrams.get(), txBytes.get() };
+		String[] keys = { "rx_pps", "rx_bps", "tx_pps", "tx_bps" };
+		Map<String, Object> rates = Maps.newHashMap();
+		for (int i = 0; i < counters.length; i++)
+		{
+			rates.put(keys[i], (counters[i] - sampled[i]) / seconds);
+			sampled[i] = counters[i];
+		}
+		rates.put("queued", outbound.size());
+		rates.put("dup", duplicates.get());
+		return rates;
+	}
+
+	@Override
+	public String toString()
+	{
+		return address.getHostString() + ":" + address.getPort();
+	}
+}
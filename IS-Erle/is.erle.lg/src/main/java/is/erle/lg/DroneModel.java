@@ -0,0 +1,282 @@
+package is.erle.lg;
+
+/**
+ * Latest position and attitude of one drone as shown on the Liquid Galaxy,
+ * and its recent {@link FlightTrail}.
+ * <p>
+ * The subscriber threads update the model as telemetry arrives and the KML
+ * refresh thread copies it, so every access synchronizes on the model.
+ *
+ * @version %I%, %G%
+ * @since 1.0.0
+ * @see KmlRenderer
+ */
+public class DroneModel
+{
+	/**
+	 * System id of the drone.
+	 */
+	private final int systemId;
+
+	/**
+	 * Latitude in degrees.
+	 */
+	private double latitude;
+
+	/**
+	 * Longitude in degrees.
+	 */
+	private double longitude;
+
+	/**
+	 * Altitude above mean sea level in metres.
+	 */
+	private double altitude;
+
+	/**
+	 * Altitude above home in metres.
+	 */
+	private double relativeAltitude;
+
+	/**
+	 * Heading in degrees, NaN until known.
+	 */
+	private double heading = Double.NaN;
+
+	/**
+	 * Roll in degrees.
+	 */
+	private double roll;
+
+	/**
+	 * Pitch in degrees.
+	 */
+	private double pitch;
+
+	/**
+	 * Yaw in degrees, used when the position has no heading.
+	 */
+	private double yaw;
+
+	/**
+	 * Whether a position has been received.
+	 */
+	private boolean positioned;
+
+	/**
+	 * Time of the last update in milliseconds since the epoch.
+	 */
+	private long updated;
+
+	/**
+	 * Recent track of the drone, <code>null</code> if trails are not drawn
+	 * or in a copy.
+	 */
+	private final FlightTrail trail;
+
+	/**
+	 * Coordinates of the trail as longitude, latitude and altitude triples,
+	 * only set in a copy.
+	 */
+	private final double[] trailCoordinates;
+
+	/**
+	 * Constructor to initialize the model of a drone without any position.
+	 *
+	 * @param systemId
+	 *            System id of the drone.
+	 * @param trail
+	 *            Empty trail fed with the positions of the drone,
+	 *            <code>null</code> not to draw any.
+	 */
+	public DroneModel(int systemId, FlightTrail trail)
+	{
+		this.systemId = systemId;
+		this.trail = trail;
+		trailCoordinates = null;
+	}
+
+	/**
+	 * Constructor to copy a model.
+	 *
+	 * @param other
+	 *            Model to copy, locked by the caller.
+	 */
+	private DroneModel(DroneModel other)
+	{
+		systemId = other.systemId;
+		latitude = other.latitude;
+		longitude = other.longitude;
+		altitude = other.altitude;
+		relativeAltitude = other.relativeAltitude;
+		heading = other.heading;
+		roll = other.roll;
+		pitch = other.pitch;
+		yaw = other.yaw;
+		positioned = other.positioned;
+		updated = other.updated;
+		trail = null;
+		trailCoordinates = other.trail == null ? null : other.trail
+				.getCoordinates();
+	}
+
+	/**
+	 * Updates the position.
+	 *
+	 * @param latitude
+	 *            Latitude in degrees.
+	 * @param longitude
+	 *            Longitude in degrees.
+	 * @param altitude
+	 *            Altitude above mean sea level in metres.
+	 * @param relativeAltitude
+	 *            Altitude above home in metres.
+	 * @param heading
+	 *            Heading in degrees, NaN or 360 and above if unknown.
+	 * @param time
+	 *            Time of the update in milliseconds since the epoch.
+	 */
+	public synchronized void updatePosition(double latitude,
+			double longitude, double altitude, double relativeAltitude,
+			double heading, long time)
+	{
+		this.latitude = latitude;
+		this.longitude = longitude;
+		this.altitude = altitude;
+		this.relativeAltitude = relativeAltitude;
+		this.heading = heading >= 0 && heading < 360 ? heading : Double.NaN;
+		if (trail != null)
+		{
+			trail.add(longitude, latitude, relativeAltitude);
+		}
+		positioned = true;
+		updated = time;
+	}
+
+	/**
+	 * Updates the attitude.
+	 *
+	 * @param roll
+	 *            Roll in radians.
+	 * @param pitch
+	 *            Pitch in radians.
+	 * @param yaw
+	 *            Yaw in radians.
+	 * @param time
+	 *            Time of the update in milliseconds since the epoch.
+	 */
+	public synchronized void updateAttitude(double roll, double pitch,
+			double yaw, long time)
+	{
+		this.roll = Math.toDegrees(roll);
+		this.pitch = Math.toDegrees(pitch);
+		this.yaw = Math.toDegrees(yaw);
+		updated = time;
+	}
+
+	/**
+	 * Copies the model, so that it can be rendered without holding its
+	 * lock. The copy holds the coordinates of the trail.
+	 *
+	 * @return A copy of the current state.
+	 */
+	public synchronized DroneModel snapshot()
+	{
+		return new DroneModel(this);
+	}
+
+	/**
+	 * @return System id of the drone.
+	 */
+	public int getSystemId()
+	{
+		return systemId;
+	}
+
+	/**
+	 * @return Latitude in degrees.
+	 */
+	public synchronized double getLatitude()
+	{
+		return latitude;
+	}
+
+	/**
+	 * @return Longitude in degrees.
+	 */
+	public synchronized double getLongitude()
+	{
+		return longitude;
+	}
+
+	/**
+	 * @return Altitude above mean sea level in metres.
+	 */
+	public synchronized double getAltitude()
+	{
+		return altitude;
+	}
+
+	/**
+	 * @return Altitude above home in metres.
+	 */
+	public synchronized double getRelativeAltitude()
+	{
+		return relativeAltitude;
+	}
+
+	/**
+	 * @return Heading in degrees from 0 to 360, taken from the yaw when the
+	 *         position does not report it.
+	 */
+	public synchronized double getHeading()
+	{
+		if (!Double.isNaN(heading))
+		{
+			return heading;
+		}
+		return (yaw % 360 + 360) % 360;
+	}
+
+	/**
+	 * @return Roll in degrees.
+	 */
+	public synchronized double getRoll()
+	{
+		return roll;
+	}
+
+	/**
+	 * @return Pitch in degrees.
+	 */
+	public synchronized double getPitch()
+	{
+		return pitch;
+	}
+
+	/**
+	 * @return Coordinates of the trail as longitude, latitude and altitude
+	 *         triples, oldest first, <code>null</code> if there is no trail
+	 *         or this is not a copy.
+	 */
+	public double[] getTrailCoordinates()
+	{
+		return trailCoordinates;
+	}
+
+	/**
+	 * @return Whether a position has been received.
+	 */
+	public synchronized boolean isPositioned()
+	{
+		return positioned;
+	}
+
+	/**
+	 * @return Time of the last update in milliseconds since the epoch.
+	 */
+	public synchronized long getUpdated()
+	{
+		return updated;
+	}
+}
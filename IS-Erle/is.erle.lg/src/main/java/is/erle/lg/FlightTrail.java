@@ -0,0 +1,213 @@
+package is.erle.lg;
+
+/**
+ * Recent track of one drone, simplified as the positions arrive and kept in
+ * a ring of fixed capacity.
+ * <p>
+ * The simplification is an opening window: the trail ends with a floating
+ * point, the latest position, joined to the last kept point, the anchor.
+ * A new position replaces the floating point as long as every position since
+ * the anchor stays within the tolerance of the segment from the anchor to
+ * the new position. Otherwise the floating point is kept and becomes the
+ * anchor. The positions since the anchor are held in a bounded window, so
+ * the cost of a position and the size of the trail do not grow with the
+ * length of the flight. The oldest kept points are overwritten once the
+ * ring is full.
+ * <p>
+ * Distances are measured in metres on a local flat approximation of the
+ * earth, which is accurate over the few kilometres of a trail. The caller
+ * provides the locking.
+ *
+ * @version %I%, %G%
+ * @since 1.0.0
+ * @see DroneModel
+ */
+public class FlightTrail
+{
+	/**
+	 * Largest number of positions since the anchor. The floating point is
+	 * kept when the window is full, even on a straight line.
+	 */
+	private static final int WINDOW = 64;
+
+	/**
+	 * Metres per degree of latitude.
+	 */
+	private static final double METRES_PER_DEGREE = 111320;
+
+	/**
+	 * Longest distance in metres a position may be from the simplified
+	 * trail.
+	 */
+	private final double tolerance;
+
+	/**
+	 * Longitude of every kept point in degrees.
+	 */
+	private final double[] longitudes;
+
+	/**
+	 * Latitude of every kept point in degrees.
+	 */
+	private final double[] latitudes;
+
+	/**
+	 * Altitude of every kept point in metres.
+	 */
+	private final double[] altitudes;
+
+	/**
+	 * Index the next kept point is written at.
+	 */
+	private int head;
+
+	/**
+	 * Number of kept points in the ring, the anchor included.
+	 */
+	private int size;
+
+	/**
+	 * Positions since the anchor, as longitude, latitude and altitude
+	 * triples, the floating point last.
+	 */
+	private final double[] window = new double[WINDOW * 3];
+
+	/**
+	 * Number of positions in the {@link #window}.
+	 */
+	private int windowSize;
+
+	/**
+	 * Constructor to initialize an empty trail.
+	 *
+	 * @param capacity
+	 *            Largest number of kept points.
+	 * @param tolerance
+	 *            Longest distance in metres a position may be from the
+	 *            simplified trail.
+	 */
+	public FlightTrail(int capacity, double tolerance)
+	{
+		this.tolerance = tolerance;
+		int points = Math.max(2, capacity);
+		longitudes = new double[points];
+		latitudes = new double[points];
+		altitudes = new double[points];
+	}
+
+	/**
+	 * Adds a position.
+	 *
+	 * @param longitude
+	 *            Longitude in degrees.
+	 * @param latitude
+	 *            Latitude in degrees.
+	 * @param altitude
+	 *            Altitude in metres.
+	 */
+	public void add(double longitude, double latitude, double altitude)
+	{
+		if (size == 0)
+		{
+			keep(longitude, latitude, altitude);
+			return;
+		}
+		if (windowSize > 0 && (windowSize == WINDOW
+				|| !fits(longitude, latitude, altitude)))
+		{
+			int last = (windowSize - 1) * 3;
+			keep(window[last], window[last + 1], window[last + 2]);
+			windowSize = 0;
+		}
+		window[windowSize * 3] = longitude;
+		window[windowSize * 3 + 1] = latitude;
+		window[windowSize * 3 + 2] = altitude;
+		windowSize++;
+	}
+
+	/**
+	 * Copies the trail, oldest point first, the floating point included.
+	 *
+	 * @return Longitude, latitude and altitude triples.
+	 */
+	public double[] getCoordinates()
+	{
+		int points = size + (windowSize > 0 ? 1 : 0);
+		double[] coordinates = new double[points * 3];
+		int first = (head - size + longitudes.length) % longitudes.length;
+		for (int i = 0; i < size; i++)
+		{
+			int index = (first + i) % longitudes.length;
+			coordinates[i * 3] = longitudes[index];
+			coordinates[i * 3 + 1] = latitudes[index];
+			coordinates[i * 3 + 2] = altitudes[index];
+		}
+		if (windowSize > 0)
+		{
+			System.arraycopy(window, (windowSize - 1) * 3, coordinates,
+					size * 3, 3);
+		}
+		return coordinates;
+	}
+
+	/**
+	 * Checks whether every position of the window stays within the
+	 * tolerance of the segment from the anchor to a new position.
+	 *
+	 * @param longitude
+	 *            Longitude of the new position in degrees.
+	 * @param latitude
+	 *            Latitude of the new position in degrees.
+	 * @param altitude
+	 *            Altitude of the new position in metres.
+	 * @return Whether the new position can replace the floating point.
+	 */
+	private boolean fits(double longitude, double latitude, double altitude)
+	{
+		int anchor = (head - 1 + longitudes.length) % longitudes.length;
+		double scale = METRES_PER_DEGREE
+				* Math.cos(Math.toRadians(latitudes[anchor]));
+		double ex = (longitude - longitudes[anchor]) * scale;
+		double ey = (latitude - latitudes[anchor]) * METRES_PER_DEGREE;
+		double ez = altitude - altitudes[anchor];
+		double length = ex * ex + ey * ey + ez * ez;
+		double limit = tolerance * tolerance;
+		for (int i = 0; i < windowSize; i++)
+		{
+			double px = (window[i * 3] - longitudes[anchor]) * scale;
+			double py = (window[i * 3 + 1] - latitudes[anchor])
+					* METRES_PER_DEGREE;
+			double pz = window[i * 3 + 2] - altitudes[anchor];
+			double t = length == 0 ? 0 : Math.max(0,
+					Math.min(1, (px * ex + py * ey + pz * ez) / length));
+			double dx = px - t * ex;
+			double dy = py - t * ey;
+			double dz = pz - t * ez;
+			if (dx * dx + dy * dy + dz * dz > limit)
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Writes a kept point to the ring, over the oldest one when the ring is
+	 * full. It becomes the anchor.
+	 *
+	 * @param longitude
+	 *            Longitude in degrees.
+	 * @param latitude
+	 *            Latitude in degrees.
+	 * @param altitude
+	 *            Altitude in metres.
+	 */
+	private void keep(double longitude, double latitude, double altitude)
+	{
+		longitudes[head] = longitude;
+		latitudes[head] = latitude;
+		altitudes[head] = altitude;
+		head = (head + 1) % longitudes.length;
+		size = Math.min(size + 1, longitudes.length);
+	}
+}
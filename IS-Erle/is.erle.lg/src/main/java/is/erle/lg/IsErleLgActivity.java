@@ -1,49 +1,491 @@
 package is.erle.lg;
 
-import interactivespaces.activity.impl.BaseActivity;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import interactivespaces.activity.impl.ros.BaseRoutableRosActivity;
+import interactivespaces.util.concurrency.ManagedCommand;
+
+import com.google.common.collect.Maps;
 
 /**
- * A simple Interactive Spaces Java-based activity.
+ * IsErleLgActivity shows the drones live on the Liquid Galaxy.
+ * <p>
+ * It subscribes to the global position and attitude published by the
+ * mavlink activity and keeps a {@link DroneModel} per drone, with a bounded
+ * {@link FlightTrail} of its recent track. A refresh thread publishes the
+ * models through the {@link KmlFeed}, at a configurable period independent
+ * of the telemetry rate. The Galaxy loads the static
+ * layers and the drones once and then only polls small updates moving the
+ * drones which changed. The activity declares its telemetry demand to the
+ * mavlink activity at the refresh rate, so that the drones only send what
+ * the Galaxy shows.
+ *
+ * @version %I%, %G%
+ * @since 1.0.0
  */
-public class IsErleLgActivity extends BaseActivity {
+public class IsErleLgActivity extends BaseRoutableRosActivity {
+
+	/**
+	 * The name of the config property for obtaining the subscriber List.
+	 */
+	private static final String CONFIGURATION_SUBSCRIBER_NAME = "space.activity.routes.inputs";
+
+	/**
+	 * The name of the config property for obtaining the publisher List.
+	 */
+	private static final String CONFIGURATION_PUBLISHER_NAME = "space.activity.routes.outputs";
+
+	/**
+	 * The name of the config property for the directory of the KML files
+	 * served to the Galaxy, kml in the permanent data directory if not set.
+	 */
+	private static final String CONFIGURATION_KML_DIRECTORY = "space.erle.lg.kml.directory";
+
+	/**
+	 * The name of the config property for the URL of the KML directory as
+	 * seen by the Galaxy, relative links are used if not set.
+	 */
+	private static final String CONFIGURATION_KML_URL = "space.erle.lg.kml.url";
+
+	/**
+	 * The name of the config property for the static KML layers shown with
+	 * the drones, such as hangars and drop points, separated by ':'. Relative
+	 * paths are read from the activity install directory.
+	 */
+	private static final String CONFIGURATION_KML_LAYERS = "space.erle.lg.kml.layers";
+
+	/**
+	 * The name of the config property for the KML refresh period in
+	 * milliseconds.
+	 */
+	private static final String CONFIGURATION_KML_PERIOD = "space.erle.lg.kml.period";
+
+	/**
+	 * The name of the config property for the icon drawn at a drone
+	 * position.
+	 */
+	private static final String CONFIGURATION_KML_ICON = "space.erle.lg.kml.icon";
+
+	/**
+	 * The name of the config property for the COLLADA model of a drone, only
+	 * the icon is drawn if not set.
+	 */
+	private static final String CONFIGURATION_KML_MODEL = "space.erle.lg.kml.model";
+
+	/**
+	 * The name of the config property for the scale of the drone model, in
+	 * percent.
+	 */
+	private static final String CONFIGURATION_KML_MODEL_SCALE = "space.erle.lg.kml.model.scale";
+
+	/**
+	 * The name of the config property for the largest number of points of a
+	 * drone trail, 0 not to draw trails.
+	 */
+	private static final String CONFIGURATION_TRAIL_POINTS = "space.erle.lg.trail.points";
+
+	/**
+	 * The name of the config property for the distance in metres from which
+	 * the Galaxy shows the drones, which sets the simplification tolerance of
+	 * the trails.
+	 */
+	private static final String CONFIGURATION_TRAIL_RANGE = "space.erle.lg.trail.range";
+
+	/**
+	 * Simplification tolerance of a trail per metre of viewing range. A
+	 * Galaxy screen 1080 pixels high covers about 1.15 times the range, so
+	 * this is about half a pixel.
+	 */
+	private static final double TRAIL_TOLERANCE_PER_RANGE = 0.0005;
+
+	/**
+	 * Default KML refresh period in milliseconds. The Galaxy screens can not
+	 * follow the telemetry rate, once a second keeps the drones smooth enough.
+	 */
+	private static final int DEFAULT_KML_PERIOD = 1000;
+
+	/**
+	 * Default icon drawn at a drone position.
+	 */
+	private static final String DEFAULT_KML_ICON = "http://maps.google.com/mapfiles/kml/shapes/airports.png";
+
+	/**
+	 * Period of the telemetry demand renewal in seconds, well within the
+	 * expiry of a declaration in the mavlink activity.
+	 */
+	private static final long STREAM_DEMAND_PERIOD = 5;
+
+	/**
+	 * The topic names for subscribing data.
+	 * <p>
+	 * SUBSCRIBER MAPPING
+	 * <p>
+	 * <p>
+	 * subscribers[0] -> global_position
+	 * <p>
+	 * Topic Name : mavlink/position/global
+	 * <p>
+	 * Usage : Receive the position of the drones.
+	 * <p>
+	 * <p>
+	 * subscribers[1] -> attitude
+	 * <p>
+	 * Topic Name : mavlink/attitude
+	 * <p>
+	 * Usage : Receive the attitude of the drones.
+	 * <p>
+	 */
+	private String subscribers[];
+
+	/**
+	 * The topic names for publishing data.
+	 * <p>
+	 * PUBLISHER MAPPING
+	 * <p>
+	 * <p>
+	 * publishers[0] -> stream_demand
+	 * <p>
+	 * Topic Name : mavlink/stream/demand
+	 * <p>
+	 * Usage : Declare the telemetry rates the Galaxy shows.
+	 * <p>
+	 */
+	private String publishers[];
 
+	/**
+	 * Model of every drone heard of, by system id.
+	 */
+	private ConcurrentHashMap<Integer, DroneModel> drones;
+
+	/**
+	 * Renders the models.
+	 */
+	private KmlRenderer renderer;
+
+	/**
+	 * Largest number of points of a drone trail, 0 if trails are not drawn.
+	 */
+	private int trailPoints;
+
+	/**
+	 * Simplification tolerance of the trails in metres.
+	 */
+	private double trailTolerance;
+
+	/**
+	 * Directory of the KML files served to the Galaxy.
+	 */
+	private File kmlDirectory;
+
+	/**
+	 * Publishes the drones to the {@link #kmlDirectory}, <code>null</code> if
+	 * it could not be opened.
+	 */
+	private KmlFeed feed;
+
+	/**
+	 * A thread refreshing the {@link #feed}, see {@link #refreshKml()}.
+	 */
+	private ManagedCommand kmlThread;
+
+	/**
+	 * A thread renewing the telemetry demand of the activity, see
+	 * {@link #declareStreamDemand()}.
+	 */
+	private ManagedCommand streamDemandThread;
+
+	/**
+	 * Rate in Hz at which the Galaxy reads the position and attitude of the
+	 * drones, the KML refresh rate rounded up.
+	 */
+	private int demandRate;
+
+	/**
+	 * Executes on activity setup.
+	 *
+	 * @see interactivespaces.activity.impl.BaseActivity#onActivitySetup()
+	 * @since 1.0.0
+	 */
     @Override
     public void onActivitySetup() {
         getLog().info("Activity is.erle.lg setup");
+        publishers = getConfiguration().getRequiredPropertyString(CONFIGURATION_PUBLISHER_NAME).split(":");
+        subscribers = getConfiguration().getRequiredPropertyString(CONFIGURATION_SUBSCRIBER_NAME).split(":");
+        drones = new ConcurrentHashMap<Integer, DroneModel>();
+        renderer = new KmlRenderer(getConfiguration().getPropertyString(
+        		CONFIGURATION_KML_ICON, DEFAULT_KML_ICON), getConfiguration()
+        		.getPropertyString(CONFIGURATION_KML_MODEL, null),
+        		getConfiguration().getPropertyInteger(
+        				CONFIGURATION_KML_MODEL_SCALE, 100) / 100.0);
+        trailPoints = getConfiguration().getPropertyInteger(
+        		CONFIGURATION_TRAIL_POINTS, 300);
+        trailTolerance = getConfiguration().getPropertyInteger(
+        		CONFIGURATION_TRAIL_RANGE, 1000) * TRAIL_TOLERANCE_PER_RANGE;
+        kmlDirectory = new File(getConfiguration().getPropertyString(
+        		CONFIGURATION_KML_DIRECTORY,
+        		new File(getActivityFilesystem().getPermanentDataDirectory(),
+        				"kml").getAbsolutePath()));
     }
 
+	/**
+	 * Executes on activity startup.
+	 *
+	 * @see interactivespaces.activity.impl.BaseActivity#onActivityStartup()
+	 * @since 1.0.0
+	 */
     @Override
     public void onActivityStartup() {
         getLog().info("Activity is.erle.lg startup");
+		int period = Math.max(100, getConfiguration().getPropertyInteger(
+				CONFIGURATION_KML_PERIOD, DEFAULT_KML_PERIOD));
+		demandRate = (1000 + period - 1) / period;
+		List<File> layers = new ArrayList<File>();
+		String layerList = getConfiguration().getPropertyString(
+				CONFIGURATION_KML_LAYERS, "");
+		for (String path : layerList.split(":"))
+		{
+			if (!path.trim().isEmpty())
+			{
+				File layer = new File(path.trim());
+				layers.add(layer.isAbsolute() ? layer : new File(
+						getActivityFilesystem().getInstallDirectory(),
+						path.trim()));
+			}
+		}
+		feed = new KmlFeed(kmlDirectory, getConfiguration().getPropertyString(
+				CONFIGURATION_KML_URL, null), renderer, period / 1000.0, layers);
+		try
+		{
+			feed.open();
+		}
+		catch (IOException e)
+		{
+			getLog().error("Could not write the KML files to " + kmlDirectory,
+					e);
+			feed = null;
+			return;
+		}
+		kmlThread = getManagedCommands().scheduleAtFixedRate(new Runnable()
+		{
+
+			public void run()
+			{
+				refreshKml();
+			}
+		}, 0, period, TimeUnit.MILLISECONDS);
+		streamDemandThread = getManagedCommands().scheduleAtFixedRate(
+				new Runnable()
+				{
+
+					public void run()
+					{
+						declareStreamDemand();
+					}
+				}, 0, STREAM_DEMAND_PERIOD, TimeUnit.SECONDS);
+		getLog().info("Publishing the drones in " + kmlDirectory + "/"
+				+ KmlFeed.ROOT + " every " + period + " ms");
     }
 
+	/**
+	 * Executes on activity post startup.
+	 *
+	 * @see interactivespaces.activity.impl.BaseActivity#onActivityPostStartup()
+	 * @since 1.0.0
+	 */
     @Override
     public void onActivityPostStartup() {
         getLog().info("Activity is.erle.lg post startup");
     }
 
+	/**
+	 * Executes on activity activate.
+	 *
+	 * @see interactivespaces.activity.impl.BaseActivity#onActivityActivate()
+	 * @since 1.0.0
+	 */
     @Override
     public void onActivityActivate() {
         getLog().info("Activity is.erle.lg activate");
     }
 
+	/**
+	 * Executes on activity deactivate.
+	 *
+	 * @see interactivespaces.activity.impl.BaseActivity#onActivityDeactivate()
+	 * @since 1.0.0
+	 */
     @Override
     public void onActivityDeactivate() {
         getLog().info("Activity is.erle.lg deactivate");
     }
 
+	/**
+	 * Executes on activity pre shutdown.
+	 *
+	 * @see interactivespaces.activity.impl.BaseActivity#onActivityPreShutdown()
+	 * @since 1.0.0
+	 */
     @Override
     public void onActivityPreShutdown() {
         getLog().info("Activity is.erle.lg pre shutdown");
+        if (kmlThread != null)
+        {
+        	kmlThread.cancel();
+        }
+        if (streamDemandThread != null)
+        {
+        	streamDemandThread.cancel();
+        }
     }
 
+	/**
+	 * Executes on activity shutdown.
+	 *
+	 * @see interactivespaces.activity.impl.BaseActivity#onActivityShutdown()
+	 * @since 1.0.0
+	 */
     @Override
     public void onActivityShutdown() {
         getLog().info("Activity is.erle.lg shutdown");
     }
 
+	/**
+	 * Executes on activity cleanup.
+	 *
+	 * @see interactivespaces.activity.impl.BaseActivity#onActivityCleanup()
+	 * @since 1.0.0
+	 */
     @Override
     public void onActivityCleanup() {
         getLog().info("Activity is.erle.lg cleanup");
     }
+
+	/**
+	 * Callback for new message on the subscribed topics. Updates the model of
+	 * the drone the message is about.
+	 *
+	 * @param channelName
+	 *            Channel name of incoming message
+	 * @param message
+	 *            Message stored in a key-value pair in a map
+	 * @see interactivespaces.activity.impl.ros.BaseRoutableRosActivity
+	 * @see java.util.Map
+	 * @since 1.0.0
+	 */
+    @Override
+    public void onNewInputJson(String channelName, Map <String , Object> message)
+    {
+		if (!(message.get("sysid") instanceof Number))
+		{
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if (channelName.equals(subscribers[0]))
+		{
+			if (message.containsKey("lat") && message.containsKey("lon"))
+			{
+				getDrone(message).updatePosition(
+						doubleValue(message.get("lat")),
+						doubleValue(message.get("lon")),
+						doubleValue(message.get("alt")),
+						doubleValue(message.get("relative_alt")),
+						message.containsKey("hdg") ? doubleValue(message
+								.get("hdg")) : Double.NaN, now);
+			}
+		}
+		else if (channelName.equals(subscribers[1]))
+		{
+			if (message.containsKey("roll"))
+			{
+				getDrone(message).updateAttitude(
+						doubleValue(message.get("roll")),
+						doubleValue(message.get("pitch")),
+						doubleValue(message.get("yaw")), now);
+			}
+		}
+    }
+
+	/**
+	 * Gets the model of the drone a message is about, creating it for a new
+	 * drone.
+	 *
+	 * @param message
+	 *            Message holding the system id of the drone.
+	 * @return The model of the drone.
+	 */
+	private DroneModel getDrone(Map<String, Object> message)
+	{
+		int systemId = ((Number) message.get("sysid")).intValue();
+		DroneModel drone = drones.get(systemId);
+		if (drone == null)
+		{
+			drone = new DroneModel(systemId, trailPoints > 0 ? new FlightTrail(
+					trailPoints, trailTolerance) : null);
+			DroneModel known = drones.putIfAbsent(systemId, drone);
+			if (known != null)
+			{
+				drone = known;
+			}
+			else
+			{
+				getLog().info("Showing drone " + systemId + " on the Galaxy");
+			}
+		}
+		return drone;
+	}
+
+	/**
+	 * Publishes a copy of the drone models to the {@link #feed}, which only
+	 * writes the files whose content changed.
+	 */
+	private void refreshKml()
+	{
+		List<DroneModel> snapshots = new ArrayList<DroneModel>();
+		for (DroneModel drone : drones.values())
+		{
+			snapshots.add(drone.snapshot());
+		}
+		try
+		{
+			feed.refresh(snapshots);
+		}
+		catch (IOException e)
+		{
+			getLog().error("Could not write the drones to " + kmlDirectory, e);
+		}
+	}
+
+	/**
+	 * Declares to the mavlink activity the rate at which the Galaxy reads the
+	 * position and attitude of the drones. Faster telemetry would only be
+	 * dropped between two refreshes of the KML.
+	 */
+	private void declareStreamDemand()
+	{
+		Map<String, Object> demands = Maps.newHashMap();
+		demands.put("mavlink/position/global", demandRate);
+		demands.put("mavlink/attitude", demandRate);
+		Map<String, Object> demandMap = Maps.newHashMap();
+		demandMap.put("consumer", "lg");
+		demandMap.put("demands", demands);
+		sendOutputJson(publishers[0], demandMap);
+	}
+
+	/**
+	 * Converts a numeric JSON value.
+	 *
+	 * @param value
+	 *            Value of the message.
+	 * @return The value, 0 if it is not a number.
+	 */
+	private static double doubleValue(Object value)
+	{
+		return value instanceof Number ? ((Number) value).doubleValue() : 0;
+	}
 }
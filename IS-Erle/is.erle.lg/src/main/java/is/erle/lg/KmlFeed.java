@@ -0,0 +1,375 @@
+package is.erle.lg;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Publishes the drones to the Liquid Galaxy as a set of KML files, so that
+ * every refresh only carries what moved.
+ * <p>
+ * The directory holds:
+ * <ul>
+ * <li>{@link #ROOT}, the document to load on the Galaxy. It links every
+ * other file and only changes when the static layers do.</li>
+ * <li>The static layers, copied under a name holding a fingerprint of their
+ * content, so Google Earth loads each version once and caches it.</li>
+ * <li>{@link #BASE}, the placemarks of the known drones, for the screens
+ * loading the root later.</li>
+ * <li>{@link #UPDATE}, polled at the refresh period, a
+ * <code>NetworkLinkControl</code> update creating the new drones and setting
+ * the current rendering of every drone of the base.</li>
+ * </ul>
+ * A screen may poll the update file less often than it is written, so a new
+ * drone is created by the update for {@link #HOLD} refreshes and only then
+ * added to the base. A screen therefore never gets a creation for a drone
+ * its base already holds. The changes set absolute values for every drone in
+ * every update, so a screen loading the base late, or a drone which stopped
+ * moving, is brought to the current positions by the next poll.
+ *
+ * @version %I%, %G%
+ * @since 1.0.0
+ */
+public class KmlFeed
+{
+	/**
+	 * Name of the document loaded on the Galaxy.
+	 */
+	public static final String ROOT = "drones.kml";
+
+	/**
+	 * Name of the drone document.
+	 */
+	static final String BASE = "drones-base.kml";
+
+	/**
+	 * Name of the update document.
+	 */
+	static final String UPDATE = "drones-update.kml";
+
+	/**
+	 * Directory of the fingerprinted static layers, inside the feed
+	 * directory.
+	 */
+	static final String LAYERS = "layers";
+
+	/**
+	 * Number of refreshes a creation stays in the update document before the
+	 * drone is added to the base.
+	 */
+	private static final int HOLD = 3;
+
+	/**
+	 * Directory the files are written to, served to the Galaxy.
+	 */
+	private final File directory;
+
+	/**
+	 * URL of the directory as seen by the Galaxy, empty to use relative
+	 * links.
+	 */
+	private final String url;
+
+	/**
+	 * Renders the documents.
+	 */
+	private final KmlRenderer renderer;
+
+	/**
+	 * Polling period of the update document in seconds.
+	 */
+	private final double refreshSeconds;
+
+	/**
+	 * Source files of the static layers.
+	 */
+	private final List<File> layers;
+
+	/**
+	 * Refresh at which every drone was created.
+	 */
+	private final Map<Integer, Long> createdAt = Maps.newHashMap();
+
+	/**
+	 * System ids of the drones in the base document.
+	 */
+	private final Set<Integer> inBase = new HashSet<Integer>();
+
+	/**
+	 * Number of refreshes so far.
+	 */
+	private long refreshes;
+
+	/**
+	 * Content of the update document, to skip writing it again unchanged.
+	 */
+	private String lastUpdate;
+
+	/**
+	 * Number of files written.
+	 */
+	private long writes;
+
+	/**
+	 * Size of the last update document in bytes.
+	 */
+	private int updateBytes;
+
+	/**
+	 * Size of the drone document in bytes.
+	 */
+	private int baseBytes;
+
+	/**
+	 * Size of the static layers in bytes.
+	 */
+	private long layerBytes;
+
+	/**
+	 * Constructor to initialize a feed.
+	 *
+	 * @param directory
+	 *            Directory the files are written to, served to the Galaxy.
+	 * @param url
+	 *            URL of the directory as seen by the Galaxy,
+	 *            <code>null</code> or empty to use relative links.
+	 * @param renderer
+	 *            Renders the documents.
+	 * @param refreshSeconds
+	 *            Polling period of the update document in seconds.
+	 * @param layers
+	 *            Source files of the static layers.
+	 */
+	public KmlFeed(File directory, String url, KmlRenderer renderer,
+			double refreshSeconds, List<File> layers)
+	{
+		this.directory = directory;
+		this.url = url == null || url.isEmpty() || url.endsWith("/") ? url
+				: url + "/";
+		this.renderer = renderer;
+		this.refreshSeconds = refreshSeconds;
+		this.layers = new ArrayList<File>(layers);
+	}
+
+	/**
+	 * Copies the static layers and writes the root, an empty drone document
+	 * and an empty update.
+	 *
+	 * @throws IOException
+	 *             If a layer can not be read or a file written.
+	 */
+	public synchronized void open() throws IOException
+	{
+		File layerDirectory = new File(directory, LAYERS);
+		if (!layerDirectory.isDirectory() && !layerDirectory.mkdirs())
+		{
+			throw new IOException("Can not create " + layerDirectory);
+		}
+		List<String> names = new ArrayList<String>();
+		List<String> hrefs = new ArrayList<String>();
+		layerBytes = 0;
+		for (File layer : layers)
+		{
+			byte[] content = Files.readAllBytes(layer.toPath());
+			String name = layer.getName();
+			int dot = name.lastIndexOf('.');
+			String fingerprinted = (dot < 0 ? name : name.substring(0, dot))
+					+ "-" + fingerprint(content)
+					+ (dot < 0 ? "" : name.substring(dot));
+			File copy = new File(layerDirectory, fingerprinted);
+			if (!copy.isFile())
+			{
+				write(copy, content);
+			}
+			names.add(fingerprinted);
+			hrefs.add(href(LAYERS + "/" + fingerprinted));
+			layerBytes += content.length;
+		}
+		File[] stale = layerDirectory.listFiles();
+		for (File old : stale == null ? new File[0] : stale)
+		{
+			if (!names.contains(old.getName()) && !old.delete())
+			{
+				throw new IOException("Can not delete " + old);
+			}
+		}
+		List<DroneModel> none = new ArrayList<DroneModel>();
+		write(new File(directory, BASE), renderer.renderBase(none));
+		writeUpdate(renderer.renderUpdate(href(BASE), none, none));
+		write(new File(directory, ROOT), renderer.renderRoot(hrefs,
+				href(BASE), href(UPDATE), refreshSeconds));
+	}
+
+	/**
+	 * Publishes the current state of the drones.
+	 *
+	 * @param drones
+	 *            Copies of the drone models, see {@link DroneModel#snapshot()}.
+	 * @throws IOException
+	 *             If a file can not be written.
+	 */
+	public synchronized void refresh(Collection<DroneModel> drones)
+			throws IOException
+	{
+		refreshes++;
+		List<DroneModel> created = new ArrayList<DroneModel>();
+		List<DroneModel> based = new ArrayList<DroneModel>();
+		boolean baseChanged = false;
+		for (DroneModel drone : drones)
+		{
+			if (!drone.isPositioned())
+			{
+				continue;
+			}
+			Integer id = drone.getSystemId();
+			if (!createdAt.containsKey(id))
+			{
+				createdAt.put(id, refreshes);
+			}
+			if (refreshes - createdAt.get(id) < HOLD)
+			{
+				created.add(drone);
+			}
+			else
+			{
+				based.add(drone);
+				baseChanged |= inBase.add(id);
+			}
+		}
+		if (baseChanged)
+		{
+			write(new File(directory, BASE), renderer.renderBase(based));
+		}
+		writeUpdate(renderer.renderUpdate(href(BASE), created, based));
+	}
+
+	/**
+	 * Gets the counters of the feed.
+	 *
+	 * @return Map holding the files written and the size of the last update,
+	 *         of the drone document and of the static layers.
+	 */
+	public synchronized Map<String, Object> getStats()
+	{
+		Map<String, Object> stats = Maps.newHashMap();
+		stats.put("writes", writes);
+		stats.put("update_bytes", updateBytes);
+		stats.put("base_bytes", baseBytes);
+		stats.put("layer_bytes", layerBytes);
+		return stats;
+	}
+
+	/**
+	 * Writes the update document unless it is unchanged.
+	 *
+	 * @param kml
+	 *            The update document.
+	 * @throws IOException
+	 *             If the file can not be written.
+	 */
+	private void writeUpdate(String kml) throws IOException
+	{
+		if (kml.equals(lastUpdate))
+		{
+			return;
+		}
+		write(new File(directory, UPDATE), kml);
+		lastUpdate = kml;
+		updateBytes = kml.length();
+	}
+
+	/**
+	 * Writes a document.
+	 *
+	 * @param file
+	 *            Destination.
+	 * @param kml
+	 *            The document.
+	 * @throws IOException
+	 *             If the file can not be written.
+	 */
+	private void write(File file, String kml) throws IOException
+	{
+		byte[] content = kml.getBytes(StandardCharsets.UTF_8);
+		if (file.getName().equals(BASE))
+		{
+			baseBytes = content.length;
+		}
+		write(file, content);
+	}
+
+	/**
+	 * Replaces a file. The content is written next to it and moved over it,
+	 * so the Galaxy never reads half a document.
+	 *
+	 * @param file
+	 *            Destination.
+	 * @param content
+	 *            The content.
+	 * @throws IOException
+	 *             If the file can not be written.
+	 */
+	private void write(File file, byte[] content) throws IOException
+	{
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs())
+		{
+			throw new IOException("Can not create " + parent);
+		}
+		File temporary = new File(parent, "." + file.getName() + ".tmp");
+		Files.write(temporary.toPath(), content);
+		Files.move(temporary.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		writes++;
+	}
+
+	/**
+	 * Gets the link to a file of the feed.
+	 *
+	 * @param name
+	 *            Path of the file in the directory.
+	 * @return The link as seen by the Galaxy.
+	 */
+	private String href(String name)
+	{
+		return url == null || url.isEmpty() ? name : url + name;
+	}
+
+	/**
+	 * Computes the fingerprint of a static layer.
+	 *
+	 * @param content
+	 *            Content of the layer.
+	 * @return The first 12 hexadecimal digits of its SHA-1.
+	 */
+	private static String fingerprint(byte[] content)
+	{
+		try
+		{
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(content);
+			StringBuilder hex = new StringBuilder();
+			for (int i = 0; i < 6; i++)
+			{
+				hex.append(String.format("%02x", digest[i] & 0xFF));
+			}
+			return hex.toString();
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException("SHA-1 is not available", e);
+		}
+	}
+}
@@ -0,0 +1,403 @@
+package is.erle.lg;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Renders the {@link DroneModel}s as KML documents for the Liquid Galaxy.
+ * <p>
+ * Every positioned drone becomes a placemark holding a point, drawn with an
+ * icon turned to the drone heading, and, when a COLLADA model is configured,
+ * the model placed and oriented by the drone attitude. Altitudes are
+ * relative to the ground, taking the home of the drone as ground level.
+ * <p>
+ * When the drone has a {@link FlightTrail}, a second placemark draws it as a
+ * line string.
+ * <p>
+ * The point, icon style, model location, model orientation and trail line
+ * carry ids derived from the system id, so that an update document can
+ * change them in place, see
+ * {@link #renderUpdate(String, Collection, Collection)}.
+ *
+ * @version %I%, %G%
+ * @since 1.0.0
+ * @see KmlFeed
+ */
+public class KmlRenderer
+{
+	/**
+	 * Id of the document holding the drone placemarks.
+	 */
+	static final String DOCUMENT_ID = "drones";
+
+	/**
+	 * Style of a trail, an opaque yellow line 2 pixels wide.
+	 */
+	private static final String TRAIL_STYLE = "<Style><LineStyle>"
+			+ "<color>ff00ffff</color><width>2</width></LineStyle></Style>";
+
+	/**
+	 * Icon drawn at the drone position.
+	 */
+	private final String iconHref;
+
+	/**
+	 * COLLADA model of a drone, <code>null</code> to draw the icon only.
+	 */
+	private final String modelHref;
+
+	/**
+	 * Scale of the model.
+	 */
+	private final double modelScale;
+
+	/**
+	 * Constructor to initialize a renderer.
+	 *
+	 * @param iconHref
+	 *            Icon drawn at the drone position.
+	 * @param modelHref
+	 *            COLLADA model of a drone, <code>null</code> or empty to draw
+	 *            the icon only.
+	 * @param modelScale
+	 *            Scale of the model.
+	 */
+	public KmlRenderer(String iconHref, String modelHref, double modelScale)
+	{
+		this.iconHref = iconHref;
+		this.modelHref = modelHref == null || modelHref.isEmpty() ? null
+				: modelHref;
+		this.modelScale = modelScale;
+	}
+
+	/**
+	 * Renders the document holding the placemarks of the drones, the target
+	 * of the update documents.
+	 *
+	 * @param drones
+	 *            Copies of the drone models, see {@link DroneModel#snapshot()}.
+	 * @return The KML document.
+	 */
+	public String renderBase(Collection<DroneModel> drones)
+	{
+		StringBuilder kml = new StringBuilder(1024 + drones.size() * 1024);
+		appendHeader(kml);
+		kml.append("<Document id=\"").append(DOCUMENT_ID).append("\">\n");
+		kml.append("<name>Drones</name>\n");
+		for (DroneModel drone : drones)
+		{
+			if (drone.isPositioned())
+			{
+				appendPlacemark(kml, drone);
+			}
+		}
+		kml.append("</Document>\n");
+		kml.append("</kml>\n");
+		return kml.toString();
+	}
+
+	/**
+	 * Renders an update document creating the placemarks of new drones and
+	 * setting the current rendering of the known ones.
+	 *
+	 * @param targetHref
+	 *            Location of the document rendered by
+	 *            {@link #renderBase(Collection)}, as loaded by the Galaxy.
+	 * @param created
+	 *            Drones to create.
+	 * @param changed
+	 *            Drones to move.
+	 * @return The KML document.
+	 */
+	public String renderUpdate(String targetHref,
+			Collection<DroneModel> created, Collection<DroneModel> changed)
+	{
+		StringBuilder kml = new StringBuilder(512 + created.size() * 1024
+				+ changed.size() * 512);
+		appendHeader(kml);
+		kml.append("<NetworkLinkControl>\n<Update>\n");
+		kml.append("<targetHref>").append(escape(targetHref))
+				.append("</targetHref>\n");
+		if (!created.isEmpty())
+		{
+			kml.append("<Create><Document targetId=\"").append(DOCUMENT_ID)
+					.append("\">\n");
+			for (DroneModel drone : created)
+			{
+				appendPlacemark(kml, drone);
+			}
+			kml.append("</Document></Create>\n");
+		}
+		if (!changed.isEmpty())
+		{
+			kml.append("<Change>\n");
+			for (DroneModel drone : changed)
+			{
+				appendChange(kml, drone);
+			}
+			kml.append("</Change>\n");
+		}
+		kml.append("</Update>\n</NetworkLinkControl>\n");
+		kml.append("</kml>\n");
+		return kml.toString();
+	}
+
+	/**
+	 * Renders the document loaded by the Galaxy. It links the static layers
+	 * and the drone document once, and polls the update document.
+	 *
+	 * @param layerHrefs
+	 *            Locations of the static layers.
+	 * @param baseHref
+	 *            Location of the drone document.
+	 * @param updateHref
+	 *            Location of the update document.
+	 * @param refreshSeconds
+	 *            Polling period of the update document in seconds.
+	 * @return The KML document.
+	 */
+	public String renderRoot(List<String> layerHrefs, String baseHref,
+			String updateHref, double refreshSeconds)
+	{
+		StringBuilder kml = new StringBuilder(1024);
+		appendHeader(kml);
+		kml.append("<Document>\n");
+		kml.append("<name>Erle</name>\n");
+		for (String layer : layerHrefs)
+		{
+			appendNetworkLink(kml, layer, "<refreshMode>onChange</refreshMode>");
+		}
+		appendNetworkLink(kml, baseHref, "<refreshMode>onChange</refreshMode>");
+		appendNetworkLink(kml, updateHref, format(
+				"<refreshMode>onInterval</refreshMode>"
+						+ "<refreshInterval>%.1f</refreshInterval>",
+				refreshSeconds));
+		kml.append("</Document>\n");
+		kml.append("</kml>\n");
+		return kml.toString();
+	}
+
+	/**
+	 * Appends the XML declaration and the opening kml element.
+	 *
+	 * @param kml
+	 *            Document being rendered.
+	 */
+	private static void appendHeader(StringBuilder kml)
+	{
+		kml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		kml.append("<kml xmlns=\"http://www.opengis.net/kml/2.2\">\n");
+	}
+
+	/**
+	 * Appends a network link.
+	 *
+	 * @param kml
+	 *            Document being rendered.
+	 * @param href
+	 *            Location of the linked document.
+	 * @param refresh
+	 *            Refresh elements of the link.
+	 */
+	private static void appendNetworkLink(StringBuilder kml, String href,
+			String refresh)
+	{
+		kml.append("<NetworkLink><Link><href>").append(escape(href))
+				.append("</href>").append(refresh)
+				.append("</Link></NetworkLink>\n");
+	}
+
+	/**
+	 * Appends the placemark of a drone.
+	 *
+	 * @param kml
+	 *            Document being rendered.
+	 * @param drone
+	 *            Positioned drone.
+	 */
+	private void appendPlacemark(StringBuilder kml, DroneModel drone)
+	{
+		String id = "drone-" + drone.getSystemId();
+		kml.append("<Placemark id=\"").append(id).append("\">\n");
+		kml.append("<name>Drone ").append(drone.getSystemId())
+				.append("</name>\n");
+		kml.append("<Style><IconStyle id=\"").append(id).append("-icon\">");
+		kml.append(format("<heading>%.1f</heading>", drone.getHeading()));
+		kml.append("<Icon><href>").append(escape(iconHref))
+				.append("</href></Icon>");
+		kml.append("</IconStyle></Style>\n");
+		kml.append("<MultiGeometry>\n");
+		kml.append("<Point id=\"").append(id).append("-point\">");
+		kml.append("<altitudeMode>relativeToGround</altitudeMode>");
+		appendCoordinates(kml, drone);
+		kml.append("</Point>\n");
+		if (modelHref != null)
+		{
+			kml.append("<Model><altitudeMode>relativeToGround</altitudeMode>");
+			kml.append("<Location id=\"").append(id).append("-location\">");
+			appendLocation(kml, drone);
+			kml.append("</Location>");
+			kml.append("<Orientation id=\"").append(id)
+					.append("-orientation\">");
+			appendOrientation(kml, drone);
+			kml.append("</Orientation>");
+			kml.append(format("<Scale><x>%.2f</x><y>%.2f</y><z>%.2f</z>"
+					+ "</Scale>", modelScale, modelScale, modelScale));
+			kml.append("<Link><href>").append(escape(modelHref))
+					.append("</href></Link>");
+			kml.append("</Model>\n");
+		}
+		kml.append("</MultiGeometry>\n");
+		kml.append("</Placemark>\n");
+		if (drone.getTrailCoordinates() != null)
+		{
+			kml.append("<Placemark id=\"").append(id).append("-trail\">\n");
+			kml.append("<name>Drone ").append(drone.getSystemId())
+					.append(" trail</name>\n");
+			kml.append(TRAIL_STYLE).append("\n");
+			kml.append("<LineString id=\"").append(id)
+					.append("-trail-line\">");
+			kml.append("<altitudeMode>relativeToGround</altitudeMode>");
+			appendTrail(kml, drone.getTrailCoordinates());
+			kml.append("</LineString>\n");
+			kml.append("</Placemark>\n");
+		}
+	}
+
+	/**
+	 * Appends the changes moving the placemark of a drone.
+	 *
+	 * @param kml
+	 *            Document being rendered.
+	 * @param drone
+	 *            Positioned drone.
+	 */
+	private void appendChange(StringBuilder kml, DroneModel drone)
+	{
+		String id = "drone-" + drone.getSystemId();
+		kml.append("<Point targetId=\"").append(id).append("-point\">");
+		appendCoordinates(kml, drone);
+		kml.append("</Point>\n");
+		kml.append("<IconStyle targetId=\"").append(id).append("-icon\">");
+		kml.append(format("<heading>%.1f</heading>", drone.getHeading()));
+		kml.append("</IconStyle>\n");
+		if (modelHref != null)
+		{
+			kml.append("<Location targetId=\"").append(id)
+					.append("-location\">");
+			appendLocation(kml, drone);
+			kml.append("</Location>\n");
+			kml.append("<Orientation targetId=\"").append(id)
+					.append("-orientation\">");
+			appendOrientation(kml, drone);
+			kml.append("</Orientation>\n");
+		}
+		if (drone.getTrailCoordinates() != null)
+		{
+			kml.append("<LineString targetId=\"").append(id)
+					.append("-trail-line\">");
+			appendTrail(kml, drone.getTrailCoordinates());
+			kml.append("</LineString>\n");
+		}
+	}
+
+	/**
+	 * Appends the coordinates of a trail, with the precision the screen
+	 * needs: 6 decimals of a degree, about 10 cm, and decimetres of
+	 * altitude.
+	 *
+	 * @param kml
+	 *            Document being rendered.
+	 * @param coordinates
+	 *            Longitude, latitude and altitude triples.
+	 */
+	private static void appendTrail(StringBuilder kml, double[] coordinates)
+	{
+		kml.append("<coordinates>");
+		for (int i = 0; i < coordinates.length; i += 3)
+		{
+			if (i > 0)
+			{
+				kml.append(' ');
+			}
+			kml.append(format("%.6f,%.6f,%.1f", coordinates[i],
+					coordinates[i + 1], coordinates[i + 2]));
+		}
+		kml.append("</coordinates>");
+	}
+
+	/**
+	 * Appends the coordinates of a point.
+	 *
+	 * @param kml
+	 *            Document being rendered.
+	 * @param drone
+	 *            Positioned drone.
+	 */
+	private static void appendCoordinates(StringBuilder kml, DroneModel drone)
+	{
+		kml.append(format("<coordinates>%.7f,%.7f,%.2f</coordinates>",
+				drone.getLongitude(), drone.getLatitude(),
+				drone.getRelativeAltitude()));
+	}
+
+	/**
+	 * Appends the content of a model location.
+	 *
+	 * @param kml
+	 *            Document being rendered.
+	 * @param drone
+	 *            Positioned drone.
+	 */
+	private static void appendLocation(StringBuilder kml, DroneModel drone)
+	{
+		kml.append(format("<longitude>%.7f</longitude>"
+				+ "<latitude>%.7f</latitude><altitude>%.2f</altitude>",
+				drone.getLongitude(), drone.getLatitude(),
+				drone.getRelativeAltitude()));
+	}
+
+	/**
+	 * Appends the content of a model orientation.
+	 *
+	 * @param kml
+	 *            Document being rendered.
+	 * @param drone
+	 *            Positioned drone.
+	 */
+	private static void appendOrientation(StringBuilder kml, DroneModel drone)
+	{
+		kml.append(format("<heading>%.1f</heading>"
+				+ "<tilt>%.1f</tilt><roll>%.1f</roll>", drone.getHeading(),
+				drone.getPitch(), drone.getRoll()));
+	}
+
+	/**
+	 * Formats numbers with a dot as decimal separator whatever the locale of
+	 * the controller, as KML requires.
+	 *
+	 * @param pattern
+	 *            Format pattern.
+	 * @param values
+	 *            Values to format.
+	 * @return The formatted text.
+	 */
+	static String format(String pattern, Object... values)
+	{
+		return String.format(Locale.US, pattern, values);
+	}
+
+	/**
+	 * Escapes the XML special characters of a text.
+	 *
+	 * @param text
+	 *            Text to put in an element.
+	 * @return The escaped text.
+	 */
+	static String escape(String text)
+	{
+		return text.replace("&", "&amp;").replace("<", "&lt;")
+				.replace(">", "&gt;");
+	}
+}
@@ -0,0 +1,456 @@
+package is.erle.mavlink;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import com.MAVLink.MAVLinkPacket;
+import com.google.common.collect.Maps;
+
+/**
+ * Records the raw MAVLink traffic of every link, in both directions, to
+ * binary segment files, much like a telemetry log.
+ * <p>
+ * A segment starts with a {@link #FILE_HEADER_SIZE} byte header: the
+ * {@link #MAGIC}, the format version and the size of a record header, as
+ * shorts, and the start time in seconds since the epoch, as an int. Each
+ * record then holds a {@link #RECORD_HEADER_SIZE} byte header followed by the frame
+ * exactly as it went over the link: the time in microseconds since the epoch
+ * (long), the frame length (short), the link number (byte) and the direction
+ * (byte, 0 received and 1 sent). Numbers are big endian. A record header
+ * with a zero length ends the segment.
+ * <p>
+ * Segments are memory mapped at their full size and truncated to their used
+ * size once they are rolled over, either when the next frame would not fit
+ * or when they are older than the configured age. Frames are written
+ * straight into the mapping, so recording a frame neither allocates nor
+ * makes a system call. Flushing and truncating a finished segment is left to
+ * an executor.
+ *
+ * @version %I%, %G%
+ * @since 1.0.0
+ */
+public class FlightRecorder
+{
+	/**
+	 * Magic starting every segment.
+	 */
+	static final String MAGIC = "ERLEREC1";
+
+	/**
+	 * Format version written in the segment header.
+	 */
+	static final short VERSION = 1;
+
+	/**
+	 * Size of the segment header in bytes.
+	 */
+	static final int FILE_HEADER_SIZE = 16;
+
+	/**
+	 * Size of a record header in bytes.
+	 */
+	static final int RECORD_HEADER_SIZE = 12;
+
+	/**
+	 * Longest MAVLink v1 frame, 255 payload bytes, the 6 header bytes and the
+	 * checksum.
+	 */
+	static final int MAX_FRAME = 263;
+
+	/**
+	 * Direction of a received frame.
+	 */
+	public static final int RECEIVED = 0;
+
+	/**
+	 * Direction of a sent frame.
+	 */
+	public static final int SENT = 1;
+
+	/**
+	 * Directory of the segment files.
+	 */
+	private final File directory;
+
+	/**
+	 * Size of a segment in bytes.
+	 */
+	private final int segmentSize;
+
+	/**
+	 * Age after which a segment is rolled over, in nanoseconds.
+	 */
+	private final long segmentAge;
+
+	/**
+	 * Executor finishing the rolled over segments.
+	 */
+	private final Executor closer;
+
+	/**
+	 * Wall clock time matching {@link #baseNanos}, in microseconds.
+	 */
+	private final long baseMicros;
+
+	/**
+	 * Origin of the monotonic clock the record times are derived from.
+	 */
+	private final long baseNanos;
+
+	/**
+	 * File of the current segment, <code>null</code> when closed.
+	 */
+	private RandomAccessFile file;
+
+	/**
+	 * Mapping of the current segment.
+	 */
+	private MappedByteBuffer buffer;
+
+	/**
+	 * Start of the current segment in {@link System#nanoTime()} units.
+	 */
+	private long segmentStart;
+
+	/**
+	 * Number of segments opened so far, appended to the file names.
+	 */
+	private int segments;
+
+	/**
+	 * Frames recorded.
+	 */
+	private long frames;
+
+	/**
+	 * Bytes recorded, headers included.
+	 */
+	private long bytes;
+
+	/**
+	 * Frames which have been cut to {@link #MAX_FRAME} bytes.
+	 */
+	private long truncated;
+
+	/**
+	 * The error which stopped the recording, <code>null</code> if none.
+	 */
+	private IOException failure;
+
+	/**
+	 * Constructor to initialize a closed recorder.
+	 *
+	 * @param directory
+	 *            Directory of the segment files, created if needed.
+	 * @param segmentSize
+	 *            Size of a segment in bytes.
+	 * @param segmentSeconds
+	 *            Age after which a segment is rolled over, in seconds.
+	 * @param closer
+	 *            Executor flushing and truncating the finished segments.
+	 */
+	public FlightRecorder(File directory, int segmentSize, long segmentSeconds,
+			Executor closer)
+	{
+		this.directory = directory;
+		this.segmentSize = Math.max(segmentSize, FILE_HEADER_SIZE + 2
+				* (RECORD_HEADER_SIZE + MAX_FRAME));
+		this.segmentAge = segmentSeconds * 1000000000L;
+		this.closer = closer;
+		this.baseMicros = System.currentTimeMillis() * 1000;
+		this.baseNanos = System.nanoTime();
+	}
+
+	/**
+	 * Opens the first segment.
+	 *
+	 * @throws IOException
+	 *             If the directory or the segment can not be created.
+	 */
+	public synchronized void open() throws IOException
+	{
+		if (!directory.isDirectory() && !directory.mkdirs())
+		{
+			throw new IOException("Can not create " + directory);
+		}
+		failure = null;
+		roll(System.nanoTime());
+	}
+
+	/**
+	 * Records a frame received and completed by the parser of a link.
+	 *
+	 * @param packet
+	 *            Packet completed by the parser, its checksum included.
+	 * @param link
+	 *            Link number.
+	 */
+	public synchronized void recordReceived(MAVLinkPacket packet, int link)
+	{
+		if (!prepare())
+		{
+			return;
+		}
+		int length = Math.min(packet.len & 0xFF, packet.payload.payload
+				.capacity());
+		int start = writeHeader(length + 8, link, RECEIVED);
+		buffer.put((byte) MAVLinkPacket.MAVLINK_STX);
+		buffer.put((byte) packet.len);
+		buffer.put((byte) packet.seq);
+		buffer.put((byte) packet.sysid);
+		buffer.put((byte) packet.compid);
+		buffer.put((byte) packet.msgid);
+		for (int i = 0; i < length; i++)
+		{
+			buffer.put(packet.payload.payload.get(i));
+		}
+		buffer.put((byte) packet.crc.getLSB());
+		buffer.put((byte) packet.crc.getMSB());
+		finish(start);
+	}
+
+	/**
+	 * Records a frame sent to a link, reading its bytes straight from the
+	 * text form used on the comms topics.
+	 *
+	 * @param comm
+	 *            Bytes formatted as by {@link java.util.Arrays#toString(byte[])}.
+	 * @param link
+	 *            Link number.
+	 */
+	public synchronized void recordSent(String comm, int link)
+	{
+		if (!prepare())
+		{
+			return;
+		}
+		int start = writeHeader(0, link, SENT);
+		int length = 0;
+		int value = 0;
+		boolean negative = false;
+		boolean inNumber = false;
+		int size = comm.length();
+		for (int i = 0; i <= size; i++)
+		{
+			char c = i < size ? comm.charAt(i) : ',';
+			if (c >= '0' && c <= '9')
+			{
+				value = value * 10 + (c - '0');
+				inNumber = true;
+			}
+			else if (c == '-')
+			{
+				negative = true;
+			}
+			else if (c == ',' || c == ']')
+			{
+				if (inNumber)
+				{
+					if (length < MAX_FRAME)
+					{
+						buffer.put((byte) (negative ? -value : value));
+						length++;
+					}
+					else if (length++ == MAX_FRAME)
+					{
+						truncated++;
+					}
+				}
+				value = 0;
+				negative = false;
+				inNumber = false;
+			}
+		}
+		buffer.putShort(start + 8, (short) Math.min(length, MAX_FRAME));
+		finish(start);
+	}
+
+	/**
+	 * Ends the current segment and stops recording.
+	 */
+	public synchronized void close()
+	{
+		if (file != null)
+		{
+			retire();
+		}
+	}
+
+	/**
+	 * Gets the counters of the recorder.
+	 *
+	 * @return Map holding the recorded frames and bytes, the truncated
+	 *         frames, the segment count and the error which stopped the
+	 *         recording, if any.
+	 */
+	public synchronized Map<String, Object> getStats()
+	{
+		Map<String, Object> stats = Maps.newHashMap();
+		stats.put("recording", file != null);
+		stats.put("frames", frames);
+		stats.put("bytes", bytes);
+		stats.put("truncated", truncated);
+		stats.put("segments", segments);
+		if (failure != null)
+		{
+			stats.put("error", failure.getMessage());
+		}
+		return stats;
+	}
+
+	/**
+	 * Makes room for one more record, rolling the segment over if it is full
+	 * or too old. A failure to open the next segment stops the recording
+	 * rather than the link.
+	 *
+	 * @return <code>true</code> if the record can be written.
+	 */
+	private boolean prepare()
+	{
+		if (file == null)
+		{
+			return false;
+		}
+		long now = System.nanoTime();
+		if (buffer.remaining() < 2 * RECORD_HEADER_SIZE + MAX_FRAME
+				|| now - segmentStart >= segmentAge)
+		{
+			try
+			{
+				roll(now);
+			}
+			catch (IOException e)
+			{
+				failure = e;
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Writes a record header at the current position.
+	 *
+	 * @param length
+	 *            Frame length, patched later if not known yet.
+	 * @param link
+	 *            Link number.
+	 * @param direction
+	 *            {@link #RECEIVED} or {@link #SENT}.
+	 * @return Position of the record.
+	 */
+	private int writeHeader(int length, int link, int direction)
+	{
+		int start = buffer.position();
+		buffer.putLong(baseMicros + (System.nanoTime() - baseNanos) / 1000);
+		buffer.putShort((short) length);
+		buffer.put((byte) link);
+		buffer.put((byte) direction);
+		return start;
+	}
+
+	/**
+	 * Completes a record and marks the end of the segment after it.
+	 *
+	 * @param start
+	 *            Position of the record.
+	 */
+	private void finish(int start)
+	{
+		int end = buffer.position();
+		buffer.putShort(end + 8, (short) 0);
+		frames++;
+		bytes += end - start;
+	}
+
+	/**
+	 * Hands the current segment, if any, to the closer and maps a new one.
+	 *
+	 * @param now
+	 *            Current time in {@link System#nanoTime()} units.
+	 * @throws IOException
+	 *             If the new segment can not be created.
+	 */
+	private void roll(long now) throws IOException
+	{
+		if (file != null)
+		{
+			retire();
+		}
+		long startMicros = baseMicros + (now - baseNanos) / 1000;
+		String name = String.format("flight-%s-%04d.rec",
+				new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date(
+						startMicros / 1000)), segments);
+		RandomAccessFile next = new RandomAccessFile(new File(directory, name),
+				"rw");
+		try
+		{
+			next.setLength(segmentSize);
+			buffer = next.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					segmentSize);
+		}
+		catch (IOException e)
+		{
+			next.close();
+			throw e;
+		}
+		file = next;
+		segments++;
+		segmentStart = now;
+		for (int i = 0; i < MAGIC.length(); i++)
+		{
+			buffer.put((byte) MAGIC.charAt(i));
+		}
+		buffer.putShort(VERSION);
+		buffer.putShort((short) RECORD_HEADER_SIZE);
+		buffer.putInt((int) (startMicros / 1000000));
+		buffer.putShort(FILE_HEADER_SIZE + 8, (short) 0);
+	}
+
+	/**
+	 * Detaches the current segment and lets the closer flush it and cut it
+	 * to its used size.
+	 */
+	private void retire()
+	{
+		final RandomAccessFile done = file;
+		final MappedByteBuffer mapping = buffer;
+		final int used = buffer.position() + RECORD_HEADER_SIZE;
+		file = null;
+		buffer = null;
+		closer.execute(new Runnable()
+		{
+
+			public void run()
+			{
+				try
+				{
+					mapping.force();
+					done.getChannel().truncate(used);
+				}
+				catch (IOException e)
+				{
+					// The frames are in the file, only its tail is left.
+				}
+				finally
+				{
+					try
+					{
+						done.close();
+					}
+					catch (IOException e)
+					{
+						// Nothing more to release.
+					}
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,40 @@
+package is.erle.mavlink;
+
+/**
+ * Receives the frames read back by a {@link FlightReplayer}. Calls are made
+ * one at a time from the replay thread, in the order of the recording.
+ *
+ * @version %I%, %G%
+ * @since 1.0.0
+ * @see FlightReplayer
+ */
+public interface FlightReplayListener
+{
+	/**
+	 * Called for every replayed frame, when it is due at the replay speed.
+	 * The array is reused for the next frame and must not be kept.
+	 *
+	 * @param frame
+	 *            Buffer holding the raw MAVLink frame.
+	 * @param length
+	 *            Length of the frame in the buffer.
+	 * @param link
+	 *            Link number the frame was received on.
+	 * @param time
+	 *            Recorded time of the frame in microseconds since the epoch.
+	 */
+	void onReplayFrame(byte[] frame, int length, int link, long time);
+
+	/**
+	 * Called once the replay has ended, whether it reached the end of the
+	 * recording, was stopped or failed.
+	 *
+	 * @param frames
+	 *            Number of replayed frames.
+	 * @param seconds
+	 *            Duration of the replay.
+	 * @param error
+	 *            Reason of a failure, <code>null</code> if none.
+	 */
+	void onReplayEnd(long frames, double seconds, String error);
+}
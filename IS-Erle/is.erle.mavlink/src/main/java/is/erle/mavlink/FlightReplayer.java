@@ -0,0 +1,337 @@
+package is.erle.mavlink;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Reads back the frames received in recordings of the {@link FlightRecorder}
+ * and hands them to a {@link FlightReplayListener}.
+ * <p>
+ * The source is either one segment file or a directory, whose segments are
+ * replayed in the order of their names, that is in the order they were
+ * recorded. Frames are delivered one at a time from the thread running
+ * {@link #run()}, so the same recording always produces the same sequence
+ * of calls. At a positive speed the frames are spaced as they were recorded,
+ * divided by the speed; at speed 0 they are delivered as fast as the
+ * listener takes them. Frames recorded before the start time are skipped,
+ * whole segments at a time when a later segment starts before it.
+ *
+ * @version %I%, %G%
+ * @since 1.0.0
+ */
+public class FlightReplayer implements Runnable
+{
+	/**
+	 * Segment file or directory of segments.
+	 */
+	private final File source;
+
+	/**
+	 * Replay speed, 1 for real time, 0 for as fast as possible.
+	 */
+	private final double speed;
+
+	/**
+	 * Recorded time of the first frame to replay, in microseconds since the
+	 * epoch.
+	 */
+	private final long from;
+
+	/**
+	 * Receiver of the frames.
+	 */
+	private final FlightReplayListener listener;
+
+	/**
+	 * Reused frame buffer.
+	 */
+	private byte[] frame = new byte[FlightRecorder.MAX_FRAME];
+
+	/**
+	 * Recorded time of the first replayed frame, -1 before it.
+	 */
+	private long firstTime = -1;
+
+	/**
+	 * Time the first frame was replayed in {@link System#nanoTime()} units.
+	 */
+	private long firstNanos;
+
+	/**
+	 * Number of replayed frames.
+	 */
+	private volatile long frames;
+
+	/**
+	 * Recorded time of the last replayed frame.
+	 */
+	private volatile long position;
+
+	/**
+	 * True once {@link #stop()} has been called.
+	 */
+	private volatile boolean stopped;
+
+	/**
+	 * Constructor to initialize a replay.
+	 *
+	 * @param source
+	 *            Segment file or directory of segments.
+	 * @param speed
+	 *            Replay speed, 1 for real time, 0 for as fast as possible.
+	 * @param from
+	 *            Recorded time to start at, in microseconds since the epoch, 0
+	 *            to replay everything.
+	 * @param listener
+	 *            Receiver of the frames.
+	 */
+	public FlightReplayer(File source, double speed, long from,
+			FlightReplayListener listener)
+	{
+		this.source = source;
+		this.speed = Math.max(0, speed);
+		this.from = from;
+		this.listener = listener;
+	}
+
+	/**
+	 * Replays the recording until its end or until {@link #stop()} is called,
+	 * then calls {@link FlightReplayListener#onReplayEnd(long, double, String)}.
+	 */
+	public void run()
+	{
+		long start = System.nanoTime();
+		String error = null;
+		try
+		{
+			File[] segments = listSegments();
+			for (int i = 0; i < segments.length && !isStopped(); i++)
+			{
+				if (i + 1 < segments.length
+						&& startOf(segments[i + 1]) * 1000000L <= from)
+				{
+					continue;
+				}
+				replaySegment(segments[i]);
+			}
+		}
+		catch (IOException e)
+		{
+			error = e.getMessage();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		listener.onReplayEnd(frames, (System.nanoTime() - start) / 1e9, error);
+	}
+
+	/**
+	 * Stops the replay before the next frame.
+	 */
+	public void stop()
+	{
+		stopped = true;
+	}
+
+	/**
+	 * @return <code>true</code> once {@link #stop()} has been called.
+	 */
+	public boolean isStopping()
+	{
+		return stopped;
+	}
+
+	/**
+	 * Gets the progress of the replay.
+	 *
+	 * @return Map holding the source, the speed, the number of replayed
+	 *         frames and the recorded time of the last one.
+	 */
+	public Map<String, Object> getStats()
+	{
+		Map<String, Object> stats = Maps.newHashMap();
+		stats.put("source", source.getPath());
+		stats.put("speed", speed);
+		stats.put("frames", frames);
+		stats.put("position", position);
+		return stats;
+	}
+
+	/**
+	 * Lists the segments of the source in recording order.
+	 *
+	 * @return The segment files.
+	 * @throws IOException
+	 *             If the source does not exist.
+	 */
+	private File[] listSegments() throws IOException
+	{
+		if (source.isFile())
+		{
+			return new File[] { source };
+		}
+		File[] segments = source.listFiles(new FilenameFilter()
+		{
+
+			public boolean accept(File directory, String name)
+			{
+				return name.endsWith(".rec");
+			}
+		});
+		if (segments == null)
+		{
+			throw new IOException("No recording at " + source);
+		}
+		Arrays.sort(segments);
+		return segments;
+	}
+
+	/**
+	 * Maps a segment and checks its header.
+	 *
+	 * @param segment
+	 *            Segment file.
+	 * @return The mapping, positioned on the first record.
+	 * @throws IOException
+	 *             If the file can not be read or is not a segment.
+	 */
+	private static ByteBuffer map(File segment) throws IOException
+	{
+		RandomAccessFile file = new RandomAccessFile(segment, "r");
+		try
+		{
+			ByteBuffer buffer = file.getChannel().map(
+					FileChannel.MapMode.READ_ONLY, 0, file.length());
+			if (buffer.remaining() < FlightRecorder.FILE_HEADER_SIZE)
+			{
+				throw new IOException(segment + " is not a flight recording");
+			}
+			for (int i = 0; i < FlightRecorder.MAGIC.length(); i++)
+			{
+				if (buffer.get() != FlightRecorder.MAGIC.charAt(i))
+				{
+					throw new IOException(segment
+							+ " is not a flight recording");
+				}
+			}
+			short version = buffer.getShort();
+			if (version != FlightRecorder.VERSION)
+			{
+				throw new IOException(segment + " has unknown version "
+						+ version);
+			}
+			return buffer;
+		}
+		finally
+		{
+			file.close();
+		}
+	}
+
+	/**
+	 * Reads the start time of a segment.
+	 *
+	 * @param segment
+	 *            Segment file.
+	 * @return Start time in seconds since the epoch.
+	 * @throws IOException
+	 *             If the file can not be read or is not a segment.
+	 */
+	private static long startOf(File segment) throws IOException
+	{
+		ByteBuffer buffer = map(segment);
+		buffer.getShort();
+		return buffer.getInt() & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * Replays the received frames of one segment.
+	 *
+	 * @param segment
+	 *            Segment file.
+	 * @throws IOException
+	 *             If the file can not be read or is not a segment.
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting for a frame.
+	 */
+	private void replaySegment(File segment) throws IOException,
+			InterruptedException
+	{
+		ByteBuffer buffer = map(segment);
+		int headerSize = buffer.getShort();
+		buffer.getInt();
+		while (buffer.remaining() >= headerSize && !isStopped())
+		{
+			int start = buffer.position();
+			long time = buffer.getLong();
+			int length = buffer.getShort() & 0xFFFF;
+			int link = buffer.get() & 0xFF;
+			int direction = buffer.get();
+			buffer.position(start + headerSize);
+			if (length == 0 || length > buffer.remaining())
+			{
+				return;
+			}
+			if (direction != FlightRecorder.RECEIVED || time < from)
+			{
+				buffer.position(buffer.position() + length);
+				continue;
+			}
+			if (length > frame.length)
+			{
+				frame = new byte[length];
+			}
+			buffer.get(frame, 0, length);
+			waitFor(time);
+			listener.onReplayFrame(frame, length, link, time);
+			position = time;
+			frames++;
+		}
+	}
+
+	/**
+	 * Waits until a frame is due at the replay speed.
+	 *
+	 * @param time
+	 *            Recorded time of the frame in microseconds.
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting.
+	 */
+	private void waitFor(long time) throws InterruptedException
+	{
+		if (firstTime < 0)
+		{
+			firstTime = time;
+			firstNanos = System.nanoTime();
+			return;
+		}
+		if (speed == 0)
+		{
+			return;
+		}
+		long due = firstNanos + (long) ((time - firstTime) * 1000 / speed);
+		long wait = due - System.nanoTime();
+		if (wait > 0)
+		{
+			TimeUnit.NANOSECONDS.sleep(wait);
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the replay must end.
+	 */
+	private boolean isStopped()
+	{
+		return stopped || Thread.currentThread().isInterrupted();
+	}
+}
@@ -6,7 +6,10 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import interactivespaces.activity.impl.ros.BaseRoutableRosActivity;
 import interactivespaces.util.concurrency.ManagedCommand;
@@ -22,6 +25,7 @@ import java.io.UnsupportedEncodingException;
 import java.lang.Class;
 import java.lang.reflect.Field;
 import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
 
 import javax.xml.parsers.ParserConfigurationException;
 import org.xml.sax.SAXException;
@@ -64,6 +68,64 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 	 */
 	private static final String CONFIGURATION_SUBSCRIBER_NAME = "space.activity.routes.inputs";
 	
+	/**
+	 * The prefix of the config properties holding the topic of every output
+	 * route.
+	 */
+	private static final String CONFIGURATION_OUTPUT_ROUTE_PREFIX = "space.activity.route.output.";
+	
+	/**
+	 * The name of the config property for the rate in Hz of the telemetry
+	 * streams requested on activation.
+	 */
+	private static final String CONFIGURATION_STREAM_RATE = "space.mavlink.stream.rate";
+	
+	/**
+	 * The name of the config property enabling the flight recorder.
+	 */
+	private static final String CONFIGURATION_RECORDER_ENABLED = "space.mavlink.recorder.enabled";
+	
+	/**
+	 * The name of the config property for the directory of the flight
+	 * recordings, by default the recordings directory of the activity data.
+	 */
+	private static final String CONFIGURATION_RECORDER_DIRECTORY = "space.mavlink.recorder.directory";
+	
+	/**
+	 * The name of the config property for the size of a recording segment in
+	 * megabytes.
+	 */
+	private static final String CONFIGURATION_RECORDER_SEGMENT_SIZE = "space.mavlink.recorder.segment.size";
+	
+	/**
+	 * The name of the config property for the longest duration of a
+	 * recording segment in seconds.
+	 */
+	private static final String CONFIGURATION_RECORDER_SEGMENT_TIME = "space.mavlink.recorder.segment.time";
+	
+	/**
+	 * The name of the config property for the telemetry fields kept in
+	 * memory, separated by ':', all of them if not set.
+	 */
+	private static final String CONFIGURATION_TELEMETRY_FIELDS = "space.mavlink.telemetry.fields";
+	
+	/**
+	 * The name of the config property for the minutes of telemetry history
+	 * kept in memory.
+	 */
+	private static final String CONFIGURATION_TELEMETRY_MINUTES = "space.mavlink.telemetry.minutes";
+	
+	/**
+	 * The name of the config property for the highest rate in Hz at which
+	 * the raw telemetry samples are kept for the whole history.
+	 */
+	private static final String CONFIGURATION_TELEMETRY_RATE = "space.mavlink.telemetry.rate";
+	
+	/**
+	 * The name of the config property enabling the telemetry archive.
+	 */
+	private static final String CONFIGURATION_ARCHIVE_ENABLED = "space.mavlink.archive.enabled";
+	
 	/**
 	 * The topic names for publishing data.
 	 * <p>
@@ -183,8 +245,32 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 	 * <p>
 	 * Usage : An output topic having all the Terrain Report messages
 	 * <p>
+	 * publishers[19] -> outputSerial_M
+	 * <p>
+	 * Topic Name : comms/serial/input
+	 * <p>
+	 * Usage : Send data to the drone over the serial link
+	 * <p>
+	 * publishers[20] -> link_stats
+	 * <p>
+	 * Topic Name : mavlink/link/stats
+	 * <p>
+	 * Usage : An output topic having the health of every link once per second
+	 * <p>
+	 * publishers[21] -> outputTcp_M
+	 * <p>
+	 * Topic Name : comms/tcp/input
+	 * <p>
+	 * Usage : Send data to the drone over the TCP links
+	 * <p>
+	 * publishers[22] -> telemetry_history
+	 * <p>
+	 * Topic Name : mavlink/telemetry/history
+	 * <p>
+	 * Usage : Answer the queries of the telemetry history
+	 * <p>
 	 */
-	private static String publishers[];
+	private String publishers[];
 
 	/**
 	 * The topic names for subscribing data.
@@ -214,87 +300,256 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 	 * Topic Name : captain/rc_output
 	 * <p>
 	 * Usage : Receive RC output from the captain activity
+	 * <p>
+	 * subscribers[4] -> inputSerial_M
+	 * <p>
+	 * Topic Name : comms/serial/output
+	 * <p>
+	 * Usage : Receive data from the serial comms activity ie from drone
+	 * <p>
+	 * subscribers[5] -> inputTcp_M
+	 * <p>
+	 * Topic Name : comms/tcp/output
+	 * <p>
+	 * Usage : Receive data from the TCP comms activity ie from drone
+	 * <p>
+	 * subscribers[6] -> stream_demand
+	 * <p>
+	 * Topic Name : mavlink/stream/demand
+	 * <p>
+	 * Usage : Receive the topics other activities read and their rates
+	 * <p>
+	 * subscribers[7] -> replay
+	 * <p>
+	 * Topic Name : mavlink/replay
+	 * <p>
+	 * Usage : Start and stop the replay of a flight recording
+	 * <p>
+	 * subscribers[8] -> telemetry_query
+	 * <p>
+	 * Topic Name : mavlink/telemetry/query
+	 * <p>
+	 * Usage : Receive queries of the telemetry history
+	 */
+	private String subscribers[];
+	
+	/**
+	 * Link number of the UDP comms activity in the {@link #linkBonder}.
+	 */
+	private static final int LINK_UDP = 0;
+	
+	/**
+	 * Link number of the serial comms activity in the {@link #linkBonder}.
+	 */
+	private static final int LINK_SERIAL = 1;
+	
+	/**
+	 * Link number of the TCP comms activity in the {@link #linkBonder}.
+	 */
+	private static final int LINK_TCP = 2;
+	
+	/**
+	 * Period of the link statistics in seconds.
+	 */
+	private static final long LINK_STATS_PERIOD = 1;
+	
+	/**
+	 * Message ids sent on every live link: SET_MODE, MANUAL_CONTROL,
+	 * RC_CHANNELS_OVERRIDE, COMMAND_INT and COMMAND_LONG.
+	 */
+	private static final int[] CRITICAL_MESSAGES = { 11, 69, 70, 75, 76 };
+	
+	/**
+	 * Message ids paced by the {@link #radioFlow}: the PARAM_*, MISSION_* and
+	 * LOG_* transfers, GPS_INJECT_DATA and FILE_TRANSFER_PROTOCOL.
+	 */
+	private static final int[] BULK_MESSAGES = { 20, 21, 23, 39, 40, 41, 43,
+			44, 45, 47, 51, 73, 110, 117, 119, 121, 122, 123 };
+	
+	/**
+	 * Bonds the UDP, serial and TCP links, de-duplicates the packets received
+	 * on all of them and chooses the links of the uplink packets.
+	 */
+	private LinkBonder linkBonder;
+	
+	/**
+	 * Output topic of every link, indexed by link number.
+	 */
+	private String[] linkOutputs;
+	
+	/**
+	 * Health counters of every link, indexed by link number.
+	 */
+	private LinkStatistics[] linkStatistics;
+	
+	/**
+	 * Scales the telemetry stream rates and paces the bulk uplink to the
+	 * state of the telemetry radio.
+	 */
+	private RadioFlowController radioFlow;
+	
+	/**
+	 * Records the raw frames of every link, <code>null</code> if disabled.
+	 */
+	private FlightRecorder recorder;
+	
+	/**
+	 * Directory of the flight recordings, the default replay source.
+	 */
+	private File recordingDirectory;
+	
+	/**
+	 * Replay in progress, <code>null</code> if none.
 	 */
-	private static String subscribers[];
+	private volatile FlightReplayer replayer;
 	
-    /**
-    * A message to pack and unpack all messages to/from payload
-    * <p>
-    * Common interface for all MAVLink Messages
-    * <p>
-    * Packet Anatomy
-    * <p>
-    * This is the anatomy of one packet. It is inspired by the CAN and SAE AS-4 standards.
-    * <p>
-    * Byte Index  Content              Value       Explanation
-    * <p>
-    * 0            Packet start sign  v1.0: 0xFE   Indicates the start of a new packet.  (v0.9: 0x55)
-    * <p>
-    * 1            Payload length      0 - 255     Indicates length of the following payload.
-    * <p>
-    * 2            Packet sequence     0 - 255     Each component counts up his send sequence. Allows to detect packet loss
-    * <p>
-    * 3            System ID           1 - 255     ID of the SENDING system. Allows to differentiate different MAVs on the same network.
-    * <p>
-    * 4            Component ID        0 - 255     ID of the SENDING component. Allows to differentiate different components of the same system, e.g. the IMU and the autopilot.
-    * <p>
-    * 5            Message ID          0 - 255     ID of the message - the id defines what the payload means and how it should be correctly decoded.
-    * <p>
-    * 6 to (n+6)   Payload             0 - 255     Data of the message, depends on the message id.
-    * <p>
-    * (n+7)to(n+8) Checksum (low byte, high byte)  ITU X.25/SAE AS-4 hash, excluding packet start sign, so bytes 1..(n+6) Note: The checksum also includes MAVLINK_CRC_EXTRA (Number computed from message fields. Protects the packet from decoding a different version of the same packet but with different variables).
-    * <p>
-    * The checksum is the same as used in ITU X.25 and SAE AS-4 standards (CRC-16-CCITT), documented in SAE AS5669A. Please see the MAVLink source code for a documented C-implementation of it. LINK TO CHECKSUM
-    * <p>
-    * The minimum packet length is 8 bytes for acknowledgement packets without payload
-    * <p>
-    * The maximum packet length is 263 bytes for full payload
-    */
-	private MAVLinkPacket mavPacket;
+	/**
+	 * Links of the replay through the comms input path. They have parsers of
+	 * their own, so that a replay never touches the framing of a live link,
+	 * and are never used for the uplink.
+	 */
+	private volatile LinkBonder replayBonder;
+	
+	/**
+	 * Statistics of every link of the {@link #replayBonder}.
+	 */
+	private volatile LinkStatistics[] replayStatistics;
+	
+	/**
+	 * Latest state of every drone of the last replay, kept apart from the
+	 * {@link #vehicleStates} of the live drones.
+	 */
+	private volatile VehicleStateStore replayStates;
+	
+	/**
+	 * Telemetry history of the targeted drone in the last replay, kept apart
+	 * from the live {@link #telemetry}.
+	 */
+	private volatile TelemetryStore replayTelemetry;
+	
+	/**
+	 * Bulk uplink packets waiting for the {@link #radioFlow} pacing.
+	 */
+	private BlockingQueue<Map<String, Object>> bulkUplink;
+	
+	/**
+	 * Consecutive stream checks after which a stream sent at the wrong rate
+	 * is requested again.
+	 */
+	private static final int STREAM_MISMATCH_CHECKS = 3;
+	
+	/**
+	 * Number of times a stream sent at the wrong rate is requested again
+	 * before giving up until its rate changes.
+	 */
+	private static final int STREAM_MAX_REQUESTS = 3;
+	
+	/**
+	 * Publisher index and MAV_DATA_STREAM id of every streamed output topic.
+	 */
+	private static final int[][] TOPIC_STREAMS = { { 5, 11 }, { 6, 10 },
+			{ 7, 2 }, { 8, 12 }, { 9, 2 }, { 10, 1 }, { 11, 1 }, { 12, 6 },
+			{ 13, 6 }, { 14, 3 }, { 15, 3 }, { 16, 2 }, { 17, 2 }, { 18, 12 } };
+	
+	/**
+	 * Tracks the declared demand and the measured rate of every stream.
+	 */
+	private StreamDemandManager streamDemand;
+	
+	/**
+	 * MAV_DATA_STREAM id of every streamed output, by route name and by
+	 * topic name.
+	 */
+	private Map<String, Integer> streamOfTopic;
 	
 	/**
-	 * This is an instance of Parser class which has a convenience function
-	 * called mavlink_parse_char which handles the complete MAVLink parsing.
-	 * This function will parse one byte at a time and return the complete
-	 * packet once it could be successfully decoded. Checksum and other failures
-	 * will be silently ignored.
+	 * Consecutive failed rate checks per stream.
 	 */
-	private Parser mavParser;
+	private int[] streamMismatches;
 	
 	/**
-	 * This is an instance of MAVLinkMessage which wraps up all the message
-	 * classes sent by the drone.
+	 * Rate in Hz of every stream while no activity declares a demand, set
+	 * by a READ_DATASTREAM command for MAV_DATA_STREAM_ALL.
 	 */
-	private MAVLinkMessage mavMessage;
+	private volatile int defaultStreamRate;
 	
 	/**
 	 * This is the default id of the target system. It essentially is the first
 	 * id which the mavlink activity sees
 	 */
-	private static byte targetSystem ; // TO DO : Get this from the current drone
+	private volatile byte targetSystem ; // TO DO : Get this from the current drone
 	
 	/**
 	 * This is the default id of the target component. It essentially is the
 	 * heartbeat component id which is 0. This can be used to send data globally
 	 * to a target system
 	 */
-	private static byte targetComponent; // TO DO : Get this from the current drone
+	private volatile byte targetComponent; // TO DO : Get this from the current drone
 	
 	/**
 	 * A flag to show if any heartbeat message has been received. This signifies
 	 * that atleast one drone is connected and data can be sent to it.
 	 */
-	private static boolean heartbeatReceiveFlag;
+	private volatile boolean heartbeatReceiveFlag;
+	
+	/**
+	 * Encodes the RC override packets coming from the captain activity
+	 * without allocating a new packet every tick.
+	 */
+	private final RcOverrideEncoder rcEncoder = new RcOverrideEncoder();
 	
 	/**
-	 * The response from comms activity stored in this global variable
+	 * RC channel values of the last rc_output message.
 	 */
-	private int responseGlobal[];
+	private final short[] rcChannels = new short[RcOverrideEncoder.CHANNELS];
 	
 	/**
-	 * A latest heartbeat message.
+	 * Start of the current rc latency statistics window in
+	 * {@link System#currentTimeMillis()} units.
 	 */
-	private msg_heartbeat heartbeat;
+	private long rcLatencyWindowStart;
+	
+	/**
+	 * Number of rc_output messages in the current latency window.
+	 */
+	private int rcLatencyCount;
+	
+	/**
+	 * Sum of the captain to link latency in the current window in milliseconds.
+	 */
+	private long rcLatencySum;
+	
+	/**
+	 * Largest captain to link latency in the current window in milliseconds.
+	 */
+	private long rcLatencyMax;
+	
+	/**
+	 * Sequence number of the last rc_output message.
+	 */
+	private long rcLastSequence;
+	
+	/**
+	 * Number of rc_output messages missing in the current latency window.
+	 */
+	private long rcMissed;
+	
+	/**
+	 * Latest decoded state of every drone, updated by the dispatch thread and
+	 * read without locking by the command handlers.
+	 */
+	private VehicleStateStore vehicleStates;
+	
+	/**
+	 * Recent history of the numeric telemetry of the targeted drone.
+	 */
+	private TelemetryStore telemetry;
+	
+	/**
+	 * Archive of the decoded state messages of the flight, <code>null</code>
+	 * if disabled.
+	 */
+	private volatile TelemetryArchive archive;
 	
 	/**  
 	 * A List of String arrays containing waypoint data read from the drone
@@ -335,12 +590,6 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 	 */
 	private short readWaypointCount = -1;
 	
-	/**
-	 * The current sequence number of mission item being requested/sent. Used
-	 * for termination/retry of sending all the mission items.
-	 */
-	private short missionCurrentSeq;
-	
 	/**
 	 * A flag to tell if the mission clear was successful.
 	 */
@@ -410,26 +659,6 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 	 */
 	private boolean receiveParam;
 	
-	/**
-	 * A min max pair of Point3D type to store the safety allowed area. The
-	 * minimum value denotes the bottom south west corner and the maximum value
-	 * is the point diagonally opposite to it. Thus, the safety allowed area is
-	 * the volume inside the box.
-	 */
-	private MinMaxPair<Point3D> allowedArea=null;
-	
-	/**
-	 * Frame of reference of the safety allowed area min max pair.
-	 */
-	@SuppressWarnings("unused")
-	private byte allowedAreaFrame;
-	
-	/**
-	 * Stores Global GPS Origin. Useful for terminating/retrying
-	 * setGlobalGpsOrigin.
-	 */
-	private Point3D globalGpsOrigin;
-	
 	/**
 	 * Stores the Parameter.xml file. This file contains the allowed commands
 	 * and values of all the commands.
@@ -458,8 +687,75 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
         getLog().info("Activity is.erle.mavlink setup");
         publishers = getConfiguration().getRequiredPropertyString(CONFIGURATION_PUBLISHER_NAME).split(":");
         subscribers = getConfiguration().getRequiredPropertyString(CONFIGURATION_SUBSCRIBER_NAME).split(":");
-        responseGlobal = new int[1000];
-        mavParser = new Parser();
+        linkBonder = new LinkBonder("udp", "serial", "tcp");
+        linkOutputs = new String[] { publishers[0], publishers[19], publishers[21] };
+        linkStatistics = new LinkStatistics[] {
+        		new LinkStatistics(linkBonder.getParser(LINK_UDP)),
+        		new LinkStatistics(linkBonder.getParser(LINK_SERIAL)),
+        		new LinkStatistics(linkBonder.getParser(LINK_TCP)) };
+        radioFlow = new RadioFlowController();
+        bulkUplink = new LinkedBlockingQueue<Map<String, Object>>();
+        streamDemand = new StreamDemandManager();
+        for (int messageId = 0; messageId < 256; messageId++)
+        {
+        	if (VehicleState.isKept(messageId))
+        	{
+        		streamDemand.declareInternal(messageId);
+        	}
+        }
+        for (TelemetryField field : TelemetryField.values())
+        {
+        	streamDemand.declareInternal(field.getMessageId());
+        }
+        vehicleStates = new VehicleStateStore();
+        telemetry = createTelemetryStore();
+        streamMismatches = new int[RadioFlowController.STREAMS];
+        streamOfTopic = Maps.newHashMap();
+        for (int[] topicStream : TOPIC_STREAMS)
+        {
+        	String route = publishers[topicStream[0]];
+        	streamOfTopic.put(route, topicStream[1]);
+        	String topic = getConfiguration().getPropertyString(
+        			CONFIGURATION_OUTPUT_ROUTE_PREFIX + route);
+        	if (topic != null)
+        	{
+        		streamOfTopic.put(topic, topicStream[1]);
+        	}
+        }
+        defaultStreamRate = getConfiguration().getPropertyInteger(
+        		CONFIGURATION_STREAM_RATE, 1);
+        recordingDirectory = new File(getConfiguration().getPropertyString(
+        		CONFIGURATION_RECORDER_DIRECTORY,
+        		new File(getActivityFilesystem().getPermanentDataDirectory(),
+        				"recordings").getAbsolutePath()));
+        if (getConfiguration().getPropertyBoolean(
+        		CONFIGURATION_RECORDER_ENABLED, true))
+        {
+        	openRecorder();
+        }
+        if (getConfiguration().getPropertyBoolean(
+        		CONFIGURATION_ARCHIVE_ENABLED, true))
+        {
+        	openArchive();
+        }
+		getManagedCommands().scheduleAtFixedRate(new Runnable()
+		{
+
+			public void run()
+			{
+				publishLinkStats();
+				checkStreams(updateStreams());
+				requestStreamChanges();
+			}
+		}, LINK_STATS_PERIOD, LINK_STATS_PERIOD, TimeUnit.SECONDS);
+		getManagedCommands().submit(new Runnable()
+		{
+
+			public void run()
+			{
+				writeBulkUplink();
+			}
+		});
         heartbeatReceiveFlag = false;
         String directory = getActivityFilesystem().getInstallDirectory().getAbsolutePath() +"/ParameterMetaDataBackup.xml";
         inputFile = new File(directory);
@@ -512,7 +808,9 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
     @Override
     public void onActivityActivate() {
         getLog().info("Activity is.erle.mavlink activate");
-        getDataStream(MAV_DATA_STREAM.MAV_DATA_STREAM_ALL, 1);
+        radioFlow.reset();
+        updateStreams();
+        requestStreamChanges();
 		// getDataStream(MAV_DATA_STREAM.MAV_DATA_STREAM_RAW_SENSORS, 1);
 		// getDataStream(MAV_DATA_STREAM.MAV_DATA_STREAM_RAW_CONTROLLER, 1);
 		// getDataStream(MAV_DATA_STREAM.MAV_DATA_STREAM_RC_CHANNELS, 1);
@@ -575,184 +873,916 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
     }
 
 	/**
-	 * Executes on activity cleanup.
-	 * 
-	 * @see interactivespaces.activity.impl.BaseActivity#onActivityCleanup()
-	 * @since 1.0.0
+	 * Executes on activity cleanup.
+	 * 
+	 * @see interactivespaces.activity.impl.BaseActivity#onActivityCleanup()
+	 * @since 1.0.0
+	 */
+    @Override
+    public void onActivityCleanup() {
+        getLog().info("Activity is.erle.mavlink cleanup");
+        FlightReplayer replay = replayer;
+        if (replay != null)
+        {
+        	replay.stop();
+        }
+        if (recorder != null)
+        {
+        	recorder.close();
+        }
+        if (archive != null)
+        {
+        	try
+        	{
+        		archive.close();
+        	}
+        	catch (IOException e)
+        	{
+        		getLog().error("Could not close the telemetry archive", e);
+        	}
+        }
+    }
+    
+	/**
+	 * Callback for new message on the subscribed topics. Processes incoming
+	 * messages.
+	 * 
+	 * @param channelName
+	 *            Channel name of incoming message
+	 * @param message
+	 *            Message stored in a key-value pair in a map
+	 * @see interactivespaces.activity.impl.ros.BaseRoutableRosActivity
+	 * @see java.util.Map
+	 * @since 1.0.0
+	 */
+    @Override
+    public void onNewInputJson(String channelName, Map <String , Object> message)
+    {
+		getLog().debug("Got message on input channel " + channelName);
+		getLog().debug(message);
+		if (channelName.equals(subscribers[0]))
+		{
+			// Data from drone handled here
+			if (message.containsKey("comm"))
+			{
+
+				parseComm(message.get("comm").toString(), LINK_UDP);
+
+			}
+		}
+		else if (channelName.equals(subscribers[4]))
+		{
+			if (message.containsKey("comm"))
+			{
+				parseComm(message.get("comm").toString(), LINK_SERIAL);
+			}
+		}
+		else if (channelName.equals(subscribers[5]))
+		{
+			if (message.containsKey("comm"))
+			{
+				parseComm(message.get("comm").toString(), LINK_TCP);
+			}
+		}
+		else if (channelName.equals(subscribers[6]))
+		{
+			declareStreamDemand(message);
+		}
+		else if (channelName.equals(subscribers[7]))
+		{
+			handleReplayCommand(message);
+		}
+		else if (channelName.equals(subscribers[8]))
+		{
+			answerTelemetryQuery(message);
+		}
+    	
+    	else if (channelName.equals(subscribers[1]))
+    	{
+    		
+    		//Waypoint generator message handling here
+    		/* 
+    		 * Details : http://qgroundcontrol.org/mavlink/waypoint_protocol
+    		 * */
+			String tempString[] = message.get("mission").toString().split("-");
+			if (tempString[0].equals("START")) {
+				if (heartbeatReceiveFlag) {
+					sendMissionCount = Short.parseShort(tempString[1]
+							.replace(" ", ""));
+					
+					/*msg_mission_count missionStart = new msg_mission_count();
+					missionStart.count = missionCount;
+					missionStart.target_system = targetSystem;
+					missionStart.target_component = targetComponent;
+					byte tempByte[] = missionStart.pack().encodePacket();
+					Map<String, Object> tempMapMission = Maps.newHashMap();
+					tempMapMission.put("comm", Arrays.toString(tempByte));
+					sendToDrone(tempMapMission);
+					getLog().info("SENDING COUNT : "+Arrays.toString(tempByte));
+					getLog().info("TARGET SYSTEM : " + targetSystem +" TARGET COMPONENT : " + targetComponent);*/
+				} 
+				else {
+					getLog().error("Did not receive a heartbeat packet till now");
+				}
+			}
+    		
+    		else
+    		{
+				
+    			/*
+				 * Format
+				 * QGC WPL <VERSION> 
+				 * <INDEX> <CURRENT WP> <COORD FRAME><COMMAND> <PARAM1> <PARAM2> <PARAM3> <PARAM4><PARAM5/X/LONGITUDE> <PARAM6/Y/LATITUDE> <PARAM7/Z/ALTITUDE><AUTOCONTINUE> 
+				 * 
+				 * Example
+				 * QGC WPL 110 
+				 * 0 1 0 16 0.149999999999999994 0 0 0 8.54800000000000004 47.3759999999999977 550 1 
+				 * 1 0 0 16 0.149999999999999994 0 0 0 8.54800000000000004 47.3759999999999977 550 1 
+				 * 2 0 0 16 0.149999999999999994 0 0 0 8.54800000000000004 47.3759999999999977 550 1
+				 */
+    			
+    			// Rest of the messages about the waypoint data
+				String missionWP[] =message.get("mission").toString()
+						.replaceAll("\\[", "").replaceAll("\\]", "")
+						.replaceAll(" ", "").split(",");
+				sendMissionItem(missionWP, tempTSystem, tempTComponent);
+				/*msg_mission_item missionItem = new msg_mission_item();
+				missionItem.seq = Short.parseShort(missionWP[0]);
+				missionItem.current = Byte.parseByte(missionWP[1]);
+				missionItem.frame = Byte.parseByte(missionWP[2]);
+				missionItem.command = Short.parseShort(missionWP[3]);
+				missionItem.param1 = Float.parseFloat(missionWP[4]);
+				missionItem.param2 = Float.parseFloat(missionWP[5]);
+				missionItem.param3 = Float.parseFloat(missionWP[6]);
+				missionItem.param4 = Float.parseFloat(missionWP[7]);
+				missionItem.x = Float.parseFloat(missionWP[8]);
+				missionItem.y = Float.parseFloat(missionWP[9]);
+				missionItem.z = Float.parseFloat(missionWP[10]);
+				missionItem.autocontinue =Byte.parseByte(missionWP[11]);
+				missionItem.target_system = targetSystem;
+				missionItem.target_component = targetComponent;
+				byte tempByte[] = missionItem.pack().encodePacket();
+				Map<String, Object> tempMapMission = Maps.newHashMap();
+				tempMapMission.put("comm", Arrays.toString(tempByte));
+				sendToDrone(tempMapMission);
+				getLog().info("SENDING MISSION ITEM: "+Arrays.toString(tempByte));*/
+    		}
+    		
+    	}
+    	
+		else if (channelName.equals(subscribers[2]))
+		{
+			// Captain message handling here
+			//getLog().info(message.get("command"));
+			String tempString[] = message.get("command").toString().split("=");
+			//getLog().info(Arrays.toString(tempString));
+			handleCaptainMessage(tempString);
+
+		}
+		else if (channelName.equals(subscribers[3]))
+		{
+			// Data from drone handled here
+			Object rc = message.get("rc");
+			if (rc instanceof List)
+			{
+				handleRcOutput((List<?>) rc, message);
+			}
+			else if (rc != null)
+			{
+				// Older captain versions send the formatted array
+				String items[] = rc.toString()
+						.replaceAll("\\[", "").replaceAll("\\]", "")
+						.replaceAll(" ", "").split(",");
+				sendRCPacket(items);
+			}
+		}
+    }
+    
+	/**
+	 * Feeds the bytes of a comms message to the parser of its link and
+	 * dispatches every completed packet the {@link #linkBonder} has not seen
+	 * on another link yet. A message can hold any number of frames, a frame
+	 * can also be split across messages, the parser keeps its state between
+	 * calls. Every link is read on its own subscriber thread, so completed
+	 * packets are only held in locals.
+	 * 
+	 * @param comm
+	 *            Bytes formatted as by {@link Arrays#toString(byte[])}.
+	 * @param link
+	 *            Link number the message has been received on.
+	 */
+	private void parseComm(String comm, int link)
+	{
+		parseComm(comm, link, linkBonder, linkStatistics, false);
+	}
+	
+	/**
+	 * Feeds the bytes of a comms message to the parser of a link of the given
+	 * bonder and dispatches every completed packet it has not seen on another
+	 * of its links yet. Replayed packets are not recorded again and go to the
+	 * replay stores.
+	 * 
+	 * @param comm
+	 *            Bytes formatted as by {@link Arrays#toString(byte[])}.
+	 * @param link
+	 *            Link number the message has been received on.
+	 * @param bonder
+	 *            Bonder owning the parser of the link, read by one thread
+	 *            per link.
+	 * @param statistics
+	 *            Statistics of the links of the bonder.
+	 * @param replayed
+	 *            Whether the bytes come from a replay.
+	 */
+	private void parseComm(String comm, int link, LinkBonder bonder,
+			LinkStatistics[] statistics, boolean replayed)
+	{
+		Parser parser = bonder.getParser(link);
+		int value = 0;
+		boolean negative = false;
+		boolean inNumber = false;
+		int length = comm.length();
+		for (int i = 0; i <= length; i++)
+		{
+			char c = i < length ? comm.charAt(i) : ',';
+			if (c >= '0' && c <= '9')
+			{
+				value = value * 10 + (c - '0');
+				inNumber = true;
+			}
+			else if (c == '-')
+			{
+				negative = true;
+			}
+			else if (c == ',' || c == ']')
+			{
+				if (inNumber)
+				{
+					MAVLinkPacket packet = parser
+							.mavlink_parse_char((negative ? -value : value) & 0xFF);
+					if (packet != null)
+					{
+						if (!replayed)
+						{
+							stopReplayForLiveTraffic();
+						}
+						statistics[link].record(packet);
+						if (recorder != null && !replayed)
+						{
+							recorder.recordReceived(packet, link);
+						}
+						if (bonder.accept(link, packet))
+						{
+							dispatchPacket(packet, replayed);
+						}
+					}
+				}
+				value = 0;
+				negative = false;
+				inNumber = false;
+			}
+		}
+	}
+	
+	/**
+	 * Answers a query of the telemetry history on the telemetry history
+	 * topic. A query such as {"id": 7, "sysid": 1, "fields": ["GROUNDSPEED"],
+	 * "seconds": 120, "rate": 2} is answered with the start time and the step
+	 * of the grid and the mean, min and max arrays of every field, along with
+	 * the id of the query so that the asker can pick its answer. "field" can
+	 * be given instead of "fields" for a single field. History is only kept
+	 * for the targeted drone, any other sysid is answered with an error. With
+	 * "source" set to "replay" the history of the last replay is queried.
+	 * 
+	 * @param message
+	 *            Message received on the telemetry query topic.
+	 */
+	private void answerTelemetryQuery(Map<String, Object> message)
+	{
+		Map<String, Object> answer;
+		int sysid = message.get("sysid") instanceof Number ? ((Number) message
+				.get("sysid")).intValue() : targetSystem & 0xFF;
+		List<TelemetryField> fields = new ArrayList<TelemetryField>();
+		List<Object> names = new ArrayList<Object>();
+		if (message.get("fields") instanceof List)
+		{
+			names.addAll((List<?>) message.get("fields"));
+		}
+		else if (message.get("field") != null)
+		{
+			names.add(message.get("field"));
+		}
+		String error = null;
+		for (Object name : names)
+		{
+			try
+			{
+				fields.add(TelemetryField.valueOf(name.toString().toUpperCase()));
+			}
+			catch (IllegalArgumentException e)
+			{
+				error = "Unknown field " + name;
+			}
+		}
+		double seconds = message.get("seconds") instanceof Number ? ((Number) message
+				.get("seconds")).doubleValue() : 60;
+		double rate = message.get("rate") instanceof Number ? ((Number) message
+				.get("rate")).doubleValue() : 1;
+		if (fields.isEmpty() && error == null)
+		{
+			error = "No field";
+		}
+		else if (sysid != (targetSystem & 0xFF))
+		{
+			error = "No history for sysid " + sysid;
+		}
+		else if (seconds <= 0 || rate <= 0)
+		{
+			error = "Bad window";
+		}
+		TelemetryStore store = "replay".equals(message.get("source")) ? replayTelemetry
+				: telemetry;
+		if (error == null && store == null)
+		{
+			error = "No replay";
+		}
+		if (error == null)
+		{
+			answer = store.query(fields, seconds, rate);
+		}
+		else
+		{
+			answer = Maps.newHashMap();
+			answer.put("error", error);
+		}
+		answer.put("id", message.get("id"));
+		answer.put("sysid", sysid);
+		sendOutputJson(publishers[22], answer);
+	}
+	
+	/**
+	 * Creates the {@link #telemetry} store from the configuration. Unknown
+	 * field names are logged and skipped.
+	 * 
+	 * @return The store.
+	 */
+	private TelemetryStore createTelemetryStore()
+	{
+		List<TelemetryField> fields = new ArrayList<TelemetryField>();
+		String names = getConfiguration().getPropertyString(
+				CONFIGURATION_TELEMETRY_FIELDS);
+		if (names == null || names.trim().isEmpty())
+		{
+			fields.addAll(Arrays.asList(TelemetryField.values()));
+		}
+		else
+		{
+			for (String name : names.split(":"))
+			{
+				try
+				{
+					fields.add(TelemetryField.valueOf(name.trim().toUpperCase()));
+				}
+				catch (IllegalArgumentException e)
+				{
+					getLog().warn("Unknown telemetry field " + name);
+				}
+			}
+		}
+		int minutes = getConfiguration().getPropertyInteger(
+				CONFIGURATION_TELEMETRY_MINUTES, 10);
+		int rate = getConfiguration().getPropertyInteger(
+				CONFIGURATION_TELEMETRY_RATE, 10);
+		return new TelemetryStore(fields, minutes * 60, rate);
+	}
+	
+	/**
+	 * Creates the {@link #recorder} from the configuration and opens its first
+	 * segment. The link works without it if the segment can not be created.
+	 */
+	private void openRecorder()
+	{
+		recorder = new FlightRecorder(recordingDirectory, getConfiguration()
+				.getPropertyInteger(CONFIGURATION_RECORDER_SEGMENT_SIZE, 32) << 20,
+				getConfiguration().getPropertyInteger(
+						CONFIGURATION_RECORDER_SEGMENT_TIME, 600),
+				getSpaceEnvironment().getExecutorService());
+		try
+		{
+			recorder.open();
+			getLog().info("Recording the link traffic in " + recordingDirectory);
+		}
+		catch (IOException e)
+		{
+			getLog().error("Could not start the flight recorder", e);
+			recorder = null;
+		}
+	}
+	
+	/**
+	 * Creates the {@link #archive} in the recording directory, named after
+	 * the start time of the activity. The link works without it if the file
+	 * can not be created.
+	 */
+	private void openArchive()
+	{
+		File file = new File(recordingDirectory, "telemetry-"
+				+ new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date())
+				+ ".arc");
+		archive = new TelemetryArchive(file);
+		try
+		{
+			archive.open();
+			getLog().info("Archiving the telemetry in " + file);
+		}
+		catch (IOException e)
+		{
+			getLog().error("Could not start the telemetry archive", e);
+			archive = null;
+		}
+	}
+	
+	/**
+	 * Starts or stops the replay of a flight recording.
+	 * <p>
+	 * {"command": "start"} replays the recordings of the flight recorder
+	 * directory, or the file or directory given under "path", at the "speed"
+	 * given, 1 for real time by default and 0 for as fast as possible, from
+	 * the recorded time given under "from" in microseconds since the epoch.
+	 * With "target" set to "comms" the frames go through the comms input path
+	 * of the link they were recorded on, parsing, bonding and statistics
+	 * included, on links of a {@link #replayBonder} of their own. Otherwise
+	 * they are decoded by a parser of their own and handled in order on the
+	 * replay thread, which measures the throughput of
+	 * {@link #handleMavMessage(MAVLinkMessage)}. {"command": "stop"} ends the
+	 * replay.
+	 * <p>
+	 * Replayed messages update the {@link #replayStates} and the
+	 * {@link #replayTelemetry} instead of the live stores, and are neither
+	 * recorded, archived nor counted in the stream demand, so live traffic is
+	 * still recorded during a replay.
+	 * {@link #handleMavMessage(MAVLinkMessage)} however publishes them on the
+	 * output topics, heartbeats to the captain included, and acts on them
+	 * like live ones, target system and command state included. A replay is
+	 * therefore refused while any live link is alive, and stopped as soon as
+	 * a live packet arrives.
+	 * 
+	 * @param message
+	 *            Message received on the replay topic.
+	 */
+	private void handleReplayCommand(Map<String, Object> message)
+	{
+		Object command = message.get("command");
+		if ("stop".equals(command))
+		{
+			FlightReplayer replay = replayer;
+			if (replay != null)
+			{
+				replay.stop();
+			}
+			return;
+		}
+		if (!"start".equals(command))
+		{
+			getLog().warn("Invalid replay command " + message);
+			return;
+		}
+		if (replayer != null)
+		{
+			getLog().warn("A replay is already running");
+			return;
+		}
+		for (int link = 0; link < linkBonder.getLinkCount(); link++)
+		{
+			if (linkBonder.isAlive(link))
+			{
+				getLog().warn("Not replaying while a drone is attached on link "
+						+ link);
+				return;
+			}
+		}
+		File source = message.containsKey("path") ? new File(message.get(
+				"path").toString()) : recordingDirectory;
+		double speed = message.get("speed") instanceof Number ? ((Number) message
+				.get("speed")).doubleValue() : 1.0;
+		long from = message.get("from") instanceof Number ? ((Number) message
+				.get("from")).longValue() : 0;
+		final boolean throughComms = "comms".equals(message.get("target"));
+		final LinkBonder bonder = new LinkBonder("udp", "serial", "tcp");
+		final LinkStatistics[] statistics = new LinkStatistics[] {
+				new LinkStatistics(bonder.getParser(LINK_UDP)),
+				new LinkStatistics(bonder.getParser(LINK_SERIAL)),
+				new LinkStatistics(bonder.getParser(LINK_TCP)) };
+		replayBonder = bonder;
+		replayStatistics = statistics;
+		replayStates = new VehicleStateStore();
+		replayTelemetry = createTelemetryStore();
+		final Parser replayParser = new Parser();
+		replayer = new FlightReplayer(source, speed, from,
+				new FlightReplayListener()
+				{
+
+					public void onReplayFrame(byte[] frame, int length,
+							int link, long time)
+					{
+						if (throughComms)
+						{
+							parseComm(Arrays.toString(Arrays.copyOf(frame,
+									length)), Math.min(link, LINK_TCP), bonder,
+									statistics, true);
+							return;
+						}
+						for (int i = 0; i < length; i++)
+						{
+							MAVLinkPacket packet = replayParser
+									.mavlink_parse_char(frame[i] & 0xFF);
+							if (packet == null)
+							{
+								continue;
+							}
+							MAVLinkMessage unpacked = packet.unpack();
+							if (unpacked != null)
+							{
+								storeReplayed(unpacked);
+								handleMavMessage(unpacked);
+							}
+						}
+					}
+
+					public void onReplayEnd(long frames, double seconds,
+							String error)
+					{
+						replayer = null;
+						if (error != null)
+						{
+							getLog().error("Replay failed: " + error);
+						}
+						getLog().info("Replayed " + frames + " frames in "
+								+ seconds + " s, "
+								+ Math.round(frames / Math.max(seconds, 1e-3))
+								+ " frames/s");
+					}
+				});
+		getLog().info("Replaying " + source + " at speed " + speed);
+		getManagedCommands().submit(replayer);
+	}
+	
+	/**
+	 * Stops the running replay, if any, once live traffic arrives, so that
+	 * replayed messages are never handled alongside those of a live drone.
+	 */
+	private void stopReplayForLiveTraffic()
+	{
+		FlightReplayer replay = replayer;
+		if (replay != null && !replay.isStopping())
+		{
+			getLog().warn("Live traffic received, stopping the replay");
+			replay.stop();
+		}
+	}
+	
+	/**
+	 * Updates the replay stores with a replayed message.
+	 * 
+	 * @param unpacked
+	 *            Replayed message.
+	 */
+	private void storeReplayed(MAVLinkMessage unpacked)
+	{
+		replayStates.update(unpacked);
+		if (unpacked.sysid == (targetSystem & 0xFF))
+		{
+			replayTelemetry.record(unpacked);
+		}
+	}
+	
+	/**
+	 * Gets the latest state of the targeted drone.
+	 * 
+	 * @return State of {@link #targetSystem}.
+	 */
+	public VehicleState getVehicleState()
+	{
+		return vehicleStates.get(targetSystem);
+	}
+	
+	/**
+	 * Publishes the rates of every link and the bonding scores on the link
+	 * statistics topic.
+	 */
+	private void publishLinkStats()
+	{
+		Map<String, Object> linkStats = Maps.newHashMap();
+		linkStats.put("udp", linkStatistics[LINK_UDP].sample());
+		linkStats.put("serial", linkStatistics[LINK_SERIAL].sample());
+		linkStats.put("tcp", linkStatistics[LINK_TCP].sample());
+		linkStats.put("bonding", linkBonder.getStats());
+		linkStats.put("radio", radioFlow.getStats());
+		if (recorder != null)
+		{
+			linkStats.put("recorder", recorder.getStats());
+		}
+		TelemetryArchive archived = archive;
+		if (archived != null)
+		{
+			linkStats.put("archive", archived.getStats());
+		}
+		FlightReplayer replay = replayer;
+		if (replay != null)
+		{
+			Map<String, Object> replayStats = replay.getStats();
+			LinkStatistics[] statistics = replayStatistics;
+			replayStats.put("udp", statistics[LINK_UDP].sample());
+			replayStats.put("serial", statistics[LINK_SERIAL].sample());
+			replayStats.put("tcp", statistics[LINK_TCP].sample());
+			replayStats.put("bonding", replayBonder.getStats());
+			linkStats.put("replay", replayStats);
+		}
+		linkStats.put("telemetry", telemetry.getStats());
+		sendOutputJson(publishers[20], linkStats);
+	}
+	
+	/**
+	 * Sends a packet to the drone over the bonded links. Critical packets go
+	 * out on every live link, all others on the best scoring one.
+	 * 
+	 * @param message
+	 *            Message holding the encoded packet under the "comm" key, as
+	 *            expected by the comms activities.
+	 */
+	private void sendToDrone(Map<String, Object> message)
+	{
+		int messageId = messageIdOf(message.get("comm").toString());
+		for (int id : BULK_MESSAGES)
+		{
+			if (id == messageId)
+			{
+				bulkUplink.add(message);
+				return;
+			}
+		}
+		transmit(message, messageId);
+	}
+	
+	/**
+	 * Sends a packet on the links chosen by the {@link #linkBonder}.
+	 * 
+	 * @param message
+	 *            Message holding the encoded packet.
+	 * @param messageId
+	 *            Message id of the packet.
+	 */
+	private void transmit(Map<String, Object> message, int messageId)
+	{
+		boolean critical = false;
+		for (int id : CRITICAL_MESSAGES)
+		{
+			if (id == messageId)
+			{
+				critical = true;
+				break;
+			}
+		}
+		for (int link : linkBonder.uplinkLinks(critical))
+		{
+			sendOutputJson(linkOutputs[link], message);
+			if (recorder != null)
+			{
+				recorder.recordSent(message.get("comm").toString(), link);
+			}
+		}
+	}
+	
+	/**
+	 * Sends the bulk uplink packets in order until the thread is cancelled,
+	 * keeping them at least the interval given by the {@link #radioFlow}
+	 * apart so that the radio buffer does not overflow.
+	 */
+	private void writeBulkUplink()
+	{
+		long nextSend = System.nanoTime();
+		try
+		{
+			while (!Thread.currentThread().isInterrupted())
+			{
+				Map<String, Object> message = bulkUplink.take();
+				long wait = nextSend - System.nanoTime();
+				if (wait > 0)
+				{
+					TimeUnit.NANOSECONDS.sleep(wait);
+				}
+				transmit(message, messageIdOf(message.get("comm").toString()));
+				nextSend = System.nanoTime() + radioFlow.getBulkInterval();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Records the stream demand of an activity. The message holds the name
+	 * of the activity under "consumer" and, under "demands", a map from every
+	 * output topic it reads to the highest rate in Hz it reads it at. The
+	 * declaration must be renewed every few seconds, an empty map withdraws
+	 * it.
+	 * 
+	 * @param message
+	 *            Message received on the stream demand topic.
+	 */
+	private void declareStreamDemand(Map<String, Object> message)
+	{
+		Object consumer = message.get("consumer");
+		Object demands = message.get("demands");
+		if (consumer == null || !(demands instanceof Map))
+		{
+			getLog().warn("Invalid stream demand " + message);
+			return;
+		}
+		Map<Integer, Integer> rates = Maps.newHashMap();
+		for (Map.Entry<?, ?> demand : ((Map<?, ?>) demands).entrySet())
+		{
+			Integer stream = streamOfTopic.get(demand.getKey().toString());
+			if (stream == null || !(demand.getValue() instanceof Number))
+			{
+				getLog().warn("Ignoring stream demand of " + consumer
+						+ " for " + demand.getKey());
+				continue;
+			}
+			int rate = (int) Math.ceil(((Number) demand.getValue())
+					.doubleValue());
+			Integer previous = rates.get(stream);
+			rates.put(stream, previous == null ? rate : Math.max(previous, rate));
+		}
+		streamDemand.declare(consumer.toString(), rates);
+		updateStreams();
+		requestStreamChanges();
+	}
+	
+	/**
+	 * Sets the wanted rate of every stream from the declared demand. Without
+	 * any demand every stream is requested at the default rate as before.
+	 * Otherwise only the demanded streams are, each at its highest demanded
+	 * rate, the streams the vehicle state, the telemetry history and the
+	 * archive are fed from at least at the default rate.
+	 * 
+	 * @return <code>true</code> if some stream is demanded.
+	 */
+	private boolean updateStreams()
+	{
+		int[] demand = streamDemand.getDemand(defaultStreamRate);
+		radioFlow.setWanted(MAV_DATA_STREAM.MAV_DATA_STREAM_ALL,
+				demand == null ? defaultStreamRate : 0);
+		for (int i = 1; i < RadioFlowController.STREAMS; i++)
+		{
+			int wanted = demand == null ? 0 : demand[i];
+			if (wanted != radioFlow.getWanted(i))
+			{
+				streamMismatches[i] = 0;
+			}
+			radioFlow.setWanted(i, wanted);
+		}
+		return demand != null;
+	}
+	
+	/**
+	 * Measures the rate of every stream and requests again the streams the
+	 * drone does not send at the requested rate. Called once per second.
+	 * 
+	 * @param demanded
+	 *            True if the streams are requested one by one. Under
+	 *            MAV_DATA_STREAM_ALL the single streams are not checked.
+	 */
+	private void checkStreams(boolean demanded)
+	{
+		double[] measured = streamDemand.measure();
+		for (int i = 1; i < RadioFlowController.STREAMS; i++)
+		{
+			int issued = radioFlow.getIssued(i);
+			if (!demanded || issued < 0 || rateCheck(measured[i], issued))
+			{
+				streamMismatches[i] = 0;
+				continue;
+			}
+			streamMismatches[i]++;
+			if (streamMismatches[i] % STREAM_MISMATCH_CHECKS == 0
+					&& streamMismatches[i] <= STREAM_MISMATCH_CHECKS
+							* STREAM_MAX_REQUESTS)
+			{
+				getLog().info("Stream " + i + " received at " + measured[i]
+						+ " Hz instead of " + issued + " Hz, requesting again");
+				radioFlow.forget(i);
+			}
+		}
+	}
+	
+	/**
+	 * Requests the telemetry streams whose rate has been changed by the
+	 * {@link #radioFlow} from the drone.
 	 */
-    @Override
-    public void onActivityCleanup() {
-        getLog().info("Activity is.erle.mavlink cleanup");
-    }
-    
+	private void requestStreamChanges()
+	{
+		for (int[] change : radioFlow.takeChanges())
+		{
+			getDataStream(change[0], change[1], change[1] > 0, targetSystem,
+					targetComponent);
+		}
+	}
+	
 	/**
-	 * Callback for new message on the subscribed topics. Processes incoming
-	 * messages.
+	 * Reads the message id, the sixth byte, of an encoded packet.
 	 * 
-	 * @param channelName
-	 *            Channel name of incoming message
-	 * @param message
-	 *            Message stored in a key-value pair in a map
-	 * @see interactivespaces.activity.impl.ros.BaseRoutableRosActivity
-	 * @see java.util.Map
-	 * @since 1.0.0
+	 * @param comm
+	 *            Bytes formatted as by {@link Arrays#toString(byte[])}.
+	 * @return The message id, -1 if the packet is too short.
 	 */
-    @Override
-    public void onNewInputJson(String channelName, Map <String , Object> message)
-    {
-		getLog().debug("Got message on input channel " + channelName);
-		getLog().debug(message);
-		if (channelName.equals(subscribers[0]))
+	private static int messageIdOf(String comm)
+	{
+		int field = 0;
+		int value = 0;
+		boolean negative = false;
+		for (int i = 0; i < comm.length(); i++)
 		{
-			// Data from drone handled here
-			if (message.containsKey("comm"))
+			char c = comm.charAt(i);
+			if (c == ',')
 			{
-
-				String items[] = message.get("comm").toString()
-						.replaceAll("\\[", "").replaceAll("\\]", "")
-						.replaceAll(" ", "").split(",");
-				int lenItems = items.length;
-				for (int i = 0; i < lenItems; i++)
+				if (field == 5)
 				{
-					try
-					{
-						responseGlobal[i] = Integer.parseInt(items[i]) & 0xFF;
-					}
-					catch (NumberFormatException e)
-					{
-						getLog().error(e);
-					}
-
+					return (negative ? -value : value) & 0xFF;
 				}
-
-				for (int i = 0; i < lenItems; i++)
+				field++;
+			}
+			else if (field == 5 && c >= '0' && c <= '9')
+			{
+				value = value * 10 + (c - '0');
+			}
+			else if (field == 5 && c == '-')
+			{
+				negative = true;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Unpacks a packet and hands the message to
+	 * {@link #handleMavMessage(MAVLinkMessage)} on a managed thread. Live
+	 * messages update the live stores and the archive, replayed ones the
+	 * replay stores only.
+	 * 
+	 * @param packet
+	 *            Packet completed by a link parser.
+	 * @param replayed
+	 *            Whether the packet comes from a replay.
+	 */
+	private void dispatchPacket(MAVLinkPacket packet, boolean replayed)
+	{
+		final MAVLinkMessage unpacked = packet.unpack();
+		if (unpacked == null)
+		{
+			getLog().debug("Unknown message id " + packet.msgid);
+			return;
+		}
+		if (replayed)
+		{
+			storeReplayed(unpacked);
+		}
+		else
+		{
+			vehicleStates.update(unpacked);
+			if (unpacked.sysid == (targetSystem & 0xFF))
+			{
+				telemetry.record(unpacked);
+			}
+			if (archive != null && VehicleState.isKept(packet.msgid & 0xFF))
+			{
+				try
 				{
-					mavPacket = mavParser.mavlink_parse_char(responseGlobal[i]);
+					archive.append(unpacked, telemetry.now());
 				}
-
-				if (!(mavPacket == null))
+				catch (IOException e)
 				{
-					mavMessage = mavPacket.unpack();
-					// getLog().info(mavPacket.seq);
-					// Map<String, Object> temp = Maps.newHashMap();
-					// temp.put("mavMessage", mavMessage);
-					// sendOutputJson(publishers[2], temp);
-					getLog().info(mavMessage.toString());
-					@SuppressWarnings("unused")
-					ManagedCommand mavMessageHandler = getManagedCommands().submit(new Runnable()
-					{
-						
-						public void run()
-						{
-							handleMavMessage(mavMessage);
-							
-						}
-					});
-
-					mavPacket = null;
-					mavParser = new Parser();
-					// getLog().info("mavPacket2 ");
+					getLog().error("Stopped the telemetry archive", e);
+					archive = null;
 				}
-
 			}
+			streamDemand.record(packet.msgid);
 		}
-    	
-    	else if (channelName.equals(subscribers[1]))
-    	{
-    		
-    		//Waypoint generator message handling here
-    		/* 
-    		 * Details : http://qgroundcontrol.org/mavlink/waypoint_protocol
-    		 * */
-			String tempString[] = message.get("mission").toString().split("-");
-			if (tempString[0].equals("START")) {
-				if (heartbeatReceiveFlag) {
-					sendMissionCount = Short.parseShort(tempString[1]
-							.replace(" ", ""));
-					
-					/*msg_mission_count missionStart = new msg_mission_count();
-					missionStart.count = missionCount;
-					missionStart.target_system = targetSystem;
-					missionStart.target_component = targetComponent;
-					byte tempByte[] = missionStart.pack().encodePacket();
-					Map<String, Object> tempMapMission = Maps.newHashMap();
-					tempMapMission.put("comm", Arrays.toString(tempByte));
-					sendOutputJson(publishers[0], tempMapMission);
-					getLog().info("SENDING COUNT : "+Arrays.toString(tempByte));
-					getLog().info("TARGET SYSTEM : " + targetSystem +" TARGET COMPONENT : " + targetComponent);*/
-				} 
-				else {
-					getLog().error("Did not receive a heartbeat packet till now");
-				}
-			}
-    		
-    		else
-    		{
-				
-    			/*
-				 * Format
-				 * QGC WPL <VERSION> 
-				 * <INDEX> <CURRENT WP> <COORD FRAME><COMMAND> <PARAM1> <PARAM2> <PARAM3> <PARAM4><PARAM5/X/LONGITUDE> <PARAM6/Y/LATITUDE> <PARAM7/Z/ALTITUDE><AUTOCONTINUE> 
-				 * 
-				 * Example
-				 * QGC WPL 110 
-				 * 0 1 0 16 0.149999999999999994 0 0 0 8.54800000000000004 47.3759999999999977 550 1 
-				 * 1 0 0 16 0.149999999999999994 0 0 0 8.54800000000000004 47.3759999999999977 550 1 
-				 * 2 0 0 16 0.149999999999999994 0 0 0 8.54800000000000004 47.3759999999999977 550 1
-				 */
-    			
-    			// Rest of the messages about the waypoint data
-				String missionWP[] =message.get("mission").toString()
-						.replaceAll("\\[", "").replaceAll("\\]", "")
-						.replaceAll(" ", "").split(",");
-				sendMissionItem(missionWP, tempTSystem, tempTComponent);
-				/*msg_mission_item missionItem = new msg_mission_item();
-				missionItem.seq = Short.parseShort(missionWP[0]);
-				missionItem.current = Byte.parseByte(missionWP[1]);
-				missionItem.frame = Byte.parseByte(missionWP[2]);
-				missionItem.command = Short.parseShort(missionWP[3]);
-				missionItem.param1 = Float.parseFloat(missionWP[4]);
-				missionItem.param2 = Float.parseFloat(missionWP[5]);
-				missionItem.param3 = Float.parseFloat(missionWP[6]);
-				missionItem.param4 = Float.parseFloat(missionWP[7]);
-				missionItem.x = Float.parseFloat(missionWP[8]);
-				missionItem.y = Float.parseFloat(missionWP[9]);
-				missionItem.z = Float.parseFloat(missionWP[10]);
-				missionItem.autocontinue =Byte.parseByte(missionWP[11]);
-				missionItem.target_system = targetSystem;
-				missionItem.target_component = targetComponent;
-				byte tempByte[] = missionItem.pack().encodePacket();
-				Map<String, Object> tempMapMission = Maps.newHashMap();
-				tempMapMission.put("comm", Arrays.toString(tempByte));
-				sendOutputJson(publishers[0], tempMapMission);
-				getLog().info("SENDING MISSION ITEM: "+Arrays.toString(tempByte));*/
-    		}
-    		
-    	}
-    	
-		else if (channelName.equals(subscribers[2]))
+		if (getLog().isDebugEnabled())
 		{
-			// Captain message handling here
-			//getLog().info(message.get("command"));
-			String tempString[] = message.get("command").toString().split("=");
-			//getLog().info(Arrays.toString(tempString));
-			handleCaptainMessage(tempString);
-
+			getLog().debug(unpacked.toString());
 		}
-		else if (channelName.equals(subscribers[3]))
+		getManagedCommands().submit(new Runnable()
 		{
-			// Data from drone handled here
-			if (message.containsKey("rc"))
-			{
 
-				String items[] = message.get("rc").toString()
-						.replaceAll("\\[", "").replaceAll("\\]", "")
-						.replaceAll(" ", "").split(",");
-				sendRCPacket(items);
+			public void run()
+			{
+				handleMavMessage(unpacked);
 			}
-		}
-    }
-    
+		});
+	}
+	
 	/**
 	 * Handles all the commands from the captain activity and performs the
 	 * actions. Then, it processes the results and sends it back to the captain
@@ -787,9 +1817,15 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 		{
 		// HEARTBEAT
 		case 0:
-			String heartbeatSend = heartbeat.toString();
-			heartbeat = null;
+			msg_heartbeat lastHeartbeat = getVehicleState().getHeartbeat();
 			Map<String, Object> tempHeartbeat = Maps.newHashMap();
+			if (lastHeartbeat == null)
+			{
+				tempHeartbeat.put("command", "NULL");
+				sendOutputJson(publishers[3], tempHeartbeat);
+				break;
+			}
+			String heartbeatSend = lastHeartbeat.toString();
 			tempHeartbeat.put("command", heartbeatSend);
 			sendOutputJson(publishers[3], tempHeartbeat);
 			getLog().debug("SENDING MISSION ITEM: " + heartbeatSend);
@@ -1907,7 +2943,10 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 			break;
 
 		/**
-		 * Handles READ_DATASTREAM Command from the captain activity
+		 * Handles READ_DATASTREAM Command from the captain activity.
+		 * MAV_DATA_STREAM_ALL sets the default rate of every stream, a single
+		 * stream is pinned at the rate, 0 stopping it, and a negative rate
+		 * releases it to the declared demand.
 		 */
 		case 22:
 			Map<String, Object> tempReadDataStream = Maps.newHashMap();
@@ -1918,7 +2957,29 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 				{
 					id = Integer.parseInt(message[1]);
 					value = Integer.parseInt(message[2]);
-					getDataStream(id, value);
+					if (id == MAV_DATA_STREAM.MAV_DATA_STREAM_ALL)
+					{
+						defaultStreamRate = Math.max(0, value);
+						updateStreams();
+						requestStreamChanges();
+					}
+					else if (id > 0 && id < RadioFlowController.STREAMS)
+					{
+						if (value < 0)
+						{
+							streamDemand.release(id);
+						}
+						else
+						{
+							streamDemand.pin(id, value);
+						}
+						updateStreams();
+						requestStreamChanges();
+					}
+					else
+					{
+						getDataStream(id, value);
+					}
 				}
 				catch (NumberFormatException e)
 				{
@@ -2634,7 +3695,6 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 						+ tempHeartbeat);
 				sendOutputJson(publishers[2], tempMavHeartbeat);
 				getLog().debug(tempHeartbeat);
-				heartbeat = mavHeartbeat;
 				
 				// For heartbeat topic
 				String heartbeatTopic = mavHeartbeat.sysid + ","
@@ -2658,6 +3718,20 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 			
 			tempMavSysStatus.clear();
 			tempMavSysStatus.put("status", mavMessage2.toString());
+			if (mavMessage2 instanceof msg_sys_status)
+			{
+				msg_sys_status mavSysStatus = (msg_sys_status) mavMessage2;
+				tempMavSysStatus.put("voltage_battery",
+						mavSysStatus.voltage_battery & 0xFFFF);
+				tempMavSysStatus.put("battery_remaining",
+						(int) mavSysStatus.battery_remaining);
+				tempMavSysStatus.put("sensors_present",
+						mavSysStatus.onboard_control_sensors_present);
+				tempMavSysStatus.put("sensors_enabled",
+						mavSysStatus.onboard_control_sensors_enabled);
+				tempMavSysStatus.put("sensors_health",
+						mavSysStatus.onboard_control_sensors_health);
+			}
 			sendOutputJson(publishers[7], tempMavSysStatus);
 			break;
 
@@ -2778,6 +3852,10 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 				
 				tempMavGps.clear();
 				tempMavGps.put("gps",tempGps);
+				tempMavGps.put("fix_type", (int) mavGps.fix_type);
+				tempMavGps.put("satellites_visible",
+						mavGps.satellites_visible & 0xFF);
+				tempMavGps.put("eph", mavGps.eph & 0xFFFF);
 				sendOutputJson(publishers[9], tempMavGps);
 			}
 			break;
@@ -2911,6 +3989,10 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 				
 				tempMavAttitude.clear();
 				tempMavAttitude.put("attitude", tempAttitude);
+				tempMavAttitude.put("sysid", mavAttitude.sysid & 0xFF);
+				tempMavAttitude.put("roll", mavAttitude.roll);
+				tempMavAttitude.put("pitch", mavAttitude.pitch);
+				tempMavAttitude.put("yaw", mavAttitude.yaw);
 				sendOutputJson(publishers[6], tempMavAttitude);
 			}
 			break;
@@ -2997,6 +4079,14 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 				
 				tempMavGlobalPosition.clear();
 				tempMavGlobalPosition.put("global_position", tempGlobalPosition);
+				tempMavGlobalPosition.put("sysid", mavGlobalPosition.sysid & 0xFF);
+				tempMavGlobalPosition.put("lat", mavGlobalPosition.lat / 10000000.0);
+				tempMavGlobalPosition.put("lon", mavGlobalPosition.lon / 10000000.0);
+				tempMavGlobalPosition.put("alt", mavGlobalPosition.alt / 1000.0);
+				tempMavGlobalPosition.put("relative_alt",
+						mavGlobalPosition.relative_alt / 1000.0);
+				tempMavGlobalPosition.put("hdg",
+						(mavGlobalPosition.hdg & 0xFFFF) / 100.0);
 				sendOutputJson(publishers[12], tempMavGlobalPosition);
 			}
 			break;
@@ -3209,7 +4299,6 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 								+ tempStringCurrent);
 				sendOutputJson(publishers[2], tempMapMissionCurrent);
 				getLog().debug(mavMissionCurrent);
-				missionCurrentSeq = mavMissionCurrent.seq;
 				
 				tempMapMissionCurrent.clear();
 				tempMapMissionCurrent.put("mission_seq", tempStringCurrent);
@@ -3459,7 +4548,6 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 								+ tempGpsGlobalOrigin);
 				sendOutputJson(publishers[2], tempMavGpsGlobalOrigin);
 				getLog().debug(tempGpsGlobalOrigin);
-				saveGlobalGpsOrigin(mavGpsGlobalOrigin);
 			}
 			break;
 
@@ -3534,7 +4622,6 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 									+ tempSafetyAllowedArea);
 					sendOutputJson(publishers[2], tempMavSafetyAllowedArea);
 					getLog().debug(tempSafetyAllowedArea);
-					saveAllowedArea(mavSafetyAllowedArea);
 				}
 			}
 			break;
@@ -4426,6 +5513,12 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 						+ tempRadioStatus);
 				sendOutputJson(publishers[2], tempMavRadioStatus);
 				getLog().debug(tempRadioStatus);
+				radioFlow.update(mavRadioStatus.rssi & 0xFF,
+						mavRadioStatus.remrssi & 0xFF,
+						mavRadioStatus.noise & 0xFF,
+						mavRadioStatus.remnoise & 0xFF,
+						mavRadioStatus.txbuf & 0xFF);
+				requestStreamChanges();
 			}
 			break;
 
@@ -5411,7 +6504,7 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 		byte tempByte[] = missionStart.pack().encodePacket();
 		Map<String, Object> tempMapMission = Maps.newHashMap();
 		tempMapMission.put("comm", Arrays.toString(tempByte));
-		sendOutputJson(publishers[0], tempMapMission);
+		sendToDrone(tempMapMission);
 		getLog().info("SENDING COUNT : "+ missionStart.count);
 		getLog().info("TARGET SYSTEM : " + targetSystem +" TARGET COMPONENT : " + targetComponent);
 		
@@ -5423,7 +6516,7 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 			{
 				if (retry > 0)
 				{
-					sendOutputJson(publishers[0], tempMapMission);
+					sendToDrone(tempMapMission);
 					getLog().info("SENDING MISSION LIST AGAIN ");
 					start = new Date();
 					retry--;
@@ -5512,7 +6605,7 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 		byte tempByte[] = missionItem.pack().encodePacket();
 		Map<String, Object> tempMapMission = Maps.newHashMap();
 		tempMapMission.put("comm", Arrays.toString(tempByte));
-		sendOutputJson(publishers[0], tempMapMission);
+		sendToDrone(tempMapMission);
 		getLog().info("SENDING MISSION ITEM: " + missionItem.seq);
 		getLog().info(missionItem.toString()); 
 	}
@@ -5554,7 +6647,7 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 		byte tempByte[] = reqMissionList.pack().encodePacket();
 		Map<String, Object> tempReadMission = Maps.newHashMap();
 		tempReadMission.put("comm", Arrays.toString(tempByte));
-		sendOutputJson(publishers[0], tempReadMission);
+		sendToDrone(tempReadMission);
 		getLog().debug(
 				"SENDING READ START SEQUENCE : " + Arrays.toString(tempByte));
 
@@ -5566,7 +6659,7 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 			{
 				if (retry > 0)
 				{
-					sendOutputJson(publishers[0], tempReadMission);
+					sendToDrone(tempReadMission);
 					getLog().info("REQUESTING GET MISSION LIST AGAIN ");
 					start = new Date();
 					retry--;
@@ -5675,7 +6768,7 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 		byte tempByte[] = reqWaypoint.pack().encodePacket();
 		Map<String, Object> tempReadMission = Maps.newHashMap();
 		tempReadMission.put("comm", Arrays.toString(tempByte));
-		sendOutputJson(publishers[0], tempReadMission);
+		sendToDrone(tempReadMission);
 		getLog().debug(
 				"SENDING WAYPOINT REQUEST : " + "[" + i + "]"
 						+ Arrays.toString(tempByte));
@@ -5688,7 +6781,7 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 			{
 				if (retry > 0)
 				{
-					sendOutputJson(publishers[0], tempReadMission);
+					sendToDrone(tempReadMission);
 					getLog().info("SENDING WAYPOINT REQUEST AGAIN ");
 					start = new Date();
 					retry--;
@@ -5826,7 +6919,7 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 		byte tempByte[] = missionAck.pack().encodePacket();
 		Map<String, Object> tempMissionAck = Maps.newHashMap();
 		tempMissionAck.put("comm", Arrays.toString(tempByte));
-		sendOutputJson(publishers[0], tempMissionAck);
+		sendToDrone(tempMissionAck);
 		getLog().debug(
 				"SENDING MISSION ACKNOWLEDGEMENT : "
 						+ Arrays.toString(tempByte));
@@ -5843,9 +6936,10 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 	 * 
 	 * @param currentSequence
 	 *            Current mission sequence to be set(made active) on the drone.
-	 * @return It checks for the {@link #missionCurrentSeq} and if it is equal
-	 *         to the currentSequence, it returns a <code>true</code>, otherwise
-	 *         it times out after 3 retries and returns <code>false</code>.
+	 * @return It checks the last MISSION_CURRENT of the drone and if it is
+	 *         equal to the currentSequence, it returns a <code>true</code>,
+	 *         otherwise it times out after 3 retries and returns
+	 *         <code>false</code>.
 	 */
 	private boolean setCurrentActiveWP(short currentSequence)
 	{
@@ -5863,9 +6957,10 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 	 *            Target system of the drone.
 	 * @param tComponent
 	 *            Target Component on the drone
-	 * @return It checks for the {@link #missionCurrentSeq} and if it is equal
-	 *         to the currentSequence, it returns a <code>true</code>, otherwise
-	 *         it times out after 3 retries and returns <code>false</code>.
+	 * @return It checks the last MISSION_CURRENT of the drone and if it is
+	 *         equal to the currentSequence, it returns a <code>true</code>,
+	 *         otherwise it times out after 3 retries and returns
+	 *         <code>false</code>.
 	 */
 	private boolean setCurrentActiveWP(short currentSequence, byte tSystem,
 			byte tComponent)
@@ -5877,7 +6972,7 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 		byte tempByte[] = missionCurrent.pack().encodePacket();
 		Map<String, Object> tempMissionWPCurrent = Maps.newHashMap();
 		tempMissionWPCurrent.put("comm", Arrays.toString(tempByte));
-		sendOutputJson(publishers[0], tempMissionWPCurrent);
+		sendToDrone(tempMissionWPCurrent);
 		getLog().debug(
 				"SENDING MISSION CURRENT WAYPOINT SET : "
 						+ Arrays.toString(tempByte));
@@ -5890,7 +6985,7 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 			{
 				if (retry > 0)
 				{
-					sendOutputJson(publishers[0], tempMissionWPCurrent);
+					sendToDrone(tempMissionWPCurrent);
 					getLog().info("SENDING MISSION CURRENT WAYPOINT SET AGAIN ");
 					start = new Date();
 					retry--;
@@ -5902,7 +6997,9 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 					return false;
 				}
 			}
-			if (currentSequence == missionCurrentSeq)
+			msg_mission_current current = vehicleStates.get(tSystem)
+					.getMissionCurrent();
+			if (current != null && current.seq == currentSequence)
 			{
 				getLog().info("Successfully set current active Waypoint");
 				return true;
@@ -5949,7 +7046,7 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 		byte tempByte[] = missionClear.pack().encodePacket();
 		Map<String, Object> tempMissionClear = Maps.newHashMap();
 		tempMissionClear.put("comm", Arrays.toString(tempByte));
-		sendOutputJson(publishers[0], tempMissionClear);
+		sendToDrone(tempMissionClear);
 		getLog().debug(
 				"SENDING MISSION CURRENT WAYPOINT SET : "
 						+ Arrays.toString(tempByte));
@@ -5962,7 +7059,7 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 			{
 				if (retry > 0)
 				{
-					sendOutputJson(publishers[0], tempMissionClear);
+					sendToDrone(tempMissionClear);
 					getLog().info("SENDING MISSION CURRENT WAYPOINT SET AGAIN ");
 					start = new Date();
 					retry--;
@@ -6104,7 +7201,7 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 		byte tempByte[] = req.pack().encodePacket();
 		Map<String, Object> tempCommand = Maps.newHashMap();
 		tempCommand.put("comm", Arrays.toString(tempByte));
-		sendOutputJson(publishers[0], tempCommand);
+		sendToDrone(tempCommand);
 		isCommandSent = true;
 		getLog().debug("SENDING COMMAND : " + Arrays.toString(tempByte));
 
@@ -6116,7 +7213,7 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 			{
 				if (retry > 0)
 				{
-					sendOutputJson(publishers[0], tempCommand);
+					sendToDrone(tempCommand);
 					getLog().info("SENDING COMMAND AGAIN ");
 					start = new Date();
 					retry--;
@@ -6261,7 +7358,7 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 		byte tempByte[] = req.pack().encodePacket();
 		Map<String, Object> tempParameterList = Maps.newHashMap();
 		tempParameterList.put("comm", Arrays.toString(tempByte));
-		sendOutputJson(publishers[0], tempParameterList);
+		sendToDrone(tempParameterList);
 		getLog().debug(
 				"REQUESTING PARAMETER LIST : " + Arrays.toString(tempByte));
 
@@ -6275,7 +7372,7 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 				{
 					if (retry > 0)
 					{
-						sendOutputJson(publishers[0], tempParameterList);
+						sendToDrone(tempParameterList);
 						getLog().info("REQUESTING GET PARAMETER LIST AGAIN ");
 						start = new Date();
 						retry--;
@@ -6324,7 +7421,7 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 		byte tempByte[] = req.pack().encodePacket();
 		Map<String, Object> tempParameter = Maps.newHashMap();
 		tempParameter.put("comm", Arrays.toString(tempByte));
-		sendOutputJson(publishers[0], tempParameter);
+		sendToDrone(tempParameter);
 		getLog().debug("REQUESTING PARAMETER : " + Arrays.toString(tempByte));
 		receiveParam = true;
 
@@ -6336,7 +7433,7 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 			{
 				if (retry > 0)
 				{
-					sendOutputJson(publishers[0], tempParameter);
+					sendToDrone(tempParameter);
 					getLog().info("REQUESTING GET PARAMETER AGAIN ");
 					start = new Date();
 					retry--;
@@ -6385,7 +7482,7 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 		byte tempByte[] = req.pack().encodePacket();
 		Map<String, Object> tempParameter = Maps.newHashMap();
 		tempParameter.put("comm", Arrays.toString(tempByte));
-		sendOutputJson(publishers[0], tempParameter);
+		sendToDrone(tempParameter);
 		getLog().debug("REQUESTING PARAMETER : " + Arrays.toString(tempByte));
 		receiveParam = true;
 
@@ -6397,7 +7494,7 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 			{
 				if (retry > 0)
 				{
-					sendOutputJson(publishers[0], tempParameter);
+					sendToDrone(tempParameter);
 					getLog().info("REQUESTING GET PARAMETER AGAIN ");
 					start = new Date();
 					retry--;
@@ -6537,7 +7634,7 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 			byte tempByte[] = req.pack().encodePacket();
 			tempParameterSet = Maps.newHashMap();
 			tempParameterSet.put("comm", Arrays.toString(tempByte));
-			sendOutputJson(publishers[0], tempParameterSet);
+			sendToDrone(tempParameterSet);
 			getLog().debug(
 					"REQUESTING SET PARAMETER : " + Arrays.toString(tempByte));
 
@@ -6549,7 +7646,7 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 				{
 					if (retry > 0)
 					{
-						sendOutputJson(publishers[0], tempParameterSet);
+						sendToDrone(tempParameterSet);
 						getLog().debug("REQUESTING SET PARAMETER AGAIN ");
 						start = new Date();
 						retry--;
@@ -6882,9 +7979,9 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 			Map<String, Object> tempModeSet;
 			tempModeSet = Maps.newHashMap();
 			tempModeSet.put("comm", Arrays.toString(tempByte));
-			sendOutputJson(publishers[0], tempModeSet);
+			sendToDrone(tempModeSet);
 			getLog().debug("REQUESTING SET MODE : " + Arrays.toString(tempByte));
-			//sendOutputJson(publishers[0], tempModeSet);
+			//sendToDrone(tempModeSet);
 			
 			isCommandSent = true;
 
@@ -6896,7 +7993,7 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 				{
 					if (retry > 0)
 					{
-						sendOutputJson(publishers[0], tempModeSet);
+						sendToDrone(tempModeSet);
 						getLog().info("REQUESTING SET MODE AGAIN ");
 						start = new Date();
 						retry--;
@@ -6926,17 +8023,21 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 	}
 	
 	/**
-	 * Saves the allowed area message in {@link #allowedArea}.
+	 * Converts an allowed area message to a min max pair. The minimum value
+	 * denotes the bottom south west corner and the maximum value is the point
+	 * diagonally opposite to it. Thus, the safety allowed area is the volume
+	 * inside the box.
 	 * 
 	 * @param allowed
 	 *            Allowed area message from the drone.
+	 * @return The corners of the allowed area.
 	 */
-	private void saveAllowedArea(msg_safety_allowed_area allowed)
+	private static MinMaxPair<Point3D> toAllowedArea(
+			msg_safety_allowed_area allowed)
 	{
 		Point3D tempMin= new Point3D(allowed.p1x, allowed.p1y, allowed.p1z);
 		Point3D tempMax = new Point3D(allowed.p2x, allowed.p2y, allowed.p2z);
-		allowedArea = new MinMaxPair<Point3D>(tempMin,tempMax);
-		allowedAreaFrame = allowed.frame;
+		return new MinMaxPair<Point3D>(tempMin,tempMax);
 	}
 	
 	/**
@@ -6953,9 +8054,10 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 	 *            to.
 	 * @param frame
 	 *            Frame of reference of the above coordinates.
-	 * @return It compares the {@link #allowedArea} value with the input values
-	 *         and if they are equal, it returns a <code>true</code>, otherwise it
-	 *         times out after 3 retries and returns <code>false</code>.
+	 * @return It compares the allowed area reported by the drone with the
+	 *         input values and if they are equal, it returns a
+	 *         <code>true</code>, otherwise it times out after 3 retries and
+	 *         returns <code>false</code>.
 	 */
 	private boolean setAllowedArea(Point3D minLatLongAlt,
 			Point3D maxLatLongAlt, byte frame)
@@ -6980,15 +8082,16 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 	 *            Target system of the drone.
 	 * @param tComponent
 	 *            Target Component on the drone.
-	 * @return It compares the {@link #allowedArea} value with the input values
-	 *         and if they are equal, it returns a <code>true</code>, otherwise
-	 *         it times out after 3 retries and returns <code>false</code>.
+	 * @return It compares the allowed area the drone reports after the
+	 *         request with the input values and if they are equal, it returns
+	 *         a <code>true</code>, otherwise it times out after 3 retries and
+	 *         returns <code>false</code>.
 	 */
 	private boolean setAllowedArea(Point3D minLatLongAlt,
 			Point3D maxLatLongAlt, byte frame, byte tSystem, byte tComponent)
 	{
-		MinMaxPair<Point3D> prevAllowedArea = allowedArea;
-		allowedArea = null;
+		msg_safety_allowed_area prevAllowedArea = vehicleStates.get(tSystem)
+				.getAllowedArea();
 		msg_safety_set_allowed_area req = new msg_safety_set_allowed_area();
 		req.target_system = tSystem;
 		req.target_component = tComponent;
@@ -7003,7 +8106,7 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 		byte tempByte[] = req.pack().encodePacket();
 		tempAllowedAreaSet = Maps.newHashMap();
 		tempAllowedAreaSet.put("comm", Arrays.toString(tempByte));
-		sendOutputJson(publishers[0], tempAllowedAreaSet);
+		sendToDrone(tempAllowedAreaSet);
 		getLog().debug(
 				"REQUESTING SET SAFETY AREA : " + Arrays.toString(tempByte));
 
@@ -7015,7 +8118,7 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 			{
 				if (retry > 0)
 				{
-					sendOutputJson(publishers[0], tempAllowedAreaSet);
+					sendToDrone(tempAllowedAreaSet);
 					getLog().debug("REQUESTING SET SAFETY AREA AGAIN ");
 					start = new Date();
 					retry--;
@@ -7024,12 +8127,14 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 				else
 				{
 					getLog().error("Timeout on set safety area");
-					allowedArea = prevAllowedArea;
 					return false;
 				}
 			}
-			if (allowedArea != null)
+			msg_safety_allowed_area reported = vehicleStates.get(tSystem)
+					.getAllowedArea();
+			if (reported != null && reported != prevAllowedArea)
 			{
+				MinMaxPair<Point3D> allowedArea = toAllowedArea(reported);
 				if (allowedArea.getMin().equals(minLatLongAlt)
 						&& allowedArea.getMax().equals(maxLatLongAlt))
 				{
@@ -7085,23 +8190,23 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 		byte tempByte[] = req.pack().encodePacket();
 		tempInjectGpsData = Maps.newHashMap();
 		tempInjectGpsData.put("comm", Arrays.toString(tempByte));
-		sendOutputJson(publishers[0], tempInjectGpsData);
+		sendToDrone(tempInjectGpsData);
 		getLog().debug("INJECTING GPS DATA : " + Arrays.toString(tempByte));
 	}
 	
 	/**
-	 * Saves Global GPS Origin received from the drone
-	 * {@link #globalGpsOrigin}.
+	 * Converts a Global GPS Origin message from the drone to a point.
 	 * 
 	 * @param msg
 	 *            Global GPS Origin message from the drone.
+	 * @return Longitude and latitude in degrees and altitude in metres.
 	 */
-	private void saveGlobalGpsOrigin(msg_gps_global_origin msg)
+	private static Point3D toGlobalGpsOrigin(msg_gps_global_origin msg)
 	{
 		float tempLat = (float) (msg.latitude / 10000000.0);
 		float tempLon = (float) (msg.longitude / 10000000.0);
-		float tempAlt = (float) (msg.altitude / 10000000.0);
-		globalGpsOrigin = new Point3D(tempLon, tempLat, tempAlt);
+		float tempAlt = (float) (msg.altitude / 1000.0);
+		return new Point3D(tempLon, tempLat, tempAlt);
 	}
 
 	/**
@@ -7111,7 +8216,7 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 	 * 
 	 * @param latLonAlt
 	 *            GPS Origin to be set.
-	 * @return It compares the {@link #globalGpsOrigin} value with the input
+	 * @return It compares the GPS origin reported by the drone with the input
 	 *         value and if they are equal , it returns a <code>true</code>,
 	 *         otherwise it times out after 3 retries and returns
 	 *         <code>false</code>.
@@ -7125,23 +8230,23 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 	/**
 	 * It sets Global GPS Origin of the drone. It sends a
 	 * {@link msg_set_gps_global_origin} message to the drone with the given
-	 * coordinates and then waits for the {@link #globalGpsOrigin} values to be
-	 * set.
+	 * coordinates and then waits for the drone to report the new origin.
 	 * 
 	 * @param latLonAlt
 	 *            GPS Origin to be set.
 	 * @param tSystem
 	 *            Target system of the drone.
-	 * @return It compares the {@link #globalGpsOrigin} value with the input
-	 *         value and if they are equal , it returns a <code>true</code>,
+	 * @return It compares the GPS origin the drone reports after the request
+	 *         with the input value and if they are equal , it returns a
+	 *         <code>true</code>,
 	 *         otherwise it times out after 3 retries and returns
 	 *         <code>false</code>.
 	 * 
 	 */
 	private boolean setGlobalGpsOrigin(Point3D latLonAlt, byte tSystem)
 	{
-		Point3D prevGlobalGpsOrigin = globalGpsOrigin;
-		globalGpsOrigin = null;
+		msg_gps_global_origin prevGlobalGpsOrigin = vehicleStates.get(tSystem)
+				.getGpsOrigin();
 		msg_set_gps_global_origin req = new msg_set_gps_global_origin();
 		req.longitude = (int) (latLonAlt.getX() * 10000000);
 		req.latitude = (int) (latLonAlt.getY() * 10000000);
@@ -7151,7 +8256,7 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 		byte tempByte[] = req.pack().encodePacket();
 		tempGlobalGpsOrigin = Maps.newHashMap();
 		tempGlobalGpsOrigin.put("comm", Arrays.toString(tempByte));
-		sendOutputJson(publishers[0], tempGlobalGpsOrigin);
+		sendToDrone(tempGlobalGpsOrigin);
 		getLog().debug(
 				"SETTING GLOBAL GPS ORIGIN : " + Arrays.toString(tempByte));
 
@@ -7163,7 +8268,7 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 			{
 				if (retry > 0)
 				{
-					sendOutputJson(publishers[0], tempGlobalGpsOrigin);
+					sendToDrone(tempGlobalGpsOrigin);
 					getLog().debug("REQUESTING SET GLOBAL GPS ORIGIN AGAIN ");
 					start = new Date();
 					retry--;
@@ -7172,13 +8277,14 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 				else
 				{
 					getLog().error("Timeout on set global gps origin");
-					globalGpsOrigin = prevGlobalGpsOrigin;
 					return false;
 				}
 			}
-			if (globalGpsOrigin != null)
+			msg_gps_global_origin reported = vehicleStates.get(tSystem)
+					.getGpsOrigin();
+			if (reported != null && reported != prevGlobalGpsOrigin)
 			{
-				if (globalGpsOrigin.equals(latLonAlt))
+				if (toGlobalGpsOrigin(reported).equals(latLonAlt))
 				{
 					getLog().info("Successfully set global gps origin");
 					return true;
@@ -7272,7 +8378,7 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 		byte tempByte[] = req.pack().encodePacket();
 		tempGetLogEntry = Maps.newHashMap();
 		tempGetLogEntry.put("comm", Arrays.toString(tempByte));
-		sendOutputJson(publishers[0], tempGetLogEntry);
+		sendToDrone(tempGetLogEntry);
 		getLog().debug("GETTING LOG ENTRY : " + Arrays.toString(tempByte));
 
 		Date start = new Date();
@@ -7283,7 +8389,7 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 			{
 				if (retry > 0)
 				{
-					sendOutputJson(publishers[0], tempGetLogEntry);
+					sendToDrone(tempGetLogEntry);
 					getLog().debug("REQUESTING GET LOG ENTRY AGAIN ");
 					start = new Date();
 					retry--;
@@ -7358,9 +8464,9 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 		byte tempByte[] = req.pack().encodePacket();
 		tempEraseLog = Maps.newHashMap();
 		tempEraseLog.put("comm", Arrays.toString(tempByte));
-		sendOutputJson(publishers[0], tempEraseLog);
+		sendToDrone(tempEraseLog);
 		getLog().debug("ERASING LOG : " + Arrays.toString(tempByte));
-		sendOutputJson(publishers[0], tempEraseLog);
+		sendToDrone(tempEraseLog);
 	}
 	
 	/**
@@ -7426,42 +8532,27 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 	}
 	
 	/**
-	 * Checks whether the requested rate of data stream is achievable or not.
+	 * Checks whether the measured rate of a data stream matches its requested
+	 * rate. The drone schedules its streams on a coarse loop, so anything
+	 * between half and one and a half times the requested rate matches.
 	 * 
 	 * @param pps
 	 *            packets per second of that stram.
 	 * @param rate
 	 *            requeste rate of the stream.
-	 * @return <code>true</code> if the rate is achievable, otherwise <code>false</code>.
+	 * @return <code>true</code> if the rate is achieved, otherwise <code>false</code>.
 	 */
-	@SuppressWarnings("unused")
 	private boolean rateCheck(double pps, int rate)
 	{
-		if (pps == Double.POSITIVE_INFINITY || pps == Double.NEGATIVE_INFINITY)
+		if (Double.isInfinite(pps) || Double.isNaN(pps))
 		{
 			return false;
 		}
-		else if (rate == 0 && pps == 0)
-		{
-			return true;
-		}
-		else if (rate == 1 && pps >= 0.5 && pps < 2)
-		{
-			return true;
-		}
-		else if (rate == 3 && pps >= 2 && pps < 5)
-		{
-			return true;
-		}
-		else if (rate == 10 && pps >= 5 && pps < 15)
-		{
-			return true;
-		}
-		else if (rate > 15 && pps >= 15)
+		else if (rate == 0)
 		{
-			return true;
+			return pps < 0.25;
 		}
-		return false;
+		return pps >= rate * 0.5 && pps < rate * 1.5 + 0.5;
 	}
 
 	/**
@@ -7492,9 +8583,9 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 		byte tempByte[] = req.pack().encodePacket();
 		tempRequestDataStream = Maps.newHashMap();
 		tempRequestDataStream.put("comm", Arrays.toString(tempByte));
-		sendOutputJson(publishers[0], tempRequestDataStream);
+		sendToDrone(tempRequestDataStream);
 		getLog().debug("REQUESTING DATA STREAM : " + Arrays.toString(tempByte));
-		sendOutputJson(publishers[0], tempRequestDataStream);
+		sendToDrone(tempRequestDataStream);
 	}
 	
 	/**
@@ -7534,6 +8625,76 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 		getDataStream(id, rate, targetSystem, targetComponent);
 	}
 	
+	/**
+	 * Handles a rc_output message of the captain activity. The channel values
+	 * are copied into {@link #rcChannels} and sent to the drone. The latency
+	 * between the captain send time and this link, as well as the missing
+	 * sequence numbers, are published on the general output topic once per
+	 * second.
+	 * 
+	 * @param values
+	 *            Numeric channel values of the message.
+	 * @param message
+	 *            Complete message, holding the optional seq and time keys.
+	 */
+	private void handleRcOutput(List<?> values, Map<String, Object> message)
+	{
+		if (values.size() != RcOverrideEncoder.CHANNELS)
+		{
+			getLog().warn("RC output does not contain 8 values, aborting send");
+			return;
+		}
+		synchronized (rcChannels)
+		{
+			for (int i = 0; i < RcOverrideEncoder.CHANNELS; i++)
+			{
+				rcChannels[i] = ((Number) values.get(i)).shortValue();
+			}
+			sendRCPacket(rcChannels, targetSystem, targetComponent);
+
+			long now = System.currentTimeMillis();
+			Object time = message.get("time");
+			if (time instanceof Number)
+			{
+				long latency = now - ((Number) time).longValue();
+				rcLatencySum += latency;
+				if (latency > rcLatencyMax)
+				{
+					rcLatencyMax = latency;
+				}
+				rcLatencyCount++;
+			}
+			Object seq = message.get("seq");
+			if (seq instanceof Number)
+			{
+				long sequence = ((Number) seq).longValue();
+				if (rcLastSequence != 0 && sequence > rcLastSequence + 1)
+				{
+					rcMissed += sequence - rcLastSequence - 1;
+				}
+				rcLastSequence = sequence;
+			}
+			if (now - rcLatencyWindowStart >= 1000)
+			{
+				if (rcLatencyWindowStart != 0)
+				{
+					Map<String, Object> latencyMap = Maps.newHashMap();
+					latencyMap.put("rc_count", rcLatencyCount);
+					latencyMap.put("rc_latency_avg_ms", rcLatencyCount == 0 ? 0
+							: rcLatencySum / rcLatencyCount);
+					latencyMap.put("rc_latency_max_ms", rcLatencyMax);
+					latencyMap.put("rc_missed", rcMissed);
+					sendOutputJson(publishers[2], latencyMap);
+				}
+				rcLatencyWindowStart = now;
+				rcLatencyCount = 0;
+				rcLatencySum = 0;
+				rcLatencyMax = 0;
+				rcMissed = 0;
+			}
+		}
+	}
+	
 	/**
 	 * Sends a RC packet to the drone thus emulating a rc transmitter. Function overload for
 	 * {@link #sendRCPacket(String[], byte, byte)} . Calls
@@ -7565,25 +8726,38 @@ public class IsErleMavlinkActivity extends BaseRoutableRosActivity {
 			getLog().warn("Input string array does not contain 8 values, aborting send");
 			return;
 		}
-		msg_rc_channels_override req = new msg_rc_channels_override();
-		req.target_system = tSystem;
-		req.target_component = tComponent ;
-		req.chan1_raw = Short.parseShort(mesg[0]);
-		req.chan2_raw = Short.parseShort(mesg[1]);
-		req.chan3_raw = Short.parseShort(mesg[2]);
-		req.chan4_raw = Short.parseShort(mesg[3]);
-		req.chan5_raw = Short.parseShort(mesg[4]);
-		req.chan6_raw = Short.parseShort(mesg[5]);
-		req.chan7_raw = Short.parseShort(mesg[6]);
-		req.chan8_raw = Short.parseShort(mesg[7]);
-		
-		Map<String, Object> tempRCPacketSend;
-		byte tempByte[] = req.pack().encodePacket();
-		tempRCPacketSend = Maps.newHashMap();
+		synchronized (rcChannels)
+		{
+			for (int i = 0; i < RcOverrideEncoder.CHANNELS; i++)
+			{
+				rcChannels[i] = (short) Integer.parseInt(mesg[i]);
+			}
+			sendRCPacket(rcChannels, tSystem, tComponent);
+		}
+	}
+	
+	/**
+	 * Sends a RC packet to the drone thus emulating a rc transmitter. The
+	 * packet is encoded by {@link #rcEncoder} and sent once, a lost override
+	 * is superseded by the next one a tick later.
+	 * 
+	 * @param channels
+	 *            RC channel values of length 8.
+	 * @param tSystem
+	 *            Target system of the drone.
+	 * @param tComponent
+	 *            Target Component on the drone.
+	 */
+	private void sendRCPacket(short[] channels, byte tSystem, byte tComponent)
+	{
+		byte tempByte[] = rcEncoder.encode(channels, tSystem, tComponent);
+		Map<String, Object> tempRCPacketSend = Maps.newHashMap();
 		tempRCPacketSend.put("comm", Arrays.toString(tempByte));
-		sendOutputJson(publishers[0], tempRCPacketSend);
-		getLog().debug("SENDING RC PACKET TO THE DRONE : " + Arrays.toString(tempByte));
-		sendOutputJson(publishers[0], tempRCPacketSend);
+		sendToDrone(tempRCPacketSend);
+		if (getLog().isDebugEnabled())
+		{
+			getLog().debug("SENDING RC PACKET TO THE DRONE : " + Arrays.toString(tempByte));
+		}
 	}
 }
 
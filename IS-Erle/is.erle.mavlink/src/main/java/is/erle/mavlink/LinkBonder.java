@@ -0,0 +1,364 @@
+package is.erle.mavlink;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import com.MAVLink.MAVLinkPacket;
+import com.MAVLink.Parser;
+import com.google.common.collect.Maps;
+
+/**
+ * Bonds several redundant links to the same drones into one packet stream.
+ * <p>
+ * Every link has its own {@link Parser}, so interleaved bytes of different
+ * links never corrupt each other. A packet is accepted from whichever link
+ * delivers it first and copies arriving on the other links are dropped. Copies
+ * are recognized by the sender system id, component id, sequence number and
+ * message id, arriving on another link than the first delivery within the
+ * duplicate window. The sequence number wraps after 256 packets, so the
+ * window is kept to a fraction of the time the sender takes to wrap it, and
+ * never longer than {@link #DUPLICATE_WINDOW}. A packet repeating a key on
+ * the link which first delivered it is always new.
+ * <p>
+ * Each link is scored by its packet loss, taken from the sequence gaps it
+ * sees, and by how far it lags behind the first delivery of the packets it
+ * shares with other links. Normal uplink traffic uses the best scoring link,
+ * critical commands go out on every live link. A link which has been silent
+ * for {@link #LINK_TIMEOUT} is dead and never chosen, so failover happens on
+ * the next packet without any handshake.
+ *
+ * @version %I%, %G%
+ * @since 1.0.0
+ */
+public class LinkBonder
+{
+	/**
+	 * Longest time within which a packet with the same key is a copy, in
+	 * nanoseconds.
+	 */
+	private static final long DUPLICATE_WINDOW = 500000000L;
+
+	/**
+	 * Part of a sequence wrap of the sender within which a packet with the
+	 * same key is a copy.
+	 */
+	private static final double WRAP_FRACTION = 0.25;
+
+	/**
+	 * Silence after which a link is dead, in nanoseconds.
+	 */
+	private static final long LINK_TIMEOUT = 2000000000L;
+
+	/**
+	 * Weight of a new sample in the loss and lag averages.
+	 */
+	private static final double SMOOTHING = 0.05;
+
+	/**
+	 * Score penalty of one percent of loss, in milliseconds of lag.
+	 */
+	private static final double LOSS_PENALTY = 10.0;
+
+	/**
+	 * Number of sender keys, system id times component id.
+	 */
+	private static final int SOURCES = 256 * 256;
+
+	/**
+	 * Names of the links, used in the statistics.
+	 */
+	private final String[] names;
+
+	/**
+	 * Parser of every link.
+	 */
+	private final Parser[] parsers;
+
+	/**
+	 * First delivery time of every sender and sequence number, lazily
+	 * allocated per sender.
+	 */
+	private final long[][] firstSeen = new long[SOURCES][];
+
+	/**
+	 * Message id of the first delivery of every sender and sequence number.
+	 */
+	private final byte[][] firstMessage = new byte[SOURCES][];
+
+	/**
+	 * Link of the first delivery of every sender and sequence number.
+	 */
+	private final byte[][] firstLink = new byte[SOURCES][];
+
+	/**
+	 * Time of the last first delivery per sender, 0 if none.
+	 */
+	private final long[] lastDelivery = new long[SOURCES];
+
+	/**
+	 * Average time between two first deliveries per sender, in nanoseconds,
+	 * 0 until measured.
+	 */
+	private final double[] deliveryInterval = new double[SOURCES];
+
+	/**
+	 * Last sequence number per link and sender, -1 if none.
+	 */
+	private final short[][] lastSequence;
+
+	/**
+	 * Time of the last packet per link.
+	 */
+	private final long[] lastReceived;
+
+	/**
+	 * Packets received per link, copies included.
+	 */
+	private final long[] received;
+
+	/**
+	 * Packets delivered first per link.
+	 */
+	private final long[] delivered;
+
+	/**
+	 * Packets missing from the sequence per link.
+	 */
+	private final long[] lost;
+
+	/**
+	 * Average loss ratio per link.
+	 */
+	private final double[] lossAverage;
+
+	/**
+	 * Average lag behind the first delivery per link, in milliseconds.
+	 */
+	private final double[] lagAverage;
+
+	/**
+	 * Constructor to initialize the bonder.
+	 *
+	 * @param names
+	 *            Names of the links, the link number is the index.
+	 */
+	public LinkBonder(String... names)
+	{
+		this.names = names.clone();
+		int links = names.length;
+		parsers = new Parser[links];
+		lastSequence = new short[links][];
+		lastReceived = new long[links];
+		received = new long[links];
+		delivered = new long[links];
+		lost = new long[links];
+		lossAverage = new double[links];
+		lagAverage = new double[links];
+		for (int i = 0; i < links; i++)
+		{
+			parsers[i] = new Parser();
+			lastSequence[i] = new short[SOURCES];
+			Arrays.fill(lastSequence[i], (short) -1);
+		}
+	}
+
+	/**
+	 * @return Number of links.
+	 */
+	public int getLinkCount()
+	{
+		return names.length;
+	}
+
+	/**
+	 * Gets the parser of a link. Each parser must only be fed by one thread.
+	 *
+	 * @param link
+	 *            Link number.
+	 * @return The parser of the link.
+	 */
+	public Parser getParser(int link)
+	{
+		return parsers[link];
+	}
+
+	/**
+	 * Records a packet received on a link and checks whether it is new.
+	 *
+	 * @param link
+	 *            Link number.
+	 * @param packet
+	 *            Packet completed by the parser of the link.
+	 * @return <code>true</code> if this is the first delivery of the packet
+	 *         and it must be processed, <code>false</code> for a copy.
+	 */
+	public synchronized boolean accept(int link, MAVLinkPacket packet)
+	{
+		long now = System.nanoTime();
+		int source = ((packet.sysid & 0xFF) << 8) | (packet.compid & 0xFF);
+		int sequence = packet.seq & 0xFF;
+		lastReceived[link] = now;
+		received[link]++;
+
+		int previous = lastSequence[link][source];
+		double loss = 0;
+		if (previous >= 0)
+		{
+			int gap = (sequence - previous - 1) & 0xFF;
+			if (gap < 128)
+			{
+				lost[link] += gap;
+				loss = gap / (gap + 1.0);
+			}
+		}
+		lastSequence[link][source] = (short) sequence;
+		lossAverage[link] += SMOOTHING * (loss - lossAverage[link]);
+
+		if (firstSeen[source] == null)
+		{
+			firstSeen[source] = new long[256];
+			firstMessage[source] = new byte[256];
+			firstLink[source] = new byte[256];
+		}
+		long first = firstSeen[source][sequence];
+		if (first != 0 && now - first < duplicateWindow(source)
+				&& firstMessage[source][sequence] == (byte) packet.msgid
+				&& firstLink[source][sequence] != (byte) link)
+		{
+			double lag = (now - first) / 1000000.0;
+			lagAverage[link] += SMOOTHING * (lag - lagAverage[link]);
+			return false;
+		}
+		firstSeen[source][sequence] = now;
+		firstMessage[source][sequence] = (byte) packet.msgid;
+		firstLink[source][sequence] = (byte) link;
+		if (lastDelivery[source] != 0)
+		{
+			double interval = now - lastDelivery[source];
+			deliveryInterval[source] = deliveryInterval[source] == 0 ? interval
+					: deliveryInterval[source] + SMOOTHING
+							* (interval - deliveryInterval[source]);
+		}
+		lastDelivery[source] = now;
+		lagAverage[link] += SMOOTHING * (0 - lagAverage[link]);
+		delivered[link]++;
+		return true;
+	}
+
+	/**
+	 * Gets the time within which a packet of a sender repeating a key is a
+	 * copy.
+	 *
+	 * @param source
+	 *            Sender key.
+	 * @return The window in nanoseconds, {@link #WRAP_FRACTION} of the
+	 *         measured sequence wrap time of the sender, at most
+	 *         {@link #DUPLICATE_WINDOW}.
+	 */
+	private long duplicateWindow(int source)
+	{
+		if (deliveryInterval[source] == 0)
+		{
+			return DUPLICATE_WINDOW;
+		}
+		return Math.min(DUPLICATE_WINDOW, (long) (deliveryInterval[source]
+				* 256 * WRAP_FRACTION));
+	}
+
+	/**
+	 * Checks whether a link has received a packet within the link timeout.
+	 *
+	 * @param link
+	 *            Link number.
+	 * @return <code>true</code> if the link is alive.
+	 */
+	public synchronized boolean isAlive(int link)
+	{
+		return lastReceived[link] != 0
+				&& System.nanoTime() - lastReceived[link] < LINK_TIMEOUT;
+	}
+
+	/**
+	 * Chooses the links for an uplink packet.
+	 *
+	 * @param critical
+	 *            True to send on every live link.
+	 * @return Link numbers to send on. Every link if none is alive, so that
+	 *         the first packets reach the drone before it has answered.
+	 */
+	public synchronized int[] uplinkLinks(boolean critical)
+	{
+		int links = names.length;
+		int alive = 0;
+		int best = -1;
+		for (int i = 0; i < links; i++)
+		{
+			if (isAlive(i))
+			{
+				alive++;
+				if (best < 0 || score(i) < score(best))
+				{
+					best = i;
+				}
+			}
+		}
+		if (alive == 0)
+		{
+			int[] all = new int[links];
+			for (int i = 0; i < links; i++)
+			{
+				all[i] = i;
+			}
+			return all;
+		}
+		if (!critical)
+		{
+			return new int[] { best };
+		}
+		int[] chosen = new int[alive];
+		int index = 0;
+		for (int i = 0; i < links; i++)
+		{
+			if (isAlive(i))
+			{
+				chosen[index++] = i;
+			}
+		}
+		return chosen;
+	}
+
+	/**
+	 * Gets the statistics of every link.
+	 *
+	 * @return Map from the link name to its counters and score.
+	 */
+	public synchronized Map<String, Object> getStats()
+	{
+		Map<String, Object> stats = Maps.newHashMap();
+		for (int i = 0; i < names.length; i++)
+		{
+			Map<String, Object> linkStats = Maps.newHashMap();
+			linkStats.put("alive", isAlive(i));
+			linkStats.put("received", received[i]);
+			linkStats.put("delivered", delivered[i]);
+			linkStats.put("lost", lost[i]);
+			linkStats.put("loss_percent", lossAverage[i] * 100.0);
+			linkStats.put("lag_ms", lagAverage[i]);
+			linkStats.put("score", score(i));
+			stats.put(names[i], linkStats);
+		}
+		return stats;
+	}
+
+	/**
+	 * Scores a link, lower is better.
+	 *
+	 * @param link
+	 *            Link number.
+	 * @return The average lag in milliseconds plus the loss penalty.
+	 */
+	private double score(int link)
+	{
+		return lagAverage[link] + lossAverage[link] * 100.0 * LOSS_PENALTY;
+	}
+}
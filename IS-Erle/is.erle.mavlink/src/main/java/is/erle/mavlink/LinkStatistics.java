@@ -0,0 +1,187 @@
+package is.erle.mavlink;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import com.MAVLink.MAVLinkPacket;
+import com.MAVLink.Parser;
+import com.google.common.collect.Maps;
+
+/**
+ * Health counters of one link, kept per sender system id.
+ * <p>
+ * Every packet completed by the parser of the link is recorded, copies
+ * delivered first on another link included, so the counters describe the
+ * link itself. Sequence numbers are tracked per system and component id: a
+ * forward gap counts the missing packets as lost, a packet behind the last
+ * sequence number is out of order and is taken back from the lost count, a
+ * repeated sequence number is a duplicate. CRC failures can not be tied to a
+ * sender and are read from the {@link Parser} statistics of the link.
+ * <p>
+ * {@link #sample()} turns the counters since the previous sample into rates.
+ *
+ * @version %I%, %G%
+ * @since 1.0.0
+ */
+public class LinkStatistics
+{
+	/**
+	 * Number of system ids.
+	 */
+	private static final int SYSTEMS = 256;
+
+	/**
+	 * Parser of the link, holding its CRC failure count.
+	 */
+	private final Parser parser;
+
+	/**
+	 * Last sequence number per system and component id, -1 if none.
+	 */
+	private final short[] lastSequence = new short[SYSTEMS * 256];
+
+	/**
+	 * Packets received per system id.
+	 */
+	private final long[] packets = new long[SYSTEMS];
+
+	/**
+	 * Bytes received per system id.
+	 */
+	private final long[] bytes = new long[SYSTEMS];
+
+	/**
+	 * Packets lost per system id.
+	 */
+	private final long[] lost = new long[SYSTEMS];
+
+	/**
+	 * Out of order packets per system id.
+	 */
+	private final long[] outOfOrder = new long[SYSTEMS];
+
+	/**
+	 * Duplicate packets per system id.
+	 */
+	private final long[] duplicates = new long[SYSTEMS];
+
+	/**
+	 * Packets per system id at the previous sample.
+	 */
+	private final long[] sampledPackets = new long[SYSTEMS];
+
+	/**
+	 * Bytes per system id at the previous sample.
+	 */
+	private final long[] sampledBytes = new long[SYSTEMS];
+
+	/**
+	 * Lost packets per system id at the previous sample.
+	 */
+	private final long[] sampledLost = new long[SYSTEMS];
+
+	/**
+	 * CRC failures of the link at the previous sample.
+	 */
+	private int sampledCrcErrors;
+
+	/**
+	 * Time of the previous sample in {@link System#nanoTime()} units.
+	 */
+	private long sampleTime;
+
+	/**
+	 * Constructor to initialize the counters.
+	 *
+	 * @param parser
+	 *            Parser of the link.
+	 */
+	public LinkStatistics(Parser parser)
+	{
+		this.parser = parser;
+		Arrays.fill(lastSequence, (short) -1);
+		sampleTime = System.nanoTime();
+	}
+
+	/**
+	 * Records a packet received on the link.
+	 *
+	 * @param packet
+	 *            Packet completed by the parser of the link.
+	 */
+	public synchronized void record(MAVLinkPacket packet)
+	{
+		int system = packet.sysid & 0xFF;
+		int source = (system << 8) | (packet.compid & 0xFF);
+		int sequence = packet.seq & 0xFF;
+		packets[system]++;
+		bytes[system] += packet.len + 8;
+		int previous = lastSequence[source];
+		if (previous < 0)
+		{
+			lastSequence[source] = (short) sequence;
+			return;
+		}
+		int gap = (sequence - previous - 1) & 0xFF;
+		if (gap == 255)
+		{
+			duplicates[system]++;
+		}
+		else if (gap >= 128)
+		{
+			outOfOrder[system]++;
+			if (lost[system] > 0)
+			{
+				lost[system]--;
+			}
+		}
+		else
+		{
+			lost[system] += gap;
+			lastSequence[source] = (short) sequence;
+		}
+	}
+
+	/**
+	 * Gets the rates since the previous sample and the totals of the link.
+	 *
+	 * @return Map holding the CRC failures per second and, under "systems", a
+	 *         map from every system id heard since the previous sample to its
+	 *         packets per second, bytes per second, loss ratio and totals of
+	 *         out of order and duplicate packets.
+	 */
+	public synchronized Map<String, Object> sample()
+	{
+		long now = System.nanoTime();
+		double seconds = Math.max(1e-3, (now - sampleTime) / 1e9);
+		sampleTime = now;
+		Map<String, Object> stats = Maps.newHashMap();
+		int crcErrors = parser.stats.crcErrorCount;
+		stats.put("crc", crcErrors);
+		stats.put("crc_ps", (crcErrors - sampledCrcErrors) / seconds);
+		sampledCrcErrors = crcErrors;
+		Map<String, Object> systems = Maps.newHashMap();
+		for (int i = 0; i < SYSTEMS; i++)
+		{
+			long newPackets = packets[i] - sampledPackets[i];
+			if (newPackets == 0)
+			{
+				continue;
+			}
+			long newLost = lost[i] - sampledLost[i];
+			Map<String, Object> system = Maps.newHashMap();
+			system.put("pps", newPackets / seconds);
+			system.put("bps", (bytes[i] - sampledBytes[i]) / seconds);
+			system.put("loss", Math.max(0, newLost)
+					/ (double) (newPackets + Math.max(0, newLost)));
+			system.put("ooo", outOfOrder[i]);
+			system.put("dup", duplicates[i]);
+			systems.put(Integer.toString(i), system);
+			sampledPackets[i] = packets[i];
+			sampledBytes[i] = bytes[i];
+			sampledLost[i] = lost[i];
+		}
+		stats.put("systems", systems);
+		return stats;
+	}
+}
@@ -0,0 +1,282 @@
+package is.erle.mavlink;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Flow control driven by the RADIO_STATUS messages of SiK style telemetry
+ * radios.
+ * <p>
+ * The ground radio reports its free transmit buffer (txbuf, percent) and the
+ * signal and noise levels of both ends. The radio shares its air time
+ * between both directions, so a filling buffer or a shrinking fade margin
+ * means the telemetry streams must slow down. The wanted rate of every
+ * MAV_DATA_STREAM is multiplied by a common scale, cut multiplicatively when
+ * the radio is congested or the margin is low and raised additively while
+ * it is healthy, so the rates settle just under what the link carries
+ * instead of oscillating.
+ * <p>
+ * Bulk uplink frames (mission, parameter and log transfers) are paced by a
+ * minimum interval which grows as the buffer fills, so the radio buffer never
+ * overflows. Without a recent RADIO_STATUS, as on a UDP or TCP link to a
+ * simulator, nothing is scaled nor paced.
+ *
+ * @version %I%, %G%
+ * @since 1.0.0
+ */
+public class RadioFlowController
+{
+	/**
+	 * Number of MAV_DATA_STREAM ids.
+	 */
+	public static final int STREAMS = 13;
+
+	/**
+	 * Smallest rate scale.
+	 */
+	private static final double MIN_SCALE = 0.1;
+
+	/**
+	 * Factor applied to the scale on congestion.
+	 */
+	private static final double DECREASE = 0.7;
+
+	/**
+	 * Step added to the scale on a healthy report.
+	 */
+	private static final double INCREASE = 0.1;
+
+	/**
+	 * Free buffer percentage under which the radio is congested.
+	 */
+	private static final int LOW_TXBUF = 40;
+
+	/**
+	 * Free buffer percentage above which the radio is healthy and bulk
+	 * frames are not paced.
+	 */
+	private static final int HIGH_TXBUF = 80;
+
+	/**
+	 * Fade margin, signal minus noise in radio units of about 0.5 dB, under
+	 * which the link is about to fail.
+	 */
+	private static final int LOW_MARGIN = 20;
+
+	/**
+	 * Fade margin above which the link is healthy.
+	 */
+	private static final int GOOD_MARGIN = 40;
+
+	/**
+	 * Longest interval between two bulk frames, reached with a full buffer.
+	 */
+	private static final long MAX_BULK_INTERVAL = TimeUnit.MILLISECONDS
+			.toNanos(250);
+
+	/**
+	 * Age after which a radio report is ignored.
+	 */
+	private static final long STATUS_TIMEOUT = TimeUnit.SECONDS.toNanos(5);
+
+	/**
+	 * Wanted rate of every stream in Hz, 0 for a stopped stream.
+	 */
+	private final int[] wanted = new int[STREAMS];
+
+	/**
+	 * Rate last requested from the drone for every stream, -1 if never, -2 if
+	 * it must be requested again even when stopped.
+	 */
+	private final int[] issued = new int[STREAMS];
+
+	/**
+	 * Common scale of the wanted rates.
+	 */
+	private double scale = 1.0;
+
+	/**
+	 * Free transmit buffer of the last report, percent.
+	 */
+	private int txbuf = 100;
+
+	/**
+	 * Fade margin of the last report, the worse of both ends.
+	 */
+	private int margin;
+
+	/**
+	 * Time of the last report in {@link System#nanoTime()} units, 0 if none.
+	 */
+	private long lastStatus;
+
+	/**
+	 * Constructor to initialize the controller with every stream stopped.
+	 */
+	public RadioFlowController()
+	{
+		Arrays.fill(issued, -1);
+	}
+
+	/**
+	 * Sets the wanted rate of a stream.
+	 *
+	 * @param stream
+	 *            MAV_DATA_STREAM id.
+	 * @param rate
+	 *            Wanted rate in Hz, 0 to stop the stream.
+	 */
+	public synchronized void setWanted(int stream, int rate)
+	{
+		wanted[stream] = Math.max(0, rate);
+	}
+
+	/**
+	 * Gets the wanted rate of a stream.
+	 *
+	 * @param stream
+	 *            MAV_DATA_STREAM id.
+	 * @return Wanted rate in Hz.
+	 */
+	public synchronized int getWanted(int stream)
+	{
+		return wanted[stream];
+	}
+
+	/**
+	 * Adjusts the scale to a radio report.
+	 *
+	 * @param rssi
+	 *            Local signal strength.
+	 * @param remrssi
+	 *            Remote signal strength.
+	 * @param noise
+	 *            Local noise.
+	 * @param remnoise
+	 *            Remote noise.
+	 * @param freeBuffer
+	 *            Free transmit buffer of the local radio, percent.
+	 */
+	public synchronized void update(int rssi, int remrssi, int noise,
+			int remnoise, int freeBuffer)
+	{
+		lastStatus = System.nanoTime();
+		txbuf = freeBuffer;
+		margin = Math.min(rssi - noise, remrssi - remnoise);
+		if (txbuf < LOW_TXBUF || margin < LOW_MARGIN)
+		{
+			scale = Math.max(MIN_SCALE, scale * DECREASE);
+		}
+		else if (txbuf > HIGH_TXBUF && margin >= GOOD_MARGIN)
+		{
+			scale = Math.min(1.0, scale + INCREASE);
+		}
+	}
+
+	/**
+	 * Gets the streams whose rate must be requested again and records them
+	 * as requested.
+	 *
+	 * @return Pairs of MAV_DATA_STREAM id and rate in Hz, a rate of 0 stops
+	 *         the stream.
+	 */
+	public synchronized List<int[]> takeChanges()
+	{
+		double current = isRadioFresh() ? scale : 1.0;
+		List<int[]> changes = new ArrayList<int[]>();
+		for (int i = 0; i < STREAMS; i++)
+		{
+			int rate = wanted[i] == 0 ? 0 : Math.max(1,
+					(int) Math.round(wanted[i] * current));
+			if (rate != issued[i] && (rate > 0 || issued[i] != -1))
+			{
+				issued[i] = rate;
+				changes.add(new int[] { i, rate });
+			}
+		}
+		return changes;
+	}
+
+	/**
+	 * Gets the rate last requested for a stream.
+	 *
+	 * @param stream
+	 *            MAV_DATA_STREAM id.
+	 * @return Rate in Hz, negative if not requested yet.
+	 */
+	public synchronized int getIssued(int stream)
+	{
+		return issued[stream];
+	}
+
+	/**
+	 * Forgets the rate requested for one stream, so that
+	 * {@link #takeChanges()} requests it again, a stop included.
+	 *
+	 * @param stream
+	 *            MAV_DATA_STREAM id.
+	 */
+	public synchronized void forget(int stream)
+	{
+		issued[stream] = -2;
+	}
+
+	/**
+	 * Forgets the requested rates, so that {@link #takeChanges()} requests
+	 * every wanted stream again, for a drone which has restarted.
+	 */
+	public synchronized void reset()
+	{
+		Arrays.fill(issued, -1);
+	}
+
+	/**
+	 * Gets the minimum interval between two bulk uplink frames.
+	 *
+	 * @return Interval in nanoseconds, 0 when bulk frames are not paced.
+	 */
+	public synchronized long getBulkInterval()
+	{
+		if (!isRadioFresh() || txbuf >= HIGH_TXBUF)
+		{
+			return 0;
+		}
+		return MAX_BULK_INTERVAL * (HIGH_TXBUF - Math.max(0, txbuf))
+				/ HIGH_TXBUF;
+	}
+
+	/**
+	 * Gets the state of the controller.
+	 *
+	 * @return Map holding the scale, the last report and the requested rates.
+	 */
+	public synchronized Map<String, Object> getStats()
+	{
+		Map<String, Object> stats = Maps.newHashMap();
+		stats.put("radio", isRadioFresh());
+		stats.put("scale", scale);
+		stats.put("txbuf", txbuf);
+		stats.put("margin", margin);
+		stats.put("bulk_interval_ms",
+				TimeUnit.NANOSECONDS.toMillis(getBulkInterval()));
+		stats.put("rates", Arrays.toString(issued));
+		return stats;
+	}
+
+	/**
+	 * Checks whether a radio report is recent enough to be acted upon. Must
+	 * be called with the lock held.
+	 *
+	 * @return <code>true</code> if the last report is not older than
+	 *         {@link #STATUS_TIMEOUT}.
+	 */
+	private boolean isRadioFresh()
+	{
+		return lastStatus != 0 && System.nanoTime() - lastStatus < STATUS_TIMEOUT;
+	}
+}
@@ -0,0 +1,112 @@
+package is.erle.mavlink;
+
+import com.MAVLink.common.msg_rc_channels_override;
+import com.MAVLink.pixhawk.CRC;
+
+/**
+ * Encodes RC_CHANNELS_OVERRIDE packets into a single reused buffer.
+ * <p>
+ * {@link msg_rc_channels_override#pack()} allocates a packet, a payload and a
+ * byte array for every packet, which adds up at the 50 Hz rate of a manual
+ * stick override. This encoder writes the MAVLink v1 frame in place, reusing
+ * the frame buffer and the checksum object, and counts up the packet sequence
+ * number so the drone can detect lost override packets.
+ * <p>
+ * The returned buffer is overwritten by the next call of
+ * {@link #encode(short[], byte, byte)}, so one instance must only be used by
+ * one thread.
+ *
+ * @version %I%, %G%
+ * @since 1.0.0
+ */
+public class RcOverrideEncoder
+{
+	/**
+	 * Number of RC channels in the packet.
+	 */
+	public static final int CHANNELS = 8;
+
+	/**
+	 * MAVLink v1 start of frame.
+	 */
+	private static final int STX = 0xFE;
+
+	/**
+	 * Length of the frame header.
+	 */
+	private static final int HEADER_LENGTH = 6;
+
+	/**
+	 * System id of this ground station, same as the MAVLink library uses.
+	 */
+	private static final int SYSTEM_ID = 255;
+
+	/**
+	 * Component id of this ground station, same as the MAVLink library uses.
+	 */
+	private static final int COMPONENT_ID = 190;
+
+	/**
+	 * Reused frame buffer.
+	 */
+	private final byte[] frame = new byte[HEADER_LENGTH
+			+ msg_rc_channels_override.MAVLINK_MSG_LENGTH + 2];
+
+	/**
+	 * Reused checksum.
+	 */
+	private final CRC crc = new CRC();
+
+	/**
+	 * Sequence number of the next frame.
+	 */
+	private int sequence;
+
+	/**
+	 * Constructor to initialize the constant part of the frame.
+	 */
+	public RcOverrideEncoder()
+	{
+		frame[0] = (byte) STX;
+		frame[1] = (byte) msg_rc_channels_override.MAVLINK_MSG_LENGTH;
+		frame[3] = (byte) SYSTEM_ID;
+		frame[4] = (byte) COMPONENT_ID;
+		frame[5] = (byte) msg_rc_channels_override.MAVLINK_MSG_ID_RC_CHANNELS_OVERRIDE;
+	}
+
+	/**
+	 * Encodes a RC_CHANNELS_OVERRIDE frame.
+	 *
+	 * @param channels
+	 *            Raw values of the 8 RC channels. 0 releases a channel back to
+	 *            the RC radio, 0xFFFF ignores it.
+	 * @param tSystem
+	 *            Target system of the drone.
+	 * @param tComponent
+	 *            Target Component on the drone.
+	 * @return The encoded frame. It is only valid until the next call.
+	 */
+	public byte[] encode(short[] channels, byte tSystem, byte tComponent)
+	{
+		frame[2] = (byte) sequence;
+		sequence = (sequence + 1) & 0xFF;
+		int index = HEADER_LENGTH;
+		for (int i = 0; i < CHANNELS; i++)
+		{
+			frame[index++] = (byte) channels[i];
+			frame[index++] = (byte) (channels[i] >> 8);
+		}
+		frame[index++] = tSystem;
+		frame[index++] = tComponent;
+
+		crc.start_checksum();
+		for (int i = 1; i < index; i++)
+		{
+			crc.update_checksum(frame[i]);
+		}
+		crc.finish_checksum(msg_rc_channels_override.MAVLINK_MSG_ID_RC_CHANNELS_OVERRIDE);
+		frame[index++] = (byte) crc.getLSB();
+		frame[index] = (byte) crc.getMSB();
+		return frame;
+	}
+}
@@ -0,0 +1,282 @@
+package is.erle.mavlink;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Works out which telemetry streams the ground actually consumes and checks
+ * that the drone sends them at the requested rate.
+ * <p>
+ * Consumers declare the highest rate at which they read each topic, the
+ * demand of a stream is the highest declared rate of its topics. A
+ * declaration replaces the previous one of the same consumer and expires
+ * after {@link #DEMAND_TIMEOUT} unless it is renewed, so a consumer which
+ * goes away stops its streams. The streams the activity reads itself, to keep
+ * the vehicle state, the telemetry history and the archive, are demanded at
+ * the default rate whenever the streams are demanded one by one, so no
+ * external declaration can starve them. The packet rate of every message is measured
+ * as it is received, the rate of a stream is the rate of its fastest message.
+ * Messages are grouped in streams as done by the ArduPilot firmware.
+ *
+ * @version %I%, %G%
+ * @since 1.0.0
+ */
+public class StreamDemandManager
+{
+	/**
+	 * Time after which an unrenewed declaration expires, in nanoseconds.
+	 */
+	private static final long DEMAND_TIMEOUT = 15000000000L;
+
+	/**
+	 * Weight of a new measure in the packet rate averages.
+	 */
+	private static final double SMOOTHING = 0.5;
+
+	/**
+	 * Stream of every message id, -1 for messages which are not streamed.
+	 */
+	private static final int[] STREAM_OF_MESSAGE = new int[256];
+
+	static
+	{
+		Arrays.fill(STREAM_OF_MESSAGE, -1);
+		// stream id, message ids
+		int[][] streams = {
+				// RAW_SENSORS : RAW_IMU, SCALED_PRESSURE, SCALED_IMU2
+				{ 1, 27, 29, 116 },
+				// EXTENDED_STATUS : SYS_STATUS, GPS_RAW_INT, MISSION_CURRENT,
+				// NAV_CONTROLLER_OUTPUT
+				{ 2, 1, 24, 42, 62 },
+				// RC_CHANNELS : RC_CHANNELS_RAW, SERVO_OUTPUT_RAW
+				{ 3, 35, 36 },
+				// POSITION : LOCAL_POSITION_NED, GLOBAL_POSITION_INT
+				{ 6, 32, 33 },
+				// EXTRA1 : ATTITUDE
+				{ 10, 30 },
+				// EXTRA2 : VFR_HUD
+				{ 11, 74 },
+				// EXTRA3 : SYSTEM_TIME, TERRAIN_REPORT
+				{ 12, 2, 136 } };
+		for (int[] stream : streams)
+		{
+			for (int i = 1; i < stream.length; i++)
+			{
+				STREAM_OF_MESSAGE[stream[i]] = stream[0];
+			}
+		}
+	}
+
+	/**
+	 * Declarations by consumer, each a map from stream to rate in Hz.
+	 */
+	private final Map<String, Map<Integer, Integer>> demands = Maps
+			.newHashMap();
+
+	/**
+	 * Expiry of every declaration in {@link System#nanoTime()} units.
+	 */
+	private final Map<String, Long> expiries = Maps.newHashMap();
+
+	/**
+	 * Rates set by explicit stream commands, which never expire and override
+	 * the declarations, indexed by stream id. -1 leaves the stream to the
+	 * declarations.
+	 */
+	private final int[] pinned = new int[RadioFlowController.STREAMS];
+
+	{
+		Arrays.fill(pinned, -1);
+	}
+
+	/**
+	 * Streams read by the activity itself, indexed by stream id.
+	 */
+	private final boolean[] internal = new boolean[RadioFlowController.STREAMS];
+
+	/**
+	 * Packets per message id since the last measure.
+	 */
+	private final int[] counts = new int[256];
+
+	/**
+	 * Average packet rate per message id.
+	 */
+	private final double[] messageRates = new double[256];
+
+	/**
+	 * Time of the last measure in {@link System#nanoTime()} units.
+	 */
+	private long measureTime = System.nanoTime();
+
+	/**
+	 * Gets the stream of a message.
+	 *
+	 * @param messageId
+	 *            MAVLink message id.
+	 * @return MAV_DATA_STREAM id, -1 if the message is not streamed.
+	 */
+	public static int streamOf(int messageId)
+	{
+		return STREAM_OF_MESSAGE[messageId & 0xFF];
+	}
+
+	/**
+	 * Replaces the declaration of a consumer.
+	 *
+	 * @param consumer
+	 *            Name of the consumer.
+	 * @param rates
+	 *            Map from stream to the highest rate read in Hz. Empty to
+	 *            withdraw the declaration.
+	 */
+	public synchronized void declare(String consumer, Map<Integer, Integer> rates)
+	{
+		if (rates.isEmpty())
+		{
+			demands.remove(consumer);
+			expiries.remove(consumer);
+			return;
+		}
+		demands.put(consumer, rates);
+		expiries.put(consumer, System.nanoTime() + DEMAND_TIMEOUT);
+	}
+
+	/**
+	 * Declares a message read by the activity itself. Its stream is then
+	 * always demanded, at least at the rate given to {@link #getDemand(int)}.
+	 *
+	 * @param messageId
+	 *            MAVLink message id, ignored if it is not streamed.
+	 */
+	public synchronized void declareInternal(int messageId)
+	{
+		int stream = streamOf(messageId);
+		if (stream >= 0)
+		{
+			internal[stream] = true;
+		}
+	}
+
+	/**
+	 * Sets the rate of a stream until it is released, whatever the
+	 * declarations.
+	 *
+	 * @param stream
+	 *            MAV_DATA_STREAM id of a single stream, not
+	 *            MAV_DATA_STREAM_ALL.
+	 * @param rate
+	 *            Rate in Hz, 0 to stop the stream.
+	 */
+	public synchronized void pin(int stream, int rate)
+	{
+		pinned[stream] = Math.max(0, rate);
+	}
+
+	/**
+	 * Leaves a pinned stream to the declarations again.
+	 *
+	 * @param stream
+	 *            MAV_DATA_STREAM id.
+	 */
+	public synchronized void release(int stream)
+	{
+		pinned[stream] = -1;
+	}
+
+	/**
+	 * Gets the demanded rate of every stream, after dropping the expired
+	 * declarations. The streams read by the activity itself are demanded at
+	 * least at the internal rate, a pinned rate overrides everything.
+	 *
+	 * @param internalRate
+	 *            Rate in Hz of the streams read by the activity itself.
+	 * @return Demanded rates in Hz indexed by stream id, <code>null</code> if
+	 *         no consumer has declared anything and no rate is pinned.
+	 */
+	public synchronized int[] getDemand(int internalRate)
+	{
+		long now = System.nanoTime();
+		Iterator<Map.Entry<String, Long>> expiry = expiries.entrySet()
+				.iterator();
+		while (expiry.hasNext())
+		{
+			Map.Entry<String, Long> entry = expiry.next();
+			if (now - entry.getValue() > 0)
+			{
+				demands.remove(entry.getKey());
+				expiry.remove();
+			}
+		}
+		boolean anyPinned = false;
+		for (int rate : pinned)
+		{
+			anyPinned |= rate >= 0;
+		}
+		if (demands.isEmpty() && !anyPinned)
+		{
+			return null;
+		}
+		int[] demand = new int[pinned.length];
+		for (Map<Integer, Integer> rates : demands.values())
+		{
+			for (Map.Entry<Integer, Integer> rate : rates.entrySet())
+			{
+				int stream = rate.getKey();
+				demand[stream] = Math.max(demand[stream], rate.getValue());
+			}
+		}
+		for (int stream = 0; stream < pinned.length; stream++)
+		{
+			if (internal[stream])
+			{
+				demand[stream] = Math.max(demand[stream], internalRate);
+			}
+			if (pinned[stream] >= 0)
+			{
+				demand[stream] = pinned[stream];
+			}
+		}
+		return demand;
+	}
+
+	/**
+	 * Counts a received packet.
+	 *
+	 * @param messageId
+	 *            MAVLink message id of the packet.
+	 */
+	public synchronized void record(int messageId)
+	{
+		counts[messageId & 0xFF]++;
+	}
+
+	/**
+	 * Updates the packet rates with the packets counted since the previous
+	 * call and gets the rate of every stream.
+	 *
+	 * @return Packets per second indexed by stream id.
+	 */
+	public synchronized double[] measure()
+	{
+		long now = System.nanoTime();
+		double seconds = Math.max(1e-3, (now - measureTime) / 1e9);
+		measureTime = now;
+		double[] streamRates = new double[RadioFlowController.STREAMS];
+		for (int i = 0; i < counts.length; i++)
+		{
+			messageRates[i] += SMOOTHING * (counts[i] / seconds - messageRates[i]);
+			counts[i] = 0;
+			int stream = STREAM_OF_MESSAGE[i];
+			if (stream >= 0)
+			{
+				streamRates[stream] = Math.max(streamRates[stream],
+						messageRates[i]);
+			}
+		}
+		return streamRates;
+	}
+}
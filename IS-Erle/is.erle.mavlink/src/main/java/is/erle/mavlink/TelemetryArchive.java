@@ -0,0 +1,602 @@
+package is.erle.mavlink;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import com.MAVLink.Messages.MAVLinkMessage;
+import com.google.common.collect.Maps;
+
+/**
+ * Writes decoded telemetry to a compact columnar archive file.
+ * <p>
+ * Messages are buffered per message id and written in blocks of up to
+ * {@link #BLOCK_ROWS} rows, or of {@link #BLOCK_AGE} milliseconds. A block
+ * stores every numeric field of the message as a column: integer fields
+ * (sysid, lat and lon in 1e7 degrees, alt in mm, time_boot_ms and so on) as
+ * zigzag varints of the change of their difference to the previous row,
+ * which is 0 for a field changing at a steady pace, float fields as varints
+ * of the XOR of their bits with the previous row, which leaves only the
+ * changing mantissa bits of a slowly varying value. A 0 code is followed by
+ * the number of further 0 codes, so a steady column takes a few bytes per
+ * block. The archive time of every row is the first column. Columns are
+ * prefixed with their length, so a reader decodes only the columns it
+ * wants, and every block restarts its codes, so it can be decoded alone.
+ * <p>
+ * The file starts with the {@link #MAGIC} and the format version (short).
+ * Records follow, each starting with its kind: a {@link #SCHEMA} record
+ * (message id as a byte, message name, column count as a varint, then the
+ * name and type byte of every column) before the first block of every
+ * message id, and {@link #BLOCK} records (message id as a byte, row count
+ * as a varint, first and last archive time as longs, column count as a
+ * varint, then the length prefixed columns). On close an {@link #INDEX}
+ * record repeats the schemas and lists the offset, message id, row count
+ * and time range of every block, and the file ends with the offset of the
+ * index (long) and the magic. A file cut short by a crash has no index and
+ * is read by scanning its records. Strings use
+ * {@link DataOutputStream#writeUTF(String)}, numbers are big endian.
+ *
+ * @version %I%, %G%
+ * @since 1.0.0
+ * @see TelemetryArchiveReader
+ */
+public class TelemetryArchive
+{
+	/**
+	 * Magic starting and ending every archive.
+	 */
+	static final String MAGIC = "ERLEARC1";
+
+	/**
+	 * Format version.
+	 */
+	static final short VERSION = 1;
+
+	/**
+	 * Kind of a schema record.
+	 */
+	static final int SCHEMA = 'S';
+
+	/**
+	 * Kind of a block record.
+	 */
+	static final int BLOCK = 'B';
+
+	/**
+	 * Kind of the index record.
+	 */
+	static final int INDEX = 'I';
+
+	/**
+	 * Type of an integer column.
+	 */
+	static final int TYPE_INTEGER = 0;
+
+	/**
+	 * Type of a float column.
+	 */
+	static final int TYPE_FLOAT = 1;
+
+	/**
+	 * Type of a double column.
+	 */
+	static final int TYPE_DOUBLE = 2;
+
+	/**
+	 * Name of the archive time column, the first of every block.
+	 */
+	static final String TIME_COLUMN = "time";
+
+	/**
+	 * Largest number of rows of a block.
+	 */
+	private static final int BLOCK_ROWS = 1024;
+
+	/**
+	 * Longest time span of a block in milliseconds, so that a slow message
+	 * does not stay buffered for long.
+	 */
+	private static final long BLOCK_AGE = 60000;
+
+	/**
+	 * The archive file.
+	 */
+	private final File file;
+
+	/**
+	 * Stream of the archive file, <code>null</code> once closed.
+	 */
+	private OutputStream out;
+
+	/**
+	 * Bytes written so far, the offset of the next record.
+	 */
+	private long position;
+
+	/**
+	 * Buffer a record is assembled in.
+	 */
+	private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+
+	/**
+	 * Buffer a column is encoded in.
+	 */
+	private final ByteArrayOutputStream column = new ByteArrayOutputStream();
+
+	/**
+	 * Fields read for every column but the time, per message id,
+	 * <code>null</code> until the first message of the id.
+	 */
+	private final Field[][] fields = new Field[256][];
+
+	/**
+	 * Array index of every column, -1 for a plain field, per message id.
+	 */
+	private final int[][] elements = new int[256][];
+
+	/**
+	 * Column types, time included, per message id.
+	 */
+	private final int[][] types = new int[256][];
+
+	/**
+	 * Size of the MAVLink frame of every message id, header and checksum
+	 * included.
+	 */
+	private final int[] frameSizes = new int[256];
+
+	/**
+	 * Schema record of every message id.
+	 */
+	private final byte[][] schemas = new byte[256][];
+
+	/**
+	 * Codes of the column being encoded.
+	 */
+	private final long[] codes = new long[BLOCK_ROWS];
+
+	/**
+	 * Buffered rows, column by column, time first, per message id. Floats are
+	 * kept as their bits.
+	 */
+	private final long[][][] rows = new long[256][][];
+
+	/**
+	 * Number of buffered rows per message id.
+	 */
+	private final int[] counts = new int[256];
+
+	/**
+	 * Index entries of the written blocks: offset, message id, row count,
+	 * first and last time.
+	 */
+	private final List<long[]> index = new ArrayList<long[]>();
+
+	/**
+	 * Rows written.
+	 */
+	private long rowsWritten;
+
+	/**
+	 * Bytes of the messages written, counted as full MAVLink frames.
+	 */
+	private long frameBytes;
+
+	/**
+	 * Constructor to initialize a closed archive.
+	 *
+	 * @param file
+	 *            The archive file.
+	 */
+	public TelemetryArchive(File file)
+	{
+		this.file = file;
+	}
+
+	/**
+	 * Creates the file and writes its header.
+	 *
+	 * @throws IOException
+	 *             If the file can not be written.
+	 */
+	public synchronized void open() throws IOException
+	{
+		File directory = file.getParentFile();
+		if (directory != null && !directory.isDirectory() && !directory.mkdirs())
+		{
+			throw new IOException("Can not create " + directory);
+		}
+		out = new FileOutputStream(file);
+		DataOutputStream header = new DataOutputStream(record);
+		record.reset();
+		header.writeBytes(MAGIC);
+		header.writeShort(VERSION);
+		flushRecord();
+	}
+
+	/**
+	 * Appends a message. Messages of one id must come in time order.
+	 *
+	 * @param message
+	 *            Decoded message.
+	 * @param time
+	 *            Archive time in milliseconds since the epoch.
+	 * @throws IOException
+	 *             If a block can not be written.
+	 */
+	public synchronized void append(MAVLinkMessage message, long time)
+			throws IOException
+	{
+		if (out == null)
+		{
+			return;
+		}
+		int id = message.msgid & 0xFF;
+		if (fields[id] == null)
+		{
+			describe(id, message);
+		}
+		long[][] table = rows[id];
+		int row = counts[id];
+		if (row > 0 && time - table[0][0] >= BLOCK_AGE)
+		{
+			writeBlock(id);
+			row = 0;
+		}
+		table[0][row] = time;
+		Field[] columns = fields[id];
+		try
+		{
+			for (int i = 0; i < columns.length; i++)
+			{
+				Object value = elements[id][i] < 0 ? columns[i].get(message)
+						: Array.get(columns[i].get(message), elements[id][i]);
+				table[i + 1][row] = bitsOf(value);
+			}
+		}
+		catch (IllegalAccessException e)
+		{
+			throw new IOException("Can not read " + message.getClass(), e);
+		}
+		counts[id] = row + 1;
+		rowsWritten++;
+		frameBytes += frameSizes[id];
+		if (counts[id] == BLOCK_ROWS)
+		{
+			writeBlock(id);
+		}
+	}
+
+	/**
+	 * Writes the buffered rows, the index and the footer, and closes the
+	 * file.
+	 *
+	 * @throws IOException
+	 *             If the file can not be written.
+	 */
+	public synchronized void close() throws IOException
+	{
+		if (out == null)
+		{
+			return;
+		}
+		try
+		{
+			for (int id = 0; id < counts.length; id++)
+			{
+				if (counts[id] > 0)
+				{
+					writeBlock(id);
+				}
+			}
+			long indexOffset = position;
+			DataOutputStream data = new DataOutputStream(record);
+			record.reset();
+			data.writeByte(INDEX);
+			int schemaCount = 0;
+			for (byte[] schema : schemas)
+			{
+				schemaCount += schema == null ? 0 : 1;
+			}
+			writeVarint(record, schemaCount);
+			for (byte[] schema : schemas)
+			{
+				if (schema != null)
+				{
+					record.write(schema);
+				}
+			}
+			writeVarint(record, index.size());
+			for (long[] entry : index)
+			{
+				data.writeLong(entry[0]);
+				data.writeByte((int) entry[1]);
+				writeVarint(record, entry[2]);
+				data.writeLong(entry[3]);
+				data.writeLong(entry[4]);
+			}
+			data.writeLong(indexOffset);
+			data.writeBytes(MAGIC);
+			flushRecord();
+		}
+		finally
+		{
+			out.close();
+			out = null;
+		}
+	}
+
+	/**
+	 * Gets the counters of the archive.
+	 *
+	 * @return Map holding the file, the rows written, the bytes written and
+	 *         the bytes the same messages take as MAVLink frames.
+	 */
+	public synchronized Map<String, Object> getStats()
+	{
+		Map<String, Object> stats = Maps.newHashMap();
+		stats.put("file", file.getName());
+		stats.put("rows", rowsWritten);
+		stats.put("bytes", position);
+		stats.put("frame_bytes", frameBytes);
+		return stats;
+	}
+
+	/**
+	 * Builds the columns of a message id from its first message and writes
+	 * its schema.
+	 *
+	 * @param id
+	 *            Message id.
+	 * @param message
+	 *            First message of the id.
+	 * @throws IOException
+	 *             If the schema can not be written.
+	 */
+	private void describe(int id, MAVLinkMessage message) throws IOException
+	{
+		List<Field> columns = new ArrayList<Field>();
+		List<Integer> indexes = new ArrayList<Integer>();
+		List<String> names = new ArrayList<String>();
+		List<Integer> columnTypes = new ArrayList<Integer>();
+		names.add(TIME_COLUMN);
+		columnTypes.add(TYPE_INTEGER);
+		Field[] declared = message.getClass().getFields();
+		Arrays.sort(declared, new Comparator<Field>()
+		{
+
+			public int compare(Field a, Field b)
+			{
+				return a.getName().compareTo(b.getName());
+			}
+		});
+		try
+		{
+			columns.add(MAVLinkMessage.class.getField("sysid"));
+			indexes.add(-1);
+			names.add("sysid");
+			columnTypes.add(TYPE_INTEGER);
+			for (Field field : declared)
+			{
+				if (Modifier.isStatic(field.getModifiers())
+						|| field.getDeclaringClass() == MAVLinkMessage.class)
+				{
+					continue;
+				}
+				Class<?> type = field.getType();
+				if (type.isArray() && typeOf(type.getComponentType()) >= 0)
+				{
+					int length = Array.getLength(field.get(message));
+					for (int i = 0; i < length; i++)
+					{
+						columns.add(field);
+						indexes.add(i);
+						names.add(field.getName() + "." + i);
+						columnTypes.add(typeOf(type.getComponentType()));
+					}
+				}
+				else if (typeOf(type) >= 0)
+				{
+					columns.add(field);
+					indexes.add(-1);
+					names.add(field.getName());
+					columnTypes.add(typeOf(type));
+				}
+			}
+		}
+		catch (NoSuchFieldException e)
+		{
+			throw new IOException("Can not describe " + message.getClass(), e);
+		}
+		catch (IllegalAccessException e)
+		{
+			throw new IOException("Can not describe " + message.getClass(), e);
+		}
+		fields[id] = columns.toArray(new Field[columns.size()]);
+		elements[id] = new int[indexes.size()];
+		types[id] = new int[columnTypes.size()];
+		for (int i = 0; i < indexes.size(); i++)
+		{
+			elements[id][i] = indexes.get(i);
+		}
+		for (int i = 0; i < columnTypes.size(); i++)
+		{
+			types[id][i] = columnTypes.get(i);
+		}
+		rows[id] = new long[types[id].length][BLOCK_ROWS];
+		frameSizes[id] = message.pack().len + 8;
+
+		ByteArrayOutputStream schema = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(schema);
+		data.writeByte(SCHEMA);
+		data.writeByte(id);
+		data.writeUTF(message.getClass().getSimpleName());
+		writeVarint(schema, names.size());
+		for (int i = 0; i < names.size(); i++)
+		{
+			data.writeUTF(names.get(i));
+			data.writeByte(types[id][i]);
+		}
+		schemas[id] = schema.toByteArray();
+		record.reset();
+		record.write(schemas[id]);
+		flushRecord();
+	}
+
+	/**
+	 * Gets the column type of a field type.
+	 *
+	 * @param type
+	 *            Primitive field type.
+	 * @return {@link #TYPE_INTEGER}, {@link #TYPE_FLOAT}, {@link #TYPE_DOUBLE}
+	 *         or -1 if the field is not archived.
+	 */
+	private static int typeOf(Class<?> type)
+	{
+		if (type == long.class || type == int.class || type == short.class
+				|| type == byte.class || type == char.class)
+		{
+			return TYPE_INTEGER;
+		}
+		if (type == float.class)
+		{
+			return TYPE_FLOAT;
+		}
+		if (type == double.class)
+		{
+			return TYPE_DOUBLE;
+		}
+		return -1;
+	}
+
+	/**
+	 * Converts a field value to the long stored in a column.
+	 *
+	 * @param value
+	 *            Boxed field value.
+	 * @return The integer value, or the bits of a float or double.
+	 */
+	private static long bitsOf(Object value)
+	{
+		if (value instanceof Float)
+		{
+			return Float.floatToRawIntBits((Float) value) & 0xFFFFFFFFL;
+		}
+		if (value instanceof Double)
+		{
+			return Double.doubleToRawLongBits((Double) value);
+		}
+		if (value instanceof Character)
+		{
+			return (Character) value;
+		}
+		return ((Number) value).longValue();
+	}
+
+	/**
+	 * Encodes and writes the buffered rows of a message id as one block.
+	 *
+	 * @param id
+	 *            Message id.
+	 * @throws IOException
+	 *             If the block can not be written.
+	 */
+	private void writeBlock(int id) throws IOException
+	{
+		int count = counts[id];
+		long[][] table = rows[id];
+		long offset = position;
+		DataOutputStream data = new DataOutputStream(record);
+		record.reset();
+		data.writeByte(BLOCK);
+		data.writeByte(id);
+		writeVarint(record, count);
+		data.writeLong(table[0][0]);
+		data.writeLong(table[0][count - 1]);
+		writeVarint(record, table.length);
+		for (int c = 0; c < table.length; c++)
+		{
+			column.reset();
+			long previous = 0;
+			long previousDelta = 0;
+			for (int row = 0; row < count; row++)
+			{
+				long value = table[c][row];
+				if (types[id][c] == TYPE_INTEGER)
+				{
+					long delta = value - previous;
+					long change = delta - previousDelta;
+					codes[row] = (change << 1) ^ (change >> 63);
+					previousDelta = row == 0 ? 0 : delta;
+				}
+				else
+				{
+					codes[row] = value ^ previous;
+				}
+				previous = value;
+			}
+			for (int row = 0; row < count;)
+			{
+				writeVarint(column, codes[row]);
+				int run = 1;
+				if (codes[row] == 0)
+				{
+					while (row + run < count && codes[row + run] == 0)
+					{
+						run++;
+					}
+					writeVarint(column, run - 1);
+				}
+				row += run;
+			}
+			writeVarint(record, column.size());
+			column.writeTo(record);
+		}
+		flushRecord();
+		index.add(new long[] { offset, id, count, table[0][0],
+				table[0][count - 1] });
+		counts[id] = 0;
+	}
+
+	/**
+	 * Writes the assembled record to the file.
+	 *
+	 * @throws IOException
+	 *             If the file can not be written.
+	 */
+	private void flushRecord() throws IOException
+	{
+		record.writeTo(out);
+		position += record.size();
+		record.reset();
+	}
+
+	/**
+	 * Writes an unsigned varint, 7 bits per byte, low bits first.
+	 *
+	 * @param buffer
+	 *            Destination.
+	 * @param value
+	 *            Value, read as unsigned.
+	 */
+	static void writeVarint(ByteArrayOutputStream buffer, long value)
+	{
+		while ((value & ~0x7FL) != 0)
+		{
+			buffer.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.write((int) value);
+	}
+}
@@ -0,0 +1,476 @@
+package is.erle.mavlink;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads the columns of a {@link TelemetryArchive} over a time range.
+ * <p>
+ * The schemas and the block index are read from the end of the file when it
+ * was closed, or collected by scanning every record otherwise. A read then
+ * only seeks to the blocks of the message overlapping the range, and only
+ * decodes their time column and the requested one.
+ *
+ * @version %I%, %G%
+ * @since 1.0.0
+ */
+public class TelemetryArchiveReader
+{
+	/**
+	 * The archive file.
+	 */
+	private final RandomAccessFile file;
+
+	/**
+	 * Column names of every message id, <code>null</code> if the archive has
+	 * none of it.
+	 */
+	private final String[][] columns = new String[256][];
+
+	/**
+	 * Column types of every message id.
+	 */
+	private final int[][] types = new int[256][];
+
+	/**
+	 * Message name of every message id.
+	 */
+	private final String[] names = new String[256];
+
+	/**
+	 * Index entries of the blocks: offset, message id, row count, first and
+	 * last time.
+	 */
+	private final List<long[]> index = new ArrayList<long[]>();
+
+	/**
+	 * Constructor opening an archive and loading its index.
+	 *
+	 * @param source
+	 *            The archive file.
+	 * @throws IOException
+	 *             If the file can not be read or is not an archive.
+	 */
+	public TelemetryArchiveReader(File source) throws IOException
+	{
+		file = new RandomAccessFile(source, "r");
+		try
+		{
+			byte[] magic = new byte[TelemetryArchive.MAGIC.length()];
+			file.readFully(magic);
+			if (!TelemetryArchive.MAGIC.equals(new String(magic, "US-ASCII")))
+			{
+				throw new IOException(source + " is not a telemetry archive");
+			}
+			short version = file.readShort();
+			if (version != TelemetryArchive.VERSION)
+			{
+				throw new IOException("Unknown archive version " + version);
+			}
+			long records = file.getFilePointer();
+			if (!readIndex())
+			{
+				index.clear();
+				file.seek(records);
+				scan();
+			}
+		}
+		catch (IOException e)
+		{
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads one column of a message over a time range.
+	 *
+	 * @param messageId
+	 *            Message id.
+	 * @param column
+	 *            Column name, a message field or "sysid"; element i of an
+	 *            array field is named field.i.
+	 * @param from
+	 *            Start of the range in milliseconds since the epoch, included.
+	 * @param to
+	 *            End of the range in milliseconds since the epoch, included.
+	 * @return Times of the rows in milliseconds and their values, integers
+	 *         as read from the message, <code>null</code> if the archive has
+	 *         no such column.
+	 * @throws IOException
+	 *             If the file can not be read.
+	 */
+	public synchronized double[][] read(int messageId, String column,
+			long from, long to) throws IOException
+	{
+		int id = messageId & 0xFF;
+		if (columns[id] == null)
+		{
+			return null;
+		}
+		int wanted = Arrays.asList(columns[id]).indexOf(column);
+		if (wanted < 0)
+		{
+			return null;
+		}
+		int type = types[id][wanted];
+		double[] times = new double[256];
+		double[] values = new double[256];
+		int size = 0;
+		for (long[] entry : index)
+		{
+			if (entry[1] != id || entry[4] < from || entry[3] > to)
+			{
+				continue;
+			}
+			int rows = (int) entry[2];
+			file.seek(entry[0]);
+			byte[] block = readBlock();
+			// Skip the kind, message id, row count and time range.
+			int[] cursor = { 2 };
+			readVarint(block, cursor);
+			cursor[0] += 16;
+			int count = (int) readVarint(block, cursor);
+			long[] time = null;
+			long[] value = null;
+			for (int c = 0; c < count && value == null; c++)
+			{
+				int length = (int) readVarint(block, cursor);
+				if (c == 0)
+				{
+					time = decode(block, cursor[0], rows,
+							TelemetryArchive.TYPE_INTEGER);
+				}
+				if (c == wanted)
+				{
+					value = decode(block, cursor[0], rows, type);
+				}
+				cursor[0] += length;
+			}
+			if (size + rows > times.length)
+			{
+				int capacity = Math.max(times.length * 2, size + rows);
+				times = Arrays.copyOf(times, capacity);
+				values = Arrays.copyOf(values, capacity);
+			}
+			for (int row = 0; row < rows; row++)
+			{
+				if (time[row] < from || time[row] > to)
+				{
+					continue;
+				}
+				times[size] = time[row];
+				values[size] = valueOf(value[row], type);
+				size++;
+			}
+		}
+		return new double[][] { Arrays.copyOf(times, size),
+				Arrays.copyOf(values, size) };
+	}
+
+	/**
+	 * Gets the columns of a message.
+	 *
+	 * @param messageId
+	 *            Message id.
+	 * @return Column names, the archive time first, <code>null</code> if the
+	 *         archive has none of the message.
+	 */
+	public String[] getColumns(int messageId)
+	{
+		String[] names = columns[messageId & 0xFF];
+		return names == null ? null : names.clone();
+	}
+
+	/**
+	 * Gets the name of a message.
+	 *
+	 * @param messageId
+	 *            Message id.
+	 * @return Simple class name of the message, <code>null</code> if the
+	 *         archive has none of it.
+	 */
+	public String getMessageName(int messageId)
+	{
+		return names[messageId & 0xFF];
+	}
+
+	/**
+	 * Closes the file.
+	 *
+	 * @throws IOException
+	 *             If the file can not be closed.
+	 */
+	public synchronized void close() throws IOException
+	{
+		file.close();
+	}
+
+	/**
+	 * Reads the index written when the archive was closed.
+	 *
+	 * @return <code>false</code> if the archive has no valid footer.
+	 * @throws IOException
+	 *             If the file can not be read.
+	 */
+	private boolean readIndex() throws IOException
+	{
+		int footer = 8 + TelemetryArchive.MAGIC.length();
+		long length = file.length();
+		if (length < file.getFilePointer() + footer)
+		{
+			return false;
+		}
+		file.seek(length - footer);
+		long offset = file.readLong();
+		byte[] magic = new byte[TelemetryArchive.MAGIC.length()];
+		file.readFully(magic);
+		if (!TelemetryArchive.MAGIC.equals(new String(magic, "US-ASCII"))
+				|| offset < 0 || offset >= length - footer)
+		{
+			return false;
+		}
+		file.seek(offset);
+		if (file.readUnsignedByte() != TelemetryArchive.INDEX)
+		{
+			return false;
+		}
+		long schemas = readVarint();
+		for (long i = 0; i < schemas; i++)
+		{
+			if (file.readUnsignedByte() != TelemetryArchive.SCHEMA)
+			{
+				return false;
+			}
+			readSchema();
+		}
+		long blocks = readVarint();
+		for (long i = 0; i < blocks; i++)
+		{
+			long blockOffset = file.readLong();
+			int id = file.readUnsignedByte();
+			long rows = readVarint();
+			index.add(new long[] { blockOffset, id, rows, file.readLong(),
+					file.readLong() });
+		}
+		return true;
+	}
+
+	/**
+	 * Collects the schemas and the block index by reading every record, for
+	 * an archive which was not closed.
+	 *
+	 * @throws IOException
+	 *             If the file can not be read.
+	 */
+	private void scan() throws IOException
+	{
+		try
+		{
+			while (true)
+			{
+				long offset = file.getFilePointer();
+				int kind = file.readUnsignedByte();
+				if (kind == TelemetryArchive.SCHEMA)
+				{
+					readSchema();
+				}
+				else if (kind == TelemetryArchive.BLOCK)
+				{
+					int id = file.readUnsignedByte();
+					long rows = readVarint();
+					long first = file.readLong();
+					long last = file.readLong();
+					long count = readVarint();
+					for (long c = 0; c < count; c++)
+					{
+						long skip = readVarint();
+						file.seek(file.getFilePointer() + skip);
+					}
+					if (file.getFilePointer() > file.length())
+					{
+						return;
+					}
+					index.add(new long[] { offset, id, rows, first, last });
+				}
+				else
+				{
+					return;
+				}
+			}
+		}
+		catch (EOFException e)
+		{
+			// A block cut short by a crash ends the archive.
+		}
+	}
+
+	/**
+	 * Reads a schema record after its kind.
+	 *
+	 * @throws IOException
+	 *             If the file can not be read.
+	 */
+	private void readSchema() throws IOException
+	{
+		int id = file.readUnsignedByte();
+		String name = file.readUTF();
+		int count = (int) readVarint();
+		String[] names = new String[count];
+		int[] columnTypes = new int[count];
+		for (int i = 0; i < count; i++)
+		{
+			names[i] = file.readUTF();
+			columnTypes[i] = file.readUnsignedByte();
+		}
+		this.names[id] = name;
+		columns[id] = names;
+		types[id] = columnTypes;
+	}
+
+	/**
+	 * Reads the whole block record starting at the file pointer.
+	 *
+	 * @return The bytes of the record, kind included.
+	 * @throws IOException
+	 *             If the file can not be read.
+	 */
+	private byte[] readBlock() throws IOException
+	{
+		long start = file.getFilePointer();
+		file.skipBytes(2);
+		readVarint();
+		file.skipBytes(16);
+		long count = readVarint();
+		for (long c = 0; c < count; c++)
+		{
+			long skip = readVarint();
+			file.seek(file.getFilePointer() + skip);
+		}
+		byte[] block = new byte[(int) (file.getFilePointer() - start)];
+		file.seek(start);
+		file.readFully(block);
+		return block;
+	}
+
+	/**
+	 * Decodes a column.
+	 *
+	 * @param block
+	 *            Bytes of the block.
+	 * @param offset
+	 *            Offset of the column data in the block.
+	 * @param rows
+	 *            Number of rows of the block.
+	 * @param type
+	 *            Column type.
+	 * @return Integer values, or the bits of float and double values.
+	 */
+	private static long[] decode(byte[] block, int offset, int rows, int type)
+	{
+		long[] values = new long[rows];
+		int[] cursor = { offset };
+		long previous = 0;
+		long previousDelta = 0;
+		long zeros = 0;
+		for (int row = 0; row < rows; row++)
+		{
+			long code = 0;
+			if (zeros > 0)
+			{
+				zeros--;
+			}
+			else
+			{
+				code = readVarint(block, cursor);
+				if (code == 0)
+				{
+					zeros = readVarint(block, cursor);
+				}
+			}
+			if (type == TelemetryArchive.TYPE_INTEGER)
+			{
+				long delta = previousDelta + ((code >>> 1) ^ -(code & 1));
+				previous += delta;
+				previousDelta = row == 0 ? 0 : delta;
+			}
+			else
+			{
+				previous ^= code;
+			}
+			values[row] = previous;
+		}
+		return values;
+	}
+
+	/**
+	 * Converts a decoded column value to a number.
+	 *
+	 * @param value
+	 *            Integer value, or the bits of a float or double.
+	 * @param type
+	 *            Column type.
+	 * @return The value.
+	 */
+	private static double valueOf(long value, int type)
+	{
+		if (type == TelemetryArchive.TYPE_FLOAT)
+		{
+			return Float.intBitsToFloat((int) value);
+		}
+		if (type == TelemetryArchive.TYPE_DOUBLE)
+		{
+			return Double.longBitsToDouble(value);
+		}
+		return value;
+	}
+
+	/**
+	 * Reads an unsigned varint at the file pointer.
+	 *
+	 * @return The value.
+	 * @throws IOException
+	 *             If the file can not be read.
+	 */
+	private long readVarint() throws IOException
+	{
+		long value = 0;
+		for (int shift = 0;; shift += 7)
+		{
+			int b = file.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+			{
+				return value;
+			}
+		}
+	}
+
+	/**
+	 * Reads an unsigned varint from a buffer.
+	 *
+	 * @param buffer
+	 *            Source.
+	 * @param cursor
+	 *            Offset of the varint, moved past it.
+	 * @return The value.
+	 */
+	private static long readVarint(byte[] buffer, int[] cursor)
+	{
+		long value = 0;
+		for (int shift = 0;; shift += 7)
+		{
+			int b = buffer[cursor[0]++];
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+			{
+				return value;
+			}
+		}
+	}
+}
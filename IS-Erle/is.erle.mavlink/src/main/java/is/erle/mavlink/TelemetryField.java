@@ -0,0 +1,274 @@
+package is.erle.mavlink;
+
+import com.MAVLink.Messages.MAVLinkMessage;
+import com.MAVLink.common.msg_attitude;
+import com.MAVLink.common.msg_global_position_int;
+import com.MAVLink.common.msg_gps_raw_int;
+import com.MAVLink.common.msg_nav_controller_output;
+import com.MAVLink.common.msg_radio_status;
+import com.MAVLink.common.msg_sys_status;
+import com.MAVLink.common.msg_vfr_hud;
+
+/**
+ * Numeric telemetry fields kept by the {@link TelemetryStore}, each read from
+ * one message type and converted to plain units.
+ *
+ * @version %I%, %G%
+ * @since 1.0.0
+ */
+public enum TelemetryField
+{
+	/**
+	 * Altitude above home in metres.
+	 */
+	ALTITUDE(msg_global_position_int.MAVLINK_MSG_ID_GLOBAL_POSITION_INT)
+	{
+		@Override
+		double read(MAVLinkMessage message)
+		{
+			return ((msg_global_position_int) message).relative_alt / 1000.0;
+		}
+	},
+
+	/**
+	 * Altitude above mean sea level in metres.
+	 */
+	ALTITUDE_MSL(msg_global_position_int.MAVLINK_MSG_ID_GLOBAL_POSITION_INT)
+	{
+		@Override
+		double read(MAVLinkMessage message)
+		{
+			return ((msg_global_position_int) message).alt / 1000.0;
+		}
+	},
+
+	/**
+	 * Ground speed in metres per second.
+	 */
+	GROUNDSPEED(msg_vfr_hud.MAVLINK_MSG_ID_VFR_HUD)
+	{
+		@Override
+		double read(MAVLinkMessage message)
+		{
+			return ((msg_vfr_hud) message).groundspeed;
+		}
+	},
+
+	/**
+	 * Air speed in metres per second.
+	 */
+	AIRSPEED(msg_vfr_hud.MAVLINK_MSG_ID_VFR_HUD)
+	{
+		@Override
+		double read(MAVLinkMessage message)
+		{
+			return ((msg_vfr_hud) message).airspeed;
+		}
+	},
+
+	/**
+	 * Climb rate in metres per second.
+	 */
+	CLIMB(msg_vfr_hud.MAVLINK_MSG_ID_VFR_HUD)
+	{
+		@Override
+		double read(MAVLinkMessage message)
+		{
+			return ((msg_vfr_hud) message).climb;
+		}
+	},
+
+	/**
+	 * Heading in degrees.
+	 */
+	HEADING(msg_vfr_hud.MAVLINK_MSG_ID_VFR_HUD)
+	{
+		@Override
+		double read(MAVLinkMessage message)
+		{
+			return ((msg_vfr_hud) message).heading;
+		}
+	},
+
+	/**
+	 * Throttle in percent.
+	 */
+	THROTTLE(msg_vfr_hud.MAVLINK_MSG_ID_VFR_HUD)
+	{
+		@Override
+		double read(MAVLinkMessage message)
+		{
+			return ((msg_vfr_hud) message).throttle & 0xFFFF;
+		}
+	},
+
+	/**
+	 * Roll in degrees.
+	 */
+	ROLL(msg_attitude.MAVLINK_MSG_ID_ATTITUDE)
+	{
+		@Override
+		double read(MAVLinkMessage message)
+		{
+			return Math.toDegrees(((msg_attitude) message).roll);
+		}
+	},
+
+	/**
+	 * Pitch in degrees.
+	 */
+	PITCH(msg_attitude.MAVLINK_MSG_ID_ATTITUDE)
+	{
+		@Override
+		double read(MAVLinkMessage message)
+		{
+			return Math.toDegrees(((msg_attitude) message).pitch);
+		}
+	},
+
+	/**
+	 * Yaw in degrees.
+	 */
+	YAW(msg_attitude.MAVLINK_MSG_ID_ATTITUDE)
+	{
+		@Override
+		double read(MAVLinkMessage message)
+		{
+			return Math.toDegrees(((msg_attitude) message).yaw);
+		}
+	},
+
+	/**
+	 * Battery voltage in volts.
+	 */
+	VOLTAGE(msg_sys_status.MAVLINK_MSG_ID_SYS_STATUS)
+	{
+		@Override
+		double read(MAVLinkMessage message)
+		{
+			return (((msg_sys_status) message).voltage_battery & 0xFFFF) / 1000.0;
+		}
+	},
+
+	/**
+	 * Battery current in amperes, unknown when the autopilot sends -1.
+	 */
+	CURRENT(msg_sys_status.MAVLINK_MSG_ID_SYS_STATUS)
+	{
+		@Override
+		double read(MAVLinkMessage message)
+		{
+			short current = ((msg_sys_status) message).current_battery;
+			return current < 0 ? Double.NaN : current / 100.0;
+		}
+	},
+
+	/**
+	 * Remaining battery in percent, unknown when the autopilot sends -1.
+	 */
+	BATTERY(msg_sys_status.MAVLINK_MSG_ID_SYS_STATUS)
+	{
+		@Override
+		double read(MAVLinkMessage message)
+		{
+			byte remaining = ((msg_sys_status) message).battery_remaining;
+			return remaining < 0 ? Double.NaN : remaining;
+		}
+	},
+
+	/**
+	 * Number of visible satellites.
+	 */
+	SATELLITES(msg_gps_raw_int.MAVLINK_MSG_ID_GPS_RAW_INT)
+	{
+		@Override
+		double read(MAVLinkMessage message)
+		{
+			return ((msg_gps_raw_int) message).satellites_visible & 0xFF;
+		}
+	},
+
+	/**
+	 * Horizontal dilution of precision, unknown when the receiver sends
+	 * 65535.
+	 */
+	HDOP(msg_gps_raw_int.MAVLINK_MSG_ID_GPS_RAW_INT)
+	{
+		@Override
+		double read(MAVLinkMessage message)
+		{
+			int eph = ((msg_gps_raw_int) message).eph & 0xFFFF;
+			return eph == 0xFFFF ? Double.NaN : eph / 100.0;
+		}
+	},
+
+	/**
+	 * Distance to the active waypoint in metres.
+	 */
+	WP_DISTANCE(msg_nav_controller_output.MAVLINK_MSG_ID_NAV_CONTROLLER_OUTPUT)
+	{
+		@Override
+		double read(MAVLinkMessage message)
+		{
+			return ((msg_nav_controller_output) message).wp_dist & 0xFFFF;
+		}
+	},
+
+	/**
+	 * Signal strength at the ground radio, in radio units.
+	 */
+	RSSI(msg_radio_status.MAVLINK_MSG_ID_RADIO_STATUS)
+	{
+		@Override
+		double read(MAVLinkMessage message)
+		{
+			return ((msg_radio_status) message).rssi & 0xFF;
+		}
+	},
+
+	/**
+	 * Signal strength at the drone radio, in radio units.
+	 */
+	REMOTE_RSSI(msg_radio_status.MAVLINK_MSG_ID_RADIO_STATUS)
+	{
+		@Override
+		double read(MAVLinkMessage message)
+		{
+			return ((msg_radio_status) message).remrssi & 0xFF;
+		}
+	};
+
+	/**
+	 * Id of the message the field is read from.
+	 */
+	private final int messageId;
+
+	/**
+	 * Constructor to initialize a field.
+	 *
+	 * @param messageId
+	 *            Id of the message the field is read from.
+	 */
+	private TelemetryField(int messageId)
+	{
+		this.messageId = messageId;
+	}
+
+	/**
+	 * @return Id of the message the field is read from.
+	 */
+	public int getMessageId()
+	{
+		return messageId;
+	}
+
+	/**
+	 * Reads the field from a message of its type.
+	 *
+	 * @param message
+	 *            Message with the id of {@link #getMessageId()}.
+	 * @return Value in the unit of the field, NaN if the message reports it
+	 *         as unknown.
+	 */
+	abstract double read(MAVLinkMessage message);
+}
@@ -0,0 +1,246 @@
+package is.erle.mavlink;
+
+/**
+ * History of one telemetry field: the latest raw samples in a primitive
+ * ring and the {@link TelemetryTier}s downsampled from them.
+ * <p>
+ * All the memory is allocated up front, so a long flight only overwrites the
+ * oldest samples. Writers and readers synchronize on the series.
+ *
+ * @version %I%, %G%
+ * @since 1.0.0
+ * @see TelemetryStore
+ */
+public class TelemetrySeries
+{
+	/**
+	 * The field recorded.
+	 */
+	private final TelemetryField field;
+
+	/**
+	 * Time of every raw sample in milliseconds.
+	 */
+	private final long[] times;
+
+	/**
+	 * Value of every raw sample.
+	 */
+	private final float[] values;
+
+	/**
+	 * Downsampled tiers, finest first.
+	 */
+	private final TelemetryTier[] tiers;
+
+	/**
+	 * Index the next raw sample is written at.
+	 */
+	private int head;
+
+	/**
+	 * Number of raw samples in the ring.
+	 */
+	private int size;
+
+	/**
+	 * Constructor to initialize an empty series.
+	 *
+	 * @param field
+	 *            The field recorded.
+	 * @param samples
+	 *            Number of raw samples kept.
+	 * @param window
+	 *            Time covered by every tier in milliseconds.
+	 * @param tierWidths
+	 *            Bucket width of every tier in milliseconds, finest first.
+	 */
+	public TelemetrySeries(TelemetryField field, int samples, long window,
+			long[] tierWidths)
+	{
+		this.field = field;
+		times = new long[samples];
+		values = new float[samples];
+		tiers = new TelemetryTier[tierWidths.length];
+		for (int i = 0; i < tiers.length; i++)
+		{
+			tiers[i] = new TelemetryTier(tierWidths[i], (int) Math.max(1,
+					(window + tierWidths[i] - 1) / tierWidths[i]));
+		}
+	}
+
+	/**
+	 * Adds a sample to the raw ring and to every tier.
+	 *
+	 * @param time
+	 *            Monotonic time of the sample in milliseconds.
+	 * @param value
+	 *            Value of the sample.
+	 */
+	public synchronized void add(long time, double value)
+	{
+		times[head] = time;
+		values[head] = (float) value;
+		head = (head + 1) % times.length;
+		size = Math.min(size + 1, times.length);
+		for (TelemetryTier tier : tiers)
+		{
+			tier.add(time, value);
+		}
+	}
+
+	/**
+	 * Reads the history of a window on a regular grid. Every step is folded
+	 * from the coarsest tier whose buckets are not wider than the step, or
+	 * from the raw samples if the step is finer than every tier. When a field
+	 * arrives faster than the raw ring was sized for, the part of the window
+	 * the ring no longer holds is folded from the finest tier, so the window
+	 * never comes back shorter than the tiers cover.
+	 *
+	 * @param from
+	 *            Start of the window in milliseconds.
+	 * @param step
+	 *            Width of a step in milliseconds.
+	 * @param steps
+	 *            Number of steps.
+	 * @return Mean, minimum and maximum of every step, NaN for a step without
+	 *         any sample.
+	 */
+	public synchronized double[][] query(long from, long step, int steps)
+	{
+		double[] min = new double[steps];
+		double[] max = new double[steps];
+		double[] sum = new double[steps];
+		int[] count = new int[steps];
+		TelemetryTier source = null;
+		for (TelemetryTier tier : tiers)
+		{
+			if (tier.getWidth() <= step)
+			{
+				source = tier;
+			}
+		}
+		if (source != null)
+		{
+			source.fold(from, step, min, max, sum, count);
+		}
+		else
+		{
+			long cut = Long.MIN_VALUE;
+			if (size == times.length && tiers.length > 0)
+			{
+				long width = tiers[0].getWidth();
+				cut = times[head] - times[head] % width;
+				tiers[0].fold(from, step, cut, min, max, sum, count);
+			}
+			int first = (head - size + times.length) % times.length;
+			for (int i = 0; i < size; i++)
+			{
+				int index = (first + i) % times.length;
+				if (times[index] < cut)
+				{
+					continue;
+				}
+				foldValue(times[index], from, step, values[index],
+						values[index], values[index], min, max, sum, count);
+			}
+		}
+		double[] mean = new double[steps];
+		for (int i = 0; i < steps; i++)
+		{
+			if (count[i] == 0)
+			{
+				mean[i] = Double.NaN;
+				min[i] = Double.NaN;
+				max[i] = Double.NaN;
+			}
+			else
+			{
+				mean[i] = sum[i] / count[i];
+			}
+		}
+		return new double[][] { mean, min, max };
+	}
+
+	/**
+	 * Folds one sample or bucket into the query step holding its time.
+	 * Values outside the query window are ignored.
+	 *
+	 * @param time
+	 *            Time of the sample or start of the bucket, in milliseconds.
+	 * @param from
+	 *            Start of the query window in milliseconds.
+	 * @param step
+	 *            Width of a query step in milliseconds.
+	 * @param low
+	 *            Smallest value of the sample or bucket.
+	 * @param high
+	 *            Largest value of the sample or bucket.
+	 * @param mean
+	 *            Mean value of the sample or bucket.
+	 * @param min
+	 *            Smallest value of every step.
+	 * @param max
+	 *            Largest value of every step.
+	 * @param sum
+	 *            Sum of the values of every step.
+	 * @param count
+	 *            Number of values of every step.
+	 */
+	static void foldValue(long time, long from, long step, double low,
+			double high, double mean, double[] min, double[] max,
+			double[] sum, int[] count)
+	{
+		if (time < from)
+		{
+			return;
+		}
+		long slot = (time - from) / step;
+		if (slot >= count.length)
+		{
+			return;
+		}
+		int i = (int) slot;
+		if (count[i] == 0)
+		{
+			min[i] = low;
+			max[i] = high;
+		}
+		else
+		{
+			min[i] = Math.min(min[i], low);
+			max[i] = Math.max(max[i], high);
+		}
+		sum[i] += mean;
+		count[i]++;
+	}
+
+	/**
+	 * @return The field recorded.
+	 */
+	public TelemetryField getField()
+	{
+		return field;
+	}
+
+	/**
+	 * @return Number of raw samples in the ring.
+	 */
+	public synchronized int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @return Bytes used by the raw ring and the tiers.
+	 */
+	public long getMemory()
+	{
+		long memory = times.length * 12L;
+		for (TelemetryTier tier : tiers)
+		{
+			memory += tier.getMemory();
+		}
+		return memory;
+	}
+}
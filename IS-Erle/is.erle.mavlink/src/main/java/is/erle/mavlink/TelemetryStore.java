@@ -0,0 +1,240 @@
+package is.erle.mavlink;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import com.MAVLink.Messages.MAVLinkMessage;
+import com.google.common.collect.Maps;
+
+/**
+ * Recent history of the chosen {@link TelemetryField}s of one drone.
+ * <p>
+ * Every field keeps the raw samples of the configured window, assuming the
+ * configured highest sample rate, and tiers of 1 s, 10 s and 1 min buckets
+ * over the same window. The memory is fixed when the store is built. If a
+ * field arrives faster than the assumed rate the raw samples cover less than
+ * the window, and fine queries read the older part from the 1 s tier.
+ * Sample times come from a monotonic clock anchored to the wall clock when
+ * the store is built, so history does not jump when the system time is
+ * adjusted.
+ *
+ * @version %I%, %G%
+ * @since 1.0.0
+ */
+public class TelemetryStore
+{
+	/**
+	 * Bucket widths of the tiers in milliseconds, finest first.
+	 */
+	private static final long[] TIER_WIDTHS = { 1000, 10000, 60000 };
+
+	/**
+	 * Largest number of steps returned for a field, the step is widened
+	 * beyond it.
+	 */
+	private static final int MAX_STEPS = 2000;
+
+	/**
+	 * Series of every recorded field.
+	 */
+	private final Map<TelemetryField, TelemetrySeries> series = new EnumMap<TelemetryField, TelemetrySeries>(
+			TelemetryField.class);
+
+	/**
+	 * Series to feed for every message id, <code>null</code> if none.
+	 */
+	private final TelemetrySeries[][] seriesOfMessage = new TelemetrySeries[256][];
+
+	/**
+	 * Wall clock time matching {@link #baseNanos}, in milliseconds.
+	 */
+	private final long baseMillis;
+
+	/**
+	 * Origin of the monotonic clock.
+	 */
+	private final long baseNanos;
+
+	/**
+	 * Constructor to initialize an empty store.
+	 *
+	 * @param fields
+	 *            Fields to record.
+	 * @param seconds
+	 *            Time window kept, in seconds.
+	 * @param rate
+	 *            Highest expected sample rate of a field in Hz, which sizes the
+	 *            raw rings.
+	 */
+	public TelemetryStore(Collection<TelemetryField> fields, int seconds,
+			int rate)
+	{
+		baseMillis = System.currentTimeMillis();
+		baseNanos = System.nanoTime();
+		int samples = Math.max(1, seconds * rate);
+		for (TelemetryField field : fields)
+		{
+			series.put(field, new TelemetrySeries(field, samples,
+					seconds * 1000L, TIER_WIDTHS));
+		}
+		for (int id = 0; id < seriesOfMessage.length; id++)
+		{
+			List<TelemetrySeries> fed = new ArrayList<TelemetrySeries>();
+			for (TelemetrySeries one : series.values())
+			{
+				if (one.getField().getMessageId() == id)
+				{
+					fed.add(one);
+				}
+			}
+			if (!fed.isEmpty())
+			{
+				seriesOfMessage[id] = fed.toArray(new TelemetrySeries[fed
+						.size()]);
+			}
+		}
+	}
+
+	/**
+	 * Records the fields read from a message.
+	 *
+	 * @param message
+	 *            Decoded message of the drone.
+	 */
+	public void record(MAVLinkMessage message)
+	{
+		TelemetrySeries[] fed = seriesOfMessage[message.msgid & 0xFF];
+		if (fed == null)
+		{
+			return;
+		}
+		long time = now();
+		for (TelemetrySeries one : fed)
+		{
+			double value = one.getField().read(message);
+			if (!Double.isNaN(value))
+			{
+				one.add(time, value);
+			}
+		}
+	}
+
+	/**
+	 * Gets the current time of the store clock.
+	 *
+	 * @return Milliseconds since the epoch, never going backwards.
+	 */
+	public long now()
+	{
+		return baseMillis + (System.nanoTime() - baseNanos) / 1000000;
+	}
+
+	/**
+	 * Gets the series of a field.
+	 *
+	 * @param field
+	 *            The field.
+	 * @return Its series, <code>null</code> if the field is not recorded.
+	 */
+	public TelemetrySeries getSeries(TelemetryField field)
+	{
+		return series.get(field);
+	}
+
+	/**
+	 * Reads the last seconds of some fields on a regular grid ending now.
+	 * The grid is aligned to multiples of the step, so that successive
+	 * queries return the same steps.
+	 *
+	 * @param fields
+	 *            Fields to read.
+	 * @param seconds
+	 *            Length of the window in seconds.
+	 * @param rate
+	 *            Steps per second.
+	 * @return Map holding the start time of the grid in milliseconds since the
+	 *         epoch, the step in milliseconds and, under "series", the mean,
+	 *         min and max arrays of every recorded field, <code>null</code>
+	 *         for a step without samples. Fields which are not recorded are
+	 *         listed under "missing".
+	 */
+	public Map<String, Object> query(Collection<TelemetryField> fields,
+			double seconds, double rate)
+	{
+		long window = Math.max(1, (long) (seconds * 1000));
+		long step = Math.max(1, Math.round(1000 / rate));
+		if (window / step > MAX_STEPS)
+		{
+			step = (window + MAX_STEPS - 1) / MAX_STEPS;
+		}
+		int steps = (int) Math.max(1, (window + step - 1) / step);
+		long from = (now() / step + 1 - steps) * step;
+		Map<String, Object> result = Maps.newHashMap();
+		Map<String, Object> data = Maps.newHashMap();
+		List<String> missing = new ArrayList<String>();
+		for (TelemetryField field : fields)
+		{
+			TelemetrySeries one = series.get(field);
+			if (one == null)
+			{
+				missing.add(field.name());
+				continue;
+			}
+			double[][] grid = one.query(from, step, steps);
+			Map<String, Object> arrays = Maps.newHashMap();
+			arrays.put("mean", toList(grid[0]));
+			arrays.put("min", toList(grid[1]));
+			arrays.put("max", toList(grid[2]));
+			data.put(field.name(), arrays);
+		}
+		result.put("start", from);
+		result.put("step", step);
+		result.put("series", data);
+		if (!missing.isEmpty())
+		{
+			result.put("missing", missing);
+		}
+		return result;
+	}
+
+	/**
+	 * Converts values to a list fit for a JSON message.
+	 *
+	 * @param values
+	 *            Values, NaN where unknown.
+	 * @return Values as floats, <code>null</code> where unknown.
+	 */
+	private static List<Float> toList(double[] values)
+	{
+		List<Float> list = new ArrayList<Float>(values.length);
+		for (double value : values)
+		{
+			list.add(Double.isNaN(value) ? null : (float) value);
+		}
+		return list;
+	}
+
+	/**
+	 * Gets the size of the store.
+	 *
+	 * @return Map holding the recorded fields, their raw sample counts and
+	 *         the memory used.
+	 */
+	public Map<String, Object> getStats()
+	{
+		Map<String, Object> stats = Maps.newHashMap();
+		Map<String, Object> samples = Maps.newHashMap();
+		long memory = 0;
+		for (TelemetrySeries one : series.values())
+		{
+			samples.put(one.getField().name(), one.size());
+			memory += one.getMemory();
+		}
+		stats.put("samples", samples);
+		stats.put("memory", memory);
+		return stats;
+	}
+}
@@ -0,0 +1,240 @@
+package is.erle.mavlink;
+
+/**
+ * Downsampled history of one telemetry field: the minimum, maximum and mean
+ * of the samples of every fixed width time bucket, in a ring of buckets.
+ * <p>
+ * The current bucket is accumulated as samples arrive and written to the
+ * ring once a sample falls in a later bucket, so the tier costs a few
+ * comparisons per sample and never rescans the raw samples. The caller
+ * provides the locking.
+ * <p>
+ * Queries read the ring and the open bucket through
+ * {@link #fold(long, long, double[], double[], double[], int[])}, or only
+ * the buckets older than some time through
+ * {@link #fold(long, long, long, double[], double[], double[], int[])}.
+ *
+ * @version %I%, %G%
+ * @since 1.0.0
+ * @see TelemetrySeries
+ */
+public class TelemetryTier
+{
+	/**
+	 * Width of a bucket in milliseconds.
+	 */
+	private final long width;
+
+	/**
+	 * Start time of every bucket in milliseconds.
+	 */
+	private final long[] starts;
+
+	/**
+	 * Smallest sample of every bucket.
+	 */
+	private final float[] mins;
+
+	/**
+	 * Largest sample of every bucket.
+	 */
+	private final float[] maxs;
+
+	/**
+	 * Mean of the samples of every bucket.
+	 */
+	private final float[] means;
+
+	/**
+	 * Index the next bucket is written at.
+	 */
+	private int head;
+
+	/**
+	 * Number of buckets in the ring.
+	 */
+	private int size;
+
+	/**
+	 * Start time of the open bucket.
+	 */
+	private long openStart;
+
+	/**
+	 * Smallest sample of the open bucket.
+	 */
+	private double openMin;
+
+	/**
+	 * Largest sample of the open bucket.
+	 */
+	private double openMax;
+
+	/**
+	 * Sum of the samples of the open bucket.
+	 */
+	private double openSum;
+
+	/**
+	 * Number of samples of the open bucket, 0 if there is none.
+	 */
+	private int openCount;
+
+	/**
+	 * Constructor to initialize an empty tier.
+	 *
+	 * @param width
+	 *            Width of a bucket in milliseconds.
+	 * @param capacity
+	 *            Number of buckets kept.
+	 */
+	public TelemetryTier(long width, int capacity)
+	{
+		this.width = width;
+		starts = new long[capacity];
+		mins = new float[capacity];
+		maxs = new float[capacity];
+		means = new float[capacity];
+	}
+
+	/**
+	 * Adds a sample. Samples must come in time order.
+	 *
+	 * @param time
+	 *            Time of the sample in milliseconds.
+	 * @param value
+	 *            Value of the sample.
+	 */
+	public void add(long time, double value)
+	{
+		long start = time - time % width;
+		if (openCount > 0 && start != openStart)
+		{
+			close();
+		}
+		if (openCount == 0)
+		{
+			openStart = start;
+			openMin = value;
+			openMax = value;
+			openSum = 0;
+		}
+		else
+		{
+			openMin = Math.min(openMin, value);
+			openMax = Math.max(openMax, value);
+		}
+		openSum += value;
+		openCount++;
+	}
+
+	/**
+	 * @return Width of a bucket in milliseconds.
+	 */
+	public long getWidth()
+	{
+		return width;
+	}
+
+	/**
+	 * @return Number of buckets the ring holds at most.
+	 */
+	public int getCapacity()
+	{
+		return starts.length;
+	}
+
+	/**
+	 * @return Number of closed buckets in the ring.
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Folds the buckets starting in a window, the open one included, into
+	 * coarser query steps. Bucket means are averaged without weights.
+	 *
+	 * @param from
+	 *            Start of the window in milliseconds.
+	 * @param step
+	 *            Width of a query step in milliseconds.
+	 * @param min
+	 *            Smallest value of every step, updated.
+	 * @param max
+	 *            Largest value of every step, updated.
+	 * @param sum
+	 *            Sum of the values of every step, updated.
+	 * @param count
+	 *            Number of values of every step, updated.
+	 */
+	public void fold(long from, long step, double[] min, double[] max,
+			double[] sum, int[] count)
+	{
+		fold(from, step, Long.MAX_VALUE, min, max, sum, count);
+	}
+
+	/**
+	 * Folds the buckets starting in a window before some time, the open one
+	 * included, into coarser query steps.
+	 *
+	 * @param from
+	 *            Start of the window in milliseconds.
+	 * @param step
+	 *            Width of a query step in milliseconds.
+	 * @param until
+	 *            Time in milliseconds from which buckets are left out.
+	 * @param min
+	 *            Smallest value of every step, updated.
+	 * @param max
+	 *            Largest value of every step, updated.
+	 * @param sum
+	 *            Sum of the values of every step, updated.
+	 * @param count
+	 *            Number of values of every step, updated.
+	 */
+	public void fold(long from, long step, long until, double[] min,
+			double[] max, double[] sum, int[] count)
+	{
+		int first = (head - size + starts.length) % starts.length;
+		for (int i = 0; i < size; i++)
+		{
+			int index = (first + i) % starts.length;
+			if (starts[index] >= until)
+			{
+				break;
+			}
+			TelemetrySeries.foldValue(starts[index], from, step, mins[index],
+					maxs[index], means[index], min, max, sum, count);
+		}
+		if (openCount > 0 && openStart < until)
+		{
+			TelemetrySeries.foldValue(openStart, from, step, openMin, openMax,
+					openSum / openCount, min, max, sum, count);
+		}
+	}
+
+	/**
+	 * @return Bytes used by the ring.
+	 */
+	public long getMemory()
+	{
+		return starts.length * 20L;
+	}
+
+	/**
+	 * Writes the open bucket to the ring, over the oldest one when the ring
+	 * is full.
+	 */
+	private void close()
+	{
+		starts[head] = openStart;
+		mins[head] = (float) openMin;
+		maxs[head] = (float) openMax;
+		means[head] = (float) (openSum / openCount);
+		head = (head + 1) % starts.length;
+		size = Math.min(size + 1, starts.length);
+		openCount = 0;
+	}
+}
@@ -0,0 +1,423 @@
+package is.erle.mavlink;
+
+import com.MAVLink.Messages.MAVLinkMessage;
+import com.MAVLink.common.msg_attitude;
+import com.MAVLink.common.msg_battery_status;
+import com.MAVLink.common.msg_global_position_int;
+import com.MAVLink.common.msg_gps_global_origin;
+import com.MAVLink.common.msg_gps_raw_int;
+import com.MAVLink.common.msg_heartbeat;
+import com.MAVLink.common.msg_local_position_ned;
+import com.MAVLink.common.msg_mission_current;
+import com.MAVLink.common.msg_mission_item_reached;
+import com.MAVLink.common.msg_nav_controller_output;
+import com.MAVLink.common.msg_radio_status;
+import com.MAVLink.common.msg_rc_channels_raw;
+import com.MAVLink.common.msg_safety_allowed_area;
+import com.MAVLink.common.msg_servo_output_raw;
+import com.MAVLink.common.msg_sys_status;
+import com.MAVLink.common.msg_vfr_hud;
+
+/**
+ * Latest state of one vehicle, made of the last decoded message of every
+ * type worth keeping.
+ * <p>
+ * A state is immutable. {@link #with(MAVLinkMessage)} returns a new state
+ * sharing every message but the replaced one, so a reader holding a state
+ * sees all its fields as they were at one instant however many messages
+ * arrive meanwhile. Decoded messages are never modified once unpacked,
+ * which is what makes sharing them safe. A getter returns
+ * <code>null</code> until the first message of its type is received.
+ *
+ * @version %I%, %G%
+ * @since 1.0.0
+ * @see VehicleStateStore
+ */
+public final class VehicleState
+{
+	/**
+	 * System id of the vehicle.
+	 */
+	private final int systemId;
+
+	/**
+	 * Number of messages applied to reach this state.
+	 */
+	private final long version;
+
+	/**
+	 * Time of the last applied message in {@link System#currentTimeMillis()}
+	 * units, 0 if none.
+	 */
+	private final long updated;
+
+	/**
+	 * Last HEARTBEAT.
+	 */
+	private final msg_heartbeat heartbeat;
+
+	/**
+	 * Last SYS_STATUS.
+	 */
+	private final msg_sys_status sysStatus;
+
+	/**
+	 * Last BATTERY_STATUS.
+	 */
+	private final msg_battery_status battery;
+
+	/**
+	 * Last GPS_RAW_INT.
+	 */
+	private final msg_gps_raw_int gps;
+
+	/**
+	 * Last ATTITUDE.
+	 */
+	private final msg_attitude attitude;
+
+	/**
+	 * Last GLOBAL_POSITION_INT.
+	 */
+	private final msg_global_position_int globalPosition;
+
+	/**
+	 * Last LOCAL_POSITION_NED.
+	 */
+	private final msg_local_position_ned localPosition;
+
+	/**
+	 * Last VFR_HUD.
+	 */
+	private final msg_vfr_hud hud;
+
+	/**
+	 * Last NAV_CONTROLLER_OUTPUT.
+	 */
+	private final msg_nav_controller_output navController;
+
+	/**
+	 * Last MISSION_CURRENT.
+	 */
+	private final msg_mission_current missionCurrent;
+
+	/**
+	 * Last MISSION_ITEM_REACHED.
+	 */
+	private final msg_mission_item_reached missionReached;
+
+	/**
+	 * Last RC_CHANNELS_RAW.
+	 */
+	private final msg_rc_channels_raw rcChannels;
+
+	/**
+	 * Last SERVO_OUTPUT_RAW.
+	 */
+	private final msg_servo_output_raw servoOutput;
+
+	/**
+	 * Last GPS_GLOBAL_ORIGIN.
+	 */
+	private final msg_gps_global_origin gpsOrigin;
+
+	/**
+	 * Last SAFETY_ALLOWED_AREA.
+	 */
+	private final msg_safety_allowed_area allowedArea;
+
+	/**
+	 * Last RADIO_STATUS.
+	 */
+	private final msg_radio_status radio;
+
+	/**
+	 * Constructor to initialize the state of a vehicle not heard yet.
+	 *
+	 * @param systemId
+	 *            System id of the vehicle.
+	 */
+	public VehicleState(int systemId)
+	{
+		this.systemId = systemId;
+		this.version = 0;
+		this.updated = 0;
+		this.heartbeat = null;
+		this.sysStatus = null;
+		this.battery = null;
+		this.gps = null;
+		this.attitude = null;
+		this.globalPosition = null;
+		this.localPosition = null;
+		this.hud = null;
+		this.navController = null;
+		this.missionCurrent = null;
+		this.missionReached = null;
+		this.rcChannels = null;
+		this.servoOutput = null;
+		this.gpsOrigin = null;
+		this.allowedArea = null;
+		this.radio = null;
+	}
+
+	/**
+	 * Constructor to initialize a state from the previous one and a new
+	 * message.
+	 *
+	 * @param base
+	 *            Previous state.
+	 * @param message
+	 *            Message replacing the one of its type.
+	 */
+	private VehicleState(VehicleState base, MAVLinkMessage message)
+	{
+		this.systemId = base.systemId;
+		this.version = base.version + 1;
+		this.updated = System.currentTimeMillis();
+		this.heartbeat = pick(base.heartbeat, message, msg_heartbeat.class);
+		this.sysStatus = pick(base.sysStatus, message, msg_sys_status.class);
+		this.battery = pick(base.battery, message, msg_battery_status.class);
+		this.gps = pick(base.gps, message, msg_gps_raw_int.class);
+		this.attitude = pick(base.attitude, message, msg_attitude.class);
+		this.globalPosition = pick(base.globalPosition, message,
+				msg_global_position_int.class);
+		this.localPosition = pick(base.localPosition, message,
+				msg_local_position_ned.class);
+		this.hud = pick(base.hud, message, msg_vfr_hud.class);
+		this.navController = pick(base.navController, message,
+				msg_nav_controller_output.class);
+		this.missionCurrent = pick(base.missionCurrent, message,
+				msg_mission_current.class);
+		this.missionReached = pick(base.missionReached, message,
+				msg_mission_item_reached.class);
+		this.rcChannels = pick(base.rcChannels, message,
+				msg_rc_channels_raw.class);
+		this.servoOutput = pick(base.servoOutput, message,
+				msg_servo_output_raw.class);
+		this.gpsOrigin = pick(base.gpsOrigin, message,
+				msg_gps_global_origin.class);
+		this.allowedArea = pick(base.allowedArea, message,
+				msg_safety_allowed_area.class);
+		this.radio = pick(base.radio, message, msg_radio_status.class);
+	}
+
+	/**
+	 * Checks whether the state keeps messages of a type.
+	 *
+	 * @param messageId
+	 *            MAVLink message id.
+	 * @return <code>true</code> if {@link #with(MAVLinkMessage)} would keep
+	 *         such a message.
+	 */
+	public static boolean isKept(int messageId)
+	{
+		switch (messageId)
+		{
+		case msg_heartbeat.MAVLINK_MSG_ID_HEARTBEAT:
+		case msg_sys_status.MAVLINK_MSG_ID_SYS_STATUS:
+		case msg_battery_status.MAVLINK_MSG_ID_BATTERY_STATUS:
+		case msg_gps_raw_int.MAVLINK_MSG_ID_GPS_RAW_INT:
+		case msg_attitude.MAVLINK_MSG_ID_ATTITUDE:
+		case msg_global_position_int.MAVLINK_MSG_ID_GLOBAL_POSITION_INT:
+		case msg_local_position_ned.MAVLINK_MSG_ID_LOCAL_POSITION_NED:
+		case msg_vfr_hud.MAVLINK_MSG_ID_VFR_HUD:
+		case msg_nav_controller_output.MAVLINK_MSG_ID_NAV_CONTROLLER_OUTPUT:
+		case msg_mission_current.MAVLINK_MSG_ID_MISSION_CURRENT:
+		case msg_mission_item_reached.MAVLINK_MSG_ID_MISSION_ITEM_REACHED:
+		case msg_rc_channels_raw.MAVLINK_MSG_ID_RC_CHANNELS_RAW:
+		case msg_servo_output_raw.MAVLINK_MSG_ID_SERVO_OUTPUT_RAW:
+		case msg_gps_global_origin.MAVLINK_MSG_ID_GPS_GLOBAL_ORIGIN:
+		case msg_safety_allowed_area.MAVLINK_MSG_ID_SAFETY_ALLOWED_AREA:
+		case msg_radio_status.MAVLINK_MSG_ID_RADIO_STATUS:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Gets the state with a message applied.
+	 *
+	 * @param message
+	 *            Decoded message of this vehicle.
+	 * @return A new state, or this one if the message is not kept.
+	 */
+	public VehicleState with(MAVLinkMessage message)
+	{
+		if (!isKept(message.msgid))
+		{
+			return this;
+		}
+		return new VehicleState(this, message);
+	}
+
+	/**
+	 * Chooses between the kept message of a type and a new message.
+	 *
+	 * @param kept
+	 *            Message kept by the previous state.
+	 * @param message
+	 *            New message.
+	 * @param type
+	 *            Message class of the field.
+	 * @return The new message if it is of the type, the kept one otherwise.
+	 */
+	private static <T> T pick(T kept, MAVLinkMessage message, Class<T> type)
+	{
+		return type.isInstance(message) ? type.cast(message) : kept;
+	}
+
+	/**
+	 * @return System id of the vehicle.
+	 */
+	public int getSystemId()
+	{
+		return systemId;
+	}
+
+	/**
+	 * @return Number of messages applied, a reader can compare it to detect
+	 *         a change.
+	 */
+	public long getVersion()
+	{
+		return version;
+	}
+
+	/**
+	 * @return Time of the last applied message in
+	 *         {@link System#currentTimeMillis()} units, 0 if none.
+	 */
+	public long getUpdated()
+	{
+		return updated;
+	}
+
+	/**
+	 * @return Last HEARTBEAT.
+	 */
+	public msg_heartbeat getHeartbeat()
+	{
+		return heartbeat;
+	}
+
+	/**
+	 * @return Last SYS_STATUS.
+	 */
+	public msg_sys_status getSysStatus()
+	{
+		return sysStatus;
+	}
+
+	/**
+	 * @return Last BATTERY_STATUS.
+	 */
+	public msg_battery_status getBattery()
+	{
+		return battery;
+	}
+
+	/**
+	 * @return Last GPS_RAW_INT.
+	 */
+	public msg_gps_raw_int getGps()
+	{
+		return gps;
+	}
+
+	/**
+	 * @return Last ATTITUDE.
+	 */
+	public msg_attitude getAttitude()
+	{
+		return attitude;
+	}
+
+	/**
+	 * @return Last GLOBAL_POSITION_INT.
+	 */
+	public msg_global_position_int getGlobalPosition()
+	{
+		return globalPosition;
+	}
+
+	/**
+	 * @return Last LOCAL_POSITION_NED.
+	 */
+	public msg_local_position_ned getLocalPosition()
+	{
+		return localPosition;
+	}
+
+	/**
+	 * @return Last VFR_HUD.
+	 */
+	public msg_vfr_hud getHud()
+	{
+		return hud;
+	}
+
+	/**
+	 * @return Last NAV_CONTROLLER_OUTPUT.
+	 */
+	public msg_nav_controller_output getNavController()
+	{
+		return navController;
+	}
+
+	/**
+	 * @return Last MISSION_CURRENT.
+	 */
+	public msg_mission_current getMissionCurrent()
+	{
+		return missionCurrent;
+	}
+
+	/**
+	 * @return Last MISSION_ITEM_REACHED.
+	 */
+	public msg_mission_item_reached getMissionReached()
+	{
+		return missionReached;
+	}
+
+	/**
+	 * @return Last RC_CHANNELS_RAW.
+	 */
+	public msg_rc_channels_raw getRcChannels()
+	{
+		return rcChannels;
+	}
+
+	/**
+	 * @return Last SERVO_OUTPUT_RAW.
+	 */
+	public msg_servo_output_raw getServoOutput()
+	{
+		return servoOutput;
+	}
+
+	/**
+	 * @return Last GPS_GLOBAL_ORIGIN.
+	 */
+	public msg_gps_global_origin getGpsOrigin()
+	{
+		return gpsOrigin;
+	}
+
+	/**
+	 * @return Last SAFETY_ALLOWED_AREA.
+	 */
+	public msg_safety_allowed_area getAllowedArea()
+	{
+		return allowedArea;
+	}
+
+	/**
+	 * @return Last RADIO_STATUS.
+	 */
+	public msg_radio_status getRadio()
+	{
+		return radio;
+	}
+}
@@ -0,0 +1,77 @@
+package is.erle.mavlink;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.MAVLink.Messages.MAVLinkMessage;
+
+/**
+ * Holds the current {@link VehicleState} of every system id.
+ * <p>
+ * Reading a state is a single volatile read and never blocks. Updates swap
+ * in a new immutable state with a compare and set, so the rare concurrent
+ * writers retry instead of locking and no update is lost.
+ *
+ * @version %I%, %G%
+ * @since 1.0.0
+ */
+public class VehicleStateStore
+{
+	/**
+	 * Number of system ids.
+	 */
+	private static final int SYSTEMS = 256;
+
+	/**
+	 * Current state per system id.
+	 */
+	private final AtomicReferenceArray<VehicleState> states = new AtomicReferenceArray<VehicleState>(
+			SYSTEMS);
+
+	/**
+	 * Constructor to initialize the store with every vehicle unheard.
+	 */
+	public VehicleStateStore()
+	{
+		for (int i = 0; i < SYSTEMS; i++)
+		{
+			states.set(i, new VehicleState(i));
+		}
+	}
+
+	/**
+	 * Applies a decoded message to the state of its sender.
+	 *
+	 * @param message
+	 *            Decoded message.
+	 * @return The state after the message.
+	 */
+	public VehicleState update(MAVLinkMessage message)
+	{
+		int system = message.sysid & 0xFF;
+		if (!VehicleState.isKept(message.msgid))
+		{
+			return states.get(system);
+		}
+		while (true)
+		{
+			VehicleState current = states.get(system);
+			VehicleState next = current.with(message);
+			if (states.compareAndSet(system, current, next))
+			{
+				return next;
+			}
+		}
+	}
+
+	/**
+	 * Gets the current state of a vehicle.
+	 *
+	 * @param systemId
+	 *            System id of the vehicle.
+	 * @return Its state, with no message if it has not been heard.
+	 */
+	public VehicleState get(int systemId)
+	{
+		return states.get(systemId & 0xFF);
+	}
+}
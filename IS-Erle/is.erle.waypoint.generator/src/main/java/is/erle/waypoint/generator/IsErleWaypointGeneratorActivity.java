@@ -72,7 +72,7 @@ public class IsErleWaypointGeneratorActivity extends BaseRoutableRosActivity
 	 * Usage : Send output to the mavlink activity after reading from file/request.
 	 * <p>
 	 */
-	private static String publishers[];
+	private String publishers[];
 
 	/**
 	 * The topic names for subscribing data.
@@ -86,7 +86,7 @@ public class IsErleWaypointGeneratorActivity extends BaseRoutableRosActivity
 	 * Usage : Receive data from mavlink activity and process request.
 	 * <p>
 	 */
-	private static String subscribers[];
+	private String subscribers[];
 	
 	/**
 	 * File name constant.
@@ -96,7 +96,7 @@ public class IsErleWaypointGeneratorActivity extends BaseRoutableRosActivity
 	/**
 	 * Contains the directory of the file associated with FILE_NAME
 	 */
-	private static String fileWithDirectory;
+	private String fileWithDirectory;
 	
 	/**
 	 * Separator used in the mission text file.
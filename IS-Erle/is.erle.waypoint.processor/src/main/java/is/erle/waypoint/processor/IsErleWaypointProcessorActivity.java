@@ -46,7 +46,7 @@ public class IsErleWaypointProcessorActivity extends BaseRoutableRosActivity {
 	 * Usage : Send output to the mavlink activity after receiving it from the drone.
 	 * <p>
 	 */
-	private static String publishers[];
+	private String publishers[];
 
 	/**
 	 * The topic names for subscribing data.
@@ -59,7 +59,7 @@ public class IsErleWaypointProcessorActivity extends BaseRoutableRosActivity {
 	 * <p>
 	 * Usage : Receive data from mavlink activity and send it to the drone.
 	 */
-	private static String subscribers[];
+	private String subscribers[];
 	
 	/**
 	 * File name constant.
@@ -69,7 +69,7 @@ public class IsErleWaypointProcessorActivity extends BaseRoutableRosActivity {
 	/**
 	 * Contains the directory of the file associated with FILE_NAME.
 	 */
-	private static String fileWithDirectory;
+	private String fileWithDirectory;
 	
 	/**
 	 * A thread to see the file changed status. It keeps seeing the file for any
@@ -10,7 +10,7 @@ session=requests.Session()
 url_prefix = "http://127.0.0.1:8080/interactivespaces/"
 activity_id = {}#{'captain':'0','serial':'0','udp':'0','mavlink':'0','generator':'0','processor':'0'}
 
-#Change to serial to start using on serial port
+#Change to serial or tcp to start using on serial port or TCP
 comms_port ='udp'
 
 global master_pid
@@ -136,6 +136,8 @@ if data['result']=='success':
             activity_id['captain'] = data['data'][i]['id']
         elif data['data'][i]['activity']['identifyingName']== 'is.erle.comm.serial':
             activity_id['serial'] = data['data'][i]['id']
+        elif data['data'][i]['activity']['identifyingName']== 'is.erle.comm.tcp':
+            activity_id['tcp'] = data['data'][i]['id']
         elif data['data'][i]['activity']['identifyingName']== 'is.erle.comms':
             activity_id['udp'] = data['data'][i]['id']
         elif data['data'][i]['activity']['identifyingName']== 'is.erle.mavlink':